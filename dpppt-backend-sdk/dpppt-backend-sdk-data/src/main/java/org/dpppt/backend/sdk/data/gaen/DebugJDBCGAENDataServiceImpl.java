@@ -49,7 +49,7 @@ public void upsertExposees(String deviceName, List<GaenKey> gaenKeys) {
     } else {
       sql =
           "merge into t_debug_gaen_exposed using (values(cast(:device_name as varchar(200)),"
-              + " cast(:key as varchar(24)), :rolling_start_number, :rolling_period,"
+              + " cast(:key as varbinary(16)), :rolling_start_number, :rolling_period,"
               + " :transmission_risk_level)) as vals(device_name, key, rolling_start_number,"
               + " rolling_period, transmission_risk_level) on t_gaen_exposed.key = vals.key when"
               + " not matched then insert (device_name, key, rolling_start_number, rolling_period,"
@@ -60,7 +60,7 @@ public void upsertExposees(String deviceName, List<GaenKey> gaenKeys) {
     for (var gaenKey : gaenKeys) {
       MapSqlParameterSource params = new MapSqlParameterSource();
       params.addValue("device_name", deviceName);
-      params.addValue("key", gaenKey.getKeyData());
+      params.addValue("key", gaenKey.getKeyBytes());
       params.addValue("rolling_start_number", gaenKey.getRollingStartNumber());
       params.addValue("rolling_period", gaenKey.getRollingPeriod());
       params.addValue("transmission_risk_level", gaenKey.getTransmissionRiskLevel());
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.data.gaen;
+
+/** Receives the exported fields of the keys streamed from the database, one key at a time. */
+@FunctionalInterface
+public interface ExposedKeyHandler {
+
+  /**
+   * @param keyData the 16 bytes of the key, owned by the handler
+   * @param rollingStartNumber
+   * @param rollingPeriod
+   * @param transmissionRiskLevel
+   * @param reportType 0 if not set
+   * @param daysSinceOnset 0 if not set
+   */
+  void handle(
+      byte[] keyData,
+      int rollingStartNumber,
+      int rollingPeriod,
+      int transmissionRiskLevel,
+      int reportType,
+      int daysSinceOnset);
+}
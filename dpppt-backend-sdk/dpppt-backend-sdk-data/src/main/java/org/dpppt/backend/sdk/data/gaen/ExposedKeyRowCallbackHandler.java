@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.data.gaen;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * Passes the rows of an export query to an {@link ExposedKeyHandler} without creating a GaenKey
+ * per row. The column indices are resolved on the first row, so an instance must only be used for
+ * one query.
+ */
+public class ExposedKeyRowCallbackHandler implements RowCallbackHandler {
+
+  private final ExposedKeyHandler handler;
+
+  private boolean resolved;
+  private int keyColumn;
+  private int rollingStartNumberColumn;
+  private int rollingPeriodColumn;
+  private int transmissionRiskLevelColumn;
+  private int reportTypeColumn;
+  private int daysSinceOnsetColumn;
+
+  public ExposedKeyRowCallbackHandler(ExposedKeyHandler handler) {
+    this.handler = handler;
+  }
+
+  @Override
+  public void processRow(ResultSet rs) throws SQLException {
+    if (!resolved) {
+      keyColumn = rs.findColumn("key");
+      rollingStartNumberColumn = rs.findColumn("rolling_start_number");
+      rollingPeriodColumn = rs.findColumn("rolling_period");
+      transmissionRiskLevelColumn = rs.findColumn("transmission_risk_level");
+      reportTypeColumn = rs.findColumn("report_type");
+      daysSinceOnsetColumn = rs.findColumn("days_since_onset");
+      resolved = true;
+    }
+    handler.handle(
+        rs.getBytes(keyColumn),
+        rs.getInt(rollingStartNumberColumn),
+        rs.getInt(rollingPeriodColumn),
+        rs.getInt(transmissionRiskLevelColumn),
+        rs.getInt(reportTypeColumn),
+        rs.getInt(daysSinceOnsetColumn));
+  }
+}
@@ -5,75 +5,145 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.Collections;
 import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * Holds the fake keys of the retention period in memory. The pool is immutable and replaced as a
+ * whole by {@link #updateFakeKeys()}, so requests always see either the old or the new pool and
+ * never an empty one.
+ */
 public class FakeKeyService {
 
   private static final Long EFGS_DEFAULT_DAYS_SINCE_ONSET_OF_SYMPTOMS = 1L;
   private static final Boolean EFGS_DEFAULT_SHARING = Boolean.FALSE;
+  private static final String SEED_ALGORITHM = "HmacSHA256";
 
-  private final GAENDataService dataService;
   private final Integer minNumOfKeys;
   private final SecureRandom random;
   private final Integer keySize;
   private final Duration retentionPeriod;
+  private final Duration releaseBucketDuration;
+  private final Duration timeSkew;
   private final boolean isEnabled;
   private final String countryOrigin;
   private final Integer reportType;
+  private final byte[] seed;
+
+  private volatile FakeKeyPool pool;
 
   private static final Logger logger = LoggerFactory.getLogger(FakeKeyService.class);
 
   public FakeKeyService(
-      GAENDataService dataService,
       Integer minNumOfKeys,
       Integer keySize,
       Duration retentionPeriod,
+      Duration releaseBucketDuration,
+      Duration timeSkew,
       boolean isEnabled,
       String countryOrigin,
       Integer reportType)
       throws NoSuchAlgorithmException {
-    this.dataService = dataService;
+    this(
+        minNumOfKeys,
+        keySize,
+        retentionPeriod,
+        releaseBucketDuration,
+        timeSkew,
+        isEnabled,
+        countryOrigin,
+        reportType,
+        null);
+  }
+
+  /**
+   * @param seed if not null, the key data of the fake keys is derived from the seed and the key
+   *     date instead of being random, so that all nodes sharing the seed generate the same keys
+   */
+  public FakeKeyService(
+      Integer minNumOfKeys,
+      Integer keySize,
+      Duration retentionPeriod,
+      Duration releaseBucketDuration,
+      Duration timeSkew,
+      boolean isEnabled,
+      String countryOrigin,
+      Integer reportType,
+      byte[] seed)
+      throws NoSuchAlgorithmException {
     this.minNumOfKeys = minNumOfKeys;
     this.random = new SecureRandom();
     this.keySize = keySize;
     this.retentionPeriod = retentionPeriod;
+    this.releaseBucketDuration = releaseBucketDuration;
+    this.timeSkew = timeSkew;
     this.isEnabled = isEnabled;
     this.countryOrigin = countryOrigin;
     this.reportType = reportType;
+    this.seed = seed;
     this.updateFakeKeys();
   }
 
+  /**
+   * Generates the fake keys of the retention period into a new pool and swaps it in once it is
+   * complete.
+   */
   public void updateFakeKeys() {
-    deleteAllKeys();
     var currentKeyDate = UTCInstant.today();
     var tmpDate = currentKeyDate.minusDays(retentionPeriod.toDays()).atStartOfDay();
     logger.debug("Fill Fake keys. Start: " + currentKeyDate + " End: " + tmpDate);
+    var keysByDate = new TreeMap<Long, List<GaenKey>>();
     do {
       var keys = new ArrayList<GaenKey>();
       for (int i = 0; i < minNumOfKeys; i++) {
-        byte[] keyData = new byte[keySize];
-        random.nextBytes(keyData);
         var keyGAENTime = (int) tmpDate.get10MinutesSince1970();
-        var key = new GaenKey(Base64.getEncoder().encodeToString(keyData), keyGAENTime, 144, 0,
+        byte[] keyData = keyData(keyGAENTime, i);
+        var key = new GaenKey(null, keyGAENTime, 144, 0,
                               countryOrigin, reportType, EFGS_DEFAULT_DAYS_SINCE_ONSET_OF_SYMPTOMS, EFGS_DEFAULT_SHARING,
                               Collections.singletonList(countryOrigin));
+        key.setKeyBytes(keyData);
         keys.add(key);
       }
-      // TODO: Check if currentKeyDate is indeed intended here
-      this.dataService.upsertExposees(keys, currentKeyDate);
+      keysByDate.put(tmpDate.get10MinutesSince1970(), List.copyOf(keys));
       tmpDate = tmpDate.plusDays(1);
     } while (tmpDate.isBeforeDateOf(currentKeyDate));
+    // the fake keys count as received at the end of the current release bucket, as real keys do
+    var receivedAt =
+        currentKeyDate.roundToNextBucket(releaseBucketDuration).minus(Duration.ofMillis(1));
+    this.pool = new FakeKeyPool(Collections.unmodifiableNavigableMap(keysByDate), receivedAt);
   }
 
-  private void deleteAllKeys() {
-    logger.debug("Delete all fake keys");
-    this.dataService.cleanDB(Duration.ofDays(0));
+  private byte[] keyData(int keyGAENTime, int index) {
+    byte[] keyData = new byte[keySize];
+    if (seed == null) {
+      random.nextBytes(keyData);
+      return keyData;
+    }
+    try {
+      var mac = Mac.getInstance(SEED_ALGORITHM);
+      mac.init(new SecretKeySpec(seed, SEED_ALGORITHM));
+      int offset = 0;
+      for (int block = 0; offset < keySize; block++) {
+        mac.update(ByteBuffer.allocate(12).putInt(keyGAENTime).putInt(index).putInt(block).array());
+        byte[] derived = mac.doFinal();
+        int length = Math.min(derived.length, keySize - offset);
+        System.arraycopy(derived, 0, keyData, offset, length);
+        offset += length;
+      }
+      return keyData;
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new IllegalStateException("cannot derive fake keys", e);
+    }
   }
 
   public List<GaenKey> fillUpKeys(
@@ -86,11 +156,34 @@ public List<GaenKey> fillUpKeys(
     if (today.hasSameDateAs(keyLocalDate)) {
       return keys;
     }
-    var fakeKeys =
-        this.dataService.getSortedExposedForKeyDate(
-            keyDate, publishedafter, UTCInstant.today().plusDays(1), now);
-
-    keys.addAll(fakeKeys);
+    var currentPool = this.pool;
+    if (publishedafter != null && currentPool.receivedAt.isBeforeEpochMillisOf(publishedafter)) {
+      return keys;
+    }
+    // same release rule as for real keys: rolling_start_number + rolling_period + timeSkew < now
+    var maxAllowedStartNumber =
+        now.roundToBucketStart(releaseBucketDuration).minus(timeSkew).get10MinutesSince1970();
+    var fakeKeysOfKeyDate =
+        currentPool.keysByDate.subMap(
+            keyDate.get10MinutesSince1970(), true, keyDate.plusDays(1).get10MinutesSince1970(), false);
+    for (var fakeKeys : fakeKeysOfKeyDate.values()) {
+      for (var fakeKey : fakeKeys) {
+        if (fakeKey.getRollingStartNumber() + fakeKey.getRollingPeriod() < maxAllowedStartNumber) {
+          keys.add(fakeKey);
+        }
+      }
+    }
     return keys;
   }
+
+  private static class FakeKeyPool {
+    // rolling start number of the key date -> fake keys of that date
+    private final NavigableMap<Long, List<GaenKey>> keysByDate;
+    private final UTCInstant receivedAt;
+
+    private FakeKeyPool(NavigableMap<Long, List<GaenKey>> keysByDate, UTCInstant receivedAt) {
+      this.keysByDate = keysByDate;
+      this.receivedAt = receivedAt;
+    }
+  }
 }
@@ -13,6 +13,7 @@
 import java.time.Duration;
 import java.util.List;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.model.gaen.GaenKeyBatch;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 
 public interface GAENDataService {
@@ -57,6 +58,16 @@ List<GaenKey> getSortedExposedForKeyDate(
    */
   void cleanDB(Duration retentionPeriod);
 
+  /**
+   * Creates the day partitions of the exposed keys up to {@code now + precreatePeriod} and drops the
+   * partitions of the days which ended before the retention period. Does nothing if the database
+   * does not partition the keys.
+   *
+   * @param retentionPeriod the retention period of the keys
+   * @param precreatePeriod how far in the future partitions are created
+   */
+  void maintainPartitions(Duration retentionPeriod, Duration precreatePeriod);
+
   /**
    * Returns all exposed keys since keySince.
    *
@@ -77,4 +88,49 @@ List<GaenKey> getSortedExposedForKeyDate(
    */
   List<GaenKey> getSortedExposedSince(UTCInstant keysSince, UTCInstant now, List<String> visitedCountries,
                                       List<String> originCountries);
+
+  /**
+   * Returns the same keys as {@link #getSortedExposedSince(UTCInstant, UTCInstant, List, List)},
+   * in the compact form read by the export, without the visited countries.
+   *
+   * @param keysSince
+   * @param now
+   * @param visitedCountries
+   * @param originCountries
+   * @return
+   */
+  default GaenKeyBatch getExposedKeyBatchSince(UTCInstant keysSince, UTCInstant now,
+      List<String> visitedCountries, List<String> originCountries) {
+    return GaenKeyBatch.of(getSortedExposedSince(keysSince, now, visitedCountries, originCountries));
+  }
+
+  /**
+   * Passes the same keys as {@link #getExposedKeyBatchSince(UTCInstant, UTCInstant, List, List)} to
+   * the handler, in the same order. Implementations may call the handler while the rows are still
+   * read from the database.
+   *
+   * @param keysSince
+   * @param now
+   * @param visitedCountries
+   * @param originCountries
+   * @param handler called once per key
+   */
+  default void streamExposedKeysSince(UTCInstant keysSince, UTCInstant now,
+      List<String> visitedCountries, List<String> originCountries, ExposedKeyHandler handler) {
+    var keys = getExposedKeyBatchSince(keysSince, now, visitedCountries, originCountries);
+    for (int i = 0; i < keys.size(); i++) {
+      handler.handle(keys.getKeyData(i), keys.getRollingStartNumber(i), keys.getRollingPeriod(i),
+          keys.getTransmissionRiskLevel(i), keys.getReportType(i), keys.getDaysSinceOnset(i));
+    }
+  }
+
+  /**
+   * Returns the latest received_at and publish time of the keys before the given time, from which
+   * the export endpoints decide whether a request has anything new without reading the keys. Both
+   * are read by one aggregate over the indexes, so the result does not grow with the keys.
+   *
+   * @param before the time up to which, exclusive, the keys are considered
+   * @return the latest times, each {@code null} if no such key exists
+   */
+  GaenKeyWatermark getKeyWatermark(UTCInstant before);
 }
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.data.gaen;
+
+import java.util.List;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+
+/** Signed export bundles shared by all nodes, so that each export is only built once. */
+public interface GaenBundleDataService {
+
+  /**
+   * Returns the stored batches of an export.
+   *
+   * @param exportId identifies the export, including its release bucket
+   * @return the batches ordered by batch number, or an empty list if the export is not stored
+   */
+  List<StoredGaenBundle> getBundles(String exportId);
+
+  /**
+   * Stores all batches of an export in one transaction.
+   *
+   * @param exportId identifies the export, including its release bucket
+   * @param publishedUntil the release bucket of the export, used for the cleanup
+   * @param bundles the batches of the export
+   * @throws org.springframework.dao.DuplicateKeyException if the export was already stored
+   */
+  void insertBundles(String exportId, UTCInstant publishedUntil, List<StoredGaenBundle> bundles);
+
+  /**
+   * Removes the exports of earlier release buckets.
+   *
+   * @param publishedUntil the oldest release bucket to keep
+   */
+  void cleanDB(UTCInstant publishedUntil);
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.data.gaen;
+
+import org.dpppt.backend.sdk.utils.UTCInstant;
+
+/**
+ * When keys of a key date and origin country were received and are released, reported to a {@link
+ * KeyPublicationListener} on insert.
+ */
+public class GaenKeyPublication {
+
+  private final String originCountry;
+  private final UTCInstant keyDate;
+  private final UTCInstant receivedAt;
+  private final UTCInstant publishAt;
+
+  /**
+   * @param originCountry the origin country of the keys, may be {@code null}
+   * @param keyDate the start of the day of the rolling start number of the keys
+   * @param receivedAt the received_at of the keys
+   * @param publishAt the later of received_at and the expiry of the keys
+   */
+  public GaenKeyPublication(
+      String originCountry, UTCInstant keyDate, UTCInstant receivedAt, UTCInstant publishAt) {
+    this.originCountry = originCountry;
+    this.keyDate = keyDate;
+    this.receivedAt = receivedAt;
+    this.publishAt = publishAt;
+  }
+
+  public String getOriginCountry() {
+    return originCountry;
+  }
+
+  public UTCInstant getKeyDate() {
+    return keyDate;
+  }
+
+  public UTCInstant getReceivedAt() {
+    return receivedAt;
+  }
+
+  public UTCInstant getPublishAt() {
+    return publishAt;
+  }
+}
@@ -2,41 +2,56 @@
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.model.gaen.VisitedCountries;
 import org.springframework.jdbc.core.RowMapper;
 
+/**
+ * Maps the keys of the export queries. The columns days_since_onset, report_type and visited_mask
+ * are optional, which of them a query selects is read once from the metadata of its result set.
+ */
 public class GaenKeyRowMapper implements RowMapper<GaenKey> {
 
+  private ResultSet columnsOf;
+  private boolean hasDaysSinceOnset;
+  private boolean hasReportType;
+  private boolean hasVisitedMask;
+
   @Override
   public GaenKey mapRow(ResultSet rs, int rowNum) throws SQLException {
+    if (rs != columnsOf) {
+      readColumns(rs);
+    }
     var gaenKey = new GaenKey();
-    gaenKey.setKeyData(rs.getString("key"));
+    gaenKey.setKeyBytes(rs.getBytes("key"));
     gaenKey.setRollingStartNumber(rs.getInt("rolling_start_number"));
     gaenKey.setRollingPeriod(rs.getInt("rolling_period"));
     gaenKey.setTransmissionRiskLevel(rs.getInt("transmission_risk_level"));
-    
-    Long daysSinceOnset;
-
-    try {
-    	daysSinceOnset = rs.getLong("days_since_onset");
-    } catch (java.sql.SQLException e) {
-    	daysSinceOnset = null;
+    if (hasDaysSinceOnset) {
+      gaenKey.setDaysSinceOnsetOfSymptons(rs.getLong("days_since_onset"));
     }
-    if(daysSinceOnset != null) {
-        gaenKey.setDaysSinceOnsetOfSymptons(daysSinceOnset);    	
-    }
-
-    Integer reportType;
-
-    try {
-    	reportType = rs.getInt("report_type");
-    } catch (java.sql.SQLException e) {
-    	reportType = null;
+    if (hasReportType) {
+      gaenKey.setReportType(rs.getInt("report_type"));
     }
-    if(reportType != null) {
-        gaenKey.setReportType(reportType);    	
+    if (hasVisitedMask) {
+      gaenKey.setVisitedCountries(VisitedCountries.fromMask(rs.getLong("visited_mask")));
     }
-
     return gaenKey;
   }
+
+  private void readColumns(ResultSet rs) throws SQLException {
+    var metaData = rs.getMetaData();
+    Set<String> columns = new HashSet<>();
+    for (int i = 1; i <= metaData.getColumnCount(); i++) {
+      // HSQLDB reports the labels in upper case
+      columns.add(metaData.getColumnLabel(i).toLowerCase(Locale.ROOT));
+    }
+    hasDaysSinceOnset = columns.contains("days_since_onset");
+    hasReportType = columns.contains("report_type");
+    hasVisitedMask = columns.contains("visited_mask");
+    columnsOf = rs;
+  }
 }
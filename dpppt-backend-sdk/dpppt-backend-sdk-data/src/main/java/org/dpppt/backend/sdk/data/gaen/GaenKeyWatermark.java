@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.data.gaen;
+
+import org.dpppt.backend.sdk.utils.UTCInstant;
+
+/** The latest received_at and publish time of the keys before a given time. */
+public class GaenKeyWatermark {
+
+  private final UTCInstant latestReceivedAt;
+  private final UTCInstant latestPublishAt;
+
+  /**
+   * @param latestReceivedAt the latest received_at, {@code null} if no key was received before
+   * @param latestPublishAt the latest publish time, {@code null} if no key is published before
+   */
+  public GaenKeyWatermark(UTCInstant latestReceivedAt, UTCInstant latestPublishAt) {
+    this.latestReceivedAt = latestReceivedAt;
+    this.latestPublishAt = latestPublishAt;
+  }
+
+  public UTCInstant getLatestReceivedAt() {
+    return latestReceivedAt;
+  }
+
+  public UTCInstant getLatestPublishAt() {
+    return latestPublishAt;
+  }
+}
@@ -10,6 +10,7 @@
 
 package org.dpppt.backend.sdk.data.gaen;
 
+import java.sql.Timestamp;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
@@ -62,7 +63,7 @@ public void upsertExposeesDelayed(
               + " constraint gaen_exposed_key do nothing";
     } else {
       sql =
-          "merge into t_gaen_exposed using (values(cast(:key as varchar(24)),"
+          "merge into t_gaen_exposed using (values(cast(:key as varbinary(16)),"
               + " :rolling_start_number, :rolling_period, :transmission_risk_level, :received_at))"
               + " as vals(key, rolling_start_number, rolling_period, transmission_risk_level,"
               + " received_at) on t_gaen_exposed.key = vals.key when not matched then insert (key,"
@@ -78,7 +79,7 @@ public void upsertExposeesDelayed(
             : delayedReceivedAt;
     for (var gaenKey : gaenKeys) {
       MapSqlParameterSource params = new MapSqlParameterSource();
-      params.addValue("key", gaenKey.getKeyData());
+      params.addValue("key", gaenKey.getKeyBytes());
       params.addValue("rolling_start_number", gaenKey.getRollingStartNumber());
       params.addValue("rolling_period", gaenKey.getRollingPeriod());
       params.addValue("transmission_risk_level", gaenKey.getTransmissionRiskLevel());
@@ -161,6 +162,27 @@ public List<GaenKey> getSortedExposedSince(UTCInstant keysSince, UTCInstant now)
     return jt.query(sql, params, new GaenKeyRowMapper());
   }
 
+  @Override
+  @Transactional(readOnly = true)
+  public GaenKeyWatermark getKeyWatermark(UTCInstant before) {
+    // both maxima are found at the end of the indexes on received_at and publish_at
+    String sql =
+        "select max(received_at) as latest_received_at, (select max(publish_at) from"
+            + " t_gaen_exposed where publish_at < :before) as latest_publish_at"
+            + " from t_gaen_exposed where received_at < :before";
+    return jt.queryForObject(
+        sql,
+        new MapSqlParameterSource("before", before.getDate()),
+        (rs, rowNum) ->
+            new GaenKeyWatermark(
+                toUTCInstant(rs.getTimestamp("latest_received_at")),
+                toUTCInstant(rs.getTimestamp("latest_publish_at"))));
+  }
+
+  private static UTCInstant toUTCInstant(Timestamp timestamp) {
+    return timestamp == null ? null : new UTCInstant(timestamp.getTime());
+  }
+
   private String getSQLExpressionForExpiry() {
     if (this.dbType.equals(PGSQL)) {
       return "TO_TIMESTAMP((rolling_start_number + rolling_period) * 10 * 60 +"
@@ -180,6 +202,30 @@ public void cleanDB(Duration retentionPeriod) {
         new MapSqlParameterSource("retention_time", retentionTime.getDate());
     String sqlExposed = "delete from t_gaen_exposed where received_at < :retention_time";
     jt.update(sqlExposed, params);
+    if (dbType.equals(PGSQL)) {
+      jt.update("delete from t_gaen_key where received_at < :retention_time", params);
+    }
+  }
+
+  @Override
+  public void maintainPartitions(Duration retentionPeriod, Duration precreatePeriod) {
+    if (!dbType.equals(PGSQL)) {
+      return;
+    }
+    var now = UTCInstant.now();
+    MapSqlParameterSource params = new MapSqlParameterSource();
+    params.addValue("from_day", now.getLocalDate());
+    params.addValue("to_day", now.plus(precreatePeriod).getLocalDate());
+    params.addValue("before", now.minus(retentionPeriod).getDate());
+    Integer created =
+        jt.queryForObject(
+            "select gaen_exposed_create_partitions(:from_day, :to_day)", params, Integer.class);
+    Integer dropped =
+        jt.queryForObject("select gaen_exposed_drop_partitions(:before)", params, Integer.class);
+    // only the days dropped completely, the keys of the remaining partitions stay unique
+    params.addValue("before_day", now.minus(retentionPeriod).atStartOfDay().getDate());
+    jt.update("delete from t_gaen_key where received_at < :before_day", params);
+    logger.info("Created " + created + " and dropped " + dropped + " partitions of exposed keys");
   }
   
   @Override
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.data.gaen;
+
+import java.sql.Types;
+import java.util.List;
+import javax.sql.DataSource;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.transaction.annotation.Transactional;
+
+public class JDBCGaenBundleDataServiceImpl implements GaenBundleDataService {
+
+  private static final Logger logger = LoggerFactory.getLogger(JDBCGaenBundleDataServiceImpl.class);
+
+  private final NamedParameterJdbcTemplate jt;
+
+  public JDBCGaenBundleDataServiceImpl(DataSource dataSource) {
+    this.jt = new NamedParameterJdbcTemplate(dataSource);
+  }
+
+  @Override
+  @Transactional(readOnly = true)
+  public List<StoredGaenBundle> getBundles(String exportId) {
+    String sql =
+        "select batch_num, batch_size, hash, zip, key_count from t_gaen_bundle"
+            + " where export_id = :export_id order by batch_num";
+    return jt.query(
+        sql,
+        new MapSqlParameterSource("export_id", exportId),
+        (rs, rowNum) ->
+            new StoredGaenBundle(
+                rs.getInt("batch_num"),
+                rs.getInt("batch_size"),
+                rs.getBytes("hash"),
+                rs.getBytes("zip"),
+                rs.getObject("key_count") != null ? rs.getInt("key_count") : -1));
+  }
+
+  @Override
+  @Transactional(readOnly = false)
+  public void insertBundles(
+      String exportId, UTCInstant publishedUntil, List<StoredGaenBundle> bundles) {
+    String sql =
+        "insert into t_gaen_bundle (export_id, batch_num, batch_size, published_until, hash, zip,"
+            + " key_count) values (:export_id, :batch_num, :batch_size, :published_until, :hash,"
+            + " :zip, :key_count)";
+    var params = new MapSqlParameterSource[bundles.size()];
+    for (int i = 0; i < bundles.size(); i++) {
+      var bundle = bundles.get(i);
+      params[i] =
+          new MapSqlParameterSource("export_id", exportId)
+              .addValue("batch_num", bundle.getBatchNum())
+              .addValue("batch_size", bundle.getBatchSize())
+              .addValue("published_until", publishedUntil.getDate())
+              .addValue("hash", bundle.getHash(), Types.BINARY)
+              .addValue("zip", bundle.getZip(), Types.BINARY)
+              .addValue(
+                  "key_count",
+                  bundle.getKeyCount() >= 0 ? bundle.getKeyCount() : null,
+                  Types.INTEGER);
+    }
+    jt.batchUpdate(sql, params);
+  }
+
+  @Override
+  @Transactional(readOnly = false)
+  public void cleanDB(UTCInstant publishedUntil) {
+    logger.info("Cleanup export bundles published before: " + publishedUntil);
+    String sql = "delete from t_gaen_bundle where published_until < :published_until";
+    jt.update(sql, new MapSqlParameterSource("published_until", publishedUntil.getDate()));
+  }
+}
@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.data.gaen;
+
+import java.util.List;
+
+/**
+ * Learns about the publications of keys inserted by this node, before they are committed. A
+ * listener may only treat them as possibly published: they are lost if the transaction rolls back.
+ */
+@FunctionalInterface
+public interface KeyPublicationListener {
+
+  /** @param publications the publications of the inserted keys, possibly with duplicates */
+  void inserted(List<GaenKeyPublication> publications);
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.data.gaen;
+
+/** One batch of a signed export as stored in {@code t_gaen_bundle}. */
+public class StoredGaenBundle {
+
+  private final int batchNum;
+  private final int batchSize;
+  private final byte[] hash;
+  private final byte[] zip;
+  private final int keyCount;
+
+  /**
+   * @param hash the hash of the export, or null if the export has no keys
+   * @param zip the signed ZIP file, or null if the export has no keys
+   */
+  public StoredGaenBundle(int batchNum, int batchSize, byte[] hash, byte[] zip) {
+    this(batchNum, batchSize, hash, zip, -1);
+  }
+
+  /**
+   * @param hash the hash of the export, or null if the export has no keys
+   * @param zip the signed ZIP file, or null if the export has no keys
+   * @param keyCount the number of keys in the batch, -1 if unknown
+   */
+  public StoredGaenBundle(int batchNum, int batchSize, byte[] hash, byte[] zip, int keyCount) {
+    this.batchNum = batchNum;
+    this.batchSize = batchSize;
+    this.hash = hash;
+    this.zip = zip;
+    this.keyCount = keyCount;
+  }
+
+  /** @return the stored row of an export without keys */
+  public static StoredGaenBundle empty() {
+    return new StoredGaenBundle(1, 0, null, null, 0);
+  }
+
+  public int getBatchNum() {
+    return batchNum;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public byte[] getHash() {
+    return hash;
+  }
+
+  public byte[] getZip() {
+    return zip;
+  }
+
+  /** @return the number of keys in the batch, -1 if unknown */
+  public int getKeyCount() {
+    return keyCount;
+  }
+
+  public boolean isEmpty() {
+    return zip == null;
+  }
+}
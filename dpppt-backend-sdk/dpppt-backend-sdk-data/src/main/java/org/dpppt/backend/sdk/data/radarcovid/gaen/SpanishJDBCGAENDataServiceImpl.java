@@ -10,29 +10,68 @@
 
 package org.dpppt.backend.sdk.data.radarcovid.gaen;
 
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.sql.DataSource;
 
+import org.dpppt.backend.sdk.data.gaen.ExposedKeyHandler;
+import org.dpppt.backend.sdk.data.gaen.ExposedKeyRowCallbackHandler;
 import org.dpppt.backend.sdk.data.gaen.GAENDataService;
+import org.dpppt.backend.sdk.data.gaen.GaenKeyPublication;
 import org.dpppt.backend.sdk.data.gaen.GaenKeyRowMapper;
 import org.dpppt.backend.sdk.data.gaen.JDBCGAENDataServiceImpl;
+import org.dpppt.backend.sdk.data.gaen.KeyPublicationListener;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.model.gaen.GaenKeyBatch;
 import org.dpppt.backend.sdk.model.gaen.GaenUnit;
+import org.dpppt.backend.sdk.model.gaen.VisitedCountries;
 import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
-import org.springframework.jdbc.support.GeneratedKeyHolder;
-import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.transaction.annotation.Transactional;
 
 public class SpanishJDBCGAENDataServiceImpl extends JDBCGAENDataServiceImpl implements GAENDataService {
-	
+
+	private static final Logger logger = LoggerFactory.getLogger(SpanishJDBCGAENDataServiceImpl.class);
+
+	// 10 parameters per key, well below the limit of bind parameters per statement
+	private static final int MAX_KEYS_PER_STATEMENT = 1000;
+
+	// keys from the future are rejected on upload, so a key expires at most this long after it was received
+	private static final Duration MAX_EXPIRY_AFTER_RECEIVED = Duration.ofDays(3);
+
+	// rows per round trip when streaming the keys of an export, instead of reading the whole result at once
+	private static final int EXPORT_FETCH_SIZE = 1000;
+
+	private final NamedParameterJdbcTemplate streamingJt;
+
+	private volatile KeyPublicationListener publicationListener;
 
 	public SpanishJDBCGAENDataServiceImpl(String dbType, DataSource dataSource, Duration releaseBucketDuration,
 			Duration timeSkew) {
 		super(dbType, dataSource, releaseBucketDuration, timeSkew);
+		JdbcTemplate streamingTemplate = new JdbcTemplate(dataSource);
+		streamingTemplate.setFetchSize(EXPORT_FETCH_SIZE);
+		this.streamingJt = new NamedParameterJdbcTemplate(streamingTemplate);
+	}
+
+	/**
+	 * @param publicationListener notified of the publications of the keys inserted by this instance, so that it
+	 *                            does not have to wait for {@link #getKeyWatermark} to see them
+	 */
+	public void setPublicationListener(KeyPublicationListener publicationListener) {
+		this.publicationListener = publicationListener;
 	}
 
 	@Override
@@ -41,8 +80,8 @@ public void upsertExposeesDelayed(List<GaenKey> gaenKeys, UTCInstant delayedRece
 		var receivedAt = delayedReceivedAt == null
 				? now.roundToNextBucket(releaseBucketDuration).minus(Duration.ofMillis(1))
 				: delayedReceivedAt;
-		for (var gaenKey : gaenKeys) {
-			internalUpsertKey(gaenKey, receivedAt);
+		if (!gaenKeys.isEmpty()) {
+			internalUpsertKeys(gaenKeys, receivedAt);
 		}
 	}
 
@@ -51,19 +90,55 @@ public void upsertExposeesDelayed(List<GaenKey> gaenKeys, UTCInstant delayedRece
 	public List<GaenKey> getSortedExposedSince(UTCInstant keysSince, UTCInstant now, List<String> visitedCountries,
 			List<String> originCountries) {
 		MapSqlParameterSource params = new MapSqlParameterSource();
+		String sql = exposedSinceQuery(keysSince, now, visitedCountries, originCountries, params);
+		return jt.query(sql, params, new GaenKeyRowMapper());
+	}
+
+	@Override
+	@Transactional(readOnly = true)
+	public GaenKeyBatch getExposedKeyBatchSince(UTCInstant keysSince, UTCInstant now, List<String> visitedCountries,
+			List<String> originCountries) {
+		GaenKeyBatch keys = new GaenKeyBatch();
+		streamExposedKeysSince(keysSince, now, visitedCountries, originCountries, keys::add);
+		return keys;
+	}
+
+	/**
+	 * The postgres driver only honours the fetch size inside a transaction, outside of one it reads the
+	 * whole result before the first row is handled.
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public void streamExposedKeysSince(UTCInstant keysSince, UTCInstant now, List<String> visitedCountries,
+			List<String> originCountries, ExposedKeyHandler handler) {
+		MapSqlParameterSource params = new MapSqlParameterSource();
+		String sql = exposedSinceQuery(keysSince, now, visitedCountries, originCountries, params);
+		streamingJt.query(sql, params, new ExposedKeyRowCallbackHandler(handler));
+	}
+
+	/**
+	 * Builds the query of {@link #getSortedExposedSince} and {@link #streamExposedKeysSince}. Public so that its
+	 * plan can be checked against the indexes and partitions of the database.
+	 *
+	 * @param params receives the parameters of the query
+	 * @return the query with named parameters
+	 */
+	public String exposedSinceQuery(UTCInstant keysSince, UTCInstant now, List<String> visitedCountries,
+			List<String> originCountries, MapSqlParameterSource params) {
 		params.addValue("since", keysSince.getDate());
 		params.addValue("maxBucket", now.roundToBucketStart(releaseBucketDuration).getDate());
+		params.addValue("minReceivedAt", keysSince.minus(MAX_EXPIRY_AFTER_RECEIVED).minus(timeSkew).getDate());
 
 		StringBuilder sql = new StringBuilder().append(
-				"select distinct keys.pk_exposed_id, keys.key, keys.rolling_start_number, keys.rolling_period, ")
-				.append("keys.transmission_risk_level, keys.report_type, keys.days_since_onset from t_gaen_exposed as keys ");
+				"select keys.pk_exposed_id, keys.key, keys.rolling_start_number, keys.rolling_period, ")
+				.append("keys.transmission_risk_level, keys.report_type, keys.days_since_onset, keys.visited_mask ")
+				.append("from t_gaen_exposed as keys ");
 
-		if (visitedCountries != null && !visitedCountries.isEmpty()) {
-			sql.append("inner join t_visited as visited on pk_exposed_id = pfk_exposed_id ");
-		}
-
-		sql.append("where ((keys.expiry <= keys.received_at and keys.received_at >= :since and keys.received_at < ")
-				.append(":maxBucket) or (keys.expiry > keys.received_at and keys.expiry >= :since and keys.expiry < :maxBucket)) ");
+		// publish_at is the later of received_at and expiry: a key is released in the first bucket after it was
+		// received and after it expired
+		sql.append("where keys.publish_at >= :since and keys.publish_at < :maxBucket ");
+		// bounds on received_at, implied by the ones on publish_at, to prune the day partitions
+		sql.append("and keys.received_at >= :minReceivedAt and keys.received_at < :maxBucket ");
 
 		if (originCountries != null && !originCountries.isEmpty()) {
 			sql.append("and keys.country_origin in (:originc) ");
@@ -71,80 +146,157 @@ public List<GaenKey> getSortedExposedSince(UTCInstant keysSince, UTCInstant now,
 		}
 
 		if (visitedCountries != null && !visitedCountries.isEmpty()) {
-			sql.append("and visited.country in (:visitedc) ");
-			params.addValue("visitedc", visitedCountries);
+			sql.append(dbType.equals(PGSQL)
+					? "and (keys.visited_mask & :visited_mask) <> 0 "
+					: "and bitand(keys.visited_mask, :visited_mask) <> 0 ");
+			params.addValue("visited_mask", VisitedCountries.toMask(visitedCountries));
 		}
 
 		sql.append("order by keys.pk_exposed_id desc");
-
-		return jt.query(sql.toString(), params, new GaenKeyRowMapper());
+		return sql.toString();
 	}
 
-	private void internalUpsertKey(GaenKey gaenKey, UTCInstant receivedAt) {
+	/**
+	 * Inserts the keys with one multi-row statement per chunk, skipping keys which already exist.
+	 * The visited countries of existing keys are not modified. Runs in the transaction of
+	 * {@link #upsertExposees}, so that the keys claimed in t_gaen_key are released on a rollback.
+	 */
+	private void internalUpsertKeys(List<GaenKey> gaenKeys, UTCInstant receivedAt) {
+		// keep only the first occurrence of a key, later ones would be skipped by the database
+		Map<ByteBuffer, GaenKey> keysByData = new LinkedHashMap<>();
+		for (GaenKey gaenKey : gaenKeys) {
+			keysByData.putIfAbsent(ByteBuffer.wrap(gaenKey.getKeyBytes()), gaenKey);
+		}
+		List<GaenKey> uniqueKeys = new ArrayList<>(keysByData.values());
+		// concurrent uploads claim shared keys in the same order, so that they wait for each other instead of
+		// deadlocking
+		uniqueKeys.sort((a, b) -> Arrays.compare(a.getKeyBytes(), b.getKeyBytes()));
+		for (int from = 0; from < uniqueKeys.size(); from += MAX_KEYS_PER_STATEMENT) {
+			var chunk = uniqueKeys.subList(from, Math.min(from + MAX_KEYS_PER_STATEMENT, uniqueKeys.size()));
+			if (dbType.equals(PGSQL)) {
+				var newKeys = claimKeys(chunk, receivedAt);
+				if (!newKeys.isEmpty()) {
+					insertKeysPostgres(newKeys, receivedAt);
+				}
+			} else {
+				// t_gaen_exposed is not partitioned in HSQLDB, its unique constraint covers the key alone
+				insertKeysHsql(chunk, receivedAt);
+			}
+		}
+		KeyPublicationListener listener = publicationListener;
+		if (listener != null) {
+			// keys which already existed are reported as well, which only makes the listener more cautious
+			List<GaenKeyPublication> publications = new ArrayList<>();
+			for (GaenKey gaenKey : uniqueKeys) {
+				var publishAt = publishAt(expiry(gaenKey), receivedAt);
+				publications.add(new GaenKeyPublication(gaenKey.getCountryOrigin(),
+						UTCInstant.of(gaenKey.getRollingStartNumber(), GaenUnit.TenMinutes).atStartOfDay(), receivedAt,
+						publishAt));
+			}
+			listener.inserted(publications);
+		}
+	}
 
-		var expiry = UTCInstant.of(gaenKey.getRollingStartNumber() + gaenKey.getRollingPeriod(), GaenUnit.TenMinutes)
-				.plus(timeSkew);
+	/**
+	 * The unique constraint gaen_exposed_key of the partitioned t_gaen_exposed also contains
+	 * received_at, the end of the release bucket of the upload, so it only rejects a key uploaded
+	 * again within the same bucket. The keys are therefore inserted into the unpartitioned t_gaen_key
+	 * first. A concurrent transaction inserting the same key waits for this one on the primary key
+	 * and then skips it, so a key is stored exactly once.
+	 *
+	 * @return the keys which did not exist yet
+	 */
+	private List<GaenKey> claimKeys(List<GaenKey> gaenKeys, UTCInstant receivedAt) {
+		MapSqlParameterSource params = new MapSqlParameterSource("received_at", receivedAt.getDate());
+		StringBuilder sql = new StringBuilder("insert into t_gaen_key (key, received_at) values ");
+		for (int i = 0; i < gaenKeys.size(); i++) {
+			sql.append(i == 0 ? "" : ", ").append("(:key").append(i).append(", :received_at)");
+			params.addValue("key" + i, gaenKeys.get(i).getKeyBytes());
+		}
+		sql.append(" on conflict do nothing returning key");
+		Set<ByteBuffer> claimed = new HashSet<>();
+		for (byte[] key : jt.queryForList(sql.toString(), params, byte[].class)) {
+			claimed.add(ByteBuffer.wrap(key));
+		}
+		List<GaenKey> newKeys = new ArrayList<>();
+		for (GaenKey gaenKey : gaenKeys) {
+			if (claimed.contains(ByteBuffer.wrap(gaenKey.getKeyBytes()))) {
+				newKeys.add(gaenKey);
+			}
+		}
+		return newKeys;
+	}
 
-		String sqlKey = null;
-		String sqlVisited = null;
-		if (dbType.equals(PGSQL)) {
-			sqlKey = "insert into t_gaen_exposed (key, rolling_start_number, rolling_period,"
-					+ " transmission_risk_level, received_at,"
-					+ " country_origin, report_type, days_since_onset, efgs_sharing, expiry)"
-					+ " values (:key, :rolling_start_number,"
-					+ " :rolling_period, :transmission_risk_level, :received_at,"
-					+ " :country_origin, :report_type, :days_since_onset, :efgs_sharing, :expiry)"
-					+ " on conflict on constraint gaen_exposed_key do nothing";
-			sqlVisited = "insert into t_visited (pfk_exposed_id, country) values (:keyId, :country) on conflict on"
-					+ " constraint pk_t_visited do nothing";
-		} else {
-			sqlKey = "merge into t_gaen_exposed using (values(cast(:key as varchar(24)),"
-					+ " :rolling_start_number, :rolling_period, :transmission_risk_level, :received_at,"
-					+ " :country_origin, :report_type, :days_since_onset, :efgs_sharing, :expiry))"
-					+ " as vals(key, rolling_start_number, rolling_period, transmission_risk_level,"
-					+ " received_at, country_origin, report_type, days_since_onset, efgs_sharing, expiry)"
-					+ " on t_gaen_exposed.key = vals.key when not matched then insert (key,"
-					+ " rolling_start_number, rolling_period, transmission_risk_level, received_at,"
-					+ " country_origin, report_type, days_since_onset, efgs_sharing, expiry)"
-					+ " values (vals.key, vals.rolling_start_number, vals.rolling_period,"
-					+ " transmission_risk_level, vals.received_at,"
-					+ " vals.country_origin, vals.report_type, vals.days_since_onset, vals.efgs_sharing, vals.expiry)";
-			sqlVisited = "merge into t_visited using (values(:keyId, :country)) as vals(keyId, country) on"
-					+ " t_visited.pfk_exposed_id = vals.keyId and t_visited.country = vals.country when"
-					+ " not matched then insert (pfk_exposed_id, country) values (vals.keyId, vals.country)";
+	private void insertKeysPostgres(List<GaenKey> gaenKeys, UTCInstant receivedAt) {
+		MapSqlParameterSource params = new MapSqlParameterSource();
+		StringBuilder sql = new StringBuilder("insert into t_gaen_exposed (key, rolling_start_number, rolling_period,"
+				+ " transmission_risk_level, received_at, country_origin, report_type, days_since_onset,"
+				+ " efgs_sharing, expiry, publish_at, visited_mask) values ");
+		for (int i = 0; i < gaenKeys.size(); i++) {
+			sql.append(i == 0 ? "" : ", ").append(keyValues(i, ""));
+			addKeyParams(params, i, gaenKeys.get(i), receivedAt);
 		}
+		sql.append(" on conflict on constraint gaen_exposed_key do nothing");
+		jt.update(sql.toString(), params);
+	}
 
-		List<MapSqlParameterSource> visitedBatch = new ArrayList<>();
+	private void insertKeysHsql(List<GaenKey> gaenKeys, UTCInstant receivedAt) {
 		MapSqlParameterSource params = new MapSqlParameterSource();
-		params.addValue("key", gaenKey.getKeyData());
-		params.addValue("rolling_start_number", gaenKey.getRollingStartNumber());
-		params.addValue("rolling_period", gaenKey.getRollingPeriod());
-		params.addValue("transmission_risk_level", gaenKey.getTransmissionRiskLevel());
-		params.addValue("received_at", receivedAt.getDate());
-		params.addValue("country_origin", gaenKey.getCountryOrigin());
-		params.addValue("report_type", gaenKey.getReportType());
-		params.addValue("days_since_onset", gaenKey.getDaysSinceOnsetOfSymptons());
-		params.addValue("efgs_sharing", gaenKey.getEfgsSharing());
-		params.addValue("expiry", expiry.getDate());
-		KeyHolder keyHolder = new GeneratedKeyHolder();
-		jt.update(sqlKey, params, keyHolder);
-
-		// if the key already exists, no ids are returned. in this case we assume that
-		// we do not need to modify the visited countries also
-		if (keyHolder.getKeys() != null && !keyHolder.getKeys().isEmpty()) {
-			Object keyObject = keyHolder.getKeys().get("pk_exposed_id");
-			if (keyObject != null) {
-				int gaenKeyId = ((Integer) keyObject).intValue();
-				for (String country : gaenKey.getVisitedCountries()) {
-					MapSqlParameterSource visitedParams = new MapSqlParameterSource();
-					visitedParams.addValue("keyId", gaenKeyId);
-					visitedParams.addValue("country", country);
-					visitedBatch.add(visitedParams);
-				}
-			}
+		StringBuilder sql = new StringBuilder("merge into t_gaen_exposed using (values ");
+		for (int i = 0; i < gaenKeys.size(); i++) {
+			sql.append(i == 0 ? "" : ", ").append(keyValues(i, "cast(:key" + i + " as varbinary(16))"));
+			addKeyParams(params, i, gaenKeys.get(i), receivedAt);
 		}
-		if (!visitedBatch.isEmpty()) {
-			jt.batchUpdate(sqlVisited, visitedBatch.toArray(new MapSqlParameterSource[visitedBatch.size()]));
+		sql.append(") as vals(key, rolling_start_number, rolling_period, transmission_risk_level,"
+				+ " received_at, country_origin, report_type, days_since_onset, efgs_sharing, expiry, publish_at,"
+				+ " visited_mask) on t_gaen_exposed.key = vals.key when not matched then insert (key,"
+				+ " rolling_start_number, rolling_period, transmission_risk_level, received_at,"
+				+ " country_origin, report_type, days_since_onset, efgs_sharing, expiry, publish_at, visited_mask)"
+				+ " values (vals.key, vals.rolling_start_number, vals.rolling_period,"
+				+ " transmission_risk_level, vals.received_at, vals.country_origin, vals.report_type,"
+				+ " vals.days_since_onset, vals.efgs_sharing, vals.expiry, vals.publish_at, vals.visited_mask)");
+		jt.update(sql.toString(), params);
+	}
+
+	private static String keyValues(int i, String key) {
+		return "(" + (key.isEmpty() ? ":key" + i : key) + ", :rolling_start_number" + i + ", :rolling_period" + i
+				+ ", :transmission_risk_level" + i + ", :received_at" + i + ", :country_origin" + i
+				+ ", :report_type" + i + ", :days_since_onset" + i + ", :efgs_sharing" + i + ", :expiry" + i
+				+ ", :publish_at" + i + ", :visited_mask" + i + ")";
+	}
+
+	private void addKeyParams(MapSqlParameterSource params, int i, GaenKey gaenKey, UTCInstant receivedAt) {
+		var expiry = expiry(gaenKey);
+		params.addValue("key" + i, gaenKey.getKeyBytes());
+		params.addValue("rolling_start_number" + i, gaenKey.getRollingStartNumber());
+		params.addValue("rolling_period" + i, gaenKey.getRollingPeriod());
+		params.addValue("transmission_risk_level" + i, gaenKey.getTransmissionRiskLevel());
+		params.addValue("received_at" + i, receivedAt.getDate());
+		params.addValue("country_origin" + i, gaenKey.getCountryOrigin());
+		params.addValue("report_type" + i, gaenKey.getReportType());
+		params.addValue("days_since_onset" + i, gaenKey.getDaysSinceOnsetOfSymptons());
+		params.addValue("efgs_sharing" + i, gaenKey.getEfgsSharing());
+		params.addValue("expiry" + i, expiry.getDate());
+		params.addValue("publish_at" + i, publishAt(expiry, receivedAt).getDate());
+		params.addValue("visited_mask" + i, visitedMask(gaenKey));
+	}
+
+	private static long visitedMask(GaenKey gaenKey) {
+		var unregistered = VisitedCountries.unregistered(gaenKey.getVisitedCountries());
+		if (!unregistered.isEmpty()) {
+			// the mask has no bit for them, the key is stored without these visited countries
+			logger.warn("Dropping unregistered visited countries {} of an uploaded key", unregistered);
 		}
+		return VisitedCountries.toMask(gaenKey.getVisitedCountries());
+	}
+
+	private UTCInstant expiry(GaenKey gaenKey) {
+		return UTCInstant.of(gaenKey.getRollingStartNumber() + gaenKey.getRollingPeriod(), GaenUnit.TenMinutes)
+				.plus(timeSkew);
+	}
+
+	/** A key is released in the first bucket after it was received and after it expired. */
+	private static UTCInstant publishAt(UTCInstant expiry, UTCInstant receivedAt) {
+		return expiry.isAfterEpochMillisOf(receivedAt) ? expiry : receivedAt;
 	}
 }
@@ -0,0 +1,10 @@
+ALTER TABLE T_VISITED
+    ADD COLUMN RECEIVED_AT TIMESTAMP WITH TIME ZONE
+;
+
+UPDATE T_VISITED SET RECEIVED_AT = (
+    SELECT RECEIVED_AT FROM T_GAEN_EXPOSED WHERE PK_EXPOSED_ID = T_VISITED.PFK_EXPOSED_ID);
+
+ALTER TABLE T_VISITED
+    ALTER COLUMN RECEIVED_AT SET NOT NULL
+;
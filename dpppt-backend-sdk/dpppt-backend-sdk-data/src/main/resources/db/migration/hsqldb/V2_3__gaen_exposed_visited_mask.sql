@@ -0,0 +1,49 @@
+/*
+ * Stores the visited countries as a bitmask on the key instead of in T_VISITED. The bit of a
+ * country is its index in org.dpppt.backend.sdk.model.gaen.VisitedCountries, countries which are
+ * not registered there are dropped. Each country of a key is stored once, so the sum of the bits
+ * is their bitwise or.
+ */
+
+ALTER TABLE T_GAEN_EXPOSED
+    ADD COLUMN VISITED_MASK BIGINT DEFAULT 0 NOT NULL
+;
+
+UPDATE T_GAEN_EXPOSED SET VISITED_MASK = (
+    SELECT COALESCE(SUM(CASE V.COUNTRY
+        WHEN 'AT' THEN 1
+        WHEN 'BE' THEN 2
+        WHEN 'BG' THEN 4
+        WHEN 'CH' THEN 8
+        WHEN 'CY' THEN 16
+        WHEN 'CZ' THEN 32
+        WHEN 'DE' THEN 64
+        WHEN 'DK' THEN 128
+        WHEN 'EE' THEN 256
+        WHEN 'ES' THEN 512
+        WHEN 'FI' THEN 1024
+        WHEN 'FR' THEN 2048
+        WHEN 'GR' THEN 4096
+        WHEN 'HR' THEN 8192
+        WHEN 'HU' THEN 16384
+        WHEN 'IE' THEN 32768
+        WHEN 'IS' THEN 65536
+        WHEN 'IT' THEN 131072
+        WHEN 'LI' THEN 262144
+        WHEN 'LT' THEN 524288
+        WHEN 'LU' THEN 1048576
+        WHEN 'LV' THEN 2097152
+        WHEN 'MT' THEN 4194304
+        WHEN 'NL' THEN 8388608
+        WHEN 'NO' THEN 16777216
+        WHEN 'PL' THEN 33554432
+        WHEN 'PT' THEN 67108864
+        WHEN 'RO' THEN 134217728
+        WHEN 'SE' THEN 268435456
+        WHEN 'SI' THEN 536870912
+        WHEN 'SK' THEN 1073741824
+        ELSE 0 END), 0)
+    FROM T_VISITED V WHERE V.PFK_EXPOSED_ID = T_GAEN_EXPOSED.PK_EXPOSED_ID)
+WHERE EXISTS (SELECT 1 FROM T_VISITED V WHERE V.PFK_EXPOSED_ID = T_GAEN_EXPOSED.PK_EXPOSED_ID);
+
+DROP TABLE T_VISITED;
@@ -0,0 +1,16 @@
+/*
+ * Stores the 16 bytes of the keys instead of their base64 representation. HSQLDB has no base64
+ * decoding and only holds transient development data, so the existing keys are dropped.
+ */
+
+DELETE FROM T_GAEN_EXPOSED;
+
+ALTER TABLE T_GAEN_EXPOSED
+    ALTER COLUMN KEY SET DATA TYPE VARBINARY(16)
+;
+
+DELETE FROM T_DEBUG_GAEN_EXPOSED;
+
+ALTER TABLE T_DEBUG_GAEN_EXPOSED
+    ALTER COLUMN KEY SET DATA TYPE VARBINARY(16)
+;
@@ -0,0 +1,6 @@
+/*
+ * The number of keys in each stored batch, listed by the export manifest. Unknown for the rows
+ * stored before.
+ */
+
+ALTER TABLE t_gaen_bundle ADD COLUMN key_count Int;
@@ -0,0 +1,148 @@
+/*
+ * Partitions t_gaen_exposed and t_visited by the UTC day of received_at, so that expired keys are
+ * removed by dropping whole partitions. Unique constraints of partitioned tables must contain the
+ * partition key, so gaen_exposed_key is on (key, received_at). received_at is the end of the
+ * release bucket of the upload, so the constraint only rejects a key uploaded again within the
+ * same bucket, and the uniqueness of the keys has to be ensured separately. t_visited carries
+ * received_at of its key and lives in the partition of the same day, it is dropped together with
+ * the partition of the keys instead of by a cascade.
+ */
+
+ALTER TABLE T_VISITED RENAME TO T_VISITED_OLD;
+ALTER TABLE T_VISITED_OLD RENAME CONSTRAINT PK_T_VISITED TO PK_T_VISITED_OLD;
+DROP INDEX IN_VISITED_EXPOSED_COUNTRY;
+
+ALTER TABLE T_GAEN_EXPOSED RENAME TO T_GAEN_EXPOSED_OLD;
+ALTER TABLE T_GAEN_EXPOSED_OLD RENAME CONSTRAINT PK_T_GAEN_EXPOSED TO PK_T_GAEN_EXPOSED_OLD;
+ALTER TABLE T_GAEN_EXPOSED_OLD RENAME CONSTRAINT GAEN_EXPOSED_KEY TO GAEN_EXPOSED_KEY_OLD;
+DROP INDEX IN_DPPPT_GAEN_EXPOSED;
+DROP INDEX IN_GAEN_EXPOSED_COUNTRY_SHARING_RECEIVED;
+DROP INDEX IN_DPPPT_GAEN_EXPOSED_RECEIVED_AT;
+DROP INDEX IN_DPPPT_GAEN_EXPOSED_EXPIRY;
+DROP INDEX IN_DPPPT_GAEN_EXPOSED_PUBLISH_AT;
+
+-- keep the sequence of the serial, it would be dropped together with the old table
+ALTER SEQUENCE T_GAEN_EXPOSED_PK_EXPOSED_ID_SEQ OWNED BY NONE;
+
+CREATE TABLE T_GAEN_EXPOSED (
+    PK_EXPOSED_ID           INTEGER DEFAULT NEXTVAL('t_gaen_exposed_pk_exposed_id_seq') NOT NULL,
+    KEY                     VARCHAR(24) NOT NULL,
+    ROLLING_START_NUMBER    INTEGER NOT NULL,
+    ROLLING_PERIOD          INTEGER NOT NULL,
+    TRANSMISSION_RISK_LEVEL INTEGER NOT NULL,
+    RECEIVED_AT             TIMESTAMP WITH TIME ZONE DEFAULT NOW() NOT NULL,
+    COUNTRY_ORIGIN          CHAR(2),
+    REPORT_TYPE             SMALLINT,
+    DAYS_SINCE_ONSET        SMALLINT,
+    EFGS_SHARING            BOOLEAN,
+    EXPIRY                  TIMESTAMP WITH TIME ZONE NOT NULL,
+    PUBLISH_AT              TIMESTAMP WITH TIME ZONE NOT NULL,
+    CONSTRAINT PK_T_GAEN_EXPOSED
+        PRIMARY KEY (PK_EXPOSED_ID, RECEIVED_AT),
+    CONSTRAINT GAEN_EXPOSED_KEY
+        UNIQUE (KEY, RECEIVED_AT)
+) PARTITION BY RANGE (RECEIVED_AT);
+
+ALTER SEQUENCE T_GAEN_EXPOSED_PK_EXPOSED_ID_SEQ OWNED BY T_GAEN_EXPOSED.PK_EXPOSED_ID;
+
+CREATE INDEX IN_DPPPT_GAEN_EXPOSED
+    ON T_GAEN_EXPOSED (ROLLING_START_NUMBER, RECEIVED_AT);
+
+CREATE INDEX IN_GAEN_EXPOSED_COUNTRY_SHARING_RECEIVED
+    ON T_GAEN_EXPOSED (COUNTRY_ORIGIN, EFGS_SHARING, RECEIVED_AT);
+
+CREATE INDEX IN_DPPPT_GAEN_EXPOSED_RECEIVED_AT
+    ON T_GAEN_EXPOSED (RECEIVED_AT);
+
+CREATE INDEX IN_DPPPT_GAEN_EXPOSED_EXPIRY
+    ON T_GAEN_EXPOSED (EXPIRY);
+
+CREATE INDEX IN_DPPPT_GAEN_EXPOSED_PUBLISH_AT
+    ON T_GAEN_EXPOSED (PUBLISH_AT);
+
+CREATE TABLE T_VISITED (
+    PFK_EXPOSED_ID INTEGER NOT NULL,
+    COUNTRY        CHAR(2),
+    RECEIVED_AT    TIMESTAMP WITH TIME ZONE NOT NULL,
+    CONSTRAINT PK_T_VISITED
+        PRIMARY KEY (PFK_EXPOSED_ID, COUNTRY, RECEIVED_AT)
+) PARTITION BY RANGE (RECEIVED_AT);
+
+CREATE INDEX IN_VISITED_EXPOSED_COUNTRY
+    ON T_VISITED (COUNTRY);
+
+-- rows outside of the created partitions, e.g. if the maintenance did not run for some days
+CREATE TABLE T_GAEN_EXPOSED_DEFAULT PARTITION OF T_GAEN_EXPOSED DEFAULT;
+CREATE TABLE T_VISITED_DEFAULT PARTITION OF T_VISITED DEFAULT;
+
+-- creates the partitions of the given days, days which already have rows in the default partition
+-- are skipped, returns the number of days created
+CREATE OR REPLACE FUNCTION GAEN_EXPOSED_CREATE_PARTITIONS(FROM_DAY DATE, TO_DAY DATE) RETURNS INTEGER
+AS $BODY$
+DECLARE
+    PARTITION_DAY DATE := FROM_DAY;
+    DAY_START TIMESTAMP WITH TIME ZONE;
+    DAY_END TIMESTAMP WITH TIME ZONE;
+    SUFFIX TEXT;
+    CREATED INTEGER := 0;
+BEGIN
+    WHILE PARTITION_DAY <= TO_DAY LOOP
+        SUFFIX := TO_CHAR(PARTITION_DAY, 'YYYYMMDD');
+        DAY_START := PARTITION_DAY::TIMESTAMP AT TIME ZONE 'UTC';
+        DAY_END := (PARTITION_DAY + 1)::TIMESTAMP AT TIME ZONE 'UTC';
+        IF TO_REGCLASS('t_gaen_exposed_p' || SUFFIX) IS NULL
+            AND NOT EXISTS (SELECT 1 FROM T_GAEN_EXPOSED_DEFAULT
+                WHERE RECEIVED_AT >= DAY_START AND RECEIVED_AT < DAY_END)
+            AND NOT EXISTS (SELECT 1 FROM T_VISITED_DEFAULT
+                WHERE RECEIVED_AT >= DAY_START AND RECEIVED_AT < DAY_END) THEN
+            EXECUTE FORMAT('CREATE TABLE %I PARTITION OF t_gaen_exposed FOR VALUES FROM (%L) TO (%L)',
+                't_gaen_exposed_p' || SUFFIX, DAY_START, DAY_END);
+            EXECUTE FORMAT('CREATE TABLE %I PARTITION OF t_visited FOR VALUES FROM (%L) TO (%L)',
+                't_visited_p' || SUFFIX, DAY_START, DAY_END);
+            CREATED := CREATED + 1;
+        END IF;
+        PARTITION_DAY := PARTITION_DAY + 1;
+    END LOOP;
+    RETURN CREATED;
+END
+$BODY$ LANGUAGE PLPGSQL;
+
+-- drops the partitions of all days ending before the given time, returns the number of days dropped
+CREATE OR REPLACE FUNCTION GAEN_EXPOSED_DROP_PARTITIONS(BEFORE TIMESTAMP WITH TIME ZONE) RETURNS INTEGER
+AS $BODY$
+DECLARE
+    PARTITION_NAME TEXT;
+    DROPPED INTEGER := 0;
+BEGIN
+    FOR PARTITION_NAME IN
+        SELECT C.RELNAME FROM PG_INHERITS I JOIN PG_CLASS C ON C.OID = I.INHRELID
+        WHERE I.INHPARENT = 't_gaen_exposed'::REGCLASS
+            AND C.RELNAME ~ '^t_gaen_exposed_p[0-9]{8}$'
+            AND TO_DATE(SUBSTRING(C.RELNAME FROM 17), 'YYYYMMDD') + 1 <= (BEFORE AT TIME ZONE 'UTC')::DATE
+    LOOP
+        EXECUTE FORMAT('DROP TABLE IF EXISTS %I', 't_visited_p' || SUBSTRING(PARTITION_NAME FROM 17));
+        EXECUTE FORMAT('DROP TABLE %I', PARTITION_NAME);
+        DROPPED := DROPPED + 1;
+    END LOOP;
+    RETURN DROPPED;
+END
+$BODY$ LANGUAGE PLPGSQL;
+
+SELECT GAEN_EXPOSED_CREATE_PARTITIONS(
+    COALESCE((SELECT MIN(RECEIVED_AT) AT TIME ZONE 'UTC' FROM T_GAEN_EXPOSED_OLD)::DATE,
+        (NOW() AT TIME ZONE 'UTC')::DATE),
+    (NOW() AT TIME ZONE 'UTC')::DATE + 7);
+
+INSERT INTO T_GAEN_EXPOSED (PK_EXPOSED_ID, KEY, ROLLING_START_NUMBER, ROLLING_PERIOD,
+        TRANSMISSION_RISK_LEVEL, RECEIVED_AT, COUNTRY_ORIGIN, REPORT_TYPE, DAYS_SINCE_ONSET,
+        EFGS_SHARING, EXPIRY, PUBLISH_AT)
+    SELECT PK_EXPOSED_ID, KEY, ROLLING_START_NUMBER, ROLLING_PERIOD, TRANSMISSION_RISK_LEVEL,
+        RECEIVED_AT, COUNTRY_ORIGIN, REPORT_TYPE, DAYS_SINCE_ONSET, EFGS_SHARING, EXPIRY, PUBLISH_AT
+    FROM T_GAEN_EXPOSED_OLD;
+
+INSERT INTO T_VISITED (PFK_EXPOSED_ID, COUNTRY, RECEIVED_AT)
+    SELECT V.PFK_EXPOSED_ID, V.COUNTRY, E.RECEIVED_AT
+    FROM T_VISITED_OLD V JOIN T_GAEN_EXPOSED_OLD E ON E.PK_EXPOSED_ID = V.PFK_EXPOSED_ID;
+
+DROP TABLE T_VISITED_OLD;
+DROP TABLE T_GAEN_EXPOSED_OLD;
@@ -0,0 +1,92 @@
+/*
+ * Stores the visited countries as a bitmask on the key instead of in T_VISITED. The bit of a
+ * country is its index in org.dpppt.backend.sdk.model.gaen.VisitedCountries, countries which are
+ * not registered there are dropped. Each country of a key is stored once, so the sum of the bits
+ * is their bitwise or.
+ */
+
+ALTER TABLE T_GAEN_EXPOSED
+    ADD COLUMN VISITED_MASK BIGINT DEFAULT 0 NOT NULL
+;
+
+UPDATE T_GAEN_EXPOSED SET VISITED_MASK = (
+    SELECT COALESCE(SUM(CASE V.COUNTRY
+        WHEN 'AT' THEN 1
+        WHEN 'BE' THEN 2
+        WHEN 'BG' THEN 4
+        WHEN 'CH' THEN 8
+        WHEN 'CY' THEN 16
+        WHEN 'CZ' THEN 32
+        WHEN 'DE' THEN 64
+        WHEN 'DK' THEN 128
+        WHEN 'EE' THEN 256
+        WHEN 'ES' THEN 512
+        WHEN 'FI' THEN 1024
+        WHEN 'FR' THEN 2048
+        WHEN 'GR' THEN 4096
+        WHEN 'HR' THEN 8192
+        WHEN 'HU' THEN 16384
+        WHEN 'IE' THEN 32768
+        WHEN 'IS' THEN 65536
+        WHEN 'IT' THEN 131072
+        WHEN 'LI' THEN 262144
+        WHEN 'LT' THEN 524288
+        WHEN 'LU' THEN 1048576
+        WHEN 'LV' THEN 2097152
+        WHEN 'MT' THEN 4194304
+        WHEN 'NL' THEN 8388608
+        WHEN 'NO' THEN 16777216
+        WHEN 'PL' THEN 33554432
+        WHEN 'PT' THEN 67108864
+        WHEN 'RO' THEN 134217728
+        WHEN 'SE' THEN 268435456
+        WHEN 'SI' THEN 536870912
+        WHEN 'SK' THEN 1073741824
+        ELSE 0 END), 0)
+    FROM T_VISITED V WHERE V.PFK_EXPOSED_ID = T_GAEN_EXPOSED.PK_EXPOSED_ID)
+WHERE EXISTS (SELECT 1 FROM T_VISITED V WHERE V.PFK_EXPOSED_ID = T_GAEN_EXPOSED.PK_EXPOSED_ID);
+
+DROP TABLE T_VISITED;
+
+CREATE OR REPLACE FUNCTION GAEN_EXPOSED_CREATE_PARTITIONS(FROM_DAY DATE, TO_DAY DATE) RETURNS INTEGER
+AS $BODY$
+DECLARE
+    PARTITION_DAY DATE := FROM_DAY;
+    DAY_START TIMESTAMP WITH TIME ZONE;
+    DAY_END TIMESTAMP WITH TIME ZONE;
+    CREATED INTEGER := 0;
+BEGIN
+    WHILE PARTITION_DAY <= TO_DAY LOOP
+        DAY_START := PARTITION_DAY::TIMESTAMP AT TIME ZONE 'UTC';
+        DAY_END := (PARTITION_DAY + 1)::TIMESTAMP AT TIME ZONE 'UTC';
+        IF TO_REGCLASS('t_gaen_exposed_p' || TO_CHAR(PARTITION_DAY, 'YYYYMMDD')) IS NULL
+            AND NOT EXISTS (SELECT 1 FROM T_GAEN_EXPOSED_DEFAULT
+                WHERE RECEIVED_AT >= DAY_START AND RECEIVED_AT < DAY_END) THEN
+            EXECUTE FORMAT('CREATE TABLE %I PARTITION OF t_gaen_exposed FOR VALUES FROM (%L) TO (%L)',
+                't_gaen_exposed_p' || TO_CHAR(PARTITION_DAY, 'YYYYMMDD'), DAY_START, DAY_END);
+            CREATED := CREATED + 1;
+        END IF;
+        PARTITION_DAY := PARTITION_DAY + 1;
+    END LOOP;
+    RETURN CREATED;
+END
+$BODY$ LANGUAGE PLPGSQL;
+
+CREATE OR REPLACE FUNCTION GAEN_EXPOSED_DROP_PARTITIONS(BEFORE TIMESTAMP WITH TIME ZONE) RETURNS INTEGER
+AS $BODY$
+DECLARE
+    PARTITION_NAME TEXT;
+    DROPPED INTEGER := 0;
+BEGIN
+    FOR PARTITION_NAME IN
+        SELECT C.RELNAME FROM PG_INHERITS I JOIN PG_CLASS C ON C.OID = I.INHRELID
+        WHERE I.INHPARENT = 't_gaen_exposed'::REGCLASS
+            AND C.RELNAME ~ '^t_gaen_exposed_p[0-9]{8}$'
+            AND TO_DATE(SUBSTRING(C.RELNAME FROM 17), 'YYYYMMDD') + 1 <= (BEFORE AT TIME ZONE 'UTC')::DATE
+    LOOP
+        EXECUTE FORMAT('DROP TABLE %I', PARTITION_NAME);
+        DROPPED := DROPPED + 1;
+    END LOOP;
+    RETURN DROPPED;
+END
+$BODY$ LANGUAGE PLPGSQL;
@@ -0,0 +1,18 @@
+/*
+ * Signed export bundles, built once by one node and served by all of them. A V2 export split into
+ * batches has one row per batch. An export without keys has a single row without hash and zip.
+ */
+
+CREATE TABLE t_gaen_bundle(
+ export_id VARCHAR(64) NOT NULL,
+ batch_num Int NOT NULL,
+ batch_size Int NOT NULL,
+ published_until Timestamp with time zone NOT NULL,
+ hash BYTEA,
+ zip BYTEA,
+ created_at Timestamp with time zone DEFAULT now() NOT NULL
+);
+
+ALTER TABLE t_gaen_bundle ADD CONSTRAINT PK_t_gaen_bundle PRIMARY KEY (export_id, batch_num);
+
+CREATE INDEX t_gaen_bundle_published_until ON t_gaen_bundle(published_until);
@@ -0,0 +1,20 @@
+/*
+ * The unique constraint of the partitioned T_GAEN_EXPOSED has to contain received_at, the end of
+ * the release bucket of the upload, so it does not prevent a key from being stored again in
+ * another bucket. T_GAEN_KEY is not partitioned and holds every stored key once: an upload
+ * inserts its keys here first, in the same transaction, and only stores the ones inserted. A
+ * concurrent upload of the same key waits on the primary key and then skips it.
+ */
+
+CREATE TABLE T_GAEN_KEY (
+    KEY         BYTEA NOT NULL,
+    RECEIVED_AT TIMESTAMP WITH TIME ZONE NOT NULL,
+    CONSTRAINT PK_T_GAEN_KEY
+        PRIMARY KEY (KEY)
+);
+
+CREATE INDEX IN_GAEN_KEY_RECEIVED_AT
+    ON T_GAEN_KEY (RECEIVED_AT);
+
+INSERT INTO T_GAEN_KEY (KEY, RECEIVED_AT)
+    SELECT KEY, MIN(RECEIVED_AT) FROM T_GAEN_EXPOSED GROUP BY KEY;
@@ -0,0 +1,12 @@
+ALTER TABLE T_GAEN_EXPOSED
+    ADD COLUMN PUBLISH_AT TIMESTAMP WITH TIME ZONE
+;
+
+UPDATE T_GAEN_EXPOSED SET PUBLISH_AT = GREATEST(EXPIRY, RECEIVED_AT);
+
+ALTER TABLE T_GAEN_EXPOSED
+    ALTER COLUMN PUBLISH_AT SET NOT NULL
+;
+
+CREATE INDEX IN_DPPPT_GAEN_EXPOSED_PUBLISH_AT
+    ON T_GAEN_EXPOSED (PUBLISH_AT);
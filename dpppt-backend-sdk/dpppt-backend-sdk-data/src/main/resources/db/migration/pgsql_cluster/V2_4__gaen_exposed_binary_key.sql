@@ -0,0 +1,12 @@
+/*
+ * Stores the 16 bytes of the keys instead of their base64 representation, which shrinks the table
+ * and the unique index on the key by a third.
+ */
+
+ALTER TABLE T_GAEN_EXPOSED
+    ALTER COLUMN KEY TYPE BYTEA USING DECODE(KEY, 'base64')
+;
+
+ALTER TABLE T_DEBUG_GAEN_EXPOSED
+    ALTER COLUMN KEY TYPE BYTEA USING DECODE(KEY, 'base64')
+;
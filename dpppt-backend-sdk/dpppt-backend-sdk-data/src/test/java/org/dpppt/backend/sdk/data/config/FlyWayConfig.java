@@ -22,8 +22,6 @@ public class FlyWayConfig {
 
   @Autowired DataSource dataSource;
 
-  @Autowired DataSource fakeDataSource;
-
   @Bean
   @Profile("hsqldb")
   public Flyway flyway() {
@@ -44,15 +42,4 @@ public Flyway flywayPostgres() {
     flyWay.migrate();
     return flyWay;
   }
-
-  @Bean
-  public Flyway fakeFlyway() {
-    Flyway flyWay =
-        Flyway.configure()
-            .dataSource(fakeDataSource)
-            .locations("classpath:/db/migration/hsqldb")
-            .load();
-    flyWay.migrate();
-    return flyWay;
-  }
 }
@@ -14,14 +14,14 @@
 import org.dpppt.backend.sdk.data.RedeemDataService;
 import org.dpppt.backend.sdk.data.gaen.FakeKeyService;
 import org.dpppt.backend.sdk.data.gaen.GAENDataService;
+import org.dpppt.backend.sdk.data.gaen.GaenBundleDataService;
+import org.dpppt.backend.sdk.data.gaen.JDBCGaenBundleDataServiceImpl;
 import org.dpppt.backend.sdk.data.radarcovid.gaen.SpanishJDBCGAENDataServiceImpl;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.jdbc.datasource.DataSourceTransactionManager;
-import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
-import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 
@@ -50,14 +50,6 @@ public class GaenDataServiceConfig {
 
   @Autowired DataSource dataSource;
 
-  @Bean
-  public DataSource fakeDataSource() {
-    return new EmbeddedDatabaseBuilder()
-        .generateUniqueName(true)
-        .setType(EmbeddedDatabaseType.HSQL)
-        .build();
-  }
-
   @Autowired String dbType;
 
   @Bean
@@ -67,20 +59,19 @@ public GAENDataService gaenDataService() {
   }
 
   @Bean
-  public RedeemDataService redeemDataService() {
-    return new JDBCRedeemDataServiceImpl(dataSource);
+  public GaenBundleDataService gaenBundleDataService() {
+    return new JDBCGaenBundleDataServiceImpl(dataSource);
   }
 
   @Bean
-  public GAENDataService fakeService() {
-    return new SpanishJDBCGAENDataServiceImpl(
-        "hsql", fakeDataSource(), Duration.ofMillis(releaseBucketDuration), timeSkew);
+  public RedeemDataService redeemDataService() {
+    return new JDBCRedeemDataServiceImpl(dataSource);
   }
 
   @Bean
   public FakeKeyService fakeKeyService() throws NoSuchAlgorithmException {
-    return new FakeKeyService(fakeService(), 10, 16, Duration.ofDays(21), randomkeysenabled,
-                              efgsCountryOrigin, efgsReportType);
+    return new FakeKeyService(10, 16, Duration.ofDays(21), Duration.ofMillis(releaseBucketDuration),
+                              timeSkew, randomkeysenabled, efgsCountryOrigin, efgsReportType);
   }
 
   @Bean
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.data.gaen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.Test;
+
+public class FakeKeyServiceTest {
+
+  private static final Duration BUCKET = Duration.ofHours(2);
+  private static final Duration TIME_SKEW = Duration.ofHours(2);
+
+  @Test
+  public void poolServesKeysOfRetentionPeriod() throws Exception {
+    Clock fourOClock = Clock.fixed(UTCInstant.today().plusHours(4).getInstant(), ZoneOffset.UTC);
+    try (var lockedClock = UTCInstant.setClock(fourOClock)) {
+      var service = fakeKeyService(null);
+      var today = UTCInstant.today();
+      var now = UTCInstant.now();
+
+      assertEquals(0, service.fillUpKeys(new ArrayList<>(), null, today.minusDays(22), now).size());
+      assertEquals(0, service.fillUpKeys(new ArrayList<>(), null, today, now).size());
+      var keyDate = today.minusDays(21);
+      do {
+        var keys = service.fillUpKeys(new ArrayList<>(), null, keyDate, now);
+        assertEquals(10, keys.size());
+        for (GaenKey key : keys) {
+          assertEquals(keyDate.get10MinutesSince1970(), key.getRollingStartNumber());
+        }
+        keyDate = keyDate.plusDays(1);
+      } while (keyDate.isBeforeDateOf(today));
+      // the keys count as received in the bucket of the last update
+      var yesterday = today.minusDays(1);
+      assertEquals(10, service.fillUpKeys(new ArrayList<>(), today, yesterday, now).size());
+      assertEquals(
+          0, service.fillUpKeys(new ArrayList<>(), today.plusHours(2), yesterday, now).size());
+    }
+  }
+
+  @Test
+  public void updateReplacesPool() throws Exception {
+    var service = fakeKeyService(null);
+    var keyDate = UTCInstant.today().minusDays(3);
+    var now = UTCInstant.now();
+    var before = service.fillUpKeys(new ArrayList<>(), null, keyDate, now);
+    service.updateFakeKeys();
+    var after = service.fillUpKeys(new ArrayList<>(), null, keyDate, now);
+    assertEquals(before.size(), after.size());
+    assertNotEquals(before.get(0).getKeyData(), after.get(0).getKeyData());
+  }
+
+  @Test
+  public void seededKeysAreStable() throws Exception {
+    var keyDate = UTCInstant.today().minusDays(3);
+    var now = UTCInstant.now();
+    var seed = new byte[] {1, 2, 3};
+    var first = fakeKeyService(seed).fillUpKeys(new ArrayList<>(), null, keyDate, now);
+    var second = fakeKeyService(seed).fillUpKeys(new ArrayList<>(), null, keyDate, now);
+    for (int i = 0; i < first.size(); i++) {
+      assertEquals(first.get(i).getKeyData(), second.get(i).getKeyData());
+    }
+  }
+
+  private FakeKeyService fakeKeyService(byte[] seed) throws Exception {
+    return new FakeKeyService(
+        10, 16, Duration.ofDays(21), BUCKET, TIME_SKEW, true, "ES", 1, seed);
+  }
+}
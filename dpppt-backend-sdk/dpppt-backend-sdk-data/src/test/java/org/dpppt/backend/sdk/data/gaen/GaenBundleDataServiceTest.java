@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.data.gaen;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import org.dpppt.backend.sdk.data.config.FlyWayConfig;
+import org.dpppt.backend.sdk.data.config.GaenDataServiceConfig;
+import org.dpppt.backend.sdk.data.config.RedeemDataServiceConfig;
+import org.dpppt.backend.sdk.data.config.StandaloneDataConfig;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.support.AnnotationConfigContextLoader;
+import org.springframework.transaction.annotation.Transactional;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(
+    loader = AnnotationConfigContextLoader.class,
+    classes = {
+      StandaloneDataConfig.class,
+      FlyWayConfig.class,
+      GaenDataServiceConfig.class,
+      RedeemDataServiceConfig.class
+    })
+@ActiveProfiles("hsqldb")
+public class GaenBundleDataServiceTest {
+
+  private static final Duration BUCKET_LENGTH = Duration.ofHours(2);
+
+  @Autowired private GaenBundleDataService bundleDataService;
+
+  @Test
+  @Transactional
+  public void testBatchesAreStoredTogether() {
+    var publishedUntil = UTCInstant.now().roundToBucketStart(BUCKET_LENGTH);
+    bundleDataService.insertBundles(
+        "export",
+        publishedUntil,
+        List.of(
+            new StoredGaenBundle(2, 2, new byte[] {2}, new byte[] {20}, 3),
+            new StoredGaenBundle(1, 2, new byte[] {1}, new byte[] {10})));
+    bundleDataService.insertBundles("empty", publishedUntil, List.of(StoredGaenBundle.empty()));
+
+    var batches = bundleDataService.getBundles("export");
+    assertEquals(2, batches.size());
+    assertEquals(1, batches.get(0).getBatchNum());
+    assertEquals(2, batches.get(0).getBatchSize());
+    assertArrayEquals(new byte[] {1}, batches.get(0).getHash());
+    assertArrayEquals(new byte[] {20}, batches.get(1).getZip());
+    assertEquals(-1, batches.get(0).getKeyCount());
+    assertEquals(3, batches.get(1).getKeyCount());
+
+    var empty = bundleDataService.getBundles("empty");
+    assertEquals(1, empty.size());
+    assertTrue(empty.get(0).isEmpty());
+    assertEquals(0, empty.get(0).getKeyCount());
+
+    assertTrue(bundleDataService.getBundles("unknown").isEmpty());
+    assertThrows(
+        DuplicateKeyException.class,
+        () ->
+            bundleDataService.insertBundles(
+                "empty", publishedUntil, List.of(StoredGaenBundle.empty())));
+  }
+
+  @Test
+  @Transactional
+  public void testOlderBucketsAreCleanedUp() {
+    var publishedUntil = UTCInstant.now().roundToBucketStart(BUCKET_LENGTH);
+    bundleDataService.insertBundles(
+        "previous", publishedUntil.minus(BUCKET_LENGTH), List.of(StoredGaenBundle.empty()));
+    bundleDataService.insertBundles("current", publishedUntil, List.of(StoredGaenBundle.empty()));
+
+    bundleDataService.cleanDB(publishedUntil);
+    assertTrue(bundleDataService.getBundles("previous").isEmpty());
+    assertEquals(1, bundleDataService.getBundles("current").size());
+  }
+}
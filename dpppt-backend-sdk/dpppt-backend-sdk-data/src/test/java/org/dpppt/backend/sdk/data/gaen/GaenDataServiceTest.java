@@ -4,6 +4,7 @@
 import org.dpppt.backend.sdk.data.config.GaenDataServiceConfig;
 import org.dpppt.backend.sdk.data.config.RedeemDataServiceConfig;
 import org.dpppt.backend.sdk.data.config.StandaloneDataConfig;
+import org.dpppt.backend.sdk.data.radarcovid.gaen.SpanishJDBCGAENDataServiceImpl;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.model.gaen.GaenUnit;
 import org.dpppt.backend.sdk.utils.UTCInstant;
@@ -21,10 +22,13 @@
 import java.time.Clock;
 import java.time.Duration;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
+import javax.sql.DataSource;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 @ContextConfiguration(
@@ -43,6 +47,8 @@ public class GaenDataServiceTest {
   private static final Duration BUCKET_LENGTH = Duration.ofHours(2);
 
   @Autowired private GAENDataService gaenDataService;
+  @Autowired private DataSource dataSource;
+  @Autowired private String dbType;
 
   @Test
   @Transactional
@@ -118,6 +124,42 @@ public void testNoEarlyReleaseSince() throws Exception {
     }
   }
 
+  @Test
+  @Transactional
+  public void testVisitedCountriesFilter() throws Exception {
+    var outerNow = UTCInstant.now();
+    Clock twoOClock =
+        Clock.fixed(outerNow.atStartOfDay().plusHours(2).getInstant(), ZoneOffset.UTC);
+    Clock nextDay =
+        Clock.fixed(outerNow.atStartOfDay().plusDays(1).plusHours(6).getInstant(), ZoneOffset.UTC);
+
+    try (var now = UTCInstant.setClock(twoOClock)) {
+      var spanishKey = new GaenKey();
+      spanishKey.setRollingStartNumber((int) now.atStartOfDay().minusDays(1).get10MinutesSince1970());
+      spanishKey.setKeyData(Base64.getEncoder().encodeToString("testKey32Bytes-1".getBytes("UTF-8")));
+      spanishKey.setRollingPeriod(144);
+      spanishKey.setTransmissionRiskLevel(0);
+      spanishKey.setVisitedCountries(new ArrayList<>(List.of("ES")));
+      var travellerKey = new GaenKey();
+      travellerKey.setRollingStartNumber((int) now.atStartOfDay().minusDays(1).get10MinutesSince1970());
+      travellerKey.setKeyData(Base64.getEncoder().encodeToString("testKey32Bytes-2".getBytes("UTF-8")));
+      travellerKey.setRollingPeriod(144);
+      travellerKey.setTransmissionRiskLevel(0);
+      travellerKey.setVisitedCountries(new ArrayList<>(List.of("ES", "PT")));
+
+      gaenDataService.upsertExposees(List.of(spanishKey, travellerKey), now);
+    }
+
+    try (var now = UTCInstant.setClock(nextDay)) {
+      var since = now.minusDays(10);
+      assertEquals(2, gaenDataService.getSortedExposedSince(since, now, List.of("ES"), null).size());
+      var portugueseKeys = gaenDataService.getSortedExposedSince(since, now, List.of("PT", "IT"), null);
+      assertEquals(1, portugueseKeys.size());
+      assertEquals(List.of("ES", "PT"), portugueseKeys.get(0).getVisitedCountries());
+      assertEquals(0, gaenDataService.getSortedExposedSince(since, now, List.of("IT"), null).size());
+    }
+  }
+
   @Test
   @Transactional
   public void testNoEarlyRelease() throws Exception {
@@ -160,4 +202,63 @@ public void testNoEarlyRelease() throws Exception {
       assertEquals(1, returnedKeys.size());
     }
   }
+
+  @Test
+  @Transactional
+  public void testKeyWatermark() throws Exception {
+    var now = UTCInstant.now();
+    var keyDate = now.atStartOfDay().minusDays(2);
+    var spanishKey = new GaenKey();
+    spanishKey.setRollingStartNumber((int) keyDate.get10MinutesSince1970());
+    spanishKey.setKeyData(Base64.getEncoder().encodeToString("testKey32Bytes-3".getBytes("UTF-8")));
+    spanishKey.setRollingPeriod(144);
+    spanishKey.setTransmissionRiskLevel(0);
+    spanishKey.setCountryOrigin("ES");
+    var otherKey = new GaenKey();
+    otherKey.setRollingStartNumber((int) keyDate.get10MinutesSince1970());
+    otherKey.setKeyData(Base64.getEncoder().encodeToString("testKey32Bytes-4".getBytes("UTF-8")));
+    otherKey.setRollingPeriod(144);
+    otherKey.setTransmissionRiskLevel(0);
+    otherKey.setCountryOrigin("ES");
+    gaenDataService.upsertExposees(List.of(spanishKey, otherKey), now);
+
+    var receivedAt = now.roundToNextBucket(BUCKET_LENGTH).minus(Duration.ofMillis(1));
+    var watermark = gaenDataService.getKeyWatermark(now.plusDays(1));
+    assertEquals(receivedAt.getTimestamp(), watermark.getLatestReceivedAt().getTimestamp());
+    assertEquals(receivedAt.getTimestamp(), watermark.getLatestPublishAt().getTimestamp());
+
+    // the keys are not received yet
+    var empty = gaenDataService.getKeyWatermark(receivedAt);
+    assertNull(empty.getLatestReceivedAt());
+    assertNull(empty.getLatestPublishAt());
+  }
+
+  @Test
+  @Transactional
+  public void testInsertedKeysAreReportedToTheListener() throws Exception {
+    var now = UTCInstant.now();
+    var keyDate = now.atStartOfDay().minusDays(2);
+    var key = new GaenKey();
+    key.setRollingStartNumber((int) keyDate.get10MinutesSince1970());
+    key.setKeyData(Base64.getEncoder().encodeToString("testKey32Bytes-5".getBytes("UTF-8")));
+    key.setRollingPeriod(144);
+    key.setTransmissionRiskLevel(0);
+    key.setCountryOrigin("ES");
+
+    List<GaenKeyPublication> inserted = new ArrayList<>();
+    var dataService =
+        new SpanishJDBCGAENDataServiceImpl(dbType, dataSource, BUCKET_LENGTH, Duration.ofHours(2));
+    dataService.setPublicationListener(inserted::addAll);
+    dataService.upsertExposees(List.of(key), now);
+
+    // the listener sees the same times as a later read
+    assertEquals(1, inserted.size());
+    var read = gaenDataService.getKeyWatermark(now.plusDays(1));
+    assertEquals("ES", inserted.get(0).getOriginCountry());
+    assertEquals(keyDate.getTimestamp(), inserted.get(0).getKeyDate().getTimestamp());
+    assertEquals(
+        read.getLatestReceivedAt().getTimestamp(), inserted.get(0).getReceivedAt().getTimestamp());
+    assertEquals(
+        read.getLatestPublishAt().getTimestamp(), inserted.get(0).getPublishAt().getTimestamp());
+  }
 }
@@ -14,8 +14,11 @@
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Clock;
@@ -24,12 +27,17 @@
 import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.sql.DataSource;
 import org.dpppt.backend.sdk.data.RedeemDataService;
 import org.dpppt.backend.sdk.data.config.FlyWayConfig;
 import org.dpppt.backend.sdk.data.config.GaenDataServiceConfig;
 import org.dpppt.backend.sdk.data.config.PostgresDataConfig;
+import org.dpppt.backend.sdk.data.radarcovid.gaen.SpanishJDBCGAENDataServiceImpl;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.model.gaen.GaenUnit;
 import org.dpppt.backend.sdk.utils.UTCInstant;
@@ -37,6 +45,9 @@
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.TestPropertySource;
@@ -187,6 +198,61 @@ public void upsert() throws Exception {
     assertEquals(keys.get(0).getKeyData(), returnedKeys.get(0).getKeyData());
   }
 
+  @Test
+  public void testConcurrentUploadsStoreEachKeyOnce() throws Exception {
+    var random = new SecureRandom();
+    var keys = new ArrayList<GaenKey>();
+    for (int i = 0; i < 200; i++) {
+      byte[] keyData = new byte[16];
+      random.nextBytes(keyData);
+      var key = new GaenKey();
+      key.setKeyData(Base64.getEncoder().encodeToString(keyData));
+      key.setRollingStartNumber((int) UTCInstant.today().minusDays(1).get10MinutesSince1970());
+      key.setRollingPeriod(144);
+      key.setFake(0);
+      key.setTransmissionRiskLevel(0);
+      keys.add(key);
+    }
+
+    int uploads = 4;
+    var executor = Executors.newFixedThreadPool(uploads);
+    var start = new CountDownLatch(1);
+    try {
+      var tasks = new ArrayList<Future<?>>();
+      for (int i = 0; i < uploads; i++) {
+        // different release buckets, so that gaen_exposed_key does not reject the duplicates
+        var now = UTCInstant.now().plusHours(2 * i);
+        var uploadedKeys = new ArrayList<>(keys);
+        Collections.shuffle(uploadedKeys, random);
+        tasks.add(
+            executor.submit(
+                () -> {
+                  start.await();
+                  gaenDataService.upsertExposees(uploadedKeys, now);
+                  return null;
+                }));
+      }
+      start.countDown();
+      for (var task : tasks) {
+        task.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    try (Connection connection = dataSource.getConnection();
+        PreparedStatement preparedStatement =
+            connection.prepareStatement("select count(*) from t_gaen_exposed where key = ?")) {
+      for (var key : keys) {
+        preparedStatement.setBytes(1, key.getKeyBytes());
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+          resultSet.next();
+          assertEquals(1, resultSet.getInt(1));
+        }
+      }
+    }
+  }
+
   @Test
   public void testBatchReleaseTime() throws SQLException {
     var receivedAt = UTCInstant.parseDateTime("2014-01-28T00:00:00");
@@ -203,7 +269,7 @@ public void testBatchReleaseTime() throws SQLException {
 
     assertEquals(1, returnedKeys.size());
     GaenKey actual = returnedKeys.get(0);
-    assertEquals(actual.getKeyData(), key);
+    assertEquals(new String(actual.getKeyBytes(), StandardCharsets.UTF_8), key);
 
     returnedKeys =
         gaenDataService.getSortedExposedForKeyDate(
@@ -211,19 +277,89 @@ public void testBatchReleaseTime() throws SQLException {
     assertEquals(0, returnedKeys.size());
   }
 
+  @Test
+  public void testSortedExposedSinceUsesPublishAtIndex() throws SQLException {
+    var dataService =
+        new SpanishJDBCGAENDataServiceImpl("pgsql", dataSource, BATCH_LENGTH, Duration.ofHours(2));
+    var now = UTCInstant.now();
+    var params = new MapSqlParameterSource();
+    String sql =
+        dataService.exposedSinceQuery(
+            now.minusDays(14), now, List.of("ES"), List.of("ES", "DE"), params);
+    List<String> plan;
+    try (Connection connection = dataSource.getConnection()) {
+      // the test table is almost empty, so a sequential scan would always be cheaper
+      connection.createStatement().execute("set enable_seqscan = off");
+      try {
+        plan =
+            new NamedParameterJdbcTemplate(new SingleConnectionDataSource(connection, true))
+                .query("explain " + sql, params, (rs, rowNum) -> rs.getString(1));
+      } finally {
+        connection.createStatement().execute("reset enable_seqscan");
+      }
+    }
+    var lowerCasePlan = String.join("\n", plan).toLowerCase();
+    assertFalse(lowerCasePlan.contains("seq scan"), lowerCasePlan);
+    // the partitions of future days are pruned
+    assertFalse(lowerCasePlan.contains(partitionName(now.plusDays(2))), lowerCasePlan);
+  }
+
+  @Test
+  public void testMaintainPartitions() throws SQLException {
+    var now = UTCInstant.now();
+    var expiredDay = now.minusDays(30);
+    executeSQL(
+        "select gaen_exposed_create_partitions('"
+            + expiredDay.getLocalDate()
+            + "', '"
+            + expiredDay.getLocalDate()
+            + "')");
+    insertExposeeWithReceivedAtAndKeyDate(
+        expiredDay.getInstant(), expiredDay.minusDays(1).getInstant(), "expiredKey");
+    assertTrue(partitionExists(expiredDay));
+
+    gaenDataService.maintainPartitions(Duration.ofDays(21), Duration.ofDays(7));
+
+    assertFalse(partitionExists(expiredDay));
+    assertTrue(partitionExists(now.plusDays(7)));
+    assertTrue(
+        gaenDataService
+            .getSortedExposedForKeyDate(expiredDay.minusDays(1).atStartOfDay(), null, now, now)
+            .isEmpty());
+  }
+
+  private String partitionName(UTCInstant day) {
+    return "t_gaen_exposed_p" + day.getLocalDate().toString().replace("-", "");
+  }
+
+  private boolean partitionExists(UTCInstant day) throws SQLException {
+    try (Connection connection = dataSource.getConnection();
+        PreparedStatement preparedStatement =
+            connection.prepareStatement("select to_regclass(?) is not null")) {
+      preparedStatement.setString(1, partitionName(day));
+      try (ResultSet resultSet = preparedStatement.executeQuery()) {
+        resultSet.next();
+        return resultSet.getBoolean(1);
+      }
+    }
+  }
+
   private void insertExposeeWithReceivedAtAndKeyDate(
       Instant receivedAt, Instant keyDate, String key) throws SQLException {
     Connection connection = dataSource.getConnection();
     String sql =
         "into t_gaen_exposed (pk_exposed_id, key, received_at, rolling_start_number,"
-            + " rolling_period, transmission_risk_level, expiry) values (100, ?, ?, ?, 144, 0, ?)";
+            + " rolling_period, transmission_risk_level, expiry, publish_at)"
+            + " values (100, ?, ?, ?, 144, 0, ?, ?)";
     PreparedStatement preparedStatement = connection.prepareStatement("insert " + sql);
-    preparedStatement.setString(1, key);
+    preparedStatement.setBytes(1, key.getBytes(StandardCharsets.UTF_8));
     preparedStatement.setTimestamp(2, new Timestamp(receivedAt.toEpochMilli()));
     preparedStatement.setInt(
         3, (int) GaenUnit.TenMinutes.between(Instant.ofEpochMilli(0), keyDate));
-    preparedStatement.setTimestamp(4, new Timestamp(UTCInstant.of(Instant.ofEpochMilli(0).toEpochMilli() + 144, GaenUnit.TenMinutes)
-    		.plus(Duration.ofHours(2)).getTimestamp()));
+    var expiry = UTCInstant.of(Instant.ofEpochMilli(0).toEpochMilli() + 144, GaenUnit.TenMinutes)
+    		.plus(Duration.ofHours(2)).getTimestamp();
+    preparedStatement.setTimestamp(4, new Timestamp(expiry));
+    preparedStatement.setTimestamp(5, new Timestamp(Math.max(expiry, receivedAt.toEpochMilli())));
     preparedStatement.execute();
   }
 
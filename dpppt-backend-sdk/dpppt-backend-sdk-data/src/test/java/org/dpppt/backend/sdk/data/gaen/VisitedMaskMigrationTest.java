@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.data.gaen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import org.dpppt.backend.sdk.model.gaen.VisitedCountries;
+import org.junit.Test;
+
+/**
+ * The migration V2_3 converted the visited countries of the existing keys into masks with the bits
+ * of {@link VisitedCountries} at that time. A migration must not change once applied, so the
+ * registry must keep the bits the migration used.
+ */
+public class VisitedMaskMigrationTest {
+
+  private static final String MIGRATION = "V2_3__gaen_exposed_visited_mask.sql";
+  private static final Pattern COUNTRY_BIT = Pattern.compile("WHEN '([A-Z]{2})' THEN (\\d+)");
+
+  @Test
+  public void testMigrationUsesTheBitsOfTheRegistry() throws IOException {
+    for (String dbType : new String[] {"hsqldb", "pgsql", "pgsql_cluster"}) {
+      var bits = migrationBits("db/migration/" + dbType + "/" + MIGRATION);
+      // countries registered later are appended to the registry
+      assertTrue(dbType, bits.size() > 0 && bits.size() <= VisitedCountries.COUNTRIES.size());
+      assertEquals(
+          dbType,
+          VisitedCountries.COUNTRIES.subList(0, bits.size()),
+          List.copyOf(bits.keySet()));
+      for (var bit : bits.entrySet()) {
+        assertEquals(
+            dbType + " " + bit.getKey(),
+            VisitedCountries.bitOf(bit.getKey()),
+            (long) bit.getValue());
+      }
+    }
+  }
+
+  private Map<String, Long> migrationBits(String resource) throws IOException {
+    Map<String, Long> bits = new LinkedHashMap<>();
+    try (InputStream in = getClass().getClassLoader().getResourceAsStream(resource)) {
+      assertNotNull(resource, in);
+      var matcher = COUNTRY_BIT.matcher(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+      while (matcher.find()) {
+        bits.put(matcher.group(1), Long.parseLong(matcher.group(2)));
+      }
+    }
+    return bits;
+  }
+}
@@ -0,0 +1,43 @@
+package org.dpppt.backend.sdk.model.gaen;
+
+import ch.ubique.openapi.docannotations.Documentation;
+import java.util.List;
+
+@Documentation(
+    description =
+        "ExportManifest lists all exports of the current release bucket over the retention"
+            + " period.\n"
+            + "Exports without keys are listed with a key count of 0, so that they need not be"
+            + " requested,\n"
+            + "and the hash of an export equals its ETag, so that unchanged exports can be"
+            + " skipped.")
+public class ExportManifest {
+
+  @Documentation(
+      description =
+          "The start of the release bucket of all exports, in milliseconds since the Unix epoch"
+              + " (1970-01-01)",
+      example = "1593043200000")
+  private Long publishedUntil;
+
+  @Documentation(description = "The exports of the release bucket")
+  private List<ExportManifestEntry> entries;
+
+  public Long getPublishedUntil() {
+    return publishedUntil;
+  }
+
+  public List<ExportManifestEntry> getEntries() {
+    return entries;
+  }
+
+  public ExportManifest setPublishedUntil(Long publishedUntil) {
+    this.publishedUntil = publishedUntil;
+    return this;
+  }
+
+  public ExportManifest setEntries(List<ExportManifestEntry> entries) {
+    this.entries = entries;
+    return this;
+  }
+}
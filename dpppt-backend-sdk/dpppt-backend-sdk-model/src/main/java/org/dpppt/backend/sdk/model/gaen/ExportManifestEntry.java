@@ -0,0 +1,89 @@
+package org.dpppt.backend.sdk.model.gaen;
+
+import ch.ubique.openapi.docannotations.Documentation;
+
+@Documentation(description = "One export, or one batch of an export, of the manifest")
+public class ExportManifestEntry {
+
+  @Documentation(
+      description = "Relative URL of the export",
+      example = "/v2/gaen/exposed?lastKeyBundleTag=1593043200000&batchNum=2")
+  private String url;
+
+  @Documentation(
+      description =
+          "Number of keys in the export including fake keys, missing if the export was built"
+              + " before the counts were recorded",
+      example = "1000")
+  private Integer keyCount;
+
+  @Documentation(description = "Size of the zipped export in bytes", example = "26000")
+  private Long size;
+
+  @Documentation(
+      description =
+          "Hex encoded hash identifying the content of the export, the same as its ETag."
+              + " Missing if the export has no keys",
+      example = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08")
+  private String hash;
+
+  @Documentation(description = "Number of this batch of the export, starting at 1", example = "2")
+  private Integer batchNum;
+
+  @Documentation(description = "Number of batches of the export", example = "3")
+  private Integer batchSize;
+
+  public String getUrl() {
+    return url;
+  }
+
+  public Integer getKeyCount() {
+    return keyCount;
+  }
+
+  public Long getSize() {
+    return size;
+  }
+
+  public String getHash() {
+    return hash;
+  }
+
+  public Integer getBatchNum() {
+    return batchNum;
+  }
+
+  public Integer getBatchSize() {
+    return batchSize;
+  }
+
+  public ExportManifestEntry setUrl(String url) {
+    this.url = url;
+    return this;
+  }
+
+  public ExportManifestEntry setKeyCount(Integer keyCount) {
+    this.keyCount = keyCount;
+    return this;
+  }
+
+  public ExportManifestEntry setSize(Long size) {
+    this.size = size;
+    return this;
+  }
+
+  public ExportManifestEntry setHash(String hash) {
+    this.hash = hash;
+    return this;
+  }
+
+  public ExportManifestEntry setBatchNum(Integer batchNum) {
+    this.batchNum = batchNum;
+    return this;
+  }
+
+  public ExportManifestEntry setBatchSize(Integer batchSize) {
+    this.batchSize = batchSize;
+    return this;
+  }
+}
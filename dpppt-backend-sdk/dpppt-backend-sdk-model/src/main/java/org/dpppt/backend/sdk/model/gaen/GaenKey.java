@@ -2,7 +2,9 @@
 
 import ch.ubique.openapi.docannotations.Documentation;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 
 import javax.validation.constraints.NotNull;
@@ -20,6 +22,10 @@ public class GaenKey {
   @Documentation(description = "Represents the 16-byte Temporary Exposure Key in base64")
   private String keyData;
 
+  // the decoded keyData, kept so that the key is decoded once on upload and never encoded when it
+  // is read from the database and exported
+  @JsonIgnore private byte[] keyBytes;
+
   @NotNull
   @Documentation(
       description =
@@ -88,11 +94,33 @@ public GaenKey(
   }
 
   public String getKeyData() {
+    if (this.keyData == null && this.keyBytes != null) {
+      this.keyData = Base64.getEncoder().encodeToString(this.keyBytes);
+    }
     return this.keyData;
   }
 
   public void setKeyData(String keyData) {
     this.keyData = keyData;
+    this.keyBytes = null;
+  }
+
+  /**
+   * @return the decoded key data
+   * @throws IllegalArgumentException if the key data is not valid base64
+   */
+  @JsonIgnore
+  public byte[] getKeyBytes() {
+    if (this.keyBytes == null && this.keyData != null) {
+      this.keyBytes = Base64.getDecoder().decode(this.keyData);
+    }
+    return this.keyBytes;
+  }
+
+  @JsonIgnore
+  public void setKeyBytes(byte[] keyBytes) {
+    this.keyBytes = keyBytes;
+    this.keyData = null;
   }
 
   public Integer getRollingStartNumber() {
@@ -170,7 +198,7 @@ public void setVisitedCountries(List<String> visitedCountries) {
   @Override
   public String toString() {
     return "GaenKey{" +
-            "keyData='" + keyData + '\'' +
+            "keyData='" + getKeyData() + '\'' +
             ", rollingStartNumber=" + rollingStartNumber +
             ", rollingPeriod=" + rollingPeriod +
             ", transmissionRiskLevel=" + transmissionRiskLevel +
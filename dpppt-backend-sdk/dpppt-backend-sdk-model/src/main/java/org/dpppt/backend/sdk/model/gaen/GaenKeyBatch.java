@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.model.gaen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact representation of the keys of an export, stored column by column in primitive arrays
+ * instead of one {@link GaenKey} per key. Only holds the fields which are exported, a key takes
+ * 27 bytes instead of several hundred. Transmission risk level and days since onset are
+ * stored as shorts, since the API allows values beyond the range of a byte.
+ */
+public class GaenKeyBatch {
+
+  public static final int KEY_LENGTH = 16;
+  private static final int DEFAULT_CAPACITY = 64;
+
+  private int size;
+  private byte[] keyData;
+  private int[] rollingStartNumber;
+  private short[] rollingPeriod;
+  private short[] transmissionRiskLevel;
+  private byte[] reportType;
+  private short[] daysSinceOnset;
+
+  public GaenKeyBatch() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public GaenKeyBatch(int capacity) {
+    capacity = Math.max(capacity, 1);
+    this.keyData = new byte[capacity * KEY_LENGTH];
+    this.rollingStartNumber = new int[capacity];
+    this.rollingPeriod = new short[capacity];
+    this.transmissionRiskLevel = new short[capacity];
+    this.reportType = new byte[capacity];
+    this.daysSinceOnset = new short[capacity];
+  }
+
+  /**
+   * @param keys the keys to copy, fields which are not set are stored as 0
+   * @return a batch with the given keys in the same order
+   */
+  public static GaenKeyBatch of(List<GaenKey> keys) {
+    var batch = new GaenKeyBatch(keys.size());
+    for (GaenKey key : keys) {
+      batch.add(key);
+    }
+    return batch;
+  }
+
+  public void add(GaenKey key) {
+    add(
+        key.getKeyBytes(),
+        key.getRollingStartNumber(),
+        key.getRollingPeriod(),
+        key.getTransmissionRiskLevel(),
+        key.getReportType() == null ? 0 : key.getReportType(),
+        key.getDaysSinceOnsetOfSymptons() == null
+            ? 0
+            : key.getDaysSinceOnsetOfSymptons().intValue());
+  }
+
+  /** @param keyData the 16 bytes of the key */
+  public void add(
+      byte[] keyData,
+      int rollingStartNumber,
+      int rollingPeriod,
+      int transmissionRiskLevel,
+      int reportType,
+      int daysSinceOnset) {
+    if (keyData.length != KEY_LENGTH) {
+      throw new IllegalArgumentException("key data must be " + KEY_LENGTH + " bytes");
+    }
+    ensureCapacity(size + 1);
+    System.arraycopy(keyData, 0, this.keyData, size * KEY_LENGTH, KEY_LENGTH);
+    this.rollingStartNumber[size] = rollingStartNumber;
+    this.rollingPeriod[size] = (short) rollingPeriod;
+    this.transmissionRiskLevel[size] = (short) transmissionRiskLevel;
+    this.reportType[size] = (byte) reportType;
+    this.daysSinceOnset[size] = (short) daysSinceOnset;
+    size++;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= rollingStartNumber.length) {
+      return;
+    }
+    int newCapacity = Math.max(capacity, rollingStartNumber.length * 2);
+    keyData = Arrays.copyOf(keyData, newCapacity * KEY_LENGTH);
+    rollingStartNumber = Arrays.copyOf(rollingStartNumber, newCapacity);
+    rollingPeriod = Arrays.copyOf(rollingPeriod, newCapacity);
+    transmissionRiskLevel = Arrays.copyOf(transmissionRiskLevel, newCapacity);
+    reportType = Arrays.copyOf(reportType, newCapacity);
+    daysSinceOnset = Arrays.copyOf(daysSinceOnset, newCapacity);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return the array holding the key data of all keys, the key data of key {@code i} starts at
+   *     {@link #keyDataOffset(int)}. Must not be modified.
+   */
+  public byte[] keyData() {
+    return keyData;
+  }
+
+  public int keyDataOffset(int i) {
+    return i * KEY_LENGTH;
+  }
+
+  public byte[] getKeyData(int i) {
+    return Arrays.copyOfRange(keyData, keyDataOffset(i), keyDataOffset(i) + KEY_LENGTH);
+  }
+
+  /** Compares the key data of the keys {@code i} and {@code j} byte by byte. */
+  public int compareKeyData(int i, int j) {
+    return Arrays.compare(
+        keyData,
+        keyDataOffset(i),
+        keyDataOffset(i) + KEY_LENGTH,
+        keyData,
+        keyDataOffset(j),
+        keyDataOffset(j) + KEY_LENGTH);
+  }
+
+  public int getRollingStartNumber(int i) {
+    return rollingStartNumber[i];
+  }
+
+  public int getRollingPeriod(int i) {
+    return rollingPeriod[i];
+  }
+
+  public int getTransmissionRiskLevel(int i) {
+    return transmissionRiskLevel[i];
+  }
+
+  public int getReportType(int i) {
+    return reportType[i];
+  }
+
+  public int getDaysSinceOnset(int i) {
+    return daysSinceOnset[i];
+  }
+
+  /** @return the keys as GaenKeys, e.g. for APIs which still expect them */
+  public List<GaenKey> toList() {
+    var keys = new ArrayList<GaenKey>(size);
+    for (int i = 0; i < size; i++) {
+      var key = new GaenKey();
+      key.setKeyBytes(getKeyData(i));
+      key.setRollingStartNumber(getRollingStartNumber(i));
+      key.setRollingPeriod(getRollingPeriod(i));
+      key.setTransmissionRiskLevel(getTransmissionRiskLevel(i));
+      key.setReportType(getReportType(i));
+      key.setDaysSinceOnsetOfSymptons((long) getDaysSinceOnset(i));
+      keys.add(key);
+    }
+    return keys;
+  }
+}
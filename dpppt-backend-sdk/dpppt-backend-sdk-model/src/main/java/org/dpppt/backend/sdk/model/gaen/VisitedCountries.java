@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.model.gaen;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Registry of the countries participating in EFGS, each of which is assigned a fixed bit of the
+ * visited countries mask stored with the keys. The bit of a country is its index in {@link
+ * #COUNTRIES}, so countries must only ever be appended to the list, never reordered or removed.
+ */
+public class VisitedCountries {
+
+  public static final List<String> COUNTRIES =
+      List.of(
+          "AT", "BE", "BG", "CH", "CY", "CZ", "DE", "DK", "EE", "ES", "FI", "FR", "GR", "HR", "HU",
+          "IE", "IS", "IT", "LI", "LT", "LU", "LV", "MT", "NL", "NO", "PL", "PT", "RO", "SE", "SI",
+          "SK");
+
+  private VisitedCountries() {}
+
+  /**
+   * @param country ISO 3166 alpha-2 code
+   * @return the bit of the country, 0 if the country is not registered
+   */
+  public static long bitOf(String country) {
+    if (country == null) {
+      return 0L;
+    }
+    int index = COUNTRIES.indexOf(country.toUpperCase(Locale.ROOT));
+    return index < 0 ? 0L : 1L << index;
+  }
+
+  /**
+   * @param countries ISO 3166 alpha-2 codes, may be {@code null}
+   * @return the mask of the given countries, countries which are not registered are ignored
+   */
+  public static long toMask(Collection<String> countries) {
+    long mask = 0L;
+    if (countries != null) {
+      for (String country : countries) {
+        mask |= bitOf(country);
+      }
+    }
+    return mask;
+  }
+
+  /**
+   * @param countries ISO 3166 alpha-2 codes, may be {@code null}
+   * @return the given countries which are not registered and would be ignored by {@link
+   *     #toMask(Collection)}
+   */
+  public static List<String> unregistered(Collection<String> countries) {
+    List<String> unregistered = new ArrayList<>();
+    if (countries != null) {
+      for (String country : countries) {
+        if (bitOf(country) == 0L) {
+          unregistered.add(country);
+        }
+      }
+    }
+    return unregistered;
+  }
+
+  /**
+   * @param mask a mask created by {@link #toMask(Collection)}
+   * @return the countries of the mask in registry order
+   */
+  public static List<String> fromMask(long mask) {
+    List<String> countries = new ArrayList<>();
+    for (int i = 0; i < COUNTRIES.size(); i++) {
+      if ((mask & (1L << i)) != 0) {
+        countries.add(COUNTRIES.get(i));
+      }
+    }
+    return countries;
+  }
+}
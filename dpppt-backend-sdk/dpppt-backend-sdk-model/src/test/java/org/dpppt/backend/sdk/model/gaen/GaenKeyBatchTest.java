@@ -0,0 +1,56 @@
+package org.dpppt.backend.sdk.model.gaen;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class GaenKeyBatchTest {
+
+  @Test
+  void growsAndKeepsOrder() {
+    var batch = new GaenKeyBatch(1);
+    for (int i = 0; i < 100; i++) {
+      byte[] keyData = new byte[GaenKeyBatch.KEY_LENGTH];
+      keyData[0] = (byte) i;
+      batch.add(keyData, 2_650_000 + i, 144, 4, 1, -i % 15);
+    }
+    assertEquals(100, batch.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals((byte) i, batch.getKeyData(i)[0]);
+      assertEquals(2_650_000 + i, batch.getRollingStartNumber(i));
+      assertEquals(144, batch.getRollingPeriod(i));
+      assertEquals(4, batch.getTransmissionRiskLevel(i));
+      assertEquals(1, batch.getReportType(i));
+      assertEquals(-i % 15, batch.getDaysSinceOnset(i));
+    }
+    assertTrue(batch.compareKeyData(0, 1) < 0);
+    assertEquals(0, batch.compareKeyData(5, 5));
+  }
+
+  @Test
+  void roundTripsGaenKeys() {
+    var key = new GaenKey();
+    key.setKeyBytes(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+    key.setRollingStartNumber(2_650_000);
+    key.setRollingPeriod(144);
+    key.setTransmissionRiskLevel(0);
+    key.setReportType(1);
+    key.setDaysSinceOnsetOfSymptons(-2L);
+    List<GaenKey> keys = new ArrayList<>(List.of(key));
+
+    var copy = GaenKeyBatch.of(keys).toList().get(0);
+    assertEquals(key.getKeyData(), copy.getKeyData());
+    assertEquals(key.getRollingStartNumber(), copy.getRollingStartNumber());
+    assertEquals(key.getRollingPeriod(), copy.getRollingPeriod());
+    assertEquals(key.getReportType(), copy.getReportType());
+    assertEquals(key.getDaysSinceOnsetOfSymptons(), copy.getDaysSinceOnsetOfSymptons());
+  }
+
+  @Test
+  void rejectsKeysOfWrongLength() {
+    var batch = new GaenKeyBatch();
+    assertThrows(IllegalArgumentException.class, () -> batch.add(new byte[15], 0, 144, 0, 0, 0));
+  }
+}
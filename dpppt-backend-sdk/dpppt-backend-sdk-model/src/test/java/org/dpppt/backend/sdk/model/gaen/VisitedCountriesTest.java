@@ -0,0 +1,37 @@
+package org.dpppt.backend.sdk.model.gaen;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class VisitedCountriesTest {
+
+  @Test
+  void roundTrip() {
+    long mask = VisitedCountries.toMask(List.of("ES", "de", "AT", "ES"));
+    assertEquals(List.of("AT", "DE", "ES"), VisitedCountries.fromMask(mask));
+  }
+
+  // the bits are persisted, they must not change
+  @Test
+  void bitsAreStable() {
+    assertEquals(1L, VisitedCountries.bitOf("AT"));
+    assertEquals(1L << 9, VisitedCountries.bitOf("ES"));
+    assertEquals(1L << 30, VisitedCountries.bitOf("SK"));
+  }
+
+  @Test
+  void unknownCountriesAreIgnored() {
+    assertEquals(0L, VisitedCountries.bitOf("XX"));
+    assertEquals(0L, VisitedCountries.bitOf(null));
+    assertEquals(VisitedCountries.bitOf("IT"), VisitedCountries.toMask(List.of("IT", "XX")));
+    assertEquals(0L, VisitedCountries.toMask(null));
+  }
+
+  @Test
+  void unregisteredCountries() {
+    assertEquals(List.of("XX"), VisitedCountries.unregistered(List.of("IT", "XX", "de")));
+    assertEquals(List.of(), VisitedCountries.unregistered(null));
+  }
+}
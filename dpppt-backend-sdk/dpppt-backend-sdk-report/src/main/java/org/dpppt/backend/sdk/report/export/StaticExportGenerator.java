@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.report.export;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import org.dpppt.backend.sdk.data.gaen.FakeKeyService;
+import org.dpppt.backend.sdk.data.radarcovid.gaen.SpanishJDBCGAENDataServiceImpl;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.radarcovid.export.ExportBundleKeys;
+import org.dpppt.backend.sdk.ws.radarcovid.export.ExportDeterminism;
+import org.dpppt.backend.sdk.ws.radarcovid.export.ExportWatermark;
+import org.dpppt.backend.sdk.ws.radarcovid.export.GaenExportBundleFactory;
+import org.dpppt.backend.sdk.ws.radarcovid.export.SharedExportBundles;
+import org.dpppt.backend.sdk.ws.security.KeyVault;
+import org.dpppt.backend.sdk.ws.security.signature.ContentSignature;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the static export of the current release bucket, see {@link StaticExportWriter}.
+ *
+ * <p>Usage: {@code StaticExportGenerator <properties file> <output directory>}. The properties use
+ * the names of the WS configuration, so the export is signed and shuffled as by the WS with the
+ * same settings. The database is only read, so a replica or a restored dump can be used.
+ */
+public class StaticExportGenerator {
+
+  private static final Logger logger = LoggerFactory.getLogger(StaticExportGenerator.class);
+
+  private final Properties properties;
+
+  public StaticExportGenerator(Properties properties) {
+    this.properties = properties;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.err.println("Usage: StaticExportGenerator <properties file> <output directory>");
+      System.exit(2);
+    }
+    var properties = new Properties();
+    try (InputStream in = Files.newInputStream(Paths.get(args[0]))) {
+      properties.load(in);
+    }
+    try {
+      new StaticExportGenerator(properties).generate(args[1]);
+    } catch (IOException e) {
+      logger.error("Static export failed", e);
+      System.exit(1);
+    }
+  }
+
+  public StaticExportManifest generate(String directory) throws Exception {
+    var releaseBucketDuration =
+        Duration.ofMillis(getLong("ws.exposedlist.releaseBucketDuration", 7200000));
+    int retentionDays = (int) getLong("ws.retentiondays", 14);
+    var retentionPeriod = Duration.ofDays(retentionDays);
+    var timeSkew = Duration.parse(get("ws.app.gaen.timeskew", "PT2h"));
+    boolean deterministic =
+        Boolean.parseBoolean(get("ws.exposedlist.deterministic.enabled", "false"));
+    var determinism =
+        deterministic
+            ? new ExportDeterminism(get("ws.exposedlist.deterministic.secret", ""))
+            : null;
+    var keyPair = loadKeyPair();
+
+    try (var dataSource = dataSource()) {
+      var dataService =
+          new SpanishJDBCGAENDataServiceImpl("pgsql", dataSource, releaseBucketDuration, timeSkew);
+      var fakeKeyService =
+          new FakeKeyService(
+              (int) getLong("ws.gaen.randomkeyamount", 10),
+              (int) getLong("ws.app.gaen.key_size", 16),
+              retentionPeriod,
+              releaseBucketDuration,
+              timeSkew,
+              Boolean.parseBoolean(get("ws.gaen.randomkeysenabled", "false")),
+              get("ws.app.efgs.country-origin", "ES"),
+              (int) getLong("ws.app.efgs.report-type", 1),
+              determinism != null ? determinism.seed("fake-keys") : null);
+      var gaenSigner =
+          new ProtoSignature(
+              get("ws.app.gaen.algorithm", "1.2.840.10045.4.3.2"),
+              keyPair,
+              get("ws.app.ios.bundleId", "org.dppt.ios.demo"),
+              get("ws.app.android.packageName", "org.dpppt.android.demo"),
+              get("ws.app.gaen.keyVersion", "v1"),
+              get("ws.app.gaen.keyIdentifier", "228"),
+              get("ws.app.gaen.region", "ch"),
+              releaseBucketDuration,
+              deterministic,
+              null);
+      var bundleFactory =
+          new GaenExportBundleFactory(
+              dataService,
+              fakeKeyService,
+              gaenSigner,
+              determinism,
+              (int) getLong("ws.exposedlist.v2.maxKeysPerBatch", 0),
+              SharedExportBundles.disabled(),
+              ExportWatermark.disabled());
+      var writer =
+          new StaticExportWriter(
+              bundleFactory,
+              new ExportBundleKeys(
+                  releaseBucketDuration,
+                  retentionPeriod,
+                  (int) getLong("ws.exposedlist.publisher.v2Buckets", 12)),
+              new ContentSignature(keyPair, retentionDays, getList("ws.headers.protected")),
+              releaseBucketDuration,
+              (int) getLong("report.export.poolSize", Runtime.getRuntime().availableProcessors()));
+      return writer.write(Paths.get(directory), UTCInstant.now());
+    }
+  }
+
+  private HikariDataSource dataSource() {
+    var config = new HikariConfig();
+    config.setJdbcUrl(get("datasource.url", null));
+    config.setUsername(get("datasource.username", null));
+    config.setPassword(get("datasource.password", null));
+    var schema = get("datasource.schema", "");
+    if (!schema.isEmpty()) {
+      config.setSchema(schema);
+    }
+    config.setReadOnly(true);
+    config.setMaximumPoolSize((int) getLong("datasource.maximumPoolSize", 5));
+    return new HikariDataSource(config);
+  }
+
+  /** The same keys as in WSRadarCovidConfig, the WS and the export share the gaen key. */
+  private KeyPair loadKeyPair() throws Exception {
+    var privateKey = decode(get("ws.ecdsa.credentials.privateKey", ""));
+    var publicKey = decode(get("ws.ecdsa.credentials.publicKey", ""));
+    if (privateKey.isEmpty() || publicKey.isEmpty()) {
+      throw new IllegalArgumentException("The export must be signed with the key of the WS");
+    }
+    return new KeyVault(new KeyVault.KeyVaultEntry("gaen", privateKey, publicKey, "EC"))
+        .get("gaen");
+  }
+
+  private static String decode(String base64) {
+    return new String(Base64.getDecoder().decode(base64), StandardCharsets.UTF_8);
+  }
+
+  private String get(String name, String defaultValue) {
+    var value = properties.getProperty(name, defaultValue);
+    if (value == null) {
+      throw new IllegalArgumentException("Missing property " + name);
+    }
+    return value.trim();
+  }
+
+  private long getLong(String name, long defaultValue) {
+    return Long.parseLong(get(name, Long.toString(defaultValue)));
+  }
+
+  private List<String> getList(String name) {
+    var value = get(name, "");
+    if (value.isEmpty()) {
+      return Collections.emptyList();
+    }
+    return Arrays.stream(value.split(",")).map(String::trim).collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.report.export;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps every request of a static export to the files answering it. Written as {@code
+ * manifest.json} once all files of the export are in place.
+ */
+public class StaticExportManifest {
+
+  private final long publishedUntil;
+  private final long generatedAt;
+  private final List<Entry> entries;
+
+  public StaticExportManifest(long publishedUntil, long generatedAt, List<Entry> entries) {
+    this.publishedUntil = publishedUntil;
+    this.generatedAt = generatedAt;
+    this.entries = entries;
+  }
+
+  /** @return the release bucket of the export, the exports expire with the next bucket */
+  public long getPublishedUntil() {
+    return publishedUntil;
+  }
+
+  public long getGeneratedAt() {
+    return generatedAt;
+  }
+
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  /** One request of the WS and its response. */
+  public static class Entry {
+    private final String path;
+    private final String query;
+    private final int status;
+    private final String file;
+    private final String headersFile;
+    private final Map<String, String> headers;
+
+    public Entry(
+        String path,
+        String query,
+        int status,
+        String file,
+        String headersFile,
+        Map<String, String> headers) {
+      this.path = path;
+      this.query = query;
+      this.status = status;
+      this.file = file;
+      this.headersFile = headersFile;
+      this.headers = headers;
+    }
+
+    /** @return the request path, e.g. {@code /v1/gaen/exposed/1600041600000} */
+    public String getPath() {
+      return path;
+    }
+
+    /** @return the query string of the request, or null if it has none */
+    public String getQuery() {
+      return query;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    /** @return the body relative to the export directory, or null for 204 */
+    public String getFile() {
+      return file;
+    }
+
+    public String getHeadersFile() {
+      return headersFile;
+    }
+
+    public Map<String, String> getHeaders() {
+      return headers;
+    }
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.report.export;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.dpppt.backend.sdk.report.export.StaticExportManifest.Entry;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.radarcovid.export.ExportBundleKeys;
+import org.dpppt.backend.sdk.ws.radarcovid.export.GaenBundleKey;
+import org.dpppt.backend.sdk.ws.radarcovid.export.GaenExportBundleFactory;
+import org.dpppt.backend.sdk.ws.radarcovid.export.GaenV2BundleKey;
+import org.dpppt.backend.sdk.ws.security.signature.ContentSignature;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Writes the responses of the download endpoints for the current release bucket to a directory,
+ * so that they can be served without the WS. The bundles are the ones of {@link
+ * ExportBundleKeys}, with the same content, ETag and headers as returned by the controllers.
+ *
+ * <p>Every response is written as {@code <name>.zip}, unless it is a 204, and {@code
+ * <name>.headers} with one {@code Name: value} line per response header, including the Signature.
+ * The files are built in parallel and moved into place one by one. {@code manifest.json} is
+ * written last, and only if all bundles could be built.
+ */
+public class StaticExportWriter {
+
+  private static final Logger logger = LoggerFactory.getLogger(StaticExportWriter.class);
+
+  private static final String MANIFEST_FILE = "manifest.json";
+  private static final String ZIP_SUFFIX = ".zip";
+  private static final String HEADERS_SUFFIX = ".headers";
+  private static final String TMP_SUFFIX = ".tmp";
+
+  private static final String HEADER_X_KEY_BUNDLE_TAG = "x-key-bundle-tag";
+  private static final String HEADER_X_KEY_BUNDLE_BATCH_NUM = "x-key-bundle-batch-num";
+  private static final String HEADER_X_KEY_BUNDLE_BATCH_SIZE = "x-key-bundle-batch-size";
+
+  private static final DateTimeFormatter RFC1123_DATE_TIME_FORMATTER =
+      DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'")
+          .withZone(ZoneOffset.UTC)
+          .withLocale(Locale.ENGLISH);
+
+  private final GaenExportBundleFactory bundleFactory;
+  private final ExportBundleKeys bundleKeys;
+  private final ContentSignature contentSignature;
+  private final Duration releaseBucketDuration;
+  private final int poolSize;
+  private final ObjectMapper objectMapper =
+      new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+  public StaticExportWriter(
+      GaenExportBundleFactory bundleFactory,
+      ExportBundleKeys bundleKeys,
+      ContentSignature contentSignature,
+      Duration releaseBucketDuration,
+      int poolSize) {
+    this.bundleFactory = bundleFactory;
+    this.bundleKeys = bundleKeys;
+    this.contentSignature = contentSignature;
+    this.releaseBucketDuration = releaseBucketDuration;
+    this.poolSize = poolSize;
+  }
+
+  /**
+   * Writes the export of the release bucket {@code now} lies in.
+   *
+   * @param directory the export directory, created if it does not exist
+   * @return the manifest, as written to the directory
+   * @throws IOException if a bundle could not be built or written, no manifest is written then
+   */
+  public StaticExportManifest write(Path directory, UTCInstant now)
+      throws IOException, InterruptedException {
+    var publishedUntil = now.roundToBucketStart(releaseBucketDuration);
+    Files.createDirectories(directory);
+
+    var tasks = new ArrayList<Future<List<Entry>>>();
+    ExecutorService executor =
+        Executors.newFixedThreadPool(poolSize, new CustomizableThreadFactory("static-export-"));
+    try {
+      for (var bundleKey : bundleKeys.getV1BundleKeys(now, publishedUntil)) {
+        tasks.add(executor.submit(() -> writeV1(directory, bundleKey, now)));
+      }
+      var minimumTag = bundleKeys.getMinimumV2Tag(now);
+      for (var bundleKey : bundleKeys.getV2BundleKeys(now, publishedUntil)) {
+        tasks.add(executor.submit(() -> writeV2(directory, bundleKey, minimumTag, now)));
+      }
+
+      var entries = new ArrayList<Entry>();
+      int failed = 0;
+      for (var task : tasks) {
+        try {
+          entries.addAll(task.get());
+        } catch (ExecutionException e) {
+          failed++;
+          logger.error("Could not write export bundle", e.getCause());
+        }
+      }
+      if (failed > 0) {
+        throw new IOException(failed + " of " + tasks.size() + " export bundles failed");
+      }
+
+      entries.sort(
+          Comparator.comparing(Entry::getPath)
+              .thenComparing(Entry::getQuery, Comparator.nullsFirst(Comparator.naturalOrder())));
+      var manifest =
+          new StaticExportManifest(
+              publishedUntil.getTimestamp(), UTCInstant.now().getTimestamp(), entries);
+      writeFile(directory.resolve(MANIFEST_FILE), objectMapper.writeValueAsBytes(manifest));
+      logger.info(
+          "Wrote {} export responses for bucket {} to {}",
+          entries.size(),
+          publishedUntil,
+          directory);
+      return manifest;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private List<Entry> writeV1(Path directory, GaenBundleKey bundleKey, UTCInstant now)
+      throws Exception {
+    var publishedUntil = bundleKey.getPublishedUntil();
+    var expiration = publishedUntil.plus(releaseBucketDuration);
+    var payload = bundleFactory.buildV1(bundleKey, now);
+
+    var headers = new LinkedHashMap<String, String>();
+    payload.ifPresent(p -> addBodyHeaders(headers, p));
+    headers.put("X-PUBLISHED-UNTIL", Long.toString(publishedUntil.getTimestamp()));
+    headers.put("Expires", RFC1123_DATE_TIME_FORMATTER.format(expiration.getOffsetDateTime()));
+
+    String path = "/v1/gaen/exposed/" + bundleKey.getKeyDate();
+    String query = null;
+    String name = "v1/gaen/exposed/" + bundleKey.getKeyDate() + "/all";
+    // without publishedafter, the key is built with 0
+    if (bundleKey.getPublishedAfter() != 0) {
+      query = "publishedafter=" + bundleKey.getPublishedAfter();
+      name = "v1/gaen/exposed/" + bundleKey.getKeyDate() + "/" + bundleKey.getPublishedAfter();
+    }
+    return List.of(writeResponse(directory, name, path, query, payload, headers));
+  }
+
+  private List<Entry> writeV2(
+      Path directory, GaenV2BundleKey bundleKey, UTCInstant minimumTag, UTCInstant now)
+      throws Exception {
+    var tag = bundleKey.getKeysSince().getTimestamp();
+    var expiration = now.roundToNextBucket(releaseBucketDuration);
+    var batches = new TreeMap<Integer, Optional<ProtoSignatureWrapper>>();
+    for (var batch : bundleFactory.buildV2Batches(bundleKey, now).entrySet()) {
+      batches.put(batch.getKey().getBatchNum(), batch.getValue());
+    }
+
+    var entries = new ArrayList<Entry>();
+    for (var batch : batches.entrySet()) {
+      var payload = batch.getValue();
+      var headers = new LinkedHashMap<String, String>();
+      payload.ifPresent(p -> addBodyHeaders(headers, p));
+      headers.put(
+          HEADER_X_KEY_BUNDLE_TAG, Long.toString(bundleKey.getPublishedUntil().getTimestamp()));
+      if (payload.isPresent()) {
+        headers.put(HEADER_X_KEY_BUNDLE_BATCH_NUM, Integer.toString(payload.get().getBatchNum()));
+        headers.put(HEADER_X_KEY_BUNDLE_BATCH_SIZE, Integer.toString(payload.get().getBatchSize()));
+      }
+      headers.put("Expires", RFC1123_DATE_TIME_FORMATTER.format(expiration.getOffsetDateTime()));
+
+      String name = "v2/gaen/exposed/" + tag + "/" + batch.getKey();
+      String query = "lastKeyBundleTag=" + tag;
+      if (batch.getKey() != 1) {
+        query += "&batchNum=" + batch.getKey();
+      }
+      var entry = writeResponse(directory, name, "/v2/gaen/exposed", query, payload, headers);
+      entries.add(entry);
+      if (tag == minimumTag.getTimestamp() && batch.getKey() == 1) {
+        // requests without or with an older tag get the export of the whole retention period
+        entries.add(
+            new Entry(
+                entry.getPath(),
+                null,
+                entry.getStatus(),
+                entry.getFile(),
+                entry.getHeadersFile(),
+                entry.getHeaders()));
+      }
+    }
+    return entries;
+  }
+
+  private static void addBodyHeaders(Map<String, String> headers, ProtoSignatureWrapper payload) {
+    headers.put("Content-Type", "application/zip");
+    headers.put("ETag", payload.getETag());
+  }
+
+  private Entry writeResponse(
+      Path directory,
+      String name,
+      String path,
+      String query,
+      Optional<ProtoSignatureWrapper> payload,
+      Map<String, String> headers)
+      throws IOException {
+    byte[] body = payload.map(ProtoSignatureWrapper::getZip).orElse(new byte[0]);
+    // the protected headers are looked up case insensitive, as on a servlet response
+    var lookup = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+    lookup.putAll(headers);
+    headers.put("Signature", contentSignature.sign(sha256(body), lookup::get));
+
+    String file = null;
+    if (payload.isPresent()) {
+      file = name + ZIP_SUFFIX;
+      writeFile(directory.resolve(file), body);
+    }
+    var headerLines = new StringBuilder();
+    headers.forEach(
+        (header, value) -> headerLines.append(header).append(": ").append(value).append('\n'));
+    String headersFile = name + HEADERS_SUFFIX;
+    writeFile(
+        directory.resolve(headersFile), headerLines.toString().getBytes(StandardCharsets.UTF_8));
+    return new Entry(path, query, payload.isPresent() ? 200 : 204, file, headersFile, headers);
+  }
+
+  private static void writeFile(Path target, byte[] data) throws IOException {
+    Files.createDirectories(target.getParent());
+    var tmp = target.resolveSibling(target.getFileName() + TMP_SUFFIX);
+    Files.write(tmp, data);
+    Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static byte[] sha256(byte[] data) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(data);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.report.export;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPairGenerator;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import org.dpppt.backend.sdk.report.export.StaticExportManifest.Entry;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.radarcovid.export.ExportBundleKeys;
+import org.dpppt.backend.sdk.ws.radarcovid.export.ExportWatermark;
+import org.dpppt.backend.sdk.ws.radarcovid.export.GaenBundleKey;
+import org.dpppt.backend.sdk.ws.radarcovid.export.GaenExportBundleFactory;
+import org.dpppt.backend.sdk.ws.radarcovid.export.GaenV2BundleKey;
+import org.dpppt.backend.sdk.ws.radarcovid.export.SharedExportBundles;
+import org.dpppt.backend.sdk.ws.security.signature.ContentSignature;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StaticExportWriterTest {
+
+  private static final Duration BUCKET_LENGTH = Duration.ofHours(2);
+  private static final Duration RETENTION = Duration.ofDays(14);
+  private static final byte[] ZIP = {1, 2, 3};
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  /** V1 bundles are empty, V2 exports have one batch. */
+  private static class FixedFactory extends GaenExportBundleFactory {
+    FixedFactory() {
+      super(
+          null,
+          null,
+          null,
+          null,
+          0,
+          SharedExportBundles.disabled(),
+          Duration.ZERO,
+          ExportWatermark.disabled());
+    }
+
+    @Override
+    public Optional<ProtoSignatureWrapper> buildV1(GaenBundleKey bundleKey, UTCInstant now) {
+      return Optional.empty();
+    }
+
+    @Override
+    public Map<GaenV2BundleKey, Optional<ProtoSignatureWrapper>> buildV2Batches(
+        GaenV2BundleKey bundleKey, UTCInstant now) {
+      return Map.of(bundleKey, Optional.of(new ProtoSignatureWrapper(new byte[] {4}, ZIP)));
+    }
+  }
+
+  @Test
+  public void testAllResponsesAreWritten() throws Exception {
+    var generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(256);
+    var bundleKeys = new ExportBundleKeys(BUCKET_LENGTH, RETENTION, 12);
+    var writer =
+        new StaticExportWriter(
+            new FixedFactory(),
+            bundleKeys,
+            new ContentSignature(generator.generateKeyPair(), 14, Collections.emptyList()),
+            BUCKET_LENGTH,
+            4);
+
+    var now = UTCInstant.now();
+    var directory = folder.getRoot().toPath();
+    var manifest = writer.write(directory, now);
+
+    var publishedUntil = now.roundToBucketStart(BUCKET_LENGTH);
+    int v1Responses = bundleKeys.getV1BundleKeys(now, publishedUntil).size();
+    // plus the request without lastKeyBundleTag
+    int v2Responses = bundleKeys.getV2BundleKeys(now, publishedUntil).size() + 1;
+    assertEquals(v1Responses + v2Responses, manifest.getEntries().size());
+    assertTrue(Files.exists(directory.resolve("manifest.json")));
+
+    for (Entry entry : manifest.getEntries()) {
+      var headers =
+          new String(
+              Files.readAllBytes(directory.resolve(entry.getHeadersFile())),
+              StandardCharsets.UTF_8);
+      assertTrue(headers.contains("Signature: "));
+      if (entry.getPath().startsWith("/v1/")) {
+        assertEquals(204, entry.getStatus());
+        assertNull(entry.getFile());
+        assertFalse(headers.contains("ETag"));
+      } else {
+        assertEquals(200, entry.getStatus());
+        assertArrayEquals(ZIP, Files.readAllBytes(directory.resolve(entry.getFile())));
+        assertEquals("1", entry.getHeaders().get("x-key-bundle-batch-size"));
+      }
+    }
+  }
+}
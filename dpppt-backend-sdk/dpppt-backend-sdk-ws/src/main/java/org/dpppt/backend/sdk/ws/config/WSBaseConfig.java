@@ -25,7 +25,10 @@
 import org.dpppt.backend.sdk.data.RedeemDataService;
 import org.dpppt.backend.sdk.data.gaen.FakeKeyService;
 import org.dpppt.backend.sdk.data.gaen.GAENDataService;
+import org.dpppt.backend.sdk.data.gaen.GaenBundleDataService;
+import org.dpppt.backend.sdk.data.gaen.JDBCGaenBundleDataServiceImpl;
 import org.dpppt.backend.sdk.data.radarcovid.gaen.SpanishJDBCGAENDataServiceImpl;
+import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.dpppt.backend.sdk.ws.controller.GaenController;
 import org.dpppt.backend.sdk.ws.controller.GaenV2Controller;
 import org.dpppt.backend.sdk.ws.filter.ResponseWrapperFilter;
@@ -35,6 +38,16 @@
 import org.dpppt.backend.sdk.ws.insertmanager.insertionmodifier.OldAndroid0RPModifier;
 import org.dpppt.backend.sdk.ws.interceptor.HeaderInjector;
 import org.dpppt.backend.sdk.ws.radarcovid.client.ValidationClientService;
+import org.dpppt.backend.sdk.ws.radarcovid.export.ExportBundleCache;
+import org.dpppt.backend.sdk.ws.radarcovid.export.BundleStore;
+import org.dpppt.backend.sdk.ws.radarcovid.export.ExportBundlePublisher;
+import org.dpppt.backend.sdk.ws.radarcovid.export.ExportManifests;
+import org.dpppt.backend.sdk.ws.radarcovid.export.ExportWatermark;
+import org.dpppt.backend.sdk.ws.radarcovid.export.SharedExportBundles;
+import org.dpppt.backend.sdk.ws.radarcovid.export.ExportDeterminism;
+import org.dpppt.backend.sdk.ws.radarcovid.export.GaenBundleKey;
+import org.dpppt.backend.sdk.ws.radarcovid.export.GaenExportBundleFactory;
+import org.dpppt.backend.sdk.ws.radarcovid.export.GaenV2BundleKey;
 import org.dpppt.backend.sdk.ws.radarcovid.client.impl.ValidationClientServiceImpl;
 import org.dpppt.backend.sdk.ws.radarcovid.client.service.ValidationRestClientService;
 import org.dpppt.backend.sdk.ws.radarcovid.client.service.impl.ValidationCircuitBreakerRestClientServiceImpl;
@@ -43,7 +56,10 @@
 import org.dpppt.backend.sdk.ws.security.KeyVault;
 import org.dpppt.backend.sdk.ws.security.NoValidateRequest;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest;
+import org.dpppt.backend.sdk.ws.security.signature.ContentSignature;
 import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
+import org.dpppt.backend.sdk.ws.util.ExportCacheHeaders;
+import org.dpppt.backend.sdk.ws.util.RequestTimeNormalizer;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils;
 import org.flywaydb.core.Flyway;
 import org.slf4j.Logger;
@@ -60,8 +76,6 @@
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.http.converter.protobuf.ProtobufHttpMessageConverter;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
-import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
@@ -72,6 +86,8 @@
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.security.KeyPair;
 import java.time.Duration;
 import java.util.List;
@@ -97,8 +113,9 @@ public abstract class WSBaseConfig implements WebMvcConfigurer {
           + " 'X-Frame-Options':'DENY','X-Xss-Protection':'1; mode=block'}}}")
   Map<String, String> additionalHeaders;
 
-  @Value("${ws.exposedlist.cachecontrol: 300000}")
-  int exposedListCacheControl;
+  // the exports expire at the end of their bucket, moved by up to this window per client
+  @Value("${ws.exposedlist.cacheJitter: 300000}")
+  long exposedListCacheJitter;
 
   @Value("${ws.headers.protected:}")
   List<String> protectedHeaders;
@@ -121,6 +138,59 @@ public abstract class WSBaseConfig implements WebMvcConfigurer {
   @Value("${ws.exposedlist.requestTime: 1500}")
   long requestTime;
 
+  @Value("${ws.exposedlist.cache.enabled: true}")
+  boolean exportCacheEnabled;
+
+  @Value("${ws.exposedlist.cache.maxSize: 2000}")
+  long exportCacheMaxSize;
+
+  @Value("${ws.exposedlist.cache.v2.maxBytes: 268435456}")
+  long exportCacheV2MaxBytes;
+
+  @Value("${ws.exposedlist.publisher.enabled: true}")
+  boolean exportPublisherEnabled;
+
+  @Value("${ws.exposedlist.publisher.poolSize: 4}")
+  int exportPublisherPoolSize;
+
+  @Value("${ws.exposedlist.publisher.v2Buckets: 12}")
+  int exportPublisherV2Buckets;
+
+  // 0 keeps every V2 export in a single file
+  @Value("${ws.exposedlist.v2.maxKeysPerBatch: 0}")
+  int exportV2MaxKeysPerBatch;
+
+  // serves the V2 exports from files of the node instead of the heap
+  @Value("${ws.exposedlist.store.enabled: false}")
+  boolean exportStoreEnabled;
+
+  @Value("${ws.exposedlist.store.directory: ${java.io.tmpdir}/dpppt-export-bundles}")
+  String exportStoreDirectory;
+
+  @Value("${ws.exposedlist.store.maxAge: 86400000}")
+  long exportStoreMaxAge;
+
+  // writes the ZIPs of the exports to files instead of the heap, empty to keep them on the heap
+  @Value("${ws.exposedlist.spool.directory: ${java.io.tmpdir}/dpppt-export-spool}")
+  String exportSpoolDirectory;
+
+  // builds each export on one node and shares it through the database
+  @Value("${ws.exposedlist.shared.enabled: false}")
+  boolean sharedExportsEnabled;
+
+  @Value("${ws.exposedlist.shared.buildTimeout: 60000}")
+  long sharedExportBuildTimeout;
+
+  // answers exports without new keys from the publications read on every node
+  @Value("${ws.exposedlist.watermark.enabled: false}")
+  boolean exportWatermarkEnabled;
+
+  @Value("${ws.exposedlist.deterministic.enabled: false}")
+  boolean deterministicExports;
+
+  @Value("${ws.exposedlist.deterministic.secret:}")
+  String deterministicExportSecret;
+
   @Value("${ws.app.source}")
   String appSource;
 
@@ -189,28 +259,16 @@ public String getKeyIdentifier() {
   @Bean
   public FakeKeyService fakeKeyService() {
     try {
-      DataSource fakeDataSource =
-          new EmbeddedDatabaseBuilder()
-              .generateUniqueName(true)
-              .setType(EmbeddedDatabaseType.HSQL)
-              .build();
-      Flyway flyWay =
-          Flyway.configure()
-              .dataSource(fakeDataSource)
-              .locations("classpath:/db/migration/hsqldb")
-              .load();
-      flyWay.migrate();
-      GAENDataService fakeGaenService =
-          new SpanishJDBCGAENDataServiceImpl(
-              "hsql", fakeDataSource, Duration.ofMillis(releaseBucketDuration), timeSkew);
       return new FakeKeyService(
-          fakeGaenService,
           Integer.valueOf(randomkeyamount),
           Integer.valueOf(gaenKeySizeBytes),
           Duration.ofDays(retentionDays),
+          Duration.ofMillis(releaseBucketDuration),
+          timeSkew,
           randomkeysenabled,
           efgsCountryOrigin,
-          efgsReportType);
+          efgsReportType,
+          deterministicExports ? exportDeterminism().seed("fake-keys") : null);
     } catch (Exception ex) {
       throw new RuntimeException("FakeKeyService could not be instantiated", ex);
     }
@@ -227,12 +285,22 @@ public ProtoSignature gaenSigner() {
           getKeyVersion(),
           getKeyIdentifier(),
           gaenRegion,
-          Duration.ofMillis(releaseBucketDuration));
+          Duration.ofMillis(releaseBucketDuration),
+          deterministicExports,
+          exportSpoolDirectory.isEmpty() ? null : Paths.get(exportSpoolDirectory));
     } catch (Exception ex) {
       throw new RuntimeException("Cannot initialize signer for protobuf");
     }
   }
 
+  /**
+   * Only used if deterministic exports are enabled. All nodes need the same secret, the gaen
+   * signing key and the same fake key settings to emit byte-identical bundles.
+   */
+  private ExportDeterminism exportDeterminism() {
+    return new ExportDeterminism(deterministicExportSecret);
+  }
+
   @Bean
   public InsertManager insertManagerExposed() {
     var manager = new InsertManager(gaenDataService(), gaenValidationUtils());
@@ -325,15 +393,31 @@ public GaenController gaenController() {
     return new GaenController(
         insertManagerExposed(),
         insertManagerExposedNextDay(),
-        gaenDataService(),
-        fakeKeyService(),
+        gaenExportBundleFactory(),
         theValidator,
-        gaenSigner(),
         gaenValidationUtils(),
         Duration.ofMillis(releaseBucketDuration),
         Duration.ofMillis(requestTime),
-        Duration.ofMillis(exposedListCacheControl),
-        keyVault.get("nextDayJWT").getPrivate());
+        exportCacheHeaders(),
+        keyVault.get("nextDayJWT").getPrivate(),
+        gaenExportBundleCache(),
+        exportManifests(),
+        requestTimeNormalizer());
+  }
+
+  @Bean
+  public ExportCacheHeaders exportCacheHeaders() {
+    return new ExportCacheHeaders(
+        Duration.ofMillis(releaseBucketDuration), Duration.ofMillis(exposedListCacheJitter));
+  }
+
+  @Bean
+  public ExportBundleCache<GaenBundleKey> gaenExportBundleCache() {
+    return new ExportBundleCache<>(
+        "gaenExportBundles",
+        exportCacheEnabled,
+        exportCacheMaxSize,
+        Duration.ofMillis(releaseBucketDuration));
   }
 
   @Bean
@@ -346,19 +430,105 @@ public GaenV2Controller gaenV2Controller() {
         insertManagerExposed(),
         theValidator,
         gaenValidationUtils(),
+        gaenExportBundleFactory(),
+        Duration.ofMillis(releaseBucketDuration),
+        Duration.ofMillis(requestTime),
+        exportCacheHeaders(),
+        Duration.ofDays(retentionDays),
+        gaenV2ExportBundleCache(),
+        gaenV2BundleStore(),
+        exportManifests(),
+        requestTimeNormalizer());
+  }
+
+  @Bean
+  public BundleStore<GaenV2BundleKey> gaenV2BundleStore() {
+    return new BundleStore<>(
+        "gaenV2",
+        exportStoreEnabled,
+        Paths.get(exportStoreDirectory),
+        Duration.ofMillis(exportStoreMaxAge),
+        contentSignature(),
+        (key, bundle) ->
+            GaenV2Controller.bundleHeaders(
+                bundle.getETag(),
+                bundle.getBatchNum(),
+                bundle.getBatchSize(),
+                key.getPublishedUntil()));
+  }
+
+  @Bean
+  public ContentSignature contentSignature() {
+    return new ContentSignature(keyVault.get("hashFilter"), retentionDays, protectedHeaders);
+  }
+
+  @Bean
+  public ExportBundleCache<GaenV2BundleKey> gaenV2ExportBundleCache() {
+    return ExportBundleCache.boundedByBytes(
+        "gaenV2ExportBundles",
+        exportCacheEnabled,
+        exportCacheV2MaxBytes,
+        Duration.ofMillis(releaseBucketDuration));
+  }
+
+  @Bean
+  public GaenExportBundleFactory gaenExportBundleFactory() {
+    return new GaenExportBundleFactory(
+        gaenDataService(),
         fakeKeyService(),
         gaenSigner(),
-        gaenDataService(),
+        deterministicExports ? exportDeterminism() : null,
+        exportV2MaxKeysPerBatch,
+        sharedExportBundles(),
+        exportWatermark());
+  }
+
+  @Bean
+  public ExportWatermark exportWatermark() {
+    return new ExportWatermark(
+        gaenDataService(), exportWatermarkEnabled, Duration.ofMillis(releaseBucketDuration));
+  }
+
+  @Bean
+  public SharedExportBundles sharedExportBundles() {
+    return new SharedExportBundles(
+        gaenBundleDataService(),
+        lockProvider(dataSource()),
+        sharedExportsEnabled,
+        Duration.ofMillis(sharedExportBuildTimeout));
+  }
+
+  @Bean
+  public GaenBundleDataService gaenBundleDataService() {
+    return new JDBCGaenBundleDataServiceImpl(dataSource());
+  }
+
+  @Bean
+  public ExportBundlePublisher exportBundlePublisher() {
+    return new ExportBundlePublisher(
+        gaenExportBundleFactory(),
+        gaenExportBundleCache(),
+        gaenV2ExportBundleCache(),
         Duration.ofMillis(releaseBucketDuration),
-        Duration.ofMillis(requestTime),
-        Duration.ofMillis(exposedListCacheControl),
-        Duration.ofDays(retentionDays));
+        Duration.ofDays(retentionDays),
+        exportPublisherV2Buckets,
+        exportPublisherPoolSize,
+        exportManifests());
+  }
+
+  @Bean
+  public ExportManifests exportManifests() {
+    return new ExportManifests();
   }
 
   @Bean
   public GAENDataService gaenDataService() {
-    return new SpanishJDBCGAENDataServiceImpl(
-        getDbType(), dataSource(), Duration.ofMillis(releaseBucketDuration), timeSkew);
+    var dataService =
+        new SpanishJDBCGAENDataServiceImpl(
+            getDbType(), dataSource(), Duration.ofMillis(releaseBucketDuration), timeSkew);
+    // resolved on the first insert, the watermark depends on this data service
+    dataService.setPublicationListener(publications -> exportWatermark().inserted(publications));
+    return dataService;
   }
 
   @Bean
@@ -412,6 +582,11 @@ public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
     configurer.setDefaultTimeout(5_000);
   }
 
+  @Bean
+  public RequestTimeNormalizer requestTimeNormalizer() {
+    return new RequestTimeNormalizer();
+  }
+
   @Bean
   public ThreadPoolTaskExecutor mvcTaskExecutor() {
     ThreadPoolTaskExecutor taskExecutor = new ThreadPoolTaskExecutor();
@@ -441,13 +616,42 @@ public LockProvider lockProvider(DataSource dataSource) {
   @SchedulerLock(name = "cleanData", lockAtLeastFor = "PT0S", lockAtMostFor = "1800000")
   public void scheduleCleanData() {
     logger.info("Start DB cleanup");
+    // drops the expired day partitions, so that cleanDB only deletes from the oldest remaining one
+    gaenDataService().maintainPartitions(Duration.ofDays(retentionDays), Duration.ofDays(7));
     gaenDataService().cleanDB(Duration.ofDays(retentionDays));
     redeemDataService().cleanDB(Duration.ofDays(2));
+    sharedExportBundles()
+        .cleanUp(UTCInstant.now().roundToBucketStart(Duration.ofMillis(releaseBucketDuration)));
     logger.info("DB cleanup up");
   }
 
+  /**
+   * Pre-builds the export bundles of the current release bucket. Runs every minute and returns
+   * immediately once this node published the current bucket, so the bundles are available shortly
+   * after each bucket boundary. The bundles are cached in memory, so every node publishes for
+   * itself. Building each export once for the cluster is up to {@link SharedExportBundles}.
+   */
+  @Scheduled(fixedRate = 60 * 1000L, initialDelay = 60 * 1000L)
+  public void schedulePublishExportBundles() {
+    if (exportPublisherEnabled) {
+      exportBundlePublisher().publish();
+    }
+  }
+
+  /** The bundle store is local to each node, so every node cleans up its own. */
+  @Scheduled(fixedRate = 60 * 60 * 1000L, initialDelay = 60 * 1000L)
+  public void scheduleCleanBundleStore() throws IOException {
+    gaenV2BundleStore().cleanUp();
+  }
+
+  /** The watermark is kept in memory, so every node reads the latest key times itself. */
+  @Scheduled(fixedDelayString = "${ws.exposedlist.watermark.refreshInterval: 10000}")
+  public void scheduleRefreshExportWatermark() {
+    exportWatermark().refresh();
+  }
+
+  /** The pool of fake keys is kept in memory, so every node renews its own. */
   @Scheduled(cron = "0 0 2 * * *")
-  @SchedulerLock(name = "updateFakeKeys", lockAtLeastFor = "PT0S", lockAtMostFor = "1800000")
   public void scheduleUpdateFakeKeys() {
     logger.info("Start Update Fake Keys");
     fakeKeyService().updateFakeKeys();
@@ -31,6 +31,7 @@
 import org.dpppt.backend.sdk.ws.security.KeyVault.PublicKeyNoSuitableEncodingFoundException;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest;
 import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
+import org.dpppt.backend.sdk.ws.util.RequestTimeNormalizer;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils;
 import org.flywaydb.core.Flyway;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -160,6 +161,7 @@ public static class DebugConfig {
     @Autowired ProtoSignature gaenSigner;
     @Autowired ValidateRequest backupValidator;
     @Autowired ValidationUtils gaenValidationUtils;
+    @Autowired RequestTimeNormalizer requestTimeNormalizer;
     @Autowired Environment env;
 
     protected boolean isProd() {
@@ -200,7 +202,8 @@ DebugController debugController() {
           backupValidator,
           insertManagerDebug(),
           Duration.ofMillis(releaseBucketDuration),
-          Duration.ofMillis(requestTime));
+          Duration.ofMillis(requestTime),
+          requestTimeNormalizer);
     }
   }
 }
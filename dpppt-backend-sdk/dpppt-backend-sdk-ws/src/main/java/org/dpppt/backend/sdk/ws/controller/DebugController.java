@@ -21,6 +21,7 @@
 import org.dpppt.backend.sdk.ws.security.ValidateRequest.InvalidDateException;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest.WrongScopeException;
 import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
+import org.dpppt.backend.sdk.ws.util.RequestTimeNormalizer;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils.BadBatchReleaseTimeException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -37,6 +38,7 @@
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
 
 @Controller
 @RequestMapping("/v1/debug")
@@ -47,6 +49,7 @@ public class DebugController {
   private final Duration requestTime;
   private final ProtoSignature gaenSigner;
   private final DebugGAENDataService dataService;
+  private final RequestTimeNormalizer requestTimeNormalizer;
 
   public DebugController(
       DebugGAENDataService dataService,
@@ -54,17 +57,19 @@ public DebugController(
       ValidateRequest validateRequest,
       InsertManager insertManager,
       Duration releaseBucketDuration,
-      Duration requestTime) {
+      Duration requestTime,
+      RequestTimeNormalizer requestTimeNormalizer) {
     this.validateRequest = validateRequest;
     this.releaseBucketDuration = releaseBucketDuration;
     this.requestTime = requestTime;
     this.gaenSigner = gaenSigner;
     this.dataService = dataService;
     this.insertManager = insertManager;
+    this.requestTimeNormalizer = requestTimeNormalizer;
   }
 
   @PostMapping(value = "/exposed")
-  public @ResponseBody ResponseEntity<String> addExposed(
+  public @ResponseBody DeferredResult<ResponseEntity<String>> addExposed(
       @Valid @RequestBody GaenRequest gaenRequest,
       @RequestHeader(value = "User-Agent", required = true) String userAgent,
       @RequestHeader(value = "X-Device-Name", required = true) String deviceName,
@@ -79,8 +84,7 @@ public DebugController(
         deviceName, gaenRequest.getGaenKeys(), userAgent, principal, now);
     var responseBuilder = ResponseEntity.ok();
 
-    normalizeRequestTime(now.getTimestamp());
-    return responseBuilder.build();
+    return requestTimeNormalizer.normalize(now, requestTime, responseBuilder.<String>build());
   }
 
   @GetMapping(value = "/exposed/{batchReleaseTime}", produces = "application/zip")
@@ -128,16 +132,6 @@ public DebugController(
     return ResponseEntity.ok(dayBuckets);
   }
 
-  private void normalizeRequestTime(long now) {
-    long after = UTCInstant.now().getTimestamp();
-    long duration = after - now;
-    try {
-      Thread.sleep(Math.max(requestTime.minusMillis(duration).toMillis(), 0));
-    } catch (Exception ex) {
-
-    }
-  }
-
   @ExceptionHandler({
     IllegalArgumentException.class,
     InvalidDateException.class,
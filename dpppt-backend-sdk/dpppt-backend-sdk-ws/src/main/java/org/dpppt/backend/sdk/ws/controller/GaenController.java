@@ -12,31 +12,36 @@
 import ch.ubique.openapi.docannotations.Documentation;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import io.jsonwebtoken.Jwts;
-import org.dpppt.backend.sdk.data.gaen.FakeKeyService;
-import org.dpppt.backend.sdk.data.gaen.GAENDataService;
 import org.dpppt.backend.sdk.model.gaen.DayBuckets;
+import org.dpppt.backend.sdk.model.gaen.ExportManifest;
 import org.dpppt.backend.sdk.model.gaen.GaenRequest;
 import org.dpppt.backend.sdk.model.gaen.GaenSecondDay;
 import org.dpppt.backend.sdk.model.gaen.GaenUnit;
-import org.dpppt.backend.sdk.utils.DurationExpiredException;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.dpppt.backend.sdk.ws.insertmanager.InsertException;
 import org.dpppt.backend.sdk.ws.insertmanager.InsertManager;
 import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.AssertKeyFormat.KeyFormatException;
 import org.dpppt.backend.sdk.ws.radarcovid.annotation.Loggable;
+import org.dpppt.backend.sdk.ws.radarcovid.export.ExportBundleCache;
+import org.dpppt.backend.sdk.ws.radarcovid.export.ExportManifests;
+import org.dpppt.backend.sdk.ws.radarcovid.export.GaenBundleKey;
+import org.dpppt.backend.sdk.ws.radarcovid.export.GaenExportBundleFactory;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest.ClaimIsBeforeOnsetException;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest.InvalidDateException;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest.WrongScopeException;
-import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
 import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.dpppt.backend.sdk.ws.security.signature.SignatureResponseWrapper;
+import org.dpppt.backend.sdk.ws.util.ExportCacheHeaders;
+import org.dpppt.backend.sdk.ws.util.RequestTimeNormalizer;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils.BadBatchReleaseTimeException;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils.DelayedKeyDateClaimIsMissing;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils.DelayedKeyDateIsInvalid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.http.CacheControl;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
@@ -44,6 +49,10 @@
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.validation.Valid;
 import java.io.IOException;
@@ -52,14 +61,11 @@
 import java.security.PrivateKey;
 import java.security.SignatureException;
 import java.time.Duration;
-import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
+import java.util.Optional;
 import java.util.UUID;
-import java.util.concurrent.Callable;
 
 @Controller
 @RequestMapping("/v1/gaen")
@@ -72,10 +78,6 @@
 public class GaenController {
   private static final Logger logger = LoggerFactory.getLogger(GaenController.class);
 
-  private static final DateTimeFormatter RFC1123_DATE_TIME_FORMATTER =
-          DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'")
-                  .withZone(ZoneOffset.UTC).withLocale(Locale.ENGLISH);
-
   // releaseBucketDuration is used to delay the publishing of Exposed Keys by splitting the database
   // up into batches of keys
   // in releaseBucketDuration duration. The current batch is never published, only previous batches
@@ -87,35 +89,38 @@ public class GaenController {
   private final ValidationUtils validationUtils;
   private final InsertManager insertManagerExposed;
   private final InsertManager insertManagerExposedNextDay;
-  private final GAENDataService dataService;
-  private final FakeKeyService fakeKeyService;
-  private final Duration exposedListCacheControl;
+  private final GaenExportBundleFactory exportBundleFactory;
+  private final ExportCacheHeaders exportCacheHeaders;
   private final PrivateKey secondDayKey;
-  private final ProtoSignature gaenSigner;
+  private final ExportBundleCache<GaenBundleKey> exportBundleCache;
+  private final ExportManifests exportManifests;
+  private final RequestTimeNormalizer requestTimeNormalizer;
 
   public GaenController(
       InsertManager insertManagerExposed,
       InsertManager insertManagerExposedNextDay,
-      GAENDataService dataService,
-      FakeKeyService fakeKeyService,
+      GaenExportBundleFactory exportBundleFactory,
       ValidateRequest validateRequest,
-      ProtoSignature gaenSigner,
       ValidationUtils validationUtils,
       Duration releaseBucketDuration,
       Duration requestTime,
-      Duration exposedListCacheControl,
-      PrivateKey secondDayKey) {
+      ExportCacheHeaders exportCacheHeaders,
+      PrivateKey secondDayKey,
+      ExportBundleCache<GaenBundleKey> exportBundleCache,
+      ExportManifests exportManifests,
+      RequestTimeNormalizer requestTimeNormalizer) {
     this.insertManagerExposed = insertManagerExposed;
     this.insertManagerExposedNextDay = insertManagerExposedNextDay;
-    this.dataService = dataService;
-    this.fakeKeyService = fakeKeyService;
+    this.exportBundleFactory = exportBundleFactory;
     this.releaseBucketDuration = releaseBucketDuration;
     this.validateRequest = validateRequest;
     this.requestTime = requestTime;
     this.validationUtils = validationUtils;
-    this.exposedListCacheControl = exposedListCacheControl;
+    this.exportCacheHeaders = exportCacheHeaders;
     this.secondDayKey = secondDayKey;
-    this.gaenSigner = gaenSigner;
+    this.exportBundleCache = exportBundleCache;
+    this.exportManifests = exportManifests;
+    this.requestTimeNormalizer = requestTimeNormalizer;
   }
 
   @GetMapping(value = "")
@@ -137,7 +142,7 @@ public GaenController(
         "403=>Authentication failed"
       })
   @Loggable
-  public @ResponseBody Callable<ResponseEntity<String>> addExposed(
+  public @ResponseBody DeferredResult<ResponseEntity<String>> addExposed(
       @Valid
           @RequestBody
           @Documentation(
@@ -187,16 +192,7 @@ public GaenController(
       responseBuilder.header("Authorization", "Bearer " + jwt);
       responseBuilder.header("X-Exposed-Token", "Bearer " + jwt);
     }
-    Callable<ResponseEntity<String>> cb =
-        () -> {
-          try {
-            now.normalizeDuration(requestTime);
-          } catch (DurationExpiredException e) {
-            logger.debug("Total time spent in endpoint is longer than requestTime");
-          }
-          return responseBuilder.body("OK");
-        };
-    return cb;
+    return requestTimeNormalizer.normalize(now, requestTime, responseBuilder.body("OK"));
   }
 
   @PostMapping(value = "/exposednextday")
@@ -212,7 +208,7 @@ public GaenController(
         "403=>No delayedKeyDate claim in authentication"
       })
   @Loggable
-  public @ResponseBody Callable<ResponseEntity<String>> addExposedSecond(
+  public @ResponseBody DeferredResult<ResponseEntity<String>> addExposedSecond(
       @Valid @RequestBody @Documentation(description = "The last exposed key of the user")
           GaenSecondDay gaenSecondDay,
       @Documentation(
@@ -240,14 +236,7 @@ public GaenController(
     insertManagerExposedNextDay.insertIntoDatabase(
         List.of(gaenSecondDay.getDelayedKey()), userAgent, principal, now);
 
-    return () -> {
-      try {
-        now.normalizeDuration(requestTime);
-      } catch (DurationExpiredException e) {
-        logger.debug("Total time spent in endpoint is longer than requestTime");
-      }
-      return ResponseEntity.ok().body("OK");
-    };
+    return requestTimeNormalizer.normalize(now, requestTime, ResponseEntity.ok().body("OK"));
   }
 
   @GetMapping(value = "/exposed/{keyDate}", produces = "application/zip")
@@ -255,12 +244,13 @@ public GaenController(
       description = "Request the exposed key from a given date",
       responses = {
         "200=>zipped export.bin and export.sig of all keys in that interval",
+        "304=>the bundle identified by the If-None-Match header did not change",
         "404=>"
             + "- invalid starting key date, doesn't point to midnight UTC"
             + "- _publishedAfter_ is not at the beginning of a batch release time, currently 2h",
       })
   @Loggable
-  public @ResponseBody ResponseEntity<byte[]> getExposedKeys(
+  public @ResponseBody ResponseEntity<Resource> getExposedKeys(
       @PathVariable
           @Documentation(
               description =
@@ -275,7 +265,8 @@ public GaenController(
                   "Restrict returned Exposed Keys to dates after this parameter. Given in"
                       + " milliseconds since Unix epoch (1970-01-01).",
               example = "1593043200000")
-          Long publishedafter)
+          Long publishedafter,
+      ServletWebRequest request)
       throws BadBatchReleaseTimeException, IOException, InvalidKeyException, SignatureException,
           NoSuchAlgorithmException {
     var now = UTCInstant.now();
@@ -292,28 +283,39 @@ public GaenController(
 
     // calculate exposed until bucket
     UTCInstant publishedUntil = now.roundToBucketStart(releaseBucketDuration);
-    UTCInstant expiration = publishedUntil.plus(releaseBucketDuration);
+    HttpHeaders cacheHeaders = exportCacheHeaders.forCurrentRequest(publishedUntil, now);
 
-    var exposedKeys =
-        dataService.getSortedExposedForKeyDate(
-            keyDateInstant, publishedAfterInstant, publishedUntil, now);
-    exposedKeys =
-        fakeKeyService.fillUpKeys(exposedKeys, publishedAfterInstant, keyDateInstant, now);
-    if (exposedKeys.isEmpty()) {
+    // the bundle only changes when the release bucket moves, so it is built once per bucket
+    var bundleKey = new GaenBundleKey(keyDateInstant, publishedafter, publishedUntil);
+    Optional<ProtoSignatureWrapper> payload =
+        exportBundleCache.get(bundleKey, () -> exportBundleFactory.buildV1(bundleKey, now));
+    if (payload.isEmpty()) {
       return ResponseEntity.noContent()
-          //.cacheControl(CacheControl.maxAge(exposedListCacheControl))
+          .headers(cacheHeaders)
+          .header("X-PUBLISHED-UNTIL", Long.toString(publishedUntil.getTimestamp()))
+          .build();
+    }
+    // the ETag is derived from the keys, so it is the same on every node and for every rebuild
+    String eTag = payload.get().getETag();
+    if (ExportCacheHeaders.isNotModified(request, eTag, publishedUntil)) {
+      return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+          .headers(cacheHeaders)
+          .eTag(eTag)
           .header("X-PUBLISHED-UNTIL", Long.toString(publishedUntil.getTimestamp()))
-          .header("Expires", RFC1123_DATE_TIME_FORMATTER.format(expiration.getOffsetDateTime()))
           .build();
     }
 
-    ProtoSignatureWrapper payload = gaenSigner.getPayload(exposedKeys);
-
+    // the hash of the ZIP is known, so the body is not buffered for the Signature header
+    request.setAttribute(
+        SignatureResponseWrapper.CONTENT_HASH_ATTRIBUTE,
+        payload.get().getContentHash(),
+        RequestAttributes.SCOPE_REQUEST);
     return ResponseEntity.ok()
-        //.cacheControl(CacheControl.maxAge(exposedListCacheControl))
+        .headers(cacheHeaders)
+        .eTag(eTag)
         .header("X-PUBLISHED-UNTIL", Long.toString(publishedUntil.getTimestamp()))
-        .header("Expires", RFC1123_DATE_TIME_FORMATTER.format(expiration.getOffsetDateTime()))
-        .body(payload.getZip());
+        .contentLength(payload.get().getSize())
+        .body(payload.get().toResource());
   }
 
   @GetMapping(value = "/buckets/{dayDateStr}")
@@ -353,6 +355,44 @@ public GaenController(
     return ResponseEntity.ok(dayBuckets);
   }
 
+  @GetMapping(value = "/manifest")
+  @Documentation(
+      description =
+          "Lists all exports of the current release bucket for every key date of the retention"
+              + " period, with their key counts, sizes and hashes",
+      responses = {
+        "200=>the manifest of the current release bucket",
+        "304=>the manifest did not change",
+        "503=>no exports are published on this node yet, see Retry-After"
+      })
+  @Loggable
+  public @ResponseBody ResponseEntity<ExportManifest> getManifest(WebRequest request) {
+    var now = UTCInstant.now();
+    UTCInstant publishedUntil = now.roundToBucketStart(releaseBucketDuration);
+    // right after the bucket boundary, the manifest of the previous bucket until the new one is
+    // published
+    var manifest = exportManifests.getLatestV1(publishedUntil, releaseBucketDuration);
+    if (manifest.isEmpty()) {
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+          .header(HttpHeaders.RETRY_AFTER, Long.toString(ExportManifests.RETRY_AFTER.toSeconds()))
+          .build();
+    }
+    var manifestUntil = UTCInstant.ofEpochMillis(manifest.get().getPublishedUntil());
+    String eTag = ExportManifests.getETag(manifest.get());
+    if (ExportCacheHeaders.isNotModified(request, eTag, manifestUntil)) {
+      return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+          .headers(exportCacheHeaders.untilBucketEnd(manifestUntil, now))
+          .eTag(eTag)
+          .header("X-PUBLISHED-UNTIL", Long.toString(manifestUntil.getTimestamp()))
+          .build();
+    }
+    return ResponseEntity.ok()
+        .headers(exportCacheHeaders.untilBucketEnd(manifestUntil, now))
+        .eTag(eTag)
+        .header("X-PUBLISHED-UNTIL", Long.toString(manifestUntil.getTimestamp()))
+        .body(manifest.get());
+  }
+
   @ExceptionHandler({DelayedKeyDateClaimIsMissing.class})
   @ResponseStatus(HttpStatus.BAD_REQUEST)
   public ResponseEntity<String> delayedClaimIsWrong(Exception ex) {
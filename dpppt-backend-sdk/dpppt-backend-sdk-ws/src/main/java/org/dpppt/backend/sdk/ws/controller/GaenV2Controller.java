@@ -2,32 +2,44 @@
 
 import ch.ubique.openapi.docannotations.Documentation;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import org.dpppt.backend.sdk.data.gaen.FakeKeyService;
-import org.dpppt.backend.sdk.data.gaen.GAENDataService;
-import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.model.gaen.ExportManifest;
 import org.dpppt.backend.sdk.model.gaen.GaenV2UploadKeysRequest;
-import org.dpppt.backend.sdk.utils.DurationExpiredException;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.dpppt.backend.sdk.ws.insertmanager.InsertException;
 import org.dpppt.backend.sdk.ws.insertmanager.InsertManager;
 import org.dpppt.backend.sdk.ws.insertmanager.insertionfilters.AssertKeyFormat.KeyFormatException;
 import org.dpppt.backend.sdk.ws.radarcovid.annotation.Loggable;
+import org.dpppt.backend.sdk.ws.radarcovid.export.BundleStore;
+import org.dpppt.backend.sdk.ws.radarcovid.export.BundleStore.StoredBundle;
+import org.dpppt.backend.sdk.ws.radarcovid.export.ExportBundleCache;
+import org.dpppt.backend.sdk.ws.radarcovid.export.ExportManifests;
+import org.dpppt.backend.sdk.ws.radarcovid.export.GaenExportBundleFactory;
+import org.dpppt.backend.sdk.ws.radarcovid.export.GaenV2BundleKey;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest.ClaimIsBeforeOnsetException;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest.InvalidDateException;
 import org.dpppt.backend.sdk.ws.security.ValidateRequest.WrongScopeException;
-import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
 import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.dpppt.backend.sdk.ws.security.signature.SignatureResponseWrapper;
+import org.dpppt.backend.sdk.ws.util.ExportCacheHeaders;
+import org.dpppt.backend.sdk.ws.util.RequestTimeNormalizer;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils;
 import org.dpppt.backend.sdk.ws.util.ValidationUtils.BadBatchReleaseTimeException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.validation.Valid;
 import java.io.IOException;
@@ -35,12 +47,9 @@
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
 import java.time.Duration;
-import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.List;
-import java.util.Locale;
-import java.util.concurrent.Callable;
+import java.util.Optional;
 
 /** This is a new controller to simplify the sending and receiving of keys using ENv1.5/ENv2. */
 @Controller
@@ -55,41 +64,51 @@ public class GaenV2Controller {
   private final ValidateRequest validateRequest;
 
   private final ValidationUtils validationUtils;
-  private final FakeKeyService fakeKeyService;
-  private final ProtoSignature gaenSigner;
-  private final GAENDataService dataService;
+  private final GaenExportBundleFactory exportBundleFactory;
   private final Duration releaseBucketDuration;
   private final Duration requestTime;
-  private final Duration exposedListCacheControl;
+  private final ExportCacheHeaders exportCacheHeaders;
   private final Duration retentionPeriod;
+  private final ExportBundleCache<GaenV2BundleKey> exportBundleCache;
+  private final BundleStore<GaenV2BundleKey> bundleStore;
+  private final ExportManifests exportManifests;
+  private final RequestTimeNormalizer requestTimeNormalizer;
 
   private static final String HEADER_X_KEY_BUNDLE_TAG = "x-key-bundle-tag";
+  private static final String HEADER_X_KEY_BUNDLE_BATCH_NUM = "x-key-bundle-batch-num";
+  private static final String HEADER_X_KEY_BUNDLE_BATCH_SIZE = "x-key-bundle-batch-size";
 
-  private static final DateTimeFormatter RFC1123_DATE_TIME_FORMATTER =
-          DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'")
-                  .withZone(ZoneOffset.UTC).withLocale(Locale.ENGLISH);
+  // set by Tomcat if the connector can write a file to the socket without copying it
+  private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+  private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+  private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+  private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
 
   public GaenV2Controller(
       InsertManager insertManager,
       ValidateRequest validateRequest,
       ValidationUtils validationUtils,
-      FakeKeyService fakeKeyService,
-      ProtoSignature gaenSigner,
-      GAENDataService dataService,
+      GaenExportBundleFactory exportBundleFactory,
       Duration releaseBucketDuration,
       Duration requestTime,
-      Duration exposedListCacheControl,
-      Duration retentionPeriod) {
+      ExportCacheHeaders exportCacheHeaders,
+      Duration retentionPeriod,
+      ExportBundleCache<GaenV2BundleKey> exportBundleCache,
+      BundleStore<GaenV2BundleKey> bundleStore,
+      ExportManifests exportManifests,
+      RequestTimeNormalizer requestTimeNormalizer) {
     this.insertManager = insertManager;
     this.validateRequest = validateRequest;
     this.validationUtils = validationUtils;
-    this.fakeKeyService = fakeKeyService;
-    this.gaenSigner = gaenSigner;
-    this.dataService = dataService;
+    this.exportBundleFactory = exportBundleFactory;
     this.releaseBucketDuration = releaseBucketDuration;
     this.requestTime = requestTime;
-    this.exposedListCacheControl = exposedListCacheControl;
+    this.exportCacheHeaders = exportCacheHeaders;
     this.retentionPeriod = retentionPeriod;
+    this.exportBundleCache = exportBundleCache;
+    this.bundleStore = bundleStore;
+    this.exportManifests = exportManifests;
+    this.requestTimeNormalizer = requestTimeNormalizer;
   }
 
   @GetMapping(value = "")
@@ -112,7 +131,7 @@ public GaenV2Controller(
         "403=>Authentication failed"
       })
   @Loggable
-  public @ResponseBody Callable<ResponseEntity<String>> addExposed(
+  public @ResponseBody DeferredResult<ResponseEntity<String>> addExposed(
       @Documentation(description = "JSON Object containing all keys.") @Valid @RequestBody
           GaenV2UploadKeysRequest gaenV2Request,
       @RequestHeader(value = "User-Agent")
@@ -135,16 +154,7 @@ public GaenV2Controller(
     // configured Filters in the WSBaseConfig)
     insertManager.insertIntoDatabase(gaenV2Request.getGaenKeys(), userAgent, principal, now);
     var responseBuilder = ResponseEntity.ok();
-    Callable<ResponseEntity<String>> cb =
-        () -> {
-          try {
-            now.normalizeDuration(requestTime);
-          } catch (DurationExpiredException e) {
-            logger.debug("Total time spent in endpoint is longer than requestTime");
-          }
-          return responseBuilder.body("OK");
-        };
-    return cb;
+    return requestTimeNormalizer.normalize(now, requestTime, responseBuilder.body("OK"));
   }
 
   // GET for Key Download
@@ -152,11 +162,14 @@ public GaenV2Controller(
   @Documentation(
       description = "Requests keys published _after_ lastKeyBundleTag.",
       responses = {
-        "200 => zipped export.bin and export.sig of all keys in that interval",
+        "200 => zipped export.bin and export.sig of all keys in that interval, or of the"
+            + " requested batch if the export is split into x-key-bundle-batch-size batches",
+        "204 => no keys in that interval, or no such batch",
+        "304 => the bundle identified by the If-None-Match header did not change",
         "404 => Invalid _lastKeyBundleTag_"
       })
   @Loggable
-  public @ResponseBody ResponseEntity<byte[]> getExposedKeys(
+  public @ResponseBody ResponseEntity<Resource> getExposedKeys(
       @Documentation(
               description =
                   "Only retrieve keys published after the specified key-bundle"
@@ -167,29 +180,37 @@ public GaenV2Controller(
           Long lastKeyBundleTag,
       @Documentation(
               description =
-	               "Visited countries list for exposed key retrieval. Optional, if not setted,"
-	                  + " all visited countries are returned",
-	          example = "IT, DE, PT")
+                  "Visited countries list for exposed key retrieval. Optional, if not setted,"
+                      + " all visited countries are returned",
+              example = "IT, DE, PT")
           @RequestParam(required = false)
           List<String> visitedCountries,
       @Documentation(
               description =
-                      "Origin countries list for exposed key retrieval. Optional, if not setted,"
+                  "Origin countries list for exposed key retrieval. Optional, if not setted,"
                       + " all origin countries are returned",
               example = "IT, DE, PT")
-      @RequestParam(required = false)
-              List<String> originCountries)
+          @RequestParam(required = false)
+          List<String> originCountries,
+      @Documentation(
+              description =
+                  "Batch of the export to retrieve, starting at 1. Optional, defaults to the"
+                      + " first batch. The other batches of the same x-key-bundle-tag are"
+                      + " requested with the same parameters",
+              example = "2")
+          @RequestParam(required = false, defaultValue = "1")
+          int batchNum,
+      ServletWebRequest request)
       throws BadBatchReleaseTimeException, InvalidKeyException, SignatureException,
           NoSuchAlgorithmException, IOException {
     var now = UTCInstant.now();
-    
+
     Long minimumLastKeyBundleTag =
-            now.minus(retentionPeriod).roundToNextBucket(releaseBucketDuration).getTimestamp();
+        now.minus(retentionPeriod).roundToNextBucket(releaseBucketDuration).getTimestamp();
     if (lastKeyBundleTag == null || lastKeyBundleTag < minimumLastKeyBundleTag) {
       // if no lastKeyBundleTag given, go back to the start of the retention period and
       // select next bucket.
-      lastKeyBundleTag =
-    		  minimumLastKeyBundleTag;
+      lastKeyBundleTag = minimumLastKeyBundleTag;
     }
     var keysSince = UTCInstant.ofEpochMillis(lastKeyBundleTag);
 
@@ -197,24 +218,170 @@ public GaenV2Controller(
       return ResponseEntity.notFound().build();
     }
     UTCInstant keyBundleTag = now.roundToBucketStart(releaseBucketDuration);
-    UTCInstant expiration = now.roundToNextBucket(releaseBucketDuration);
+    // cached until the end of the bucket, spread over the jitter window of the cache headers
+    HttpHeaders cacheHeaders = exportCacheHeaders.forCurrentRequest(keyBundleTag, now);
 
-    List<GaenKey> exposedKeys = dataService.getSortedExposedSince(keysSince, now, visitedCountries, originCountries);
+    // equivalent country filters share the same bundle, which only changes with the bucket
+    // all batches of the export are built and cached together
+    var bundleKey =
+        new GaenV2BundleKey(keysSince, visitedCountries, originCountries, keyBundleTag)
+            .withBatchNum(batchNum);
 
-    if (exposedKeys.isEmpty()) {
-      return ResponseEntity.noContent()
-          //.cacheControl(CacheControl.maxAge(exposedListCacheControl))
-          .header(HEADER_X_KEY_BUNDLE_TAG, Long.toString(keyBundleTag.getTimestamp()))
-          .header("Expires", RFC1123_DATE_TIME_FORMATTER.format(expiration.getOffsetDateTime()))
-          .build();
+    if (bundleStore.isEnabled()) {
+      Optional<StoredBundle> stored =
+          bundleStore.get(bundleKey, () -> exportBundleFactory.buildV2Batches(bundleKey, now));
+      if (stored.isEmpty()) {
+        return noContent(keyBundleTag, cacheHeaders);
+      }
+      if (ExportCacheHeaders.isNotModified(request, stored.get().getETag(), keyBundleTag)) {
+        return notModified(stored.get().getETag(), keyBundleTag, cacheHeaders);
+      }
+      return storedBundle(stored.get(), keyBundleTag, cacheHeaders, request);
     }
-    ProtoSignatureWrapper payload = gaenSigner.getPayloadV2(exposedKeys);
 
+    Optional<ProtoSignatureWrapper> payload =
+        exportBundleCache.getBatch(
+            bundleKey, () -> exportBundleFactory.buildV2Batches(bundleKey, now));
+    if (payload.isEmpty()) {
+      return noContent(keyBundleTag, cacheHeaders);
+    }
+    // the ETag is derived from the keys, so it is the same on every node and for every rebuild
+    String eTag = payload.get().getETag();
+    if (ExportCacheHeaders.isNotModified(request, eTag, keyBundleTag)) {
+      return notModified(eTag, keyBundleTag, cacheHeaders);
+    }
+    // the hash of the ZIP is known, so the body is not buffered for the Signature header
+    request.setAttribute(
+        SignatureResponseWrapper.CONTENT_HASH_ATTRIBUTE,
+        payload.get().getContentHash(),
+        RequestAttributes.SCOPE_REQUEST);
+    return ok(
+            eTag,
+            payload.get().getBatchNum(),
+            payload.get().getBatchSize(),
+            keyBundleTag,
+            cacheHeaders)
+        .contentLength(payload.get().getSize())
+        .body(payload.get().toResource());
+  }
+
+  @GetMapping(value = "/manifest")
+  @Documentation(
+      description =
+          "Lists the exports of the current release bucket for the lastKeyBundleTags of the"
+              + " retention period, with their key counts, sizes and hashes. Exports split into"
+              + " batches are listed per batch",
+      responses = {
+        "200 => the manifest of the current release bucket",
+        "304 => the manifest did not change",
+        "503 => no exports are published on this node yet, see Retry-After"
+      })
+  @Loggable
+  public @ResponseBody ResponseEntity<ExportManifest> getManifest(WebRequest request) {
+    var now = UTCInstant.now();
+    UTCInstant keyBundleTag = now.roundToBucketStart(releaseBucketDuration);
+    // right after the bucket boundary, the manifest of the previous bucket until the new one is
+    // published
+    var manifest = exportManifests.getLatestV2(keyBundleTag, releaseBucketDuration);
+    if (manifest.isEmpty()) {
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+          .header(HttpHeaders.RETRY_AFTER, Long.toString(ExportManifests.RETRY_AFTER.toSeconds()))
+          .build();
+    }
+    var manifestTag = UTCInstant.ofEpochMillis(manifest.get().getPublishedUntil());
+    String eTag = ExportManifests.getETag(manifest.get());
+    if (ExportCacheHeaders.isNotModified(request, eTag, manifestTag)) {
+      return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+          .headers(exportCacheHeaders.untilBucketEnd(manifestTag, now))
+          .eTag(eTag)
+          .header(HEADER_X_KEY_BUNDLE_TAG, Long.toString(manifestTag.getTimestamp()))
+          .build();
+    }
     return ResponseEntity.ok()
-        //.cacheControl(CacheControl.maxAge(exposedListCacheControl))
+        .headers(exportCacheHeaders.untilBucketEnd(manifestTag, now))
+        .eTag(eTag)
+        .header(HEADER_X_KEY_BUNDLE_TAG, Long.toString(manifestTag.getTimestamp()))
+        .body(manifest.get());
+  }
+
+  /**
+   * Serves a bundle of the store. The file is written to the client as it is, the Signature header
+   * over its stored hash is sent by the {@link SignatureResponseWrapper} without reading the file.
+   */
+  private ResponseEntity<Resource> storedBundle(
+      StoredBundle bundle,
+      UTCInstant keyBundleTag,
+      HttpHeaders cacheHeaders,
+      ServletWebRequest request) {
+    request.setAttribute(
+        SignatureResponseWrapper.CONTENT_HASH_ATTRIBUTE,
+        bundle.getContentHash(),
+        RequestAttributes.SCOPE_REQUEST);
+    if (bundle.getSignature() != null) {
+      request.setAttribute(
+          SignatureResponseWrapper.SIGNATURE_ATTRIBUTE,
+          bundle.getSignature(),
+          RequestAttributes.SCOPE_REQUEST);
+    }
+    var response =
+        ok(
+                bundle.getETag(),
+                bundle.getBatchNum(),
+                bundle.getBatchSize(),
+                keyBundleTag,
+                cacheHeaders)
+            .contentLength(bundle.getSize());
+    // Tomcat sends the file whatever the status is. If-None-Match and If-Modified-Since were
+    // answered before, but Spring MVC may still answer If-Unmodified-Since with a 412.
+    if (!Boolean.TRUE.equals(
+            request.getAttribute(SENDFILE_SUPPORT, RequestAttributes.SCOPE_REQUEST))
+        || request.getHeader(HttpHeaders.IF_UNMODIFIED_SINCE) != null) {
+      return response.body(new FileSystemResource(bundle.getZip()));
+    }
+    request.setAttribute(
+        SENDFILE_FILENAME,
+        bundle.getZip().toAbsolutePath().toString(),
+        RequestAttributes.SCOPE_REQUEST);
+    request.setAttribute(SENDFILE_START, 0L, RequestAttributes.SCOPE_REQUEST);
+    request.setAttribute(SENDFILE_END, bundle.getSize(), RequestAttributes.SCOPE_REQUEST);
+    return response.build();
+  }
+
+  private ResponseEntity<Resource> notModified(
+      String eTag, UTCInstant keyBundleTag, HttpHeaders cacheHeaders) {
+    return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+        .headers(cacheHeaders)
+        .eTag(eTag)
         .header(HEADER_X_KEY_BUNDLE_TAG, Long.toString(keyBundleTag.getTimestamp()))
-        .header("Expires", RFC1123_DATE_TIME_FORMATTER.format(expiration.getOffsetDateTime()))
-        .body(payload.getZip());
+        .build();
+  }
+
+  private ResponseEntity<Resource> noContent(UTCInstant keyBundleTag, HttpHeaders cacheHeaders) {
+    return ResponseEntity.noContent()
+        .headers(cacheHeaders)
+        .header(HEADER_X_KEY_BUNDLE_TAG, Long.toString(keyBundleTag.getTimestamp()))
+        .build();
+  }
+
+  private ResponseEntity.BodyBuilder ok(
+      String eTag, int batchNum, int batchSize, UTCInstant keyBundleTag, HttpHeaders cacheHeaders) {
+    return ResponseEntity.ok()
+        .headers(cacheHeaders)
+        .headers(bundleHeaders(eTag, batchNum, batchSize, keyBundleTag));
+  }
+
+  /**
+   * @return the headers of a bundle which do not depend on the request, the bundle store signs
+   *     them ahead of the responses
+   */
+  public static HttpHeaders bundleHeaders(
+      String eTag, int batchNum, int batchSize, UTCInstant keyBundleTag) {
+    var headers = new HttpHeaders();
+    headers.setETag(eTag);
+    headers.set(HEADER_X_KEY_BUNDLE_TAG, Long.toString(keyBundleTag.getTimestamp()));
+    headers.set(HEADER_X_KEY_BUNDLE_BATCH_NUM, Integer.toString(batchNum));
+    headers.set(HEADER_X_KEY_BUNDLE_BATCH_SIZE, Integer.toString(batchSize));
+    return headers;
   }
 
   @ExceptionHandler({
@@ -54,7 +54,7 @@ public void doFilter(ServletRequest request, ServletResponse response, FilterCha
 
     SignatureResponseWrapper wrapper =
         new SignatureResponseWrapper(
-            httpResponse, pair, retentionDays, protectedHeaders, setDebugHeaders);
+            request, httpResponse, pair, retentionDays, protectedHeaders, setDebugHeaders);
     chain.doFilter(request, wrapper);
     try {
       request
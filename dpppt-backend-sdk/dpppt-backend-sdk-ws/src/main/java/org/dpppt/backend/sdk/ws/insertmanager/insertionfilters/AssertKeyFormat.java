@@ -31,7 +31,7 @@ public List<GaenKey> filter(
       throws InsertException {
 
     var hasInvalidKeys =
-        content.stream().anyMatch(key -> !validationUtils.isValidKeyFormat(key.getKeyData()));
+        content.stream().anyMatch(key -> !validationUtils.isValidKeyFormat(key));
 
     if (hasInvalidKeys) {
       throw new KeyFormatException();
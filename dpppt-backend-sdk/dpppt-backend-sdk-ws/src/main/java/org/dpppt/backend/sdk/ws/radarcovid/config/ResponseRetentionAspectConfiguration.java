@@ -9,6 +9,7 @@
  */
 package org.dpppt.backend.sdk.ws.radarcovid.config;
 
+import java.time.Duration;
 import java.util.Arrays;
 
 import org.apache.commons.lang3.math.NumberUtils;
@@ -16,8 +17,10 @@
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Pointcut;
+import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.dpppt.backend.sdk.ws.radarcovid.annotation.ResponseRetention;
 import org.dpppt.backend.sdk.ws.radarcovid.exception.RadarCovidServerException;
+import org.dpppt.backend.sdk.ws.util.RequestTimeNormalizer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -27,9 +30,12 @@
 import org.springframework.core.env.Environment;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
 
 /**
- * Aspect in charge of controlling the minimum response time of a service.
+ * Aspect in charge of controlling the minimum response time of a service. Asynchronous services
+ * returning a {@link DeferredResult} are completed by the {@link RequestTimeNormalizer} without
+ * blocking a thread, synchronous services are delayed on the request thread.
  */
 @Configuration
 @ConditionalOnProperty(name = "application.response.retention.enabled", havingValue = "true", matchIfMissing = true)
@@ -39,6 +45,9 @@ public class ResponseRetentionAspectConfiguration {
 	
 	@Autowired
 	private Environment environment;
+
+	@Autowired
+	private RequestTimeNormalizer requestTimeNormalizer;
 	
     @Aspect
     @Order(0)
@@ -61,6 +70,11 @@ public Object logAround(ProceedingJoinPoint joinPoint, ResponseRetention respons
                 long elapsedTime = System.currentTimeMillis() - start;
                 long responseRetentionTimeMillis = getTimeMillis(responseRetention.time());
                 log.debug("Controller : Controller {}.{} () execution time : {} ms", className, methodName, elapsedTime);
+                if (result instanceof DeferredResult) {
+                	log.debug("************************* END TIME RESPONSE CONTROL **********************************");
+                	return requestTimeNormalizer.normalize(UTCInstant.ofEpochMillis(start),
+                			Duration.ofMillis(responseRetentionTimeMillis), (DeferredResult<?>) result);
+                }
                 if (elapsedTime < responseRetentionTimeMillis) {
                 	try {
                 		Thread.sleep(responseRetentionTimeMillis - elapsedTime);
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.dpppt.backend.sdk.ws.security.signature.ContentSignature;
+import org.dpppt.backend.sdk.ws.security.signature.ContentSignature.Precomputed;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Keeps signed export bundles as files in a local directory instead of on the heap. A bundle
+ * never changes once built, so the files are served as they are and survive a restart of the node.
+ *
+ * <p>Every bundle is stored as {@code <name>.zip} next to {@code <name>.properties}, which holds
+ * the hash of the export, the SHA-256 of the ZIP, the Signature header over it and the
+ * batch of the bundle. The properties are moved into place last, so a bundle without them is
+ * incomplete and ignored. Bundles without keys only have the properties. Files older than {@code
+ * maxAge} are removed by {@link #cleanUp()}.
+ */
+public class BundleStore<K extends ExportBundleKey> {
+
+  private static final Logger logger = LoggerFactory.getLogger(BundleStore.class);
+
+  private static final String ZIP_SUFFIX = ".zip";
+  private static final String PROPERTIES_SUFFIX = ".properties";
+  private static final String TMP_SUFFIX = ".tmp";
+  private static final String SIGNATURE = "signature";
+  private static final String SIGNED_HEADER_PREFIX = "signature.";
+
+  private final String name;
+  private final boolean enabled;
+  private final Path directory;
+  private final Duration maxAge;
+  private final ContentSignature contentSignature;
+  private final BiFunction<K, ProtoSignatureWrapper, HttpHeaders> responseHeaders;
+  // the stored bundles already read by this node
+  private final Map<String, Optional<StoredBundle>> index = new ConcurrentHashMap<>();
+  // concurrent misses of a bundle wait for a single build
+  private final SingleFlight<String, Optional<StoredBundle>> builds = new SingleFlight<>();
+
+  /**
+   * @param contentSignature signs the stored bundles ahead of the responses
+   * @param responseHeaders the headers a bundle is served with, covered by its signature
+   */
+  public BundleStore(
+      String name,
+      boolean enabled,
+      Path directory,
+      Duration maxAge,
+      ContentSignature contentSignature,
+      BiFunction<K, ProtoSignatureWrapper, HttpHeaders> responseHeaders) {
+    this.name = name;
+    this.enabled = enabled;
+    this.directory = directory;
+    this.maxAge = maxAge;
+    this.contentSignature = contentSignature;
+    this.responseHeaders = responseHeaders;
+    if (enabled) {
+      try {
+        Files.createDirectories(directory);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Cannot create bundle store " + directory, e);
+      }
+    }
+  }
+
+  /**
+   * Returns the stored batch for the given key or builds all batches of its export and stores
+   * them. Concurrent misses of the same key wait for a single build.
+   *
+   * @param key the bundle key of the batch
+   * @param builder builds all batches on a miss, the result must contain {@code key}
+   * @return the stored batch, or an empty optional if there are no keys to publish
+   */
+  public Optional<StoredBundle> get(K key, ExportBatchesBuilder<K> builder)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    var stored = read(key);
+    if (stored != null) {
+      return stored;
+    }
+    return builds.get(
+        fileName(key),
+        () -> {
+          // stored by a build which completed in the meantime
+          var completed = read(key);
+          if (completed != null) {
+            return completed;
+          }
+          logger.debug("Building export batches of {} for store {}", key, name);
+          putAll(builder.build());
+          return read(key);
+        });
+  }
+
+  public boolean contains(K key) throws IOException {
+    return read(key) != null;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Stores the given bundles. A bundle which is already stored is kept, so that the file of a
+   * bundle does not change while it is served.
+   */
+  public synchronized void putAll(Map<K, Optional<ProtoSignatureWrapper>> bundles)
+      throws IOException {
+    for (var bundle : bundles.entrySet()) {
+      if (read(bundle.getKey()) == null) {
+        write(bundle.getKey(), bundle.getValue());
+      }
+    }
+  }
+
+  /** Deletes the bundles which were stored more than {@code maxAge} ago. */
+  public void cleanUp() throws IOException {
+    if (!enabled) {
+      return;
+    }
+    var oldest = Instant.now().minus(maxAge);
+    int deleted = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        try {
+          if (Files.getLastModifiedTime(file).toInstant().isBefore(oldest)) {
+            Files.delete(file);
+            deleted++;
+          }
+        } catch (NoSuchFileException e) {
+          // deleted by a concurrent run
+        }
+      }
+    }
+    index.clear();
+    logger.info("Deleted {} files from bundle store {}", deleted, name);
+  }
+
+  /** @return the stored bundle, or null if the key is not stored */
+  private Optional<StoredBundle> read(K key) throws IOException {
+    var fileName = fileName(key);
+    var stored = index.get(fileName);
+    if (stored != null) {
+      return stored;
+    }
+    var propertiesFile = directory.resolve(fileName + PROPERTIES_SUFFIX);
+    if (!Files.exists(propertiesFile)) {
+      return null;
+    }
+    var properties = new Properties();
+    try (InputStream in = Files.newInputStream(propertiesFile)) {
+      properties.load(in);
+    }
+    if (properties.getProperty("hash") == null) {
+      stored = Optional.empty();
+    } else {
+      var zip = directory.resolve(fileName + ZIP_SUFFIX);
+      if (!Files.exists(zip)) {
+        // removed by cleanUp
+        return null;
+      }
+      stored =
+          Optional.of(
+              new StoredBundle(
+                  zip,
+                  Files.size(zip),
+                  decodeHex(properties.getProperty("hash")),
+                  decodeHex(properties.getProperty("contentHash")),
+                  Integer.parseInt(properties.getProperty("batchNum")),
+                  Integer.parseInt(properties.getProperty("batchSize")),
+                  readSignature(properties)));
+    }
+    index.put(fileName, stored);
+    return stored;
+  }
+
+  /** @return the stored signature, or null for bundles stored without one */
+  private static Precomputed readSignature(Properties properties) {
+    String signature = properties.getProperty(SIGNATURE);
+    if (signature == null) {
+      return null;
+    }
+    Map<String, String> signedHeaders = new HashMap<>();
+    for (String property : properties.stringPropertyNames()) {
+      if (property.startsWith(SIGNED_HEADER_PREFIX)) {
+        signedHeaders.put(
+            property.substring(SIGNED_HEADER_PREFIX.length()), properties.getProperty(property));
+      }
+    }
+    return new Precomputed(signature, signedHeaders);
+  }
+
+  private void write(K key, Optional<ProtoSignatureWrapper> bundle) throws IOException {
+    var fileName = fileName(key);
+    var properties = new Properties();
+    if (bundle.isPresent()) {
+      byte[] contentHash = bundle.get().getContentHash();
+      // the same signature for every response until the bundle is deleted
+      var signature =
+          contentSignature.precompute(
+              contentHash,
+              responseHeaders.apply(key, bundle.get())::getFirst,
+              key.getPublishedUntil());
+      properties.setProperty("hash", Hex.encodeHexString(bundle.get().getHash()));
+      properties.setProperty("contentHash", Hex.encodeHexString(contentHash));
+      properties.setProperty(SIGNATURE, signature.getValue());
+      signature
+          .getProtectedHeaders()
+          .forEach((header, value) -> properties.setProperty(SIGNED_HEADER_PREFIX + header, value));
+      properties.setProperty("batchNum", Integer.toString(bundle.get().getBatchNum()));
+      properties.setProperty("batchSize", Integer.toString(bundle.get().getBatchSize()));
+      var zipTmp = directory.resolve(fileName + ZIP_SUFFIX + TMP_SUFFIX);
+      try (InputStream zip = bundle.get().openZip()) {
+        Files.copy(zip, zipTmp, StandardCopyOption.REPLACE_EXISTING);
+      }
+      Files.move(
+          zipTmp, directory.resolve(fileName + ZIP_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+    }
+    var tmp = directory.resolve(fileName + PROPERTIES_SUFFIX + TMP_SUFFIX);
+    try (OutputStream out = Files.newOutputStream(tmp)) {
+      properties.store(out, null);
+    }
+    Files.move(
+        tmp, directory.resolve(fileName + PROPERTIES_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** The key is hashed, since the country filters come from the request. */
+  private String fileName(K key) {
+    byte[] keyHash = sha256(key.toString().getBytes(StandardCharsets.UTF_8));
+    return name + "-" + Hex.encodeHexString(keyHash);
+  }
+
+  private static byte[] sha256(byte[] data) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(data);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] decodeHex(String hex) {
+    try {
+      return Hex.decodeHex(hex);
+    } catch (DecoderException e) {
+      throw new IllegalStateException("Corrupt bundle store entry", e);
+    }
+  }
+
+  /** A bundle stored as a file. */
+  public static class StoredBundle {
+    private final Path zip;
+    private final long size;
+    private final byte[] hash;
+    private final byte[] contentHash;
+    private final int batchNum;
+    private final int batchSize;
+    private final Precomputed signature;
+
+    StoredBundle(
+        Path zip,
+        long size,
+        byte[] hash,
+        byte[] contentHash,
+        int batchNum,
+        int batchSize,
+        Precomputed signature) {
+      this.zip = zip;
+      this.size = size;
+      this.hash = hash;
+      this.contentHash = contentHash;
+      this.batchNum = batchNum;
+      this.batchSize = batchSize;
+      this.signature = signature;
+    }
+
+    public Path getZip() {
+      return zip;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    /** @return the ETag of the bundle, the same as {@link ProtoSignatureWrapper#getETag()} */
+    public String getETag() {
+      return ProtoSignatureWrapper.eTagOf(hash);
+    }
+
+    /** @return the SHA-256 of the ZIP file, as signed by the Signature header */
+    public byte[] getContentHash() {
+      return contentHash;
+    }
+
+    public int getBatchNum() {
+      return batchNum;
+    }
+
+    public int getBatchSize() {
+      return batchSize;
+    }
+
+    /** @return the Signature header over the content hash, or null if it has to be signed */
+    public Precomputed getSignature() {
+      return signature;
+    }
+  }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.Map;
+import java.util.Optional;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+
+/**
+ * Builds all batches of an export on a cache miss, since the batches of an export can only be
+ * built together. Like {@link ExportBundleBuilder}, an empty result is cached as well.
+ */
+@FunctionalInterface
+public interface ExportBatchesBuilder<K extends ExportBundleKey> {
+
+  Map<K, Optional<ProtoSignatureWrapper>> build()
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException;
+}
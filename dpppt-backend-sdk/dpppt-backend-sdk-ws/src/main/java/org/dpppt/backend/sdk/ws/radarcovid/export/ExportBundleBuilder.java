@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.Optional;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+
+/**
+ * Builds a signed export bundle on a cache miss. An empty result means there are no keys to
+ * publish and is cached as well, so that 204 responses do not hit the database either.
+ */
+@FunctionalInterface
+public interface ExportBundleBuilder {
+
+  Optional<ProtoSignatureWrapper> build()
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException;
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Weigher;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Size bounded cache of signed export bundles. Keys with a received_at in the past release
+ * buckets are never modified, so a bundle only changes when the release bucket moves. Every entry
+ * therefore expires exactly at the end of the bucket it was built for.
+ *
+ * <p>The cache is either bounded by the number of bundles or, see {@link #boundedByBytes}, by the
+ * size of the bundles in bytes. Hit, miss and eviction counts are exposed through Micrometer under
+ * the given cache name.
+ *
+ * <p>The entries are futures: a miss registers the future of its bundle and builds it on the
+ * calling thread, outside of any lock of the cache. Concurrent misses of the same key wait for that
+ * future, while the other keys stay readable and writable during the build.
+ *
+ * <p>A bundle which is evicted, expires or is replaced is {@link ProtoSignatureWrapper#release()
+ * released}, so that its spool file is deleted once the running responses are written.
+ */
+public class ExportBundleCache<K extends ExportBundleKey> {
+
+  private static final Logger logger = LoggerFactory.getLogger(ExportBundleCache.class);
+
+  // rough per entry overhead of the key, the wrapper and the cache node
+  private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+  private final String name;
+  private final boolean enabled;
+  private final AsyncCache<K, Optional<ProtoSignatureWrapper>> cache;
+
+  /** Creates a cache holding at most {@code maximumSize} bundles. */
+  public ExportBundleCache(
+      String name, boolean enabled, long maximumSize, Duration releaseBucketDuration) {
+    this(name, enabled, maximumSize, (key, bundle) -> 1, releaseBucketDuration);
+  }
+
+  /**
+   * Creates a cache holding bundles up to a total of {@code maximumBytes}. Bundles spooled to files
+   * count with the size of their files.
+   */
+  public static <K extends ExportBundleKey> ExportBundleCache<K> boundedByBytes(
+      String name, boolean enabled, long maximumBytes, Duration releaseBucketDuration) {
+    return new ExportBundleCache<>(
+        name, enabled, maximumBytes, ExportBundleCache::weigh, releaseBucketDuration);
+  }
+
+  private ExportBundleCache(
+      String name,
+      boolean enabled,
+      long maximumWeight,
+      Weigher<K, Optional<ProtoSignatureWrapper>> weigher,
+      Duration releaseBucketDuration) {
+    this.name = name;
+    this.enabled = enabled;
+    this.cache =
+        Caffeine.newBuilder()
+            .maximumWeight(maximumWeight)
+            .weigher(weigher)
+            .expireAfter(new BucketExpiry<K>(releaseBucketDuration))
+            .removalListener(ExportBundleCache::release)
+            .recordStats()
+            .buildAsync();
+    if (enabled) {
+      CaffeineCacheMetrics.monitor(Metrics.globalRegistry, cache.synchronous(), name);
+    }
+  }
+
+  /**
+   * Returns the cached bundle for the given key or builds and caches it. Concurrent misses of the
+   * same key wait for a single build.
+   *
+   * @param key the bundle key
+   * @param builder builds the bundle on a cache miss
+   * @return the signed bundle, or an empty optional if there are no keys to publish
+   */
+  public Optional<ProtoSignatureWrapper> get(K key, ExportBundleBuilder builder)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    if (!enabled) {
+      return builder.build();
+    }
+    return load(
+        key,
+        () -> {
+          logger.debug("Building export bundle {} for cache {}", key, name);
+          return builder.build();
+        });
+  }
+
+  /**
+   * Returns the cached batch for the given key or builds all batches of its export and caches
+   * them, so that the other batches are not built again when they are requested. Concurrent misses
+   * of the same key wait for a single build.
+   *
+   * @param key the bundle key of the batch
+   * @param builder builds all batches on a cache miss, the result must contain {@code key}
+   * @return the signed batch, or an empty optional if there are no keys to publish
+   */
+  public Optional<ProtoSignatureWrapper> getBatch(K key, ExportBatchesBuilder<K> builder)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    if (!enabled) {
+      return builder.build().get(key);
+    }
+    return load(
+        key,
+        () -> {
+          logger.debug("Building export batches of {} for cache {}", key, name);
+          var batches = builder.build();
+          // the entry of the requested batch is completed with the result of the builder
+          batches.forEach(
+              (batchKey, batch) ->
+                  cache.asMap().putIfAbsent(batchKey, CompletableFuture.completedFuture(batch)));
+          return batches.get(key);
+        });
+  }
+
+  /** Stores a bundle built ahead of the first request, see {@link ExportBundlePublisher}. */
+  public void put(K key, Optional<ProtoSignatureWrapper> bundle) {
+    if (enabled) {
+      var previous = cache.asMap().put(key, CompletableFuture.completedFuture(bundle));
+      // the listener is not told about replacements, since they may keep the same bundle
+      if (previous != null && previous.isDone() && !previous.isCompletedExceptionally()) {
+        var previousBundle = previous.join();
+        if (previousBundle.isPresent() && !previousBundle.equals(bundle)) {
+          previousBundle.get().release();
+        }
+      }
+    }
+  }
+
+  /** Stores all batches of an export built ahead of the first request. */
+  public void putAll(Map<K, Optional<ProtoSignatureWrapper>> bundles) {
+    if (enabled) {
+      bundles.forEach(this::put);
+    }
+  }
+
+  public boolean contains(K key) {
+    return getIfPresent(key) != null;
+  }
+
+  /** @return the cached bundle, or null if the key is not cached or still being built */
+  public Optional<ProtoSignatureWrapper> getIfPresent(K key) {
+    var bundle = cache.getIfPresent(key);
+    if (bundle == null || !bundle.isDone() || bundle.isCompletedExceptionally()) {
+      return null;
+    }
+    return bundle.join();
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public long size() {
+    cache.synchronous().cleanUp();
+    return cache.synchronous().estimatedSize();
+  }
+
+  public void invalidateAll() {
+    cache.synchronous().invalidateAll();
+  }
+
+  /**
+   * Registers the future of a missing key and completes it with the bundle built on this thread,
+   * or waits for the future already registered. The checked exceptions of the builder are passed
+   * through to the callers, nothing is cached in that case.
+   */
+  private Optional<ProtoSignatureWrapper> load(K key, ExportBundleBuilder builder)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    var loading = new CompletableFuture<Optional<ProtoSignatureWrapper>>();
+    var running = cache.asMap().putIfAbsent(key, loading);
+    if (running == null) {
+      try {
+        var bundle = builder.build();
+        loading.complete(bundle);
+        return bundle;
+      } catch (Throwable e) {
+        cache.asMap().remove(key, loading);
+        loading.completeExceptionally(e);
+        throw e;
+      }
+    }
+    try {
+      return running.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for " + key, e);
+    } catch (ExecutionException e) {
+      // the build of the first request failed, which is reported to every waiting request
+      var cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof InvalidKeyException) {
+        throw (InvalidKeyException) cause;
+      } else if (cause instanceof SignatureException) {
+        throw (SignatureException) cause;
+      } else if (cause instanceof NoSuchAlgorithmException) {
+        throw (NoSuchAlgorithmException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  private static void release(
+      Object key, Optional<ProtoSignatureWrapper> bundle, RemovalCause cause) {
+    if (bundle != null && cause != RemovalCause.REPLACED) {
+      bundle.ifPresent(ProtoSignatureWrapper::release);
+    }
+  }
+
+  private static int weigh(Object key, Optional<ProtoSignatureWrapper> bundle) {
+    return ENTRY_OVERHEAD_BYTES
+        + bundle.map(b -> (int) b.getSize() + b.getHash().length).orElse(0);
+  }
+
+  /** Expires an entry at the end of the release bucket its key was built for. */
+  private static class BucketExpiry<K extends ExportBundleKey>
+      implements Expiry<K, Optional<ProtoSignatureWrapper>> {
+
+    private final Duration releaseBucketDuration;
+
+    BucketExpiry(Duration releaseBucketDuration) {
+      this.releaseBucketDuration = releaseBucketDuration;
+    }
+
+    private long untilBucketEnd(K key) {
+      var bucketEnd = key.getPublishedUntil().plus(releaseBucketDuration);
+      var remaining = bucketEnd.getTimestamp() - UTCInstant.now().getTimestamp();
+      return Duration.ofMillis(Math.max(0, remaining)).toNanos();
+    }
+
+    @Override
+    public long expireAfterCreate(
+        K key, Optional<ProtoSignatureWrapper> value, long currentTime) {
+      return untilBucketEnd(key);
+    }
+
+    @Override
+    public long expireAfterUpdate(
+        K key, Optional<ProtoSignatureWrapper> value, long currentTime, long currentDuration) {
+      return untilBucketEnd(key);
+    }
+
+    @Override
+    public long expireAfterRead(
+        K key, Optional<ProtoSignatureWrapper> value, long currentTime, long currentDuration) {
+      return currentDuration;
+    }
+  }
+}
@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import org.dpppt.backend.sdk.utils.UTCInstant;
+
+/**
+ * Identifies a signed export bundle. Every key carries the release bucket it was built for, so a
+ * bundle is never served once the bucket has moved on. {@link #toString()} must contain all
+ * fields, it names the files of the {@link BundleStore}.
+ */
+public interface ExportBundleKey {
+
+  /** @return the start of the release bucket up to which keys are contained in the bundle */
+  UTCInstant getPublishedUntil();
+}
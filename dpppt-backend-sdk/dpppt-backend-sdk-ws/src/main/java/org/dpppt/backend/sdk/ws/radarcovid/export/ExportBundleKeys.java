@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+
+/**
+ * The export bundles clients request during one release bucket.
+ *
+ * <p>For V1 every keyDate of the retention period, once without publishedafter and once for every
+ * bucket since the keyDate. For V2 the bundle without lastKeyBundleTag and the bundles for the
+ * last {@code v2Buckets} tags, all without country filter.
+ */
+public class ExportBundleKeys {
+
+  private final Duration releaseBucketDuration;
+  private final Duration retentionPeriod;
+  private final int v2Buckets;
+
+  public ExportBundleKeys(Duration releaseBucketDuration, Duration retentionPeriod, int v2Buckets) {
+    this.releaseBucketDuration = releaseBucketDuration;
+    this.retentionPeriod = retentionPeriod;
+    this.v2Buckets = v2Buckets;
+  }
+
+  public List<GaenBundleKey> getV1BundleKeys(UTCInstant now, UTCInstant publishedUntil) {
+    var bundleKeys = new ArrayList<GaenBundleKey>();
+    var today = now.atStartOfDay();
+    for (var keyDate = today.minus(retentionPeriod);
+        !keyDate.isAfterEpochMillisOf(today);
+        keyDate = keyDate.plusDays(1)) {
+      bundleKeys.add(new GaenBundleKey(keyDate, null, publishedUntil));
+      for (var publishedAfter = keyDate;
+          !publishedAfter.isAfterEpochMillisOf(publishedUntil);
+          publishedAfter = publishedAfter.plus(releaseBucketDuration)) {
+        bundleKeys.add(new GaenBundleKey(keyDate, publishedAfter.getTimestamp(), publishedUntil));
+      }
+    }
+    return bundleKeys;
+  }
+
+  /** @return the bundles of the first batch of every export */
+  public List<GaenV2BundleKey> getV2BundleKeys(UTCInstant now, UTCInstant publishedUntil) {
+    var bundleKeys = new ArrayList<GaenV2BundleKey>();
+    // same lower bound as applied by the V2 controller if no or an older tag is given
+    var minimumTag = getMinimumV2Tag(now);
+    bundleKeys.add(new GaenV2BundleKey(minimumTag, null, null, publishedUntil));
+    for (int i = 0; i <= v2Buckets; i++) {
+      var tag = publishedUntil.minus(releaseBucketDuration.multipliedBy(i));
+      if (!tag.isAfterEpochMillisOf(minimumTag)) {
+        break;
+      }
+      bundleKeys.add(new GaenV2BundleKey(tag, null, null, publishedUntil));
+    }
+    return bundleKeys;
+  }
+
+  public UTCInstant getMinimumV2Tag(UTCInstant now) {
+    return now.minus(retentionPeriod).roundToNextBucket(releaseBucketDuration);
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.dpppt.backend.sdk.model.gaen.ExportManifestEntry;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Builds all export bundles of the current release bucket ahead of the client requests, so that
+ * the clients do not all hit the database and the signer right after a bucket boundary.
+ *
+ * <p>The bundles built are the ones of {@link ExportBundleKeys}. Every bundle built or found in
+ * the caches is recorded in the {@link ExportManifests}, which are published once all bundles of
+ * the bucket are available.
+ */
+public class ExportBundlePublisher {
+
+  private static final Logger logger = LoggerFactory.getLogger(ExportBundlePublisher.class);
+
+  private final GaenExportBundleFactory bundleFactory;
+  private final ExportBundleCache<GaenBundleKey> v1Cache;
+  private final ExportBundleCache<GaenV2BundleKey> v2Cache;
+  private final Duration releaseBucketDuration;
+  private final ExportBundleKeys bundleKeys;
+  private final ExportManifests manifests;
+  private final ExecutorService executor;
+
+  private final Timer v1BuildTimer;
+  private final Timer v2BuildTimer;
+  private final Timer publishDurationTimer;
+  private final Timer publishLatencyTimer;
+
+  private volatile long lastPublishedBucket = -1;
+
+  public ExportBundlePublisher(
+      GaenExportBundleFactory bundleFactory,
+      ExportBundleCache<GaenBundleKey> v1Cache,
+      ExportBundleCache<GaenV2BundleKey> v2Cache,
+      Duration releaseBucketDuration,
+      Duration retentionPeriod,
+      int v2Buckets,
+      int poolSize) {
+    this(
+        bundleFactory,
+        v1Cache,
+        v2Cache,
+        releaseBucketDuration,
+        retentionPeriod,
+        v2Buckets,
+        poolSize,
+        new ExportManifests());
+  }
+
+  public ExportBundlePublisher(
+      GaenExportBundleFactory bundleFactory,
+      ExportBundleCache<GaenBundleKey> v1Cache,
+      ExportBundleCache<GaenV2BundleKey> v2Cache,
+      Duration releaseBucketDuration,
+      Duration retentionPeriod,
+      int v2Buckets,
+      int poolSize,
+      ExportManifests manifests) {
+    this.bundleFactory = bundleFactory;
+    this.v1Cache = v1Cache;
+    this.v2Cache = v2Cache;
+    this.releaseBucketDuration = releaseBucketDuration;
+    this.bundleKeys = new ExportBundleKeys(releaseBucketDuration, retentionPeriod, v2Buckets);
+    this.manifests = manifests;
+    this.executor =
+        Executors.newFixedThreadPool(poolSize, new CustomizableThreadFactory("export-publisher-"));
+
+    var registry = Metrics.globalRegistry;
+    this.v1BuildTimer =
+        Timer.builder("gaen.export.bundle.build")
+            .description("Time to build and sign one export bundle")
+            .tag("version", "v1")
+            .register(registry);
+    this.v2BuildTimer =
+        Timer.builder("gaen.export.bundle.build")
+            .description("Time to build and sign one export bundle")
+            .tag("version", "v2")
+            .register(registry);
+    this.publishDurationTimer =
+        Timer.builder("gaen.export.publish.duration")
+            .description("Time to build all export bundles of a release bucket")
+            .register(registry);
+    this.publishLatencyTimer =
+        Timer.builder("gaen.export.publish.latency")
+            .description("Time from the release bucket boundary until all bundles are published")
+            .register(registry);
+  }
+
+  /**
+   * Publishes the bundles of the current release bucket, unless this node already did so. Bundles
+   * already present in the caches are not built again, so a partly failed run is completed by the
+   * next one.
+   */
+  public void publish() {
+    if (!v1Cache.isEnabled() && !v2Cache.isEnabled()) {
+      return;
+    }
+    var now = UTCInstant.now();
+    var publishedUntil = now.roundToBucketStart(releaseBucketDuration);
+    if (publishedUntil.getTimestamp() == lastPublishedBucket) {
+      return;
+    }
+    long start = System.nanoTime();
+
+    var v1Entries =
+        new ConcurrentSkipListMap<GaenBundleKey, ExportManifestEntry>(ExportManifests.V1_ORDER);
+    var v2Entries =
+        new ConcurrentSkipListMap<GaenV2BundleKey, ExportManifestEntry>(ExportManifests.V2_ORDER);
+    var tasks = new ArrayList<Future<?>>();
+    if (v1Cache.isEnabled()) {
+      for (var bundleKey : getV1BundleKeys(now, publishedUntil)) {
+        var cached = v1Cache.getIfPresent(bundleKey);
+        if (cached != null) {
+          v1Entries.put(bundleKey, ExportManifests.v1Entry(bundleKey, cached));
+        } else {
+          tasks.add(executor.submit(() -> publishV1(bundleKey, now, v1Entries)));
+        }
+      }
+    }
+    if (v2Cache.isEnabled()) {
+      for (var bundleKey : getV2BundleKeys(now, publishedUntil)) {
+        if (!recordCachedV2(bundleKey, v2Entries)) {
+          tasks.add(executor.submit(() -> publishV2(bundleKey, now, v2Entries)));
+        }
+      }
+    }
+
+    int failed = 0;
+    for (var task : tasks) {
+      try {
+        task.get();
+      } catch (ExecutionException e) {
+        failed++;
+        logger.error("Could not publish export bundle", e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        logger.warn("Publishing export bundles was interrupted");
+        return;
+      }
+    }
+
+    publishDurationTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    if (failed == 0) {
+      if (v1Cache.isEnabled()) {
+        manifests.publishV1(publishedUntil, v1Entries.values());
+      }
+      if (v2Cache.isEnabled()) {
+        manifests.publishV2(publishedUntil, v2Entries.values());
+      }
+      lastPublishedBucket = publishedUntil.getTimestamp();
+      publishLatencyTimer.record(
+          UTCInstant.now().getTimestamp() - publishedUntil.getTimestamp(), TimeUnit.MILLISECONDS);
+    }
+    logger.info(
+        "Published {} export bundles for bucket {} in {} ms ({} failed)",
+        tasks.size() - failed,
+        publishedUntil,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+        failed);
+  }
+
+  List<GaenBundleKey> getV1BundleKeys(UTCInstant now, UTCInstant publishedUntil) {
+    return bundleKeys.getV1BundleKeys(now, publishedUntil);
+  }
+
+  List<GaenV2BundleKey> getV2BundleKeys(UTCInstant now, UTCInstant publishedUntil) {
+    return bundleKeys.getV2BundleKeys(now, publishedUntil);
+  }
+
+  /**
+   * Records the manifest entries of a cached V2 export.
+   *
+   * @return false if not all batches of the export are cached
+   */
+  private boolean recordCachedV2(
+      GaenV2BundleKey bundleKey, Map<GaenV2BundleKey, ExportManifestEntry> entries) {
+    var first = v2Cache.getIfPresent(bundleKey);
+    if (first == null) {
+      return false;
+    }
+    int batchSize = first.map(ProtoSignatureWrapper::getBatchSize).orElse(1);
+    var batches = new ArrayList<ExportManifestEntry>();
+    batches.add(ExportManifests.v2Entry(bundleKey, first));
+    for (int batchNum = 2; batchNum <= batchSize; batchNum++) {
+      var batchKey = bundleKey.withBatchNum(batchNum);
+      var batch = v2Cache.getIfPresent(batchKey);
+      if (batch == null) {
+        // evicted, the export is built again
+        return false;
+      }
+      batches.add(ExportManifests.v2Entry(batchKey, batch));
+    }
+    for (var batch : batches) {
+      entries.put(bundleKey.withBatchNum(batch.getBatchNum()), batch);
+    }
+    return true;
+  }
+
+  private Void publishV1(
+      GaenBundleKey bundleKey, UTCInstant now, Map<GaenBundleKey, ExportManifestEntry> entries)
+      throws Exception {
+    long start = System.nanoTime();
+    var bundle = bundleFactory.buildV1(bundleKey, now);
+    v1Cache.put(bundleKey, bundle);
+    entries.put(bundleKey, ExportManifests.v1Entry(bundleKey, bundle));
+    v1BuildTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    return null;
+  }
+
+  private Void publishV2(
+      GaenV2BundleKey bundleKey,
+      UTCInstant now,
+      Map<GaenV2BundleKey, ExportManifestEntry> entries)
+      throws Exception {
+    long start = System.nanoTime();
+    var batches = bundleFactory.buildV2Batches(bundleKey, now);
+    v2Cache.putAll(batches);
+    for (var batch : batches.entrySet()) {
+      entries.put(batch.getKey(), ExportManifests.v2Entry(batch.getKey(), batch.getValue()));
+    }
+    v2BuildTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    return null;
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+}
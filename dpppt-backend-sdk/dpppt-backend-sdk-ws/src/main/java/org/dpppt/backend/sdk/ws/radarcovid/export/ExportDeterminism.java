@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Derives the shuffle of an export bundle from a secret shared by all nodes and the parameters of
+ * the bundle. Together with deterministic signatures every node emits the same bytes for the same
+ * bundle, while the order of the keys still tells the clients nothing about their arrival.
+ */
+public class ExportDeterminism {
+
+  private static final String HMAC_ALGORITHM = "HmacSHA256";
+  private static final String SEPARATOR = "|";
+
+  private final SecretKeySpec secret;
+
+  public ExportDeterminism(String secret) {
+    if (secret == null || secret.isBlank()) {
+      throw new IllegalArgumentException("deterministic exports need a shared secret");
+    }
+    this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+  }
+
+  /** @return the random for the shuffle of the given V1 bundle */
+  public Random shuffleRandom(GaenBundleKey bundleKey) {
+    return random(
+        "v1",
+        bundleKey.getKeyDate(),
+        bundleKey.getPublishedAfter(),
+        bundleKey.getPublishedUntil().getTimestamp());
+  }
+
+  /** @return the random for the shuffle of the given V2 bundle */
+  public Random shuffleRandom(GaenV2BundleKey bundleKey) {
+    return random(
+        "v2",
+        bundleKey.getKeysSince().getTimestamp(),
+        bundleKey.getPublishedUntil().getTimestamp(),
+        String.join(",", bundleKey.getVisitedCountries()),
+        String.join(",", bundleKey.getOriginCountries()));
+  }
+
+  /** @return a seed derived from the secret for the given purpose, e.g. to generate fake keys */
+  public byte[] seed(String purpose) {
+    return hmac(purpose);
+  }
+
+  private Random random(Object... context) {
+    var parts = new StringBuilder();
+    for (var part : context) {
+      if (parts.length() > 0) {
+        parts.append(SEPARATOR);
+      }
+      parts.append(part);
+    }
+    return new Random(ByteBuffer.wrap(hmac(parts.toString())).getLong());
+  }
+
+  private byte[] hmac(String message) {
+    try {
+      var mac = Mac.getInstance(HMAC_ALGORITHM);
+      mac.init(secret);
+      return mac.doFinal(message.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Optional;
+import org.apache.commons.codec.binary.Hex;
+import org.dpppt.backend.sdk.model.gaen.ExportManifest;
+import org.dpppt.backend.sdk.model.gaen.ExportManifestEntry;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+
+/**
+ * The manifests of the exports of the current release bucket. The {@link ExportBundlePublisher}
+ * records an entry for every bundle it builds or finds in the caches, and publishes the manifests
+ * once all bundles of the bucket are available. So the key counts, sizes and hashes come from the
+ * bundles themselves and the database is not queried for them. The hash of an entry is the one of
+ * the {@link ProtoSignatureWrapper#getETag() ETag} of its bundle, which only depends on the keys,
+ * so it is the same on every node and for every rebuild of the bundle.
+ *
+ * <p>The manifests are kept in memory on each node. From a bucket boundary until the publisher of
+ * a node completed the new bucket, the node still has the manifest of the previous bucket, see
+ * {@link #getLatestV1}.
+ */
+public class ExportManifests {
+
+  private static final String V1_EXPOSED = "/v1/gaen/exposed";
+  private static final String V2_EXPOSED = "/v2/gaen/exposed";
+
+  /** Orders the V1 entries by key date, the entry without publishedafter first. */
+  public static final Comparator<GaenBundleKey> V1_ORDER =
+      Comparator.comparingLong(GaenBundleKey::getKeyDate)
+          .thenComparingLong(GaenBundleKey::getPublishedAfter);
+
+  /** Orders the V2 entries by lastKeyBundleTag and batch. */
+  public static final Comparator<GaenV2BundleKey> V2_ORDER =
+      Comparator.<GaenV2BundleKey>comparingLong(key -> key.getKeysSince().getTimestamp())
+          .thenComparingInt(GaenV2BundleKey::getBatchNum);
+
+  /** The publisher runs every minute, a node without any manifest has one after its next run. */
+  public static final Duration RETRY_AFTER = Duration.ofMinutes(1);
+
+  private volatile ExportManifest v1;
+  private volatile ExportManifest v2;
+
+  public void publishV1(UTCInstant publishedUntil, Collection<ExportManifestEntry> entries) {
+    v1 = manifest(publishedUntil, entries);
+  }
+
+  public void publishV2(UTCInstant publishedUntil, Collection<ExportManifestEntry> entries) {
+    v2 = manifest(publishedUntil, entries);
+  }
+
+  /** @return the V1 manifest, if it was published for the given release bucket */
+  public Optional<ExportManifest> getV1(UTCInstant publishedUntil) {
+    return forBucket(v1, publishedUntil);
+  }
+
+  /** @return the V2 manifest, if it was published for the given release bucket */
+  public Optional<ExportManifest> getV2(UTCInstant publishedUntil) {
+    return forBucket(v2, publishedUntil);
+  }
+
+  /**
+   * @return the V1 manifest of the given release bucket or, until it is published, the one of the
+   *     previous bucket
+   */
+  public Optional<ExportManifest> getLatestV1(
+      UTCInstant publishedUntil, Duration releaseBucketDuration) {
+    return latest(v1, publishedUntil, releaseBucketDuration);
+  }
+
+  /**
+   * @return the V2 manifest of the given release bucket or, until it is published, the one of the
+   *     previous bucket
+   */
+  public Optional<ExportManifest> getLatestV2(
+      UTCInstant publishedUntil, Duration releaseBucketDuration) {
+    return latest(v2, publishedUntil, releaseBucketDuration);
+  }
+
+  /**
+   * The ETag is derived from the bucket and the entries, so every node which published the same
+   * exports sends the same ETag for its manifest.
+   *
+   * @return the quoted, strong ETag of the manifest
+   */
+  public static String getETag(ExportManifest manifest) {
+    var content = new StringBuilder().append(manifest.getPublishedUntil());
+    for (ExportManifestEntry entry : manifest.getEntries()) {
+      content
+          .append('\n')
+          .append(entry.getUrl())
+          .append(' ')
+          .append(entry.getKeyCount())
+          .append(' ')
+          .append(entry.getSize())
+          .append(' ')
+          .append(entry.getHash())
+          .append(' ')
+          .append(entry.getBatchNum())
+          .append(' ')
+          .append(entry.getBatchSize());
+    }
+    try {
+      byte[] hash =
+          MessageDigest.getInstance("SHA-256")
+              .digest(content.toString().getBytes(StandardCharsets.UTF_8));
+      return "\"" + Hex.encodeHexString(hash) + "\"";
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public static ExportManifestEntry v1Entry(
+      GaenBundleKey bundleKey, Optional<ProtoSignatureWrapper> bundle) {
+    var url = new StringBuilder(V1_EXPOSED).append('/').append(bundleKey.getKeyDate());
+    if (bundleKey.getPublishedAfter() != 0L) {
+      url.append("?publishedafter=").append(bundleKey.getPublishedAfter());
+    }
+    return entry(url.toString(), bundle, 1);
+  }
+
+  /** @param bundleKey the key of the batch, the entry of an export without keys is batch 1 */
+  public static ExportManifestEntry v2Entry(
+      GaenV2BundleKey bundleKey, Optional<ProtoSignatureWrapper> bundle) {
+    var url =
+        new StringBuilder(V2_EXPOSED)
+            .append("?lastKeyBundleTag=")
+            .append(bundleKey.getKeysSince().getTimestamp());
+    if (bundleKey.getBatchNum() > 1) {
+      url.append("&batchNum=").append(bundleKey.getBatchNum());
+    }
+    return entry(url.toString(), bundle, bundleKey.getBatchNum());
+  }
+
+  private static ExportManifestEntry entry(
+      String url, Optional<ProtoSignatureWrapper> bundle, int batchNum) {
+    var entry = new ExportManifestEntry().setUrl(url);
+    if (bundle.isEmpty()) {
+      return entry.setKeyCount(0).setSize(0L).setBatchNum(batchNum).setBatchSize(1);
+    }
+    var payload = bundle.get();
+    return entry
+        .setKeyCount(payload.getKeyCount() >= 0 ? payload.getKeyCount() : null)
+        .setSize(payload.getSize())
+        // the ETag without its quotes
+        .setHash(Hex.encodeHexString(payload.getHash()))
+        .setBatchNum(payload.getBatchNum())
+        .setBatchSize(payload.getBatchSize());
+  }
+
+  private static ExportManifest manifest(
+      UTCInstant publishedUntil, Collection<ExportManifestEntry> entries) {
+    return new ExportManifest()
+        .setPublishedUntil(publishedUntil.getTimestamp())
+        .setEntries(new ArrayList<>(entries));
+  }
+
+  private static Optional<ExportManifest> forBucket(
+      ExportManifest manifest, UTCInstant publishedUntil) {
+    if (manifest == null || manifest.getPublishedUntil() != publishedUntil.getTimestamp()) {
+      return Optional.empty();
+    }
+    return Optional.of(manifest);
+  }
+
+  private static Optional<ExportManifest> latest(
+      ExportManifest manifest, UTCInstant publishedUntil, Duration releaseBucketDuration) {
+    var current = forBucket(manifest, publishedUntil);
+    if (current.isPresent()) {
+      return current;
+    }
+    return forBucket(manifest, publishedUntil.minus(releaseBucketDuration));
+  }
+}
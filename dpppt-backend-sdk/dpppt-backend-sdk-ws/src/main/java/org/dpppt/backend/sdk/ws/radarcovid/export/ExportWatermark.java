@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.dpppt.backend.sdk.data.gaen.GAENDataService;
+import org.dpppt.backend.sdk.data.gaen.GaenKeyPublication;
+import org.dpppt.backend.sdk.data.gaen.GaenKeyWatermark;
+import org.dpppt.backend.sdk.data.gaen.KeyPublicationListener;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Knows on this node when the keys in the database were last released, so that an export request
+ * which has nothing new is answered without reading the keys.
+ *
+ * <p>The latest received_at and publish time before the start of the current release bucket are
+ * read by {@link #refresh()} on a short interval, with one aggregate query. Keys inserted by this
+ * node are added by {@link #inserted} right away. A V2 export is empty if the latest publish time
+ * lies before {@code keysSince}, a V1 export if the latest received_at lies before {@code
+ * publishedAfter}. Both ignore the other filters of the query, so an export may still turn out
+ * empty, but never the other way round.
+ *
+ * <p>Uploaded keys are received at the end of the current release bucket and released in the next
+ * one at the earliest. So the times are only used for a release bucket if they were read after it
+ * started, when all keys it releases were committed by every node. Until then the export is built
+ * from the database as before.
+ */
+public class ExportWatermark implements KeyPublicationListener {
+
+  private static final Logger logger = LoggerFactory.getLogger(ExportWatermark.class);
+
+  // uploads started before the bucket moved may commit a little later
+  private static final Duration COMMIT_GRACE = Duration.ofSeconds(30);
+
+  private final GAENDataService dataService;
+  private final boolean enabled;
+  private final Duration releaseBucketDuration;
+  private volatile Latest latest;
+  // the inserts while a refresh reads the times, which it may not see
+  private List<GaenKeyPublication> insertedDuringRefresh;
+
+  public ExportWatermark(
+      GAENDataService dataService, boolean enabled, Duration releaseBucketDuration) {
+    this.dataService = dataService;
+    this.enabled = enabled;
+    this.releaseBucketDuration = releaseBucketDuration;
+  }
+
+  /** @return an instance which only detects requests for the current release bucket */
+  public static ExportWatermark disabled() {
+    return new ExportWatermark(null, false, Duration.ZERO);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Reads the latest times of the keys released up to the current release bucket. */
+  public void refresh() {
+    if (!enabled) {
+      return;
+    }
+    var readAt = UTCInstant.now();
+    var until = readAt.roundToBucketStart(releaseBucketDuration);
+    synchronized (this) {
+      insertedDuringRefresh = new ArrayList<>();
+    }
+    GaenKeyWatermark read;
+    try {
+      read = dataService.getKeyWatermark(until);
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        insertedDuringRefresh = null;
+      }
+      throw e;
+    }
+    logger.debug(
+        "Latest key received at {}, published at {}",
+        read.getLatestReceivedAt(),
+        read.getLatestPublishAt());
+    synchronized (this) {
+      latest = new Latest(readAt, until.getTimestamp(), read).with(insertedDuringRefresh);
+      insertedDuringRefresh = null;
+    }
+  }
+
+  /**
+   * Adds the times of keys inserted by this node, so that they do not have to wait for the next
+   * {@link #refresh()}. Adding times of keys which are rolled back later is safe, they only make an
+   * export be built from the database.
+   */
+  @Override
+  public synchronized void inserted(List<GaenKeyPublication> inserted) {
+    if (!enabled) {
+      return;
+    }
+    if (insertedDuringRefresh != null) {
+      insertedDuringRefresh.addAll(inserted);
+    }
+    if (latest != null) {
+      latest = latest.with(inserted);
+    }
+  }
+
+  /**
+   * @return true if the V2 export certainly contains no keys, false if it has to be built to know
+   */
+  public boolean isEmpty(GaenV2BundleKey bundleKey) {
+    var since = bundleKey.getKeysSince().getTimestamp();
+    var until = bundleKey.getPublishedUntil().getTimestamp();
+    if (since >= until) {
+      // the client already has every released key
+      return true;
+    }
+    var current = currentFor(bundleKey.getPublishedUntil());
+    return current != null && current.publishAt < since;
+  }
+
+  /**
+   * @return true if the V1 export certainly contains no real keys, false if it has to be built to
+   *     know
+   */
+  public boolean isEmpty(GaenBundleKey bundleKey) {
+    var current = currentFor(bundleKey.getPublishedUntil());
+    return current != null && current.receivedAt < bundleKey.getPublishedAfter();
+  }
+
+  private Latest currentFor(UTCInstant publishedUntil) {
+    var current = latest;
+    if (current == null
+        || current.readAt.isBeforeEpochMillisOf(publishedUntil.plus(COMMIT_GRACE))
+        || current.until < publishedUntil.getTimestamp()) {
+      return null;
+    }
+    return current;
+  }
+
+  private static class Latest {
+    private final UTCInstant readAt;
+    // the times read lie before this
+    private final long until;
+    // Long.MIN_VALUE if there is no key
+    private final long receivedAt;
+    private final long publishAt;
+
+    Latest(UTCInstant readAt, long until, GaenKeyWatermark read) {
+      this(
+          readAt,
+          until,
+          timestampOf(read.getLatestReceivedAt()),
+          timestampOf(read.getLatestPublishAt()));
+    }
+
+    private Latest(UTCInstant readAt, long until, long receivedAt, long publishAt) {
+      this.readAt = readAt;
+      this.until = until;
+      this.receivedAt = receivedAt;
+      this.publishAt = publishAt;
+    }
+
+    Latest with(List<GaenKeyPublication> rows) {
+      var nextReceivedAt = receivedAt;
+      var nextPublishAt = publishAt;
+      for (var row : rows) {
+        // keys released later cannot be in an export answered from these times
+        var rowReceivedAt = row.getReceivedAt().getTimestamp();
+        if (rowReceivedAt < until) {
+          nextReceivedAt = Math.max(nextReceivedAt, rowReceivedAt);
+        }
+        var rowPublishAt = row.getPublishAt().getTimestamp();
+        if (rowPublishAt < until) {
+          nextPublishAt = Math.max(nextPublishAt, rowPublishAt);
+        }
+      }
+      return new Latest(readAt, until, nextReceivedAt, nextPublishAt);
+    }
+
+    private static long timestampOf(UTCInstant instant) {
+      return instant == null ? Long.MIN_VALUE : instant.getTimestamp();
+    }
+  }
+}
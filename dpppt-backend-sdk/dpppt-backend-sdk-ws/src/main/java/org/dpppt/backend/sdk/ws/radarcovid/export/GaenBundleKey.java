@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import java.util.Objects;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+
+/** Cache key of a bundle served by `/v1/gaen/exposed/{keyDate}`. */
+public class GaenBundleKey implements ExportBundleKey {
+
+  private final long keyDate;
+  private final long publishedAfter;
+  private final UTCInstant publishedUntil;
+
+  /**
+   * @param keyDate the requested key date
+   * @param publishedAfter the requested publishedafter, `null` is treated the same as epoch
+   * @param publishedUntil the start of the current release bucket
+   */
+  public GaenBundleKey(UTCInstant keyDate, Long publishedAfter, UTCInstant publishedUntil) {
+    this.keyDate = keyDate.getTimestamp();
+    this.publishedAfter = publishedAfter == null ? 0L : publishedAfter;
+    this.publishedUntil = publishedUntil;
+  }
+
+  public long getKeyDate() {
+    return keyDate;
+  }
+
+  public long getPublishedAfter() {
+    return publishedAfter;
+  }
+
+  @Override
+  public UTCInstant getPublishedUntil() {
+    return publishedUntil;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    GaenBundleKey that = (GaenBundleKey) o;
+    return keyDate == that.keyDate
+        && publishedAfter == that.publishedAfter
+        && publishedUntil.getTimestamp() == that.publishedUntil.getTimestamp();
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(keyDate, publishedAfter, publishedUntil.getTimestamp());
+  }
+
+  @Override
+  public String toString() {
+    return "GaenBundleKey{keyDate="
+        + keyDate
+        + ", publishedAfter="
+        + publishedAfter
+        + ", publishedUntil="
+        + publishedUntil.getTimestamp()
+        + "}";
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import org.dpppt.backend.sdk.data.gaen.FakeKeyService;
+import org.dpppt.backend.sdk.data.gaen.GAENDataService;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.security.signature.ExportKeyRecords;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+
+/**
+ * Builds the signed export bundles for the V1 and V2 download endpoints. Used by the controllers
+ * on a cache miss and by the {@link ExportBundlePublisher} to pre-build the bundles. With {@link
+ * SharedExportBundles}, a bundle already built by another node is read instead. Concurrent
+ * requests for the same bundle are coalesced by the {@link ExportBundleCache} or the {@link
+ * BundleStore} in front of the factory. Exports which certainly have no keys are answered without
+ * the database, see {@link ExportWatermark}.
+ */
+public class GaenExportBundleFactory {
+
+  private final GAENDataService dataService;
+  private final FakeKeyService fakeKeyService;
+  private final ProtoSignature gaenSigner;
+  private final ExportDeterminism determinism;
+  private final int maxKeysPerBatch;
+  private final SharedExportBundles sharedBundles;
+  private final ExportWatermark watermark;
+
+  /**
+   * @param determinism if not null, the keys are shuffled in an order derived from the bundle, so
+   *     that every node builds the same bundle
+   * @param maxKeysPerBatch if greater than 0, V2 exports with more keys are split into batches of
+   *     at most this many keys
+   * @param sharedBundles the bundles built by any node of the cluster, see {@link
+   *     SharedExportBundles#disabled()}
+   * @param watermark the latest times of the keys, to skip exports without keys, see {@link
+   *     ExportWatermark#disabled()}
+   */
+  public GaenExportBundleFactory(
+      GAENDataService dataService,
+      FakeKeyService fakeKeyService,
+      ProtoSignature gaenSigner,
+      ExportDeterminism determinism,
+      int maxKeysPerBatch,
+      SharedExportBundles sharedBundles,
+      ExportWatermark watermark) {
+    this.dataService = dataService;
+    this.fakeKeyService = fakeKeyService;
+    this.gaenSigner = gaenSigner;
+    this.determinism = determinism;
+    this.maxKeysPerBatch = maxKeysPerBatch;
+    this.sharedBundles = sharedBundles;
+    this.watermark = watermark;
+  }
+
+  /**
+   * Builds the bundle served by {@code /v1/gaen/exposed/{keyDate}}.
+   *
+   * @param bundleKey the requested bundle
+   * @param now the current time, must lie in the bucket starting at {@code publishedUntil}
+   * @return the signed bundle, or an empty optional if there are no keys
+   */
+  public Optional<ProtoSignatureWrapper> buildV1(GaenBundleKey bundleKey, UTCInstant now)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    if (watermark.isEmpty(bundleKey) && !hasFakeKeys(bundleKey, now)) {
+      return Optional.empty();
+    }
+    return sharedBundles.v1(bundleKey, () -> signV1(bundleKey, now)).build();
+  }
+
+  private Optional<ProtoSignatureWrapper> signV1(GaenBundleKey bundleKey, UTCInstant now)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    var keyDate = UTCInstant.ofEpochMillis(bundleKey.getKeyDate());
+    var publishedAfter = UTCInstant.ofEpochMillis(bundleKey.getPublishedAfter());
+    var exposedKeys =
+        dataService.getSortedExposedForKeyDate(
+            keyDate, publishedAfter, bundleKey.getPublishedUntil(), now);
+    exposedKeys = fakeKeyService.fillUpKeys(exposedKeys, publishedAfter, keyDate, now);
+    if (exposedKeys.isEmpty()) {
+      return Optional.empty();
+    }
+    var random = determinism != null ? determinism.shuffleRandom(bundleKey) : null;
+    return Optional.of(gaenSigner.getPayload(exposedKeys, random));
+  }
+
+  /**
+   * Builds the bundle served by {@code /v2/gaen/exposed}.
+   *
+   * @param bundleKey the requested bundle
+   * @param now the current time, must lie in the bucket starting at {@code publishedUntil}
+   * @return the signed bundle, or an empty optional if there are no keys or no such batch
+   */
+  public Optional<ProtoSignatureWrapper> buildV2(GaenV2BundleKey bundleKey, UTCInstant now)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    if (maxKeysPerBatch > 0) {
+      return buildV2Batches(bundleKey, now).get(bundleKey);
+    }
+    if (bundleKey.getBatchNum() != 1) {
+      return Optional.empty();
+    }
+    var exposedKeys = readV2Keys(bundleKey, now);
+    if (exposedKeys.isEmpty()) {
+      return Optional.empty();
+    }
+    var random = determinism != null ? determinism.shuffleRandom(bundleKey) : null;
+    return Optional.of(gaenSigner.getPayload(exposedKeys, random));
+  }
+
+  /**
+   * Builds all batches of the export the given bundle belongs to. Without a maximum number of keys
+   * per batch, this is the single bundle of {@link #buildV2(GaenV2BundleKey, UTCInstant)}.
+   *
+   * @param bundleKey any batch of the requested export
+   * @param now the current time, must lie in the bucket starting at {@code publishedUntil}
+   * @return the batches by their keys, always containing {@code bundleKey}, which is mapped to an
+   *     empty optional if there are no keys or fewer batches
+   */
+  public Map<GaenV2BundleKey, Optional<ProtoSignatureWrapper>> buildV2Batches(
+      GaenV2BundleKey bundleKey, UTCInstant now)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    if (watermark.isEmpty(bundleKey)) {
+      var batches = new HashMap<GaenV2BundleKey, Optional<ProtoSignatureWrapper>>();
+      batches.put(bundleKey, Optional.empty());
+      return batches;
+    }
+    // the batches are built and shared per export
+    var exportKey = bundleKey.withBatchNum(1);
+    var batches = sharedBundles.v2(exportKey, () -> signV2Batches(exportKey, now)).build();
+    if (!batches.containsKey(bundleKey)) {
+      // the result may be shared with other nodes
+      batches = new HashMap<>(batches);
+      batches.put(bundleKey, Optional.empty());
+    }
+    return batches;
+  }
+
+  private Map<GaenV2BundleKey, Optional<ProtoSignatureWrapper>> signV2Batches(
+      GaenV2BundleKey bundleKey, UTCInstant now)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    var batches = new HashMap<GaenV2BundleKey, Optional<ProtoSignatureWrapper>>();
+    if (maxKeysPerBatch <= 0) {
+      batches.put(bundleKey, buildV2(bundleKey, now));
+      return batches;
+    }
+    var exposedKeys = readV2Keys(bundleKey, now);
+    if (!exposedKeys.isEmpty()) {
+      // the shuffle is derived from the export, not from the batch
+      var random = determinism != null ? determinism.shuffleRandom(bundleKey) : null;
+      var payloads = gaenSigner.getPayloadBatches(exposedKeys, random, maxKeysPerBatch);
+      for (int i = 0; i < payloads.size(); i++) {
+        batches.put(bundleKey.withBatchNum(i + 1), Optional.of(payloads.get(i)));
+      }
+    }
+    batches.putIfAbsent(bundleKey, Optional.empty());
+    return batches;
+  }
+
+  private boolean hasFakeKeys(GaenBundleKey bundleKey, UTCInstant now) {
+    var fakeKeys =
+        fakeKeyService.fillUpKeys(
+            new ArrayList<>(),
+            UTCInstant.ofEpochMillis(bundleKey.getPublishedAfter()),
+            UTCInstant.ofEpochMillis(bundleKey.getKeyDate()),
+            now);
+    return !fakeKeys.isEmpty();
+  }
+
+  private ExportKeyRecords readV2Keys(GaenV2BundleKey bundleKey, UTCInstant now)
+      throws IOException {
+    // the keys are encoded in parallel chunks while the rows are read
+    var exposedKeys = ExportKeyRecords.chunked(true);
+    dataService.streamExposedKeysSince(
+        bundleKey.getKeysSince(),
+        now,
+        bundleKey.getVisitedCountries(),
+        bundleKey.getOriginCountries(),
+        exposedKeys);
+    return exposedKeys.finish();
+  }
+}
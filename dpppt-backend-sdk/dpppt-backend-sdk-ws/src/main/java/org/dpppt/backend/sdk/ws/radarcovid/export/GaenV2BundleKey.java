@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.TreeSet;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+
+/**
+ * Cache key of a bundle served by {@code /v2/gaen/exposed}. The country filters are kept in a
+ * canonical form (sorted, upper-cased, without duplicates, {@code null} being the same as an empty
+ * list), so that equivalent requests share the same bundle. If the export is split into batches,
+ * every batch has its own key, see {@link #withBatchNum(int)}.
+ */
+public class GaenV2BundleKey implements ExportBundleKey {
+
+  private final long keysSince;
+  private final List<String> visitedCountries;
+  private final List<String> originCountries;
+  private final UTCInstant publishedUntil;
+  private final int batchNum;
+
+  /**
+   * @param keysSince the effective lastKeyBundleTag of the request
+   * @param visitedCountries the requested visited countries, may be {@code null}
+   * @param originCountries the requested origin countries, may be {@code null}
+   * @param publishedUntil the start of the current release bucket
+   */
+  public GaenV2BundleKey(
+      UTCInstant keysSince,
+      List<String> visitedCountries,
+      List<String> originCountries,
+      UTCInstant publishedUntil) {
+    this.keysSince = keysSince.getTimestamp();
+    this.visitedCountries = normalizeCountries(visitedCountries);
+    this.originCountries = normalizeCountries(originCountries);
+    this.publishedUntil = publishedUntil;
+    this.batchNum = 1;
+  }
+
+  private GaenV2BundleKey(GaenV2BundleKey bundleKey, int batchNum) {
+    this.keysSince = bundleKey.keysSince;
+    this.visitedCountries = bundleKey.visitedCountries;
+    this.originCountries = bundleKey.originCountries;
+    this.publishedUntil = bundleKey.publishedUntil;
+    this.batchNum = batchNum;
+  }
+
+  /** @return the key of the given batch of the same export, batches are numbered from 1 */
+  public GaenV2BundleKey withBatchNum(int batchNum) {
+    if (batchNum < 1) {
+      throw new IllegalArgumentException("batchNum must be at least 1");
+    }
+    return new GaenV2BundleKey(this, batchNum);
+  }
+
+  static List<String> normalizeCountries(List<String> countries) {
+    if (countries == null || countries.isEmpty()) {
+      return Collections.emptyList();
+    }
+    var normalized = new TreeSet<String>();
+    for (String country : countries) {
+      if (country != null && !country.isBlank()) {
+        normalized.add(country.trim().toUpperCase(Locale.ROOT));
+      }
+    }
+    return List.copyOf(normalized);
+  }
+
+  public UTCInstant getKeysSince() {
+    return UTCInstant.ofEpochMillis(keysSince);
+  }
+
+  /** @return the canonical visited countries, empty if the request is not filtered */
+  public List<String> getVisitedCountries() {
+    return visitedCountries;
+  }
+
+  /** @return the canonical origin countries, empty if the request is not filtered */
+  public List<String> getOriginCountries() {
+    return originCountries;
+  }
+
+  @Override
+  public UTCInstant getPublishedUntil() {
+    return publishedUntil;
+  }
+
+  public int getBatchNum() {
+    return batchNum;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    GaenV2BundleKey that = (GaenV2BundleKey) o;
+    return keysSince == that.keysSince
+        && batchNum == that.batchNum
+        && publishedUntil.getTimestamp() == that.publishedUntil.getTimestamp()
+        && visitedCountries.equals(that.visitedCountries)
+        && originCountries.equals(that.originCountries);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(
+        keysSince, visitedCountries, originCountries, publishedUntil.getTimestamp(), batchNum);
+  }
+
+  @Override
+  public String toString() {
+    return "GaenV2BundleKey{keysSince="
+        + keysSince
+        + ", visitedCountries="
+        + visitedCountries
+        + ", originCountries="
+        + originCountries
+        + ", publishedUntil="
+        + publishedUntil.getTimestamp()
+        + ", batchNum="
+        + batchNum
+        + "}";
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import net.javacrumbs.shedlock.core.LockConfiguration;
+import net.javacrumbs.shedlock.core.LockProvider;
+import org.apache.commons.codec.binary.Hex;
+import org.dpppt.backend.sdk.data.gaen.GaenBundleDataService;
+import org.dpppt.backend.sdk.data.gaen.StoredGaenBundle;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DuplicateKeyException;
+
+/**
+ * Shares the built export bundles between the nodes through {@code t_gaen_bundle}, so that each
+ * export is built and signed once per release bucket instead of once per node.
+ *
+ * <p>The builders of the controllers and of the {@link ExportBundlePublisher} are wrapped: a stored
+ * export is read from the database. Otherwise the node holding the ShedLock lock of the export
+ * builds and stores it, while the others poll the table. If the lock is not released within {@code
+ * buildTimeout}, a waiting node builds the export itself without storing it. The bundles read are
+ * kept in the local {@link ExportBundleCache} as before.
+ */
+public class SharedExportBundles {
+
+  private static final Logger logger = LoggerFactory.getLogger(SharedExportBundles.class);
+
+  private static final Duration POLL_INTERVAL = Duration.ofMillis(200);
+  // the lock names of ShedLock are limited to 64 characters
+  private static final int LOCK_ID_LENGTH = 40;
+
+  private final GaenBundleDataService dataService;
+  private final LockProvider lockProvider;
+  private final boolean enabled;
+  private final Duration buildTimeout;
+
+  public SharedExportBundles(
+      GaenBundleDataService dataService,
+      LockProvider lockProvider,
+      boolean enabled,
+      Duration buildTimeout) {
+    this.dataService = dataService;
+    this.lockProvider = lockProvider;
+    this.enabled = enabled;
+    this.buildTimeout = buildTimeout;
+  }
+
+  /** @return an instance which passes the builders through */
+  public static SharedExportBundles disabled() {
+    return new SharedExportBundles(null, null, false, Duration.ZERO);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** @return a builder reading the V1 bundle from the shared table or storing it there */
+  public ExportBundleBuilder v1(GaenBundleKey bundleKey, ExportBundleBuilder builder) {
+    if (!enabled) {
+      return builder;
+    }
+    return () -> {
+      var stored =
+          getOrBuild(
+              "v1:" + bundleKey,
+              bundleKey.getPublishedUntil(),
+              () -> List.of(toStored(builder.build(), 1, 1)));
+      return toWrapper(stored.get(0));
+    };
+  }
+
+  /** @return a builder reading all V2 batches from the shared table or storing them there */
+  public ExportBatchesBuilder<GaenV2BundleKey> v2(
+      GaenV2BundleKey bundleKey, ExportBatchesBuilder<GaenV2BundleKey> builder) {
+    if (!enabled) {
+      return builder;
+    }
+    var exportKey = bundleKey.withBatchNum(1);
+    return () -> {
+      var stored =
+          getOrBuild(
+              "v2:" + exportKey,
+              exportKey.getPublishedUntil(),
+              () -> {
+                var batches = new ArrayList<StoredGaenBundle>();
+                for (var batch : builder.build().entrySet()) {
+                  var payload = batch.getValue();
+                  if (payload.isPresent()) {
+                    batches.add(
+                        toStored(
+                            payload,
+                            payload.get().getBatchNum(),
+                            payload.get().getBatchSize()));
+                  }
+                }
+                if (batches.isEmpty()) {
+                  batches.add(StoredGaenBundle.empty());
+                }
+                batches.sort(Comparator.comparingInt(StoredGaenBundle::getBatchNum));
+                return batches;
+              });
+      var batches = new HashMap<GaenV2BundleKey, Optional<ProtoSignatureWrapper>>();
+      for (var batch : stored) {
+        batches.put(exportKey.withBatchNum(batch.getBatchNum()), toWrapper(batch));
+      }
+      batches.putIfAbsent(bundleKey, Optional.empty());
+      return batches;
+    };
+  }
+
+  /** Removes the bundles of the release buckets before the current one. */
+  public void cleanUp(UTCInstant publishedUntil) {
+    if (enabled) {
+      dataService.cleanDB(publishedUntil);
+    }
+  }
+
+  private List<StoredGaenBundle> getOrBuild(
+      String export, UTCInstant publishedUntil, StoredBundlesBuilder builder)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    // the export includes its release bucket, so the id changes with every bucket
+    var exportId = sha256Hex(export);
+    var stored = dataService.getBundles(exportId);
+    if (!stored.isEmpty()) {
+      return stored;
+    }
+
+    var lockConfiguration =
+        new LockConfiguration(
+            Instant.now(),
+            "gaenBundle-" + exportId.substring(0, LOCK_ID_LENGTH),
+            buildTimeout,
+            Duration.ZERO);
+    long deadline = System.nanoTime() + buildTimeout.toNanos();
+    while (true) {
+      var lock = lockProvider.lock(lockConfiguration);
+      if (lock.isPresent()) {
+        try {
+          // the previous holder of the lock may just have stored it
+          stored = dataService.getBundles(exportId);
+          if (!stored.isEmpty()) {
+            return stored;
+          }
+          var built = builder.build();
+          try {
+            dataService.insertBundles(exportId, publishedUntil, built);
+          } catch (DuplicateKeyException e) {
+            logger.debug("Export {} was stored concurrently", export);
+          }
+          return built;
+        } finally {
+          lock.get().unlock();
+        }
+      }
+
+      // another node builds the export
+      if (System.nanoTime() - deadline > 0) {
+        logger.warn("Export {} was not stored in time, building it locally", export);
+        return builder.build();
+      }
+      try {
+        Thread.sleep(POLL_INTERVAL.toMillis());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for export " + export, e);
+      }
+      stored = dataService.getBundles(exportId);
+      if (!stored.isEmpty()) {
+        return stored;
+      }
+    }
+  }
+
+  private static StoredGaenBundle toStored(
+      Optional<ProtoSignatureWrapper> payload, int batchNum, int batchSize) {
+    if (payload.isEmpty()) {
+      return StoredGaenBundle.empty();
+    }
+    return new StoredGaenBundle(
+        batchNum,
+        batchSize,
+        payload.get().getHash(),
+        payload.get().getZip(),
+        payload.get().getKeyCount());
+  }
+
+  private static Optional<ProtoSignatureWrapper> toWrapper(StoredGaenBundle stored) {
+    if (stored.isEmpty()) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        new ProtoSignatureWrapper(
+            stored.getHash(),
+            stored.getZip(),
+            stored.getBatchNum(),
+            stored.getBatchSize(),
+            stored.getKeyCount()));
+  }
+
+  private static String sha256Hex(String value) {
+    try {
+      var digest = MessageDigest.getInstance("SHA-256");
+      return Hex.encodeHexString(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @FunctionalInterface
+  private interface StoredBundlesBuilder {
+    List<StoredGaenBundle> build()
+        throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException;
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Coalesces concurrent builds of the same bundle on this node. When the release bucket moves,
+ * many requests for the same bundle arrive before it is stored: the first one builds it, the
+ * others wait for its result instead of querying the database and signing again.
+ *
+ * <p>A waiting request never builds the bundle itself, it gets the result or the failure of the
+ * running build. Used by the {@link BundleStore}, the {@link ExportBundleCache} coalesces the
+ * builds of its entries by itself.
+ */
+public class SingleFlight<K, V> {
+
+  private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * Builds the value for the given key, or waits for the build already running for it.
+   *
+   * @param key the canonical key of the build
+   * @param builder builds the value if no build is running for the key
+   * @return the value built by this or by a concurrent call
+   */
+  public V get(K key, Builder<V> builder)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    var flight = new CompletableFuture<V>();
+    var running = inFlight.putIfAbsent(key, flight);
+    if (running == null) {
+      try {
+        V value = builder.build();
+        flight.complete(value);
+        return value;
+      } catch (Throwable e) {
+        flight.completeExceptionally(e);
+        throw e;
+      } finally {
+        inFlight.remove(key, flight);
+      }
+    }
+
+    try {
+      return running.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for " + key, e);
+    } catch (ExecutionException e) {
+      // the build of the first request failed, which is reported to every waiting request
+      var cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof InvalidKeyException) {
+        throw (InvalidKeyException) cause;
+      } else if (cause instanceof SignatureException) {
+        throw (SignatureException) cause;
+      } else if (cause instanceof NoSuchAlgorithmException) {
+        throw (NoSuchAlgorithmException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  /** @return the number of builds currently running */
+  public int inFlight() {
+    return inFlight.size();
+  }
+
+  @FunctionalInterface
+  public interface Builder<V> {
+    V build()
+        throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException;
+  }
+}
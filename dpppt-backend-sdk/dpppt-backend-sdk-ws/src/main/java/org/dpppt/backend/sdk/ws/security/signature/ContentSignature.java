@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.security.signature;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import java.security.KeyPair;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+
+/**
+ * Creates the JWT of the Signature header over the SHA-256 of a response body and its protected
+ * headers. Used by the {@link SignatureResponseWrapper} and for responses written outside of a
+ * request, e.g. by a static export.
+ */
+public class ContentSignature {
+
+  private static final String ISSUER_DP3T = "dp3t";
+  private static final String CLAIM_HASH_ALG = "hash-alg";
+  private static final String CLAIM_CONTENT_HASH = "content-hash";
+
+  private final KeyPair pair;
+  // after number of days days the list and hence the signature is invalid
+  private final int retentionPeriod;
+  private final List<String> protectedHeaders;
+
+  public ContentSignature(KeyPair pair, int retentionDays, List<String> protectedHeaders) {
+    this.pair = pair;
+    this.retentionPeriod = retentionDays;
+    this.protectedHeaders = protectedHeaders;
+  }
+
+  /**
+   * @param hash the SHA-256 of the body
+   * @param headers returns the value of a response header, or null if it is not set
+   * @return the value of the Signature header
+   */
+  public String sign(byte[] hash, Function<String, String> headers) {
+    return sign(hash, headers, UTCInstant.now());
+  }
+
+  /**
+   * Signs a body ahead of the response, e.g. a bundle stored as a file. The signature can be used
+   * for every response with the same protected headers, see {@link #isValidFor}.
+   *
+   * @param hash the SHA-256 of the body
+   * @param headers returns the value of a response header, or null if it is not set
+   * @param issuedAt when the body was published, unless the protected headers contain the batch
+   *     release time
+   */
+  public Precomputed precompute(
+      byte[] hash, Function<String, String> headers, UTCInstant issuedAt) {
+    return new Precomputed(sign(hash, headers, issuedAt), protectedHeaderValues(headers));
+  }
+
+  /** @return whether the protected headers of the response are the ones signed ahead */
+  public boolean isValidFor(Precomputed signature, Function<String, String> headers) {
+    return signature.getProtectedHeaders().equals(protectedHeaderValues(headers));
+  }
+
+  private String sign(byte[] hash, Function<String, String> headers, UTCInstant issuedAt) {
+    Claims claims = Jwts.claims();
+    claims.put(CLAIM_CONTENT_HASH, Base64.getEncoder().encodeToString(hash));
+    claims.put(CLAIM_HASH_ALG, "sha-256");
+
+    claims.setIssuer(ISSUER_DP3T);
+    claims.setIssuedAt(issuedAt.getDate());
+    claims.setExpiration(issuedAt.plusDays(retentionPeriod).getDate());
+    for (var header : protectedHeaderValues(headers).entrySet()) {
+      String normalizedHeader = header.getKey().replace("x-", "");
+      claims.put(normalizedHeader, header.getValue());
+      if (normalizedHeader.equals("batch-release-time")) {
+        var issueDate = UTCInstant.ofEpochMillis(Long.parseLong(header.getValue()));
+        claims.setIssuedAt(issueDate.getDate());
+        claims.setExpiration(issueDate.plusDays(retentionPeriod).getDate());
+      }
+    }
+    return Jwts.builder().setClaims(claims).signWith(pair.getPrivate()).compact();
+  }
+
+  /** @return the protected headers which are set, by their lower case name */
+  private Map<String, String> protectedHeaderValues(Function<String, String> headers) {
+    Map<String, String> values = new HashMap<>();
+    for (String header : protectedHeaders) {
+      String headerValue = headers.apply(header);
+      if (headerValue != null) {
+        values.put(header.toLowerCase(), headerValue);
+      }
+    }
+    return values;
+  }
+
+  /** A Signature header created before the response, with the protected headers it covers. */
+  public static class Precomputed {
+    private final String value;
+    private final Map<String, String> protectedHeaders;
+
+    public Precomputed(String value, Map<String, String> protectedHeaders) {
+      this.value = value;
+      this.protectedHeaders = Map.copyOf(protectedHeaders);
+    }
+
+    /** @return the value of the Signature header */
+    public String getValue() {
+      return value;
+    }
+
+    /** @return the signed protected headers, by their lower case name */
+    public Map<String, String> getProtectedHeaders() {
+      return protectedHeaders;
+    }
+  }
+}
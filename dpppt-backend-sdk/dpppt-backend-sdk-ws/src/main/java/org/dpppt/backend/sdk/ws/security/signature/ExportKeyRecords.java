@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.security.signature;
+
+import com.google.protobuf.CodedOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.dpppt.backend.sdk.data.gaen.ExposedKeyHandler;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.model.gaen.GaenKeyBatch;
+import org.dpppt.backend.sdk.model.gaen.proto.v2.TemporaryExposureKeyFormatV2.TemporaryExposureKey.ReportType;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * The keys of an export, each one already serialized as a TemporaryExposureKey message into one
+ * shared buffer. Used as the {@link ExposedKeyHandler} of a database query, the keys are encoded
+ * while the rows are read, and the export only copies the records in shuffled order.
+ *
+ * <p>The records are byte identical to the ones of the generated builders: all fields are set, so
+ * proto2 writes every one of them, in the order of their field numbers. Since the records do not
+ * depend on each other, large exports are encoded in chunks on a bounded pool and the chunks are
+ * concatenated, see {@link #chunked(boolean)}.
+ */
+public class ExportKeyRecords implements ExposedKeyHandler {
+
+  private static final int KEY_DATA_FIELD_NUMBER = 1;
+  private static final int TRANSMISSION_RISK_LEVEL_FIELD_NUMBER = 2;
+  private static final int ROLLING_START_INTERVAL_NUMBER_FIELD_NUMBER = 3;
+  private static final int ROLLING_PERIOD_FIELD_NUMBER = 4;
+  private static final int REPORT_TYPE_FIELD_NUMBER = 5;
+  private static final int DAYS_SINCE_ONSET_FIELD_NUMBER = 6;
+
+  // tag and length of key_data, which is the first field of a record
+  private static final int KEY_DATA_OFFSET = 2;
+  // key data plus a tag and a varint of at most 10 bytes for each of the other fields
+  private static final int MAX_RECORD_BYTES = KEY_DATA_OFFSET + GaenKeyBatch.KEY_LENGTH + 4 * 11;
+  private static final int DEFAULT_CAPACITY = 64;
+  // below this many keys, splitting costs more than it saves
+  static final int PARALLEL_CHUNK_KEYS = 16 * 1024;
+  // bounded, so that the cold builds of several exports do not take every core from the requests
+  private static final ExecutorService ENCODER_POOL =
+      Executors.newFixedThreadPool(
+          Math.max(1, Runtime.getRuntime().availableProcessors() / 2), encoderThreads());
+
+  private final boolean v2;
+  private byte[] records;
+  private int length;
+  // record i spans offsets[i] to offsets[i + 1]
+  private int[] offsets;
+  private int[] rollingStartNumbers;
+  private int size;
+
+  private ExportKeyRecords(boolean v2, int capacity) {
+    capacity = Math.max(capacity, 1);
+    this.v2 = v2;
+    this.records = new byte[capacity * MAX_RECORD_BYTES];
+    this.offsets = new int[capacity + 1];
+    this.rollingStartNumbers = new int[capacity];
+  }
+
+  /** @return empty records in the format of TemporaryExposureKeyFormat */
+  public static ExportKeyRecords v1() {
+    return new ExportKeyRecords(false, DEFAULT_CAPACITY);
+  }
+
+  /** @return empty records in the format of TemporaryExposureKeyFormatV2 */
+  public static ExportKeyRecords v2() {
+    return new ExportKeyRecords(true, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @return a handler encoding the streamed keys in chunks of {@value #PARALLEL_CHUNK_KEYS} keys on
+   *     the encoder pool, while the following rows are still read
+   */
+  public static Chunked chunked(boolean v2) {
+    return new Chunked(v2);
+  }
+
+  public static ExportKeyRecords of(List<GaenKey> keys, boolean v2) throws IOException {
+    return of(GaenKeyBatch.of(keys), v2);
+  }
+
+  public static ExportKeyRecords of(GaenKeyBatch keys, boolean v2) throws IOException {
+    var records = chunked(v2);
+    for (int i = 0; i < keys.size(); i++) {
+      records.handle(
+          keys.getKeyData(i),
+          keys.getRollingStartNumber(i),
+          keys.getRollingPeriod(i),
+          keys.getTransmissionRiskLevel(i),
+          keys.getReportType(i),
+          keys.getDaysSinceOnset(i));
+    }
+    return records.finish();
+  }
+
+  private static ExportKeyRecords concat(boolean v2, List<ExportKeyRecords> parts) {
+    int size = 0;
+    int length = 0;
+    for (ExportKeyRecords part : parts) {
+      size += part.size;
+      length += part.length;
+    }
+    var records = new ExportKeyRecords(v2, 0);
+    records.records = new byte[length];
+    records.offsets = new int[size + 1];
+    records.rollingStartNumbers = new int[size];
+    for (ExportKeyRecords part : parts) {
+      System.arraycopy(part.records, 0, records.records, records.length, part.length);
+      System.arraycopy(
+          part.rollingStartNumbers, 0, records.rollingStartNumbers, records.size, part.size);
+      for (int i = 1; i <= part.size; i++) {
+        records.offsets[records.size + i] = records.length + part.offsets[i];
+      }
+      records.size += part.size;
+      records.length += part.length;
+    }
+    return records;
+  }
+
+  private static CustomizableThreadFactory encoderThreads() {
+    var threads = new CustomizableThreadFactory("export-encoder-");
+    // the pool is never shut down
+    threads.setDaemon(true);
+    return threads;
+  }
+
+  @Override
+  public void handle(
+      byte[] keyData,
+      int rollingStartNumber,
+      int rollingPeriod,
+      int transmissionRiskLevel,
+      int reportType,
+      int daysSinceOnset) {
+    if (keyData.length != GaenKeyBatch.KEY_LENGTH) {
+      throw new IllegalArgumentException("key data must be " + GaenKeyBatch.KEY_LENGTH + " bytes");
+    }
+    if (v2 && ReportType.forNumber(reportType) == null) {
+      throw new IllegalArgumentException("unknown report type " + reportType);
+    }
+    ensureCapacity(size + 1);
+    var coded = CodedOutputStream.newInstance(records, length, MAX_RECORD_BYTES);
+    try {
+      coded.writeByteArray(KEY_DATA_FIELD_NUMBER, keyData);
+      if (!v2) {
+        coded.writeInt32(TRANSMISSION_RISK_LEVEL_FIELD_NUMBER, transmissionRiskLevel);
+      }
+      coded.writeInt32(ROLLING_START_INTERVAL_NUMBER_FIELD_NUMBER, rollingStartNumber);
+      coded.writeInt32(ROLLING_PERIOD_FIELD_NUMBER, rollingPeriod);
+      if (v2) {
+        coded.writeEnum(REPORT_TYPE_FIELD_NUMBER, reportType);
+        coded.writeSInt32(DAYS_SINCE_ONSET_FIELD_NUMBER, daysSinceOnset);
+      }
+    } catch (IOException e) {
+      // the buffer always has room for a record
+      throw new UncheckedIOException(e);
+    }
+    length += MAX_RECORD_BYTES - coded.spaceLeft();
+    rollingStartNumbers[size] = rollingStartNumber;
+    size++;
+    offsets[size] = length;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= rollingStartNumbers.length) {
+      return;
+    }
+    int newCapacity = Math.max(capacity, rollingStartNumbers.length * 2);
+    // the records written so far are usually shorter than the maximum
+    records = Arrays.copyOf(records, length + (newCapacity - size) * MAX_RECORD_BYTES);
+    offsets = Arrays.copyOf(offsets, newCapacity + 1);
+    rollingStartNumbers = Arrays.copyOf(rollingStartNumbers, newCapacity);
+  }
+
+  public boolean isV2() {
+    return v2;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public int getRollingStartNumber(int i) {
+    return rollingStartNumbers[i];
+  }
+
+  /** Compares the key data of the keys {@code i} and {@code j} byte by byte. */
+  public int compareKeyData(int i, int j) {
+    int from = offsets[i] + KEY_DATA_OFFSET;
+    int otherFrom = offsets[j] + KEY_DATA_OFFSET;
+    return Arrays.compare(
+        records,
+        from,
+        from + GaenKeyBatch.KEY_LENGTH,
+        records,
+        otherFrom,
+        otherFrom + GaenKeyBatch.KEY_LENGTH);
+  }
+
+  /** Compares the records of the keys {@code i} and {@code j} byte by byte. */
+  public int compareRecords(int i, int j) {
+    return Arrays.compare(records, offsets[i], offsets[i + 1], records, offsets[j], offsets[j + 1]);
+  }
+
+  /** Feeds the record of key {@code i} into {@code digest}, preceded by its length. */
+  public void updateDigest(MessageDigest digest, int i) {
+    int recordLength = offsets[i + 1] - offsets[i];
+    // a record is at most MAX_RECORD_BYTES long, which fits into one byte
+    digest.update((byte) recordLength);
+    digest.update(records, offsets[i], recordLength);
+  }
+
+  /** Writes key {@code i} as a length delimited field, e.g. as one of the keys of an export. */
+  public void writeTo(CodedOutputStream out, int fieldNumber, int i) throws IOException {
+    out.writeByteArray(fieldNumber, records, offsets[i], offsets[i + 1] - offsets[i]);
+  }
+
+  /**
+   * Collects the streamed keys into chunks. Every full chunk is encoded on the encoder pool, the
+   * last one on the calling thread in {@link #finish()}.
+   */
+  public static class Chunked implements ExposedKeyHandler {
+
+    private final boolean v2;
+    private final List<Future<ExportKeyRecords>> encoded = new ArrayList<>();
+    private Chunk chunk = new Chunk();
+
+    private Chunked(boolean v2) {
+      this.v2 = v2;
+    }
+
+    @Override
+    public void handle(
+        byte[] keyData,
+        int rollingStartNumber,
+        int rollingPeriod,
+        int transmissionRiskLevel,
+        int reportType,
+        int daysSinceOnset) {
+      chunk.add(
+          keyData,
+          rollingStartNumber,
+          rollingPeriod,
+          transmissionRiskLevel,
+          reportType,
+          daysSinceOnset);
+      if (chunk.size == PARALLEL_CHUNK_KEYS) {
+        var full = chunk;
+        encoded.add(ENCODER_POOL.submit(() -> full.encode(v2)));
+        chunk = new Chunk();
+      }
+    }
+
+    /** @return the records of all keys handled, in the order in which they were handled */
+    public ExportKeyRecords finish() throws IOException {
+      var last = chunk.encode(v2);
+      if (encoded.isEmpty()) {
+        return last;
+      }
+      var parts = new ArrayList<ExportKeyRecords>(encoded.size() + 1);
+      for (var part : encoded) {
+        parts.add(join(part));
+      }
+      parts.add(last);
+      return concat(v2, parts);
+    }
+
+    private static ExportKeyRecords join(Future<ExportKeyRecords> part) throws IOException {
+      try {
+        return part.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while encoding keys", e);
+      } catch (ExecutionException e) {
+        var cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+      }
+    }
+  }
+
+  /** The fields of up to {@value #PARALLEL_CHUNK_KEYS} keys as they were streamed. */
+  private static class Chunk {
+
+    // most exports are small, the arrays grow up to the size of a chunk
+    private byte[][] keyData = new byte[DEFAULT_CAPACITY][];
+    private int[] rollingStartNumbers = new int[DEFAULT_CAPACITY];
+    private int[] rollingPeriods = new int[DEFAULT_CAPACITY];
+    private int[] transmissionRiskLevels = new int[DEFAULT_CAPACITY];
+    private int[] reportTypes = new int[DEFAULT_CAPACITY];
+    private int[] daysSinceOnset = new int[DEFAULT_CAPACITY];
+    private int size;
+
+    private void add(
+        byte[] keyData,
+        int rollingStartNumber,
+        int rollingPeriod,
+        int transmissionRiskLevel,
+        int reportType,
+        int daysSinceOnset) {
+      if (size == this.keyData.length) {
+        int capacity = Math.min(size * 2, PARALLEL_CHUNK_KEYS);
+        this.keyData = Arrays.copyOf(this.keyData, capacity);
+        this.rollingStartNumbers = Arrays.copyOf(this.rollingStartNumbers, capacity);
+        this.rollingPeriods = Arrays.copyOf(this.rollingPeriods, capacity);
+        this.transmissionRiskLevels = Arrays.copyOf(this.transmissionRiskLevels, capacity);
+        this.reportTypes = Arrays.copyOf(this.reportTypes, capacity);
+        this.daysSinceOnset = Arrays.copyOf(this.daysSinceOnset, capacity);
+      }
+      this.keyData[size] = keyData;
+      this.rollingStartNumbers[size] = rollingStartNumber;
+      this.rollingPeriods[size] = rollingPeriod;
+      this.transmissionRiskLevels[size] = transmissionRiskLevel;
+      this.reportTypes[size] = reportType;
+      this.daysSinceOnset[size] = daysSinceOnset;
+      size++;
+    }
+
+    private ExportKeyRecords encode(boolean v2) {
+      var records = new ExportKeyRecords(v2, size);
+      for (int i = 0; i < size; i++) {
+        records.handle(
+            keyData[i],
+            rollingStartNumbers[i],
+            rollingPeriods[i],
+            transmissionRiskLevels[i],
+            reportTypes[i],
+            daysSinceOnset[i]);
+      }
+      return records;
+    }
+  }
+}
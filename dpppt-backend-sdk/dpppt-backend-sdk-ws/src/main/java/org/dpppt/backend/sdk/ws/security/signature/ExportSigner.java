@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.security.signature;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.Map;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.crypto.signers.HMacDSAKCalculator;
+import org.bouncycastle.jcajce.provider.asymmetric.util.ECUtil;
+
+/**
+ * Signs export.bin from its SHA-256 digest, so the export is hashed exactly once while it is
+ * written. Digests and initialized signers are cached per thread.
+ *
+ * <p>In deterministic mode the nonce is derived from the private key and the digest as specified
+ * in RFC 6979, so every node holding the same key produces the same signature for the same export.
+ */
+class ExportSigner {
+
+  // signature algorithm OID -> digest and the signature over a precomputed digest
+  private static final Map<String, String> OID_TO_DIGEST =
+      Map.of("1.2.840.10045.4.3.2", "SHA-256");
+  private static final Map<String, String> OID_TO_RAW_SIGNATURE =
+      Map.of("1.2.840.10045.4.3.2", "NONEwithECDSA");
+
+  private final String algorithm;
+  private final KeyPair keyPair;
+  private final boolean deterministic;
+
+  private final ThreadLocal<MessageDigest> digests = new ThreadLocal<>();
+  private final ThreadLocal<Signature> signers = new ThreadLocal<>();
+
+  private ECPrivateKeyParameters deterministicKey;
+
+  ExportSigner(String algorithm, KeyPair keyPair, boolean deterministic) {
+    this.algorithm = algorithm;
+    this.keyPair = keyPair;
+    this.deterministic = deterministic;
+  }
+
+  /** @return a reset digest of this thread, to be fed with export.bin */
+  MessageDigest newDigest() throws NoSuchAlgorithmException {
+    var digest = digests.get();
+    if (digest == null) {
+      digest = MessageDigest.getInstance(lookup(OID_TO_DIGEST));
+      digests.set(digest);
+    }
+    digest.reset();
+    return digest;
+  }
+
+  /**
+   * Completes the digest returned by {@link #newDigest()}.
+   *
+   * @return the signature over export.bin
+   */
+  byte[] sign(MessageDigest digest)
+      throws SignatureException, InvalidKeyException, NoSuchAlgorithmException {
+    byte[] exportDigest = digest.digest();
+    if (deterministic) {
+      return signDeterministic(exportDigest);
+    }
+    var signer = signer();
+    signer.update(exportDigest);
+    return signer.sign();
+  }
+
+  /** @return the DER encoded ECDSA signature with the nonce derived as in RFC 6979 */
+  private byte[] signDeterministic(byte[] exportDigest)
+      throws SignatureException, InvalidKeyException {
+    var signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
+    signer.init(true, deterministicKey());
+    BigInteger[] rs = signer.generateSignature(exportDigest);
+    try {
+      return new DERSequence(new ASN1Encodable[] {new ASN1Integer(rs[0]), new ASN1Integer(rs[1])})
+          .getEncoded(ASN1Encoding.DER);
+    } catch (IOException e) {
+      throw new SignatureException("could not encode signature", e);
+    }
+  }
+
+  private synchronized ECPrivateKeyParameters deterministicKey() throws InvalidKeyException {
+    if (deterministicKey == null) {
+      deterministicKey =
+          (ECPrivateKeyParameters) ECUtil.generatePrivateKeyParameter(keyPair.getPrivate());
+    }
+    return deterministicKey;
+  }
+
+  private Signature signer() throws NoSuchAlgorithmException, InvalidKeyException {
+    var signer = signers.get();
+    if (signer == null) {
+      signer = Signature.getInstance(lookup(OID_TO_RAW_SIGNATURE));
+      // sign() resets the signer to the state after initSign, so it can be reused
+      signer.initSign(keyPair.getPrivate());
+      signers.set(signer);
+    }
+    return signer;
+  }
+
+  private String lookup(Map<String, String> byOid) throws NoSuchAlgorithmException {
+    var name = byOid.get(algorithm);
+    if (name == null) {
+      throw new NoSuchAlgorithmException("unsupported signature algorithm " + algorithm);
+    }
+    return name;
+  }
+}
@@ -10,39 +10,77 @@
 package org.dpppt.backend.sdk.ws.security.signature;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.Signature;
 import java.security.SignatureException;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
+import org.apache.commons.codec.binary.Hex;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.model.gaen.GaenUnit;
 import org.dpppt.backend.sdk.model.gaen.proto.TemporaryExposureKeyFormat;
 import org.dpppt.backend.sdk.model.gaen.proto.TemporaryExposureKeyFormat.SignatureInfo;
 import org.dpppt.backend.sdk.model.gaen.proto.v2.TemporaryExposureKeyFormatV2;
-import org.dpppt.backend.sdk.model.gaen.proto.v2.TemporaryExposureKeyFormatV2.TemporaryExposureKey.ReportType;
 import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
 
 public class ProtoSignature {
 
+  private static final Logger logger = LoggerFactory.getLogger(ProtoSignature.class);
+
   private static final byte[] EXPORT_MAGIC = {
     0x45, 0x4B, 0x20, 0x45, 0x78, 0x70, 0x6F, 0x72, 0x74, 0x20, 0x76, 0x31, 0x20, 0x20, 0x20, 0x20
   }; // "EK Export v1    "
 
+  // field number of the keys in TemporaryExposureKeyExport, the same for v1 and v2
+  private static final int EXPORT_KEYS_FIELD_NUMBER = 7;
+  private static final int EXPORT_BUFFER_BYTES = 8 * 1024;
+  private static final String SPOOL_FILES = "export-*.zip";
+  // used to presize the ZIP buffer
+  private static final int EXPORTED_KEY_BYTES = 32;
+  private static final int ZIP_OVERHEAD_BYTES = 1024;
+
   private final String algorithm;
   private final KeyPair keyPair;
   private final String appBundleId;
@@ -51,8 +89,9 @@ public class ProtoSignature {
   private final String keyVerificationId;
   private final String gaenRegion;
   private final Duration releaseBucketDuration;
-
-  public Map<String, String> oidToJavaSignature = Map.of("1.2.840.10045.4.3.2", "SHA256withECDSA");
+  private final boolean deterministic;
+  private final Path spoolDirectory;
+  private final ExportSigner exportSigner;
 
   public ProtoSignature(
       String algorithm,
@@ -63,6 +102,39 @@ public ProtoSignature(
       String keyVerificationId,
       String gaenRegion,
       Duration releaseBucketDuration) {
+    this(
+        algorithm,
+        keyPair,
+        appBundleId,
+        apkPackage,
+        keyVersion,
+        keyVerificationId,
+        gaenRegion,
+        releaseBucketDuration,
+        false,
+        null);
+  }
+
+  /**
+   * @param deterministic if true, the signatures are computed with deterministic ECDSA (RFC 6979)
+   *     and the ZIP entries carry a fixed timestamp, so that the same keys in the same order always
+   *     result in the same bytes
+   * @param spoolDirectory if set, the ZIPs are written to files in a subdirectory of this process
+   *     instead of the heap. A file is deleted once its {@link ProtoSignatureWrapper} is released
+   *     and no longer read, or else once the wrapper is no longer referenced. The files left behind
+   *     by earlier processes are deleted here.
+   */
+  public ProtoSignature(
+      String algorithm,
+      KeyPair keyPair,
+      String appBundleId,
+      String apkPackage,
+      String keyVersion,
+      String keyVerificationId,
+      String gaenRegion,
+      Duration releaseBucketDuration,
+      boolean deterministic,
+      Path spoolDirectory) {
     this.keyPair = keyPair;
     this.algorithm = algorithm.trim();
     this.appBundleId = appBundleId;
@@ -71,74 +143,171 @@ public ProtoSignature(
     this.keyVersion = keyVersion;
     this.gaenRegion = gaenRegion;
     this.releaseBucketDuration = releaseBucketDuration;
+    this.deterministic = deterministic;
+    this.exportSigner = new ExportSigner(this.algorithm, keyPair, deterministic);
+    if (spoolDirectory != null) {
+      // every process spools into its own directory, so that the sweep never hits another one
+      this.spoolDirectory = spoolDirectory.resolve(Long.toString(ProcessHandle.current().pid()));
+      try {
+        Files.createDirectories(this.spoolDirectory);
+        sweepSpoolDirectory(spoolDirectory);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Cannot create spool directory " + spoolDirectory, e);
+      }
+    } else {
+      this.spoolDirectory = null;
+    }
   }
 
   /**
-   * Creates a ZIP file containing the given keys and the corresponding signature.
-   *
-   * @param keys
-   * @return
-   * @throws IOException
-   * @throws InvalidKeyException
-   * @throws SignatureException
-   * @throws NoSuchAlgorithmException
+   * Deletes the spool files of processes which ended without deleting them: the directories of
+   * processes which no longer run, and the files of this process' directory which are older than
+   * the process, e.g. of a previous container with the same process id.
    */
-  public ProtoSignatureWrapper getPayload(List<GaenKey> keys)
-      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
-    if (keys.isEmpty()) {
-      throw new IOException("Keys should not be empty");
+  private void sweepSpoolDirectory(Path root) throws IOException {
+    var processStart = Instant.ofEpochMilli(ManagementFactory.getRuntimeMXBean().getStartTime());
+    int deleted = deleteSpoolFiles(root, processStart);
+    try (DirectoryStream<Path> directories = Files.newDirectoryStream(root, Files::isDirectory)) {
+      for (Path directory : directories) {
+        if (directory.equals(spoolDirectory)) {
+          deleted += deleteSpoolFiles(directory, processStart);
+        } else if (isOfEndedProcess(directory)) {
+          deleted += deleteSpoolFiles(directory, Instant.MAX);
+          Files.deleteIfExists(directory);
+        }
+      }
     }
+    if (deleted > 0) {
+      logger.info("Deleted {} files left in spool directory {}", deleted, root);
+    }
+  }
 
-    // Shuffle the keys so that the clients don't know the order of arrival of the keys.
-    Collections.shuffle(keys);
-
-    ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-    ZipOutputStream zip = new ZipOutputStream(byteOut);
-    ByteArrayOutputStream hashOut = new ByteArrayOutputStream();
-    var digest = MessageDigest.getInstance("SHA256");
-    var keyDate = Duration.of(keys.get(0).getRollingStartNumber(), GaenUnit.TenMinutes);
-    var protoFile = getProtoKey(keys, keyDate);
-
-    zip.putNextEntry(new ZipEntry("export.bin"));
-    byte[] protoFileBytes = protoFile.toByteArray();
-    byte[] exportBin = new byte[EXPORT_MAGIC.length + protoFileBytes.length];
-    System.arraycopy(EXPORT_MAGIC, 0, exportBin, 0, EXPORT_MAGIC.length);
-    System.arraycopy(protoFileBytes, 0, exportBin, EXPORT_MAGIC.length, protoFileBytes.length);
-    zip.write(exportBin);
-    zip.closeEntry();
+  private static boolean isOfEndedProcess(Path directory) {
+    long pid;
+    try {
+      pid = Long.parseLong(directory.getFileName().toString());
+    } catch (NumberFormatException e) {
+      // not created by a ProtoSignature
+      return false;
+    }
+    return ProcessHandle.of(pid).map(process -> !process.isAlive()).orElse(true);
+  }
 
-    var signatureList = getSignatureObject(exportBin);
-    digest.update(exportBin);
-    digest.update(keyPair.getPublic().getEncoded());
-    hashOut.write(digest.digest());
+  private static int deleteSpoolFiles(Path directory, Instant modifiedBefore) throws IOException {
+    int deleted = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SPOOL_FILES)) {
+      for (Path file : files) {
+        try {
+          if (Files.getLastModifiedTime(file).toInstant().isBefore(modifiedBefore)) {
+            Files.delete(file);
+            deleted++;
+          }
+        } catch (NoSuchFileException e) {
+          // deleted by its process in the meantime
+        }
+      }
+    }
+    return deleted;
+  }
 
-    byte[] exportSig = signatureList.toByteArray();
-    zip.putNextEntry(new ZipEntry("export.sig"));
-    zip.write(exportSig);
-    zip.closeEntry();
+  /**
+   * Creates a ZIP file containing the given keys and the corresponding signature, with a new
+   * random shuffle.
+   *
+   * @param keys the keys of the export, must not be empty
+   * @return the signed export
+   * @throws IOException if the keys are empty or the ZIP cannot be written
+   * @throws InvalidKeyException if the signing key is invalid
+   * @throws SignatureException if the export cannot be signed
+   * @throws NoSuchAlgorithmException if the signature algorithm is not supported
+   */
+  public ProtoSignatureWrapper getPayload(List<GaenKey> keys)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    return getPayload(keys, null);
+  }
 
-    zip.flush();
-    zip.close();
-    byteOut.flush();
-    byteOut.close();
-    hashOut.flush();
-    hashOut.close();
+  /**
+   * Creates a ZIP file containing the given keys and the corresponding signature.
+   *
+   * @param keys the keys of the export, must not be empty
+   * @param random the source of the shuffle, see {@link #shuffledOrder(ExportKeyRecords, Random)}
+   * @return the signed export
+   * @throws IOException if the keys are empty or the ZIP cannot be written
+   * @throws InvalidKeyException if the signing key is invalid
+   * @throws SignatureException if the export cannot be signed
+   * @throws NoSuchAlgorithmException if the signature algorithm is not supported
+   */
+  public ProtoSignatureWrapper getPayload(List<GaenKey> keys, Random random)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    return getPayload(ExportKeyRecords.of(keys, false), random);
+  }
 
-    return new ProtoSignatureWrapper(hashOut.toByteArray(), byteOut.toByteArray());
+  /**
+   * Creates a ZIP file containing the given keys and the corresponding signature, with a new
+   * random shuffle. The keys are returned in the new v2 protobuf format.
+   *
+   * @param keys the keys of the export, must not be empty
+   * @return the signed export
+   * @throws IOException if the keys are empty or the ZIP cannot be written
+   * @throws InvalidKeyException if the signing key is invalid
+   * @throws SignatureException if the export cannot be signed
+   * @throws NoSuchAlgorithmException if the signature algorithm is not supported
+   */
+  public ProtoSignatureWrapper getPayloadV2(List<GaenKey> keys)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    return getPayloadV2(keys, null);
   }
 
   /**
    * Creates a ZIP file containing the given keys and the corresponding signature. The keys are
    * returned in the new v2 protobuf format.
    *
-   * @param keys
-   * @return
-   * @throws IOException
-   * @throws InvalidKeyException
-   * @throws SignatureException
-   * @throws NoSuchAlgorithmException
+   * @param keys the keys of the export, must not be empty
+   * @param random the source of the shuffle, see {@link #shuffledOrder(ExportKeyRecords, Random)}
+   * @return the signed export
+   * @throws IOException if the keys are empty or the ZIP cannot be written
+   * @throws InvalidKeyException if the signing key is invalid
+   * @throws SignatureException if the export cannot be signed
+   * @throws NoSuchAlgorithmException if the signature algorithm is not supported
    */
-  public ProtoSignatureWrapper getPayloadV2(List<GaenKey> keys)
+  public ProtoSignatureWrapper getPayloadV2(List<GaenKey> keys, Random random)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    return getPayload(ExportKeyRecords.of(keys, true), random);
+  }
+
+  /**
+   * Creates a ZIP file containing the given, already encoded keys and the corresponding signature,
+   * in the format of the records.
+   *
+   * @param keys the encoded keys of the export, must not be empty
+   * @param random the source of the shuffle, see {@link #shuffledOrder(ExportKeyRecords, Random)}
+   * @return the signed export
+   * @throws IOException if the keys are empty or the ZIP cannot be written
+   * @throws InvalidKeyException if the signing key is invalid
+   * @throws SignatureException if the export cannot be signed
+   * @throws NoSuchAlgorithmException if the signature algorithm is not supported
+   */
+  public ProtoSignatureWrapper getPayload(ExportKeyRecords keys, Random random)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    return getPayloadBatches(keys, random, 0).get(0);
+  }
+
+  /**
+   * Creates one ZIP file per batch of at most {@code maxKeysPerBatch} keys. The keys are shuffled
+   * once and then split, every batch is signed on its own and carries its batchNum and the
+   * batchSize in the export and in the signature.
+   *
+   * @param keys the encoded keys of the export, must not be empty
+   * @param random the source of the shuffle, see {@link #shuffledOrder(ExportKeyRecords, Random)}
+   * @param maxKeysPerBatch 0 for a single batch with all keys
+   * @return the batches, ordered by batchNum
+   * @throws IOException if the keys are empty or the ZIP cannot be written
+   * @throws InvalidKeyException if the signing key is invalid
+   * @throws SignatureException if the export cannot be signed
+   * @throws NoSuchAlgorithmException if the signature algorithm is not supported
+   */
+  public List<ProtoSignatureWrapper> getPayloadBatches(
+      ExportKeyRecords keys, Random random, int maxKeysPerBatch)
       throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
     if (keys.isEmpty()) {
       throw new IOException("Keys should not be empty");
@@ -146,62 +315,253 @@ public ProtoSignatureWrapper getPayloadV2(List<GaenKey> keys)
     // Apple likes to have keys shuffled. See
     // https://developer.apple.com/documentation/exposurenotification/setting_up_a_key_server
     // This prevents the clients to know the order of arrival of the keys.
-    Collections.shuffle(keys);
-
-    ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-    ZipOutputStream zip = new ZipOutputStream(byteOut);
-    ByteArrayOutputStream hashOut = new ByteArrayOutputStream();
-    var digest = MessageDigest.getInstance("SHA256");
-    var keyDate = Duration.of(keys.get(0).getRollingStartNumber(), GaenUnit.TenMinutes);
-    var protoFile = getProtoKeyV2(keys, keyDate);
-
-    zip.putNextEntry(new ZipEntry("export.bin"));
-    byte[] protoFileBytes = protoFile.toByteArray();
-    byte[] exportBin = new byte[EXPORT_MAGIC.length + protoFileBytes.length];
-    System.arraycopy(EXPORT_MAGIC, 0, exportBin, 0, EXPORT_MAGIC.length);
-    System.arraycopy(protoFileBytes, 0, exportBin, EXPORT_MAGIC.length, protoFileBytes.length);
-    zip.write(exportBin);
-    zip.closeEntry();
+    int[] order = shuffledOrder(keys, random);
+    byte[] keysHash = keysHash(keys);
+
+    // all batches share the timestamps of the export
+    var keyDate = Duration.of(keys.getRollingStartNumber(order[0]), GaenUnit.TenMinutes);
+    int keysPerBatch = maxKeysPerBatch > 0 ? maxKeysPerBatch : order.length;
+    int batchSize = (order.length + keysPerBatch - 1) / keysPerBatch;
+    var batches = new ArrayList<ProtoSignatureWrapper>(batchSize);
+    for (int batchNum = 1; batchNum <= batchSize; batchNum++) {
+      int from = (batchNum - 1) * keysPerBatch;
+      int to = Math.min(from + keysPerBatch, order.length);
+      int num = batchNum;
+      if (keys.isV2()) {
+        batches.add(
+            writePayload(
+                keys,
+                Arrays.copyOfRange(order, from, to),
+                keyDate,
+                batchHash(keysHash, batchNum, batchSize),
+                batchNum,
+                batchSize,
+                getProtoHeaderV2(keyDate, batchNum, batchSize),
+                exportSignature -> getSignatureObjectV2(exportSignature, num, batchSize)));
+      } else {
+        batches.add(
+            writePayload(
+                keys,
+                Arrays.copyOfRange(order, from, to),
+                keyDate,
+                batchHash(keysHash, batchNum, batchSize),
+                batchNum,
+                batchSize,
+                getProtoHeader(keyDate, batchNum, batchSize),
+                exportSignature -> getSignatureObject(exportSignature, num, batchSize)));
+      }
+    }
+    return batches;
+  }
+
+  /**
+   * Shuffles the indices of the keys instead of the keys. Without a random, a new random source is
+   * used. With a random, the keys are sorted by their key data first, so that the order only
+   * depends on the random and on the set of keys, not on the order in which they were loaded.
+   *
+   * @return the indices of the keys in the order in which they are exported
+   */
+  private int[] shuffledOrder(ExportKeyRecords keys, Random random) {
+    int[] order = new int[keys.size()];
+    if (random == null) {
+      random = ThreadLocalRandom.current();
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+    } else {
+      Integer[] sorted = new Integer[keys.size()];
+      for (int i = 0; i < sorted.length; i++) {
+        sorted[i] = i;
+      }
+      Arrays.sort(sorted, keys::compareKeyData);
+      for (int i = 0; i < order.length; i++) {
+        order[i] = sorted[i];
+      }
+    }
+    // the same swaps as Collections.shuffle, so that a random results in the same order as before
+    for (int i = order.length; i > 1; i--) {
+      int j = random.nextInt(i);
+      int swap = order[i - 1];
+      order[i - 1] = order[j];
+      order[j] = swap;
+    }
+    return order;
+  }
 
-    var signatureList = getSignatureObjectV2(exportBin);
-    digest.update(exportBin);
+  /**
+   * Hashes the set of keys of an export, together with everything else of export.bin that does not
+   * depend on the shuffle: the format, the region and the signing key.
+   */
+  private byte[] keysHash(ExportKeyRecords keys) throws NoSuchAlgorithmException {
+    Integer[] sorted = new Integer[keys.size()];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = i;
+    }
+    Arrays.sort(sorted, keys::compareRecords);
+    var digest = MessageDigest.getInstance("SHA-256");
+    digest.update((byte) (keys.isV2() ? 2 : 1));
+    digest.update(gaenRegion.getBytes(StandardCharsets.UTF_8));
     digest.update(keyPair.getPublic().getEncoded());
-    hashOut.write(digest.digest());
+    for (int i : sorted) {
+      keys.updateDigest(digest, i);
+    }
+    return digest.digest();
+  }
+
+  /**
+   * The hash of a batch, see {@link ProtoSignatureWrapper#getETag()}. Unlike the ZIP, it does not
+   * change with the shuffle, the signature or the ZIP timestamps, so every build of the same keys
+   * carries the same hash.
+   */
+  private static byte[] batchHash(byte[] keysHash, int batchNum, int batchSize)
+      throws NoSuchAlgorithmException {
+    var digest = MessageDigest.getInstance("SHA-256");
+    digest.update(keysHash);
+    digest.update(ByteBuffer.allocate(8).putInt(batchNum).putInt(batchSize).array());
+    return digest.digest();
+  }
 
-    byte[] exportSig = signatureList.toByteArray();
-    zip.putNextEntry(new ZipEntry("export.sig"));
+  private static int[] identityOrder(int size) {
+    int[] order = new int[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    return order;
+  }
+
+  /**
+   * Streams export.bin directly into the ZIP entry. The encoded keys are copied record by record
+   * through a fixed size buffer, while the digest is updated with the same bytes, so the export is
+   * never materialized as a whole and hashed only once. Since the keys are the last field of the
+   * export, the result is byte identical to serializing the complete message.
+   *
+   * <p>The ZIP itself is written to a file of the spool directory if there is one, and hashed on
+   * the way for the Signature header of the response.
+   */
+  private ProtoSignatureWrapper writePayload(
+      ExportKeyRecords keys,
+      int[] order,
+      Duration keyDate,
+      byte[] hash,
+      int batchNum,
+      int batchSize,
+      MessageLite header,
+      Function<byte[], MessageLite> signatureList)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    Path spoolFile = null;
+    OutputStream out;
+    if (spoolDirectory != null) {
+      spoolFile = Files.createTempFile(spoolDirectory, "export-", ".zip");
+      out = new BufferedOutputStream(Files.newOutputStream(spoolFile), EXPORT_BUFFER_BYTES);
+    } else {
+      out = new ByteArrayOutputStream(ZIP_OVERHEAD_BYTES + order.length * EXPORTED_KEY_BYTES);
+    }
+    try {
+      var contentDigest = MessageDigest.getInstance("SHA-256");
+      var zipOut = new CountingOutputStream(new DigestOutputStream(out, contentDigest));
+      writeZip(zipOut, keys, order, keyDate, header, signatureList);
+      if (spoolFile != null) {
+        return new ProtoSignatureWrapper(
+            hash,
+            spoolFile,
+            zipOut.count,
+            contentDigest.digest(),
+            batchNum,
+            batchSize,
+            order.length);
+      }
+      return new ProtoSignatureWrapper(
+          hash,
+          ((ByteArrayOutputStream) out).toByteArray(),
+          contentDigest.digest(),
+          batchNum,
+          batchSize,
+          order.length);
+    } catch (Exception e) {
+      try {
+        out.close();
+        if (spoolFile != null) {
+          Files.deleteIfExists(spoolFile);
+        }
+      } catch (IOException closeException) {
+        e.addSuppressed(closeException);
+      }
+      throw e;
+    }
+  }
+
+  /** Writes the ZIP and closes {@code out}. */
+  private void writeZip(
+      OutputStream out,
+      ExportKeyRecords keys,
+      int[] order,
+      Duration keyDate,
+      MessageLite header,
+      Function<byte[], MessageLite> signatureList)
+      throws IOException, InvalidKeyException, SignatureException, NoSuchAlgorithmException {
+    ZipOutputStream zip = new ZipOutputStream(out);
+
+    var digest = exportSigner.newDigest();
+
+    zip.putNextEntry(zipEntry("export.bin", keyDate));
+    var exportBin = new DigestOutputStream(zip, digest);
+    var coded = CodedOutputStream.newInstance(exportBin, EXPORT_BUFFER_BYTES);
+    coded.writeRawBytes(EXPORT_MAGIC);
+    header.writeTo(coded);
+    for (int i : order) {
+      keys.writeTo(coded, EXPORT_KEYS_FIELD_NUMBER, i);
+    }
+    coded.flush();
+    zip.closeEntry();
+
+    byte[] exportSig = signatureList.apply(exportSigner.sign(digest)).toByteArray();
+
+    zip.putNextEntry(zipEntry("export.sig", keyDate));
     zip.write(exportSig);
     zip.closeEntry();
 
-    zip.flush();
     zip.close();
-    byteOut.flush();
-    byteOut.close();
-    hashOut.flush();
-    hashOut.close();
+  }
+
+  /** Counts the bytes of the ZIP. */
+  private static class CountingOutputStream extends FilterOutputStream {
+    private long count;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
 
-    return new ProtoSignatureWrapper(hashOut.toByteArray(), byteOut.toByteArray());
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
   }
 
-  private byte[] sign(byte[] data)
-      throws SignatureException, InvalidKeyException, NoSuchAlgorithmException {
-    Signature signature = Signature.getInstance(oidToJavaSignature.get(algorithm));
-    signature.initSign(keyPair.getPrivate());
-    signature.update(data);
-    return signature.sign();
+  private ZipEntry zipEntry(String name, Duration keyDate) {
+    var entry = new ZipEntry(name);
+    if (deterministic) {
+      // otherwise the current time of the node is stored
+      entry.setTimeLocal(LocalDateTime.ofEpochSecond(keyDate.toSeconds(), 0, ZoneOffset.UTC));
+    }
+    return entry;
   }
 
   private org.dpppt.backend.sdk.model.gaen.proto.v2.TemporaryExposureKeyFormatV2.TEKSignatureList
-      getSignatureObjectV2(byte[] keyExport)
-          throws InvalidKeyException, SignatureException, NoSuchAlgorithmException {
-    byte[] exportSignature = sign(keyExport);
+      getSignatureObjectV2(byte[] exportSignature, int batchNum, int batchSize) {
     var signatureList = TemporaryExposureKeyFormatV2.TEKSignatureList.newBuilder();
     var theSignature = TemporaryExposureKeyFormatV2.TEKSignature.newBuilder();
     theSignature
         .setSignatureInfo(tekSignatureV2())
         .setSignature(ByteString.copyFrom(exportSignature))
-        .setBatchNum(1)
-        .setBatchSize(1);
+        .setBatchNum(batchNum)
+        .setBatchSize(batchSize);
     signatureList.addSignatures(theSignature);
     return signatureList.build();
   }
@@ -216,16 +576,15 @@ private byte[] sign(byte[] data)
     return tekSignature.build();
   }
 
-  private TemporaryExposureKeyFormat.TEKSignatureList getSignatureObject(byte[] keyExport)
-      throws InvalidKeyException, SignatureException, NoSuchAlgorithmException {
-    byte[] exportSignature = sign(keyExport);
+  private TemporaryExposureKeyFormat.TEKSignatureList getSignatureObject(
+      byte[] exportSignature, int batchNum, int batchSize) {
     var signatureList = TemporaryExposureKeyFormat.TEKSignatureList.newBuilder();
     var theSignature = TemporaryExposureKeyFormat.TEKSignature.newBuilder();
     theSignature
         .setSignatureInfo(tekSignature())
         .setSignature(ByteString.copyFrom(exportSignature))
-        .setBatchNum(1)
-        .setBatchSize(1);
+        .setBatchNum(batchNum)
+        .setBatchSize(batchSize);
     signatureList.addSignatures(theSignature);
     return signatureList.build();
   }
@@ -257,34 +616,23 @@ public byte[] getPayload(Map<String, List<GaenKey>> groupedBuckets)
       }
 
       var keyDate = Duration.of(keys.get(0).getRollingStartNumber(), GaenUnit.TenMinutes);
-      var protoFile = getProtoKeyV2(keys, keyDate);
       var zipFileName = new StringBuilder();
 
       zipFileName.append("key_export_").append(group);
 
       zipCollection.putNextEntry(new ZipEntry(zipFileName.toString()));
-      ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-      ZipOutputStream zip = new ZipOutputStream(byteOut);
-
-      zip.putNextEntry(new ZipEntry("export.bin"));
-      byte[] protoFileBytes = protoFile.toByteArray();
-      byte[] exportBin = new byte[EXPORT_MAGIC.length + protoFileBytes.length];
-      System.arraycopy(EXPORT_MAGIC, 0, exportBin, 0, EXPORT_MAGIC.length);
-      System.arraycopy(protoFileBytes, 0, exportBin, EXPORT_MAGIC.length, protoFileBytes.length);
-      zip.write(exportBin);
-      zip.closeEntry();
-
-      var signatureList = getSignatureObjectV2(exportBin);
-
-      byte[] exportSig = signatureList.toByteArray();
-      zip.putNextEntry(new ZipEntry("export.sig"));
-      zip.write(exportSig);
-      zip.closeEntry();
-      zip.flush();
-      zip.close();
-      byteOut.flush();
-      byteOut.close();
-      zipCollection.write(byteOut.toByteArray());
+      var records = ExportKeyRecords.of(keys, true);
+      var export =
+          writePayload(
+              records,
+              identityOrder(records.size()),
+              keyDate,
+              batchHash(keysHash(records), 1, 1),
+              1,
+              1,
+              getProtoHeaderV2(keyDate, 1, 1),
+              exportSignature -> getSignatureObjectV2(exportSignature, 1, 1));
+      zipCollection.write(export.getZip());
 
       zipCollection.closeEntry();
     }
@@ -308,27 +656,14 @@ public byte[] getPayload(Collection<List<GaenKey>> buckets)
     return getPayload(grouped);
   }
 
-  private TemporaryExposureKeyFormat.TemporaryExposureKeyExport getProtoKey(
-      List<GaenKey> exposedKeys, Duration batchReleaseTimeDuration) {
+  /** @return the export without keys */
+  private TemporaryExposureKeyFormat.TemporaryExposureKeyExport getProtoHeader(
+      Duration batchReleaseTimeDuration, int batchNum, int batchSize) {
     var file = TemporaryExposureKeyFormat.TemporaryExposureKeyExport.newBuilder();
 
-    var tekList = new ArrayList<TemporaryExposureKeyFormat.TemporaryExposureKey>();
-    for (var key : exposedKeys) {
-      var protoKey =
-          TemporaryExposureKeyFormat.TemporaryExposureKey.newBuilder()
-              .setKeyData(ByteString.copyFrom(Base64.getDecoder().decode(key.getKeyData())))
-              .setRollingPeriod(key.getRollingPeriod())
-              .setRollingStartIntervalNumber(key.getRollingStartNumber())
-              .setTransmissionRiskLevel(key.getTransmissionRiskLevel())
-              .build();
-      tekList.add(protoKey);
-    }
-
-    file.addAllKeys(tekList);
-
     file.setRegion(gaenRegion)
-        .setBatchNum(1)
-        .setBatchSize(1)
+        .setBatchNum(batchNum)
+        .setBatchSize(batchSize)
         .setStartTimestamp(batchReleaseTimeDuration.toSeconds())
         .setEndTimestamp(batchReleaseTimeDuration.toSeconds() + releaseBucketDuration.toSeconds());
 
@@ -337,28 +672,14 @@ private TemporaryExposureKeyFormat.TemporaryExposureKeyExport getProtoKey(
     return file.build();
   }
 
-  private TemporaryExposureKeyFormatV2.TemporaryExposureKeyExport getProtoKeyV2(
-      List<GaenKey> exposedKeys, Duration batchReleaseTimeDuration) {
+  /** @return the export without keys */
+  private TemporaryExposureKeyFormatV2.TemporaryExposureKeyExport getProtoHeaderV2(
+      Duration batchReleaseTimeDuration, int batchNum, int batchSize) {
     var file = TemporaryExposureKeyFormatV2.TemporaryExposureKeyExport.newBuilder();
 
-    var tekList = new ArrayList<TemporaryExposureKeyFormatV2.TemporaryExposureKey>();
-    for (var key : exposedKeys) {
-      var protoKey =
-          TemporaryExposureKeyFormatV2.TemporaryExposureKey.newBuilder()
-              .setKeyData(ByteString.copyFrom(Base64.getDecoder().decode(key.getKeyData())))
-              .setRollingPeriod(key.getRollingPeriod())
-              .setRollingStartIntervalNumber(key.getRollingStartNumber())
-              .setDaysSinceOnsetOfSymptoms(key.getDaysSinceOnsetOfSymptons().intValue()) 
-              .setReportType(ReportType.forNumber(key.getReportType()))
-              .build();
-      tekList.add(protoKey);
-    }
-
-    file.addAllKeys(tekList);
-
     file.setRegion(gaenRegion)
-        .setBatchNum(1)
-        .setBatchSize(1)
+        .setBatchNum(batchNum)
+        .setBatchSize(batchSize)
         .setStartTimestamp(batchReleaseTimeDuration.toSeconds())
         .setEndTimestamp(batchReleaseTimeDuration.toSeconds() + releaseBucketDuration.toSeconds());
 
@@ -367,21 +688,223 @@ private TemporaryExposureKeyFormatV2.TemporaryExposureKeyExport getProtoKeyV2(
     return file.build();
   }
 
-  public class ProtoSignatureWrapper {
+  /**
+   * A signed export bundle. The ZIP is either kept on the heap or in a file of the spool
+   * directory. The file is deleted once the holder of the wrapper {@link #release() released} it
+   * and the responses reading the file are written. The deletion by the cleaner once the wrapper is
+   * no longer referenced is only the backstop for wrappers which are never released.
+   */
+  public static class ProtoSignatureWrapper {
+    private static final Cleaner SPOOL_CLEANER = Cleaner.create();
+
     private final byte[] hash;
     private final byte[] zip;
+    private final Path zipFile;
+    private final long size;
+    private byte[] contentHash;
+    private final int batchNum;
+    private final int batchSize;
+    private final int keyCount;
+    // guarded by this: the resources of the spool file not yet read, and whether it was released
+    private int readers;
+    private boolean released;
 
     public ProtoSignatureWrapper(byte[] hash, byte[] zip) {
+      this(hash, zip, 1, 1);
+    }
+
+    public ProtoSignatureWrapper(byte[] hash, byte[] zip, int batchNum, int batchSize) {
+      this(hash, zip, batchNum, batchSize, -1);
+    }
+
+    public ProtoSignatureWrapper(
+        byte[] hash, byte[] zip, int batchNum, int batchSize, int keyCount) {
+      this(hash, zip, null, batchNum, batchSize, keyCount);
+    }
+
+    private ProtoSignatureWrapper(
+        byte[] hash, byte[] zip, byte[] contentHash, int batchNum, int batchSize, int keyCount) {
       this.hash = hash;
       this.zip = zip;
+      this.zipFile = null;
+      this.size = zip.length;
+      this.contentHash = contentHash;
+      this.batchNum = batchNum;
+      this.batchSize = batchSize;
+      this.keyCount = keyCount;
+    }
+
+    private ProtoSignatureWrapper(
+        byte[] hash,
+        Path zipFile,
+        long size,
+        byte[] contentHash,
+        int batchNum,
+        int batchSize,
+        int keyCount) {
+      this.hash = hash;
+      this.zip = null;
+      this.zipFile = zipFile;
+      this.size = size;
+      this.contentHash = contentHash;
+      this.batchNum = batchNum;
+      this.batchSize = batchSize;
+      this.keyCount = keyCount;
+      SPOOL_CLEANER.register(this, () -> deleteSpoolFile(zipFile));
+    }
+
+    private static void deleteSpoolFile(Path zipFile) {
+      try {
+        Files.deleteIfExists(zipFile);
+      } catch (IOException e) {
+        // left to the sweep of the spool directory on the next start
+      }
+    }
+
+    /**
+     * Called by the holder of the bundle, e.g. the cache it is evicted from, once the bundle is no
+     * longer served. The spool file is deleted as soon as the responses still reading it are
+     * written.
+     */
+    public synchronized void release() {
+      released = true;
+      deleteIfUnread();
+    }
+
+    private synchronized void addReader() {
+      readers++;
+    }
+
+    private synchronized void removeReader() {
+      readers--;
+      deleteIfUnread();
+    }
+
+    private void deleteIfUnread() {
+      if (zipFile != null && released && readers == 0) {
+        deleteSpoolFile(zipFile);
+      }
     }
 
     public byte[] getHash() {
       return hash;
     }
 
+    /** @return the ZIP, read from the spool file if it is not kept on the heap */
     public byte[] getZip() {
-      return zip;
+      if (zip != null) {
+        return zip;
+      }
+      try {
+        return Files.readAllBytes(zipFile);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /** @return the ZIP without reading it into the heap */
+    public InputStream openZip() throws IOException {
+      if (zip != null) {
+        return new ByteArrayInputStream(zip);
+      }
+      return Files.newInputStream(zipFile);
+    }
+
+    /**
+     * @return the ZIP as the body of a response. A spool file is kept at least until the first
+     *     stream of the resource is closed.
+     */
+    public Resource toResource() {
+      if (zip != null) {
+        return new ByteArrayResource(zip);
+      }
+      return new SpooledZipResource(this);
+    }
+
+    /** @return the number of bytes of the ZIP */
+    public long getSize() {
+      return size;
+    }
+
+    /** @return the SHA-256 of the ZIP, as signed by the Signature header */
+    public synchronized byte[] getContentHash() {
+      if (contentHash == null) {
+        try {
+          contentHash = MessageDigest.getInstance("SHA-256").digest(zip);
+        } catch (NoSuchAlgorithmException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      return contentHash;
+    }
+
+    /** @return the number of this batch of the export, starting at 1 */
+    public int getBatchNum() {
+      return batchNum;
+    }
+
+    /** @return the number of batches the export is split into */
+    public int getBatchSize() {
+      return batchSize;
+    }
+
+    /** @return the number of keys in export.bin including fake keys, or -1 if unknown */
+    public int getKeyCount() {
+      return keyCount;
+    }
+
+    /**
+     * The ETag of the bundle, sent by every endpoint and every export writer that serves it. The
+     * hash is derived from the keys of the export and the position of the batch, so it stays the
+     * same across rebuilds and nodes as long as the keys do, even where the ZIP differs in its
+     * shuffle or signature. Such ZIPs are interchangeable for the clients, hence a strong ETag.
+     *
+     * @return the quoted, hex encoded hash
+     */
+    public String getETag() {
+      return eTagOf(hash);
+    }
+
+    /** @return the {@link #getETag() ETag} of a bundle with the given hash */
+    public static String eTagOf(byte[] hash) {
+      return "\"" + Hex.encodeHexString(hash) + "\"";
+    }
+  }
+
+  /** Keeps the spool file of a wrapper from being deleted until the response is written. */
+  private static class SpooledZipResource extends AbstractResource {
+    private final ProtoSignatureWrapper bundle;
+    private final AtomicBoolean read = new AtomicBoolean();
+
+    SpooledZipResource(ProtoSignatureWrapper bundle) {
+      this.bundle = bundle;
+      bundle.addReader();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      return new FilterInputStream(bundle.openZip()) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            if (read.compareAndSet(false, true)) {
+              bundle.removeReader();
+            }
+          }
+        }
+      };
+    }
+
+    @Override
+    public long contentLength() {
+      return bundle.getSize();
+    }
+
+    @Override
+    public String getDescription() {
+      return "spooled export bundle " + bundle.getETag();
     }
   }
 }
@@ -10,9 +10,6 @@
 
 package org.dpppt.backend.sdk.ws.security.signature;
 
-import io.jsonwebtoken.Claims;
-import io.jsonwebtoken.Jwts;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
@@ -20,52 +17,72 @@
 import java.io.StringWriter;
 import java.security.KeyPair;
 import java.security.MessageDigest;
-import java.util.Base64;
 import java.util.List;
+import java.util.function.Function;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
 import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 import org.apache.commons.codec.binary.Hex;
 import org.bouncycastle.util.io.pem.PemObject;
 import org.bouncycastle.util.io.pem.PemWriter;
-import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.security.signature.ContentSignature.Precomputed;
 import org.springframework.http.HttpStatus;
 import org.springframework.util.Base64Utils;
+import org.springframework.util.FastByteArrayOutputStream;
 
 public class SignatureResponseWrapper extends HttpServletResponseWrapper {
 
+  /**
+   * Request attribute with the SHA-256 of a body which is already known to the handler, e.g. of a
+   * bundle served from a file. That hash is signed and the body is written to the response directly
+   * instead of being buffered, so the attribute has to be set before the body is written.
+   */
+  public static final String CONTENT_HASH_ATTRIBUTE =
+      SignatureResponseWrapper.class.getName() + ".contentHash";
+
+  /**
+   * Request attribute with a {@link Precomputed} signature of the {@link #CONTENT_HASH_ATTRIBUTE},
+   * which is sent instead of signing the hash again if the protected headers match.
+   */
+  public static final String SIGNATURE_ATTRIBUTE =
+      SignatureResponseWrapper.class.getName() + ".signature";
+
   // after number of days days the list and hence the signature is invalid
   public final int retentionPeriod;
 
   private final MessageDigest digest;
-  private final ByteArrayOutputStream output;
+  // grows in blocks instead of copying the buffered body on every resize
+  private final FastByteArrayOutputStream output;
+  private final ServletRequest request;
   private final KeyPair pair;
-  private final List<String> protectedHeaders;
+  private final ContentSignature contentSignature;
   private final boolean setDebugHeaders;
 
   private HashStream stream;
   private PrintWriter writer;
+  // the body is not buffered if the request has a content hash
+  private boolean passedThrough;
 
   private static final String HEADER_SIGNATURE = "Signature";
   private static final String HEADER_PUBLIC_KEY = "X-Public-Key";
   private static final String HEADER_DIGEST = "Digest";
-  private static final String ISSUER_DP3T = "dp3t";
-  private static final String CLAIM_HASH_ALG = "hash-alg";
-  private static final String CLAIM_CONTENT_HASH = "content-hash";
 
   public SignatureResponseWrapper(
+      ServletRequest request,
       HttpServletResponse response,
       KeyPair pair,
       int retentionDays,
       List<String> protectedHeaders,
       boolean setDebugHeaders) {
     super(response);
+    this.request = request;
     this.pair = pair;
-    this.protectedHeaders = protectedHeaders;
+    this.contentSignature = new ContentSignature(pair, retentionDays, protectedHeaders);
     this.setDebugHeaders = setDebugHeaders;
     try {
-      this.output = new ByteArrayOutputStream(response.getBufferSize());
+      this.output = new FastByteArrayOutputStream(response.getBufferSize());
       this.digest = MessageDigest.getInstance("SHA-256");
       this.stream = new HashStream(this.digest, this.output);
       this.retentionPeriod = retentionDays;
@@ -76,6 +93,14 @@ public SignatureResponseWrapper(
 
   @Override
   public ServletOutputStream getOutputStream() throws IOException {
+    if (contentHash() != null) {
+      // the headers are sent with the first bytes of the body
+      if (!passedThrough) {
+        this.setSignature();
+        passedThrough = true;
+      }
+      return getResponse().getOutputStream();
+    }
     if (stream == null) {
       stream = new HashStream(this.digest, this.output);
     }
@@ -83,9 +108,17 @@ public ServletOutputStream getOutputStream() throws IOException {
   }
 
   public byte[] getHash() throws IOException {
+    byte[] contentHash = contentHash();
+    if (contentHash != null) {
+      return contentHash;
+    }
     return this.stream.getHash();
   }
 
+  private byte[] contentHash() {
+    return (byte[]) request.getAttribute(CONTENT_HASH_ATTRIBUTE);
+  }
+
   @Override
   public PrintWriter getWriter() throws IOException {
     if (output != null) {
@@ -102,7 +135,9 @@ public PrintWriter getWriter() throws IOException {
 
   @Override
   public void flushBuffer() throws IOException {
-    this.setSignature();
+    if (!passedThrough) {
+      this.setSignature();
+    }
     super.flushBuffer();
     if (writer != null) {
       writer.flush();
@@ -112,8 +147,12 @@ public void flushBuffer() throws IOException {
   }
 
   public void outputData(OutputStream httpOutput) throws IOException {
+    if (passedThrough) {
+      // already written
+      return;
+    }
     this.setSignature();
-    httpOutput.write(this.output.toByteArray());
+    this.output.writeTo(httpOutput);
   }
 
   private void setSignature() throws IOException {
@@ -128,30 +167,15 @@ private void setSignature() throws IOException {
     }
 
     byte[] theHash = this.getHash();
-    var now = UTCInstant.now();
-
-    Claims claims = Jwts.claims();
-    claims.put(CLAIM_CONTENT_HASH, Base64.getEncoder().encodeToString(theHash));
-    claims.put(CLAIM_HASH_ALG, "sha-256");
-
-    claims.setIssuer(ISSUER_DP3T);
-    claims.setIssuedAt(now.getDate());
-    claims.setExpiration(now.plusDays(retentionPeriod).getDate());
-    for (String header : protectedHeaders) {
-      if (!this.containsHeader(header)) {
-        continue;
-      }
-
-      String normalizedHeader = header.toLowerCase().replace("x-", "");
-      String headerValue = this.getHeader(header);
-      claims.put(normalizedHeader, headerValue);
-      if (normalizedHeader.equals("batch-release-time")) {
-        var issueDate = UTCInstant.ofEpochMillis(Long.parseLong(headerValue));
-        claims.setIssuedAt(issueDate.getDate());
-        claims.setExpiration(issueDate.plusDays(retentionPeriod).getDate());
-      }
-    }
-    String signature = Jwts.builder().setClaims(claims).signWith(pair.getPrivate()).compact();
+    Function<String, String> headers =
+        header -> this.containsHeader(header) ? this.getHeader(header) : null;
+    var precomputed = (Precomputed) request.getAttribute(SIGNATURE_ATTRIBUTE);
+    String signature =
+        precomputed != null
+                && contentHash() != null
+                && contentSignature.isValidFor(precomputed, headers)
+            ? precomputed.getValue()
+            : contentSignature.sign(theHash, headers);
 
     if (this.setDebugHeaders) {
       this.setHeader(HEADER_DIGEST, "sha-256=" + Hex.encodeHexString(theHash));
@@ -172,9 +196,9 @@ private String getPublicKeyAsPEM() throws IOException {
   private class HashStream extends ServletOutputStream {
 
     private MessageDigest digest;
-    private ByteArrayOutputStream output;
+    private FastByteArrayOutputStream output;
 
-    public HashStream(MessageDigest digest, ByteArrayOutputStream outputStream) {
+    public HashStream(MessageDigest digest, FastByteArrayOutputStream outputStream) {
       this.digest = digest;
       this.output = outputStream;
     }
@@ -193,6 +217,12 @@ public void write(int b) throws IOException {
       this.output.write(b);
     }
 
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      this.digest.update(b, off, len);
+      this.output.write(b, off, len);
+    }
+
     @Override
     public void close() throws IOException {
       this.output.close();
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.context.request.WebRequest;
+
+/**
+ * Caching headers of the export endpoints. An export only changes when the release bucket moves,
+ * so it may be cached by clients and CDNs until the end of its bucket. If every cache expired
+ * exactly at the bucket end, all of them would revalidate at the same instant. The expiration is
+ * therefore moved past the bucket end by an offset within {@code jitter}, which is derived from
+ * the client address: a client or CDN edge always gets the same offset, different ones are spread
+ * over the window. Behind a load balancer the client address is taken from {@code
+ * X-Forwarded-For}, see {@code server.forward-headers-strategy}.
+ *
+ * <p>{@code Last-Modified} is the start of the bucket, when the export last changed. Together
+ * with the ETag of the {@link
+ * org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper}, a
+ * conditional request is answered by {@link #isNotModified} without sending the export again.
+ */
+public class ExportCacheHeaders {
+
+  private final Duration releaseBucketDuration;
+  private final Duration jitter;
+
+  public ExportCacheHeaders(Duration releaseBucketDuration, Duration jitter) {
+    this.releaseBucketDuration = releaseBucketDuration;
+    this.jitter = jitter;
+  }
+
+  /**
+   * @param publishedUntil the start of the release bucket of the export
+   * @param now the time of the request
+   * @return the caching headers for the client of the current request
+   */
+  public HttpHeaders forCurrentRequest(UTCInstant publishedUntil, UTCInstant now) {
+    var attributes = RequestContextHolder.getRequestAttributes();
+    String clientAddress =
+        attributes instanceof ServletRequestAttributes
+            ? ((ServletRequestAttributes) attributes).getRequest().getRemoteAddr()
+            : null;
+    return headers(publishedUntil, now, clientAddress);
+  }
+
+  /**
+   * Without the offset of {@link #forCurrentRequest}, for a listing of the exports which must be
+   * replaced by the one of the next bucket as soon as that is published. The listing of an earlier
+   * bucket has already expired.
+   *
+   * @param publishedUntil the start of the release bucket of the listing
+   * @param now the time of the request
+   * @return the caching headers, expiring at the end of the bucket
+   */
+  public HttpHeaders untilBucketEnd(UTCInstant publishedUntil, UTCInstant now) {
+    return headers(publishedUntil, now, null);
+  }
+
+  /**
+   * @param publishedUntil the start of the release bucket of the export
+   * @param now the time of the request
+   * @param jitterKey identifies the client or CDN edge, may be {@code null}
+   * @return Cache-Control, Expires and Last-Modified of the export
+   */
+  public HttpHeaders headers(UTCInstant publishedUntil, UTCInstant now, String jitterKey) {
+    var expiration = getExpiration(publishedUntil, jitterKey);
+    long remaining = expiration.getTimestamp() - now.getTimestamp();
+    long maxAge = Math.max(0, TimeUnit.MILLISECONDS.toSeconds(remaining));
+    var headers = new HttpHeaders();
+    headers.setCacheControl(
+        CacheControl.maxAge(maxAge, TimeUnit.SECONDS)
+            .sMaxAge(maxAge, TimeUnit.SECONDS)
+            .cachePublic());
+    headers.setExpires(expiration.getTimestamp());
+    headers.setLastModified(publishedUntil.getTimestamp());
+    return headers;
+  }
+
+  /**
+   * Evaluates If-None-Match with the weak comparison, or If-Modified-Since if there is no
+   * If-None-Match, as Spring MVC would.
+   *
+   * @param eTag the ETag of the export
+   * @param publishedUntil the start of the release bucket of the export, its Last-Modified
+   * @return whether the client already has the export
+   */
+  public static boolean isNotModified(WebRequest request, String eTag, UTCInstant publishedUntil) {
+    String[] ifNoneMatchValues = request.getHeaderValues(HttpHeaders.IF_NONE_MATCH);
+    if (ifNoneMatchValues != null) {
+      var headers = new HttpHeaders();
+      for (String value : ifNoneMatchValues) {
+        headers.add(HttpHeaders.IF_NONE_MATCH, value);
+      }
+      for (String clientETag : headers.getIfNoneMatch()) {
+        if (clientETag.equals("*") || opaqueTag(clientETag).equals(opaqueTag(eTag))) {
+          return true;
+        }
+      }
+      return false;
+    }
+    String ifModifiedSince = request.getHeader(HttpHeaders.IF_MODIFIED_SINCE);
+    if (ifModifiedSince == null) {
+      return false;
+    }
+    var headers = new HttpHeaders();
+    headers.set(HttpHeaders.IF_MODIFIED_SINCE, ifModifiedSince);
+    long since = headers.getIfModifiedSince();
+    // the header has a precision of seconds
+    return since >= 0 && since >= publishedUntil.getTimestamp() / 1000 * 1000;
+  }
+
+  private static String opaqueTag(String eTag) {
+    return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+  }
+
+  /** @return the end of the release bucket, moved by the offset of the given key */
+  public UTCInstant getExpiration(UTCInstant publishedUntil, String jitterKey) {
+    var bucketEnd = publishedUntil.plus(releaseBucketDuration);
+    long window = jitter.toMillis();
+    if (window <= 0 || jitterKey == null) {
+      return bucketEnd;
+    }
+    // the same offset in every bucket, so that a client keeps its position in the window
+    long offset = Math.floorMod(spread(jitterKey), window);
+    return bucketEnd.plus(Duration.ofMillis(offset));
+  }
+
+  /**
+   * String.hashCode differs little between similar keys, such as the addresses of one subnet, and
+   * would place them next to each other in the window. The first bytes of a SHA-256 are uniform.
+   */
+  private static long spread(String jitterKey) {
+    try {
+      byte[] hash =
+          MessageDigest.getInstance("SHA-256").digest(jitterKey.getBytes(StandardCharsets.UTF_8));
+      return ByteBuffer.wrap(hash).getLong();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
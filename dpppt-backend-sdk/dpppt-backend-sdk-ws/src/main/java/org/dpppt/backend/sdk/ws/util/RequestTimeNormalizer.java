@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.util;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import java.time.Duration;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.context.request.async.DeferredResult;
+
+/**
+ * Pads the response time of requests to a constant duration, so that the response time does not
+ * tell whether keys were actually inserted. Instead of sleeping on a worker thread, the response
+ * is completed by a shared scheduler thread once the request time is over. Requests that already
+ * took longer are answered immediately and counted as overrun.
+ */
+public class RequestTimeNormalizer {
+
+  private static final Logger logger = LoggerFactory.getLogger(RequestTimeNormalizer.class);
+
+  private final ScheduledThreadPoolExecutor scheduler;
+  private final Counter overruns;
+
+  public RequestTimeNormalizer() {
+    this.scheduler =
+        new ScheduledThreadPoolExecutor(
+            1,
+            runnable -> {
+              var thread = new Thread(runnable, "request-time-normalizer");
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.scheduler.setRemoveOnCancelPolicy(true);
+    this.overruns =
+        Counter.builder("ws.request.time.overrun")
+            .description("Requests that took longer than the normalized request time")
+            .register(Metrics.globalRegistry);
+  }
+
+  /**
+   * @param start the start of the request
+   * @param requestTime the total time the request should take
+   * @param result the response
+   * @return a DeferredResult completed with the given result at {@code start + requestTime}
+   */
+  public <T> DeferredResult<T> normalize(UTCInstant start, Duration requestTime, T result) {
+    var deferredResult = new DeferredResult<T>();
+    complete(deferredResult, start, requestTime, result);
+    return deferredResult;
+  }
+
+  /**
+   * @param start the start of the request
+   * @param requestTime the total time the request should take
+   * @param deferredResult the response of the controller
+   * @return a DeferredResult completed with the result of {@code deferredResult}, but not before
+   *     {@code start + requestTime}
+   */
+  public DeferredResult<Object> normalize(
+      UTCInstant start, Duration requestTime, DeferredResult<?> deferredResult) {
+    var normalizedResult = new DeferredResult<Object>();
+    deferredResult.setResultHandler(
+        result -> complete(normalizedResult, start, requestTime, result));
+    return normalizedResult;
+  }
+
+  private <T> void complete(
+      DeferredResult<T> deferredResult, UTCInstant start, Duration requestTime, T result) {
+    Duration timeFillUp = requestTime.minus(UTCInstant.now().getDuration(start));
+    if (timeFillUp.isNegative()) {
+      overruns.increment();
+      logger.debug("Total time spent in endpoint is longer than requestTime");
+      deferredResult.setResult(result);
+      return;
+    }
+    scheduler.schedule(
+        () -> deferredResult.setResult(result), timeFillUp.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  public void shutdown() {
+    scheduler.shutdown();
+  }
+}
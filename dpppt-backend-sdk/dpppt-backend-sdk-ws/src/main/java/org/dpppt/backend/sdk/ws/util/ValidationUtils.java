@@ -9,6 +9,7 @@
  */
 package org.dpppt.backend.sdk.ws.util;
 
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.model.gaen.GaenUnit;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.springframework.security.oauth2.jwt.Jwt;
@@ -51,6 +52,22 @@ public boolean isValidKeyFormat(String value) {
     }
   }
 
+  /**
+   * Check the validity of the key data of a key. The decoded key data is kept in the key, so it
+   * is not decoded again when the key is inserted.
+   *
+   * @param key the uploaded key
+   * @return if the key data of _key_ is a valid representation
+   */
+  public boolean isValidKeyFormat(GaenKey key) {
+    try {
+      byte[] keyBytes = key.getKeyBytes();
+      return keyBytes != null && keyBytes.length == KEY_LENGTH_BYTES;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
   /**
    * Check if the given date is in the range of [now - retentionPeriod ... now], inclusive
    *
@@ -54,6 +54,7 @@
 import org.dpppt.backend.sdk.model.gaen.proto.TemporaryExposureKeyFormat.TemporaryExposureKeyExport;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.dpppt.backend.sdk.ws.filter.ResponseWrapperFilter;
+import org.dpppt.backend.sdk.ws.radarcovid.export.ExportBundleCache;
 import org.dpppt.backend.sdk.ws.security.KeyVault;
 import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
 import org.dpppt.backend.sdk.ws.util.TestJDBCGaen;
@@ -95,6 +96,7 @@ public abstract class BaseControllerTest {
   @Autowired ProtoSignature signer;
   @Autowired KeyVault keyVault;
   @Autowired GAENDataService gaenDataService;
+  @Autowired List<ExportBundleCache<?>> exportBundleCaches;
 
   protected TestJDBCGaen testGaenDataService;
 
@@ -114,6 +116,8 @@ public void setup() throws Exception {
     this.objectMapper = new ObjectMapper(new JsonFactory());
     this.objectMapper.registerModule(new JavaTimeModule());
     this.testGaenDataService = new TestJDBCGaen("hsqldb", dataSource);
+    // tests insert keys into already published buckets
+    exportBundleCaches.forEach(ExportBundleCache::invalidateAll);
   }
 
   private void loadPrivateKey() throws Exception {
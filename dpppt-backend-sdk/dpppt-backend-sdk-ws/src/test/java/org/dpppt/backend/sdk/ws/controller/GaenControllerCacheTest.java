@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.controller;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.radarcovid.export.ExportBundleCache;
+import org.dpppt.backend.sdk.ws.radarcovid.export.GaenBundleKey;
+import org.dpppt.backend.sdk.ws.util.ExportCacheHeaders;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.transaction.annotation.Transactional;
+
+@SpringBootTest(
+    webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+    properties = {
+      "ws.app.jwt.publickey=classpath://generated_pub.pem",
+      "ws.exposedlist.releaseBucketDuration=7200000",
+      "ws.gaen.randomkeysenabled=true",
+      "ws.exposedlist.cache.enabled=true",
+      "ws.exposedlist.publisher.enabled=false",
+      "server.forward-headers-strategy=native"
+    })
+@Transactional
+public class GaenControllerCacheTest extends BaseControllerTest {
+
+  @Autowired TestRestTemplate restTemplate;
+  @Autowired ExportCacheHeaders exportCacheHeaders;
+  @Autowired ExportBundleCache<GaenBundleKey> gaenExportBundleCache;
+
+  @Test
+  public void testBundleIsServedFromCache() throws Exception {
+    var url = "/v1/gaen/exposed/" + UTCInstant.today().minusDays(2).getTimestamp();
+    MockHttpServletResponse first =
+        mockMvc
+            .perform(get(url).header("User-Agent", androidUserAgent))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse();
+    MockHttpServletResponse second =
+        mockMvc
+            .perform(get(url).header("User-Agent", androidUserAgent))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse();
+    assertArrayEquals(first.getContentAsByteArray(), second.getContentAsByteArray());
+    assertEquals(first.getHeader("ETag"), second.getHeader("ETag"));
+  }
+
+  @Test
+  public void testETagIsKeptWhenTheBundleIsRebuilt() throws Exception {
+    var url = "/v1/gaen/exposed/" + UTCInstant.today().minusDays(4).getTimestamp();
+    MockHttpServletResponse first =
+        mockMvc
+            .perform(get(url).header("User-Agent", androidUserAgent))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse();
+    gaenExportBundleCache.invalidateAll();
+    MockHttpServletResponse rebuilt =
+        mockMvc
+            .perform(get(url).header("User-Agent", androidUserAgent))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse();
+    // shuffled and signed anew, but with the same keys
+    assertFalse(Arrays.equals(first.getContentAsByteArray(), rebuilt.getContentAsByteArray()));
+    assertEquals(first.getHeader("ETag"), rebuilt.getHeader("ETag"));
+    assertFalse(first.getHeader("ETag").startsWith("W/"));
+  }
+
+  @Test
+  public void testIfNoneMatchReturnsNotModified() throws Exception {
+    var url = "/v1/gaen/exposed/" + UTCInstant.today().minusDays(3).getTimestamp();
+    MockHttpServletResponse response =
+        mockMvc
+            .perform(get(url).header("User-Agent", androidUserAgent))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse();
+    String eTag = response.getHeader("ETag");
+    assertNotNull(eTag);
+
+    response =
+        mockMvc
+            .perform(
+                get(url).header("User-Agent", androidUserAgent).header("If-None-Match", eTag))
+            .andExpect(status().isNotModified())
+            .andReturn()
+            .getResponse();
+    assertEquals(0, response.getContentAsByteArray().length);
+    assertEquals(eTag, response.getHeader("ETag"));
+    assertNotNull(response.getHeader("X-PUBLISHED-UNTIL"));
+
+    mockMvc
+        .perform(
+            get(url).header("User-Agent", androidUserAgent).header("If-None-Match", "\"other\""))
+        .andExpect(status().isOk());
+  }
+
+  @Test
+  public void testV2IfNoneMatchReturnsNotModified() throws Exception {
+    var now = UTCInstant.now();
+    var key =
+        new GaenKey(
+            Base64.getEncoder().encodeToString("testKey32Bytes--".getBytes("UTF-8")),
+            (int) now.atStartOfDay().minusDays(3).get10MinutesSince1970(),
+            144,
+            0,
+            "ES",
+            1,
+            0L,
+            false,
+            List.of("ES"));
+    // received in the previous, already published bucket
+    var receivedAt = now.roundToBucketStart(releaseBucketDuration).minus(Duration.ofMillis(1));
+    gaenDataService.upsertExposeesDelayed(List.of(key), receivedAt, now);
+
+    MockHttpServletResponse response =
+        mockMvc
+            .perform(get("/v2/gaen/exposed").header("User-Agent", androidUserAgent))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse();
+    String eTag = response.getHeader("ETag");
+    assertNotNull(eTag);
+
+    mockMvc
+        .perform(
+            get("/v2/gaen/exposed")
+                .header("User-Agent", androidUserAgent)
+                .header("If-None-Match", eTag))
+        .andExpect(status().isNotModified());
+  }
+
+  @Test
+  public void testExpirationIsSpreadByForwardedClientAddress() throws Exception {
+    // through the server, the forwarded headers are evaluated by the connector
+    var url = "/v1/gaen/exposed/" + UTCInstant.today().minusDays(2).getTimestamp();
+    var headers = new HttpHeaders();
+    headers.set("User-Agent", androidUserAgent);
+    headers.set("X-Forwarded-For", "203.0.113.7");
+    var response =
+        restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+    assertEquals(HttpStatus.OK, response.getStatusCode());
+
+    var publishedUntil =
+        UTCInstant.ofEpochMillis(
+            Long.parseLong(response.getHeaders().getFirst("X-PUBLISHED-UNTIL")));
+    var expiration = exportCacheHeaders.getExpiration(publishedUntil, "203.0.113.7");
+    assertEquals(expiration.getTimestamp() / 1000 * 1000, response.getHeaders().getExpires());
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.controller;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.filter.ResponseWrapperFilter;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.transaction.annotation.Transactional;
+
+@SpringBootTest(
+    properties = {
+      "ws.app.jwt.publickey=classpath://generated_pub.pem",
+      "ws.exposedlist.releaseBucketDuration=7200000",
+      "ws.exposedlist.store.enabled=true",
+      "ws.exposedlist.store.directory=target/bundle-store-${random.uuid}",
+      "ws.exposedlist.publisher.enabled=false"
+    })
+@Transactional
+public class GaenV2ControllerStoreTest extends BaseControllerTest {
+
+  @Autowired ResponseWrapperFilter responseWrapperFilter;
+
+  @Before
+  public void insertKey() throws Exception {
+    var now = UTCInstant.now();
+    var key =
+        new GaenKey(
+            Base64.getEncoder().encodeToString("testKey32Bytes--".getBytes("UTF-8")),
+            (int) now.atStartOfDay().minusDays(3).get10MinutesSince1970(),
+            144,
+            0,
+            "ES",
+            1,
+            0L,
+            false,
+            List.of("ES"));
+    // received in the previous, already published bucket
+    var receivedAt = now.roundToBucketStart(releaseBucketDuration).minus(Duration.ofMillis(1));
+    gaenDataService.upsertExposeesDelayed(List.of(key), receivedAt, now);
+  }
+
+  @Test
+  public void testStoredBundleIsSigned() throws Exception {
+    var response =
+        mockMvc
+            .perform(get("/v2/gaen/exposed").header("User-Agent", androidUserAgent))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse();
+
+    byte[] zip = response.getContentAsByteArray();
+    assertEquals(zip.length, response.getContentLength());
+    Claims claims = signatureClaims(response.getHeader("Signature"));
+    assertEquals(
+        Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(zip)),
+        claims.get("content-hash"));
+  }
+
+  @Test
+  public void testStoredBundleIsSentWithSendfile() throws Exception {
+    byte[] zip =
+        mockMvc
+            .perform(get("/v2/gaen/exposed").header("User-Agent", androidUserAgent))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse()
+            .getContentAsByteArray();
+
+    MvcResult result =
+        mockMvc
+            .perform(
+                get("/v2/gaen/exposed")
+                    .header("User-Agent", androidUserAgent)
+                    .requestAttr("org.apache.tomcat.sendfile.support", true))
+            .andExpect(status().isOk())
+            .andReturn();
+
+    // the body is left to the connector
+    assertEquals(0, result.getResponse().getContentAsByteArray().length);
+    assertEquals(zip.length, result.getResponse().getContentLength());
+    var file = (String) result.getRequest().getAttribute("org.apache.tomcat.sendfile.filename");
+    assertArrayEquals(zip, Files.readAllBytes(Paths.get(file)));
+    assertEquals(0L, result.getRequest().getAttribute("org.apache.tomcat.sendfile.start"));
+    assertEquals(
+        (long) zip.length, result.getRequest().getAttribute("org.apache.tomcat.sendfile.end"));
+    Claims claims = signatureClaims(result.getResponse().getHeader("Signature"));
+    assertEquals(
+        Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(zip)),
+        claims.get("content-hash"));
+  }
+
+  @Test
+  public void testSendfileIsNotUsedForNotModified() throws Exception {
+    var response =
+        mockMvc
+            .perform(get("/v2/gaen/exposed").header("User-Agent", androidUserAgent))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse();
+
+    MvcResult result =
+        mockMvc
+            .perform(
+                get("/v2/gaen/exposed")
+                    .header("User-Agent", androidUserAgent)
+                    .header("If-None-Match", response.getHeader("ETag"))
+                    .requestAttr("org.apache.tomcat.sendfile.support", true))
+            .andExpect(status().isNotModified())
+            .andReturn();
+    assertNull(result.getRequest().getAttribute("org.apache.tomcat.sendfile.filename"));
+  }
+
+  private Claims signatureClaims(String signature) {
+    return Jwts.parserBuilder()
+        .setSigningKey(responseWrapperFilter.getPublicKey())
+        .build()
+        .parseClaimsJws(signature)
+        .getBody();
+  }
+}
@@ -26,10 +26,12 @@
 import java.util.Base64;
 import java.util.List;
 import org.dpppt.backend.sdk.data.gaen.GAENDataService;
+import org.dpppt.backend.sdk.model.gaen.ExportManifestEntry;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.model.gaen.GaenRequest;
 import org.dpppt.backend.sdk.model.gaen.GaenV2UploadKeysRequest;
 import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.radarcovid.export.ExportManifests;
 import org.dpppt.backend.sdk.ws.security.KeyVault;
 import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature;
 import org.junit.Test;
@@ -60,6 +62,7 @@ public class GaenV2ControllerTest extends BaseControllerTest {
   @Autowired ProtoSignature signer;
   @Autowired KeyVault keyVault;
   @Autowired GAENDataService gaenDataService;
+  @Autowired ExportManifests exportManifests;
 
   Duration releaseBucketDuration = Duration.ofMillis(7200000L);
 
@@ -339,4 +342,91 @@ private void testUploadWithShortenedRollingPeriod(boolean useV2Upload) throws Ex
               .getResponse();
     }
   }
+
+  @Test
+  public void testManifestOfThePreviousBucketIsServedUntilTheNewOneIsPublished() throws Exception {
+    var bucketStart = UTCInstant.today().plusHours(10);
+    var previousBucket = bucketStart.minus(releaseBucketDuration);
+    Clock fiveMinutesIntoBucket =
+        Clock.fixed(bucketStart.plusMinutes(5).getInstant(), ZoneOffset.UTC);
+
+    try (var timeLock = UTCInstant.setClock(fiveMinutesIntoBucket)) {
+      // older than the previous bucket
+      exportManifests.publishV2(previousBucket.minus(releaseBucketDuration), List.of());
+      MockHttpServletResponse unavailable =
+          mockMvc
+              .perform(get("/v2/gaen/manifest").header("User-Agent", androidUserAgent))
+              .andExpect(status().isServiceUnavailable())
+              .andReturn()
+              .getResponse();
+      assertEquals("60", unavailable.getHeader("Retry-After"));
+
+      exportManifests.publishV2(previousBucket, List.of());
+      MockHttpServletResponse previous =
+          mockMvc
+              .perform(get("/v2/gaen/manifest").header("User-Agent", androidUserAgent))
+              .andExpect(status().isOk())
+              .andReturn()
+              .getResponse();
+      assertEquals(
+          Long.toString(previousBucket.getTimestamp()), previous.getHeader("x-key-bundle-tag"));
+      // already replaced at the end of its bucket
+      assertTrue(previous.getHeader("Cache-Control").startsWith("max-age=0,"));
+
+      exportManifests.publishV2(bucketStart, List.of());
+      MockHttpServletResponse current =
+          mockMvc
+              .perform(get("/v2/gaen/manifest").header("User-Agent", androidUserAgent))
+              .andExpect(status().isOk())
+              .andReturn()
+              .getResponse();
+      assertEquals(
+          Long.toString(bucketStart.getTimestamp()), current.getHeader("x-key-bundle-tag"));
+      // until the bucket end, without the jitter of the exports
+      assertTrue(current.getHeader("Cache-Control").startsWith("max-age=6900,"));
+    }
+  }
+
+  @Test
+  public void testManifestIfNoneMatchReturnsNotModified() throws Exception {
+    var now = UTCInstant.now();
+    var bucketStart = now.roundToBucketStart(releaseBucketDuration);
+    var entry =
+        new ExportManifestEntry()
+            .setUrl("/v2/gaen/exposed?lastKeyBundleTag=" + bucketStart.getTimestamp())
+            .setKeyCount(0)
+            .setSize(0L)
+            .setBatchNum(1)
+            .setBatchSize(1);
+    exportManifests.publishV2(bucketStart, List.of(entry));
+    MockHttpServletResponse response =
+        mockMvc
+            .perform(get("/v2/gaen/manifest").header("User-Agent", androidUserAgent))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse();
+    String eTag = response.getHeader("ETag");
+    assertNotNull(eTag);
+
+    MockHttpServletResponse notModified =
+        mockMvc
+            .perform(
+                get("/v2/gaen/manifest")
+                    .header("User-Agent", androidUserAgent)
+                    .header("If-None-Match", eTag))
+            .andExpect(status().isNotModified())
+            .andReturn()
+            .getResponse();
+    assertEquals(0, notModified.getContentAsByteArray().length);
+    assertEquals(eTag, notModified.getHeader("ETag"));
+
+    // republished with another entry
+    exportManifests.publishV2(bucketStart, List.of(entry, entry));
+    mockMvc
+        .perform(
+            get("/v2/gaen/manifest")
+                .header("User-Agent", androidUserAgent)
+                .header("If-None-Match", eTag))
+        .andExpect(status().isOk());
+  }
 }
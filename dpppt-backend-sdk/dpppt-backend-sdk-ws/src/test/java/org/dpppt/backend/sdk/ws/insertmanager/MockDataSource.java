@@ -3,6 +3,7 @@
 import java.time.Duration;
 import java.util.List;
 import org.dpppt.backend.sdk.data.gaen.GAENDataService;
+import org.dpppt.backend.sdk.data.gaen.GaenKeyWatermark;
 import org.dpppt.backend.sdk.model.gaen.GaenKey;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 
@@ -29,6 +30,9 @@ public List<GaenKey> getSortedExposedForKeyDate(
   @Override
   public void cleanDB(Duration retentionPeriod) {}
 
+  @Override
+  public void maintainPartitions(Duration retentionPeriod, Duration precreatePeriod) {}
+
   @Override
   public List<GaenKey> getSortedExposedSince(
       UTCInstant keysSince, UTCInstant now) { 
@@ -42,4 +46,9 @@ public List<GaenKey> getSortedExposedSince(UTCInstant keysSince, UTCInstant now,
 	// TODO Auto-generated method stub
 	return null;
   }
+
+  @Override
+  public GaenKeyWatermark getKeyWatermark(UTCInstant before) {
+    return new GaenKeyWatermark(null, null);
+  }
 }
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.security.Keys;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.radarcovid.export.BundleStore.StoredBundle;
+import org.dpppt.backend.sdk.ws.security.signature.ContentSignature;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.HttpHeaders;
+
+public class BundleStoreTest {
+
+  private static final Duration BUCKET_LENGTH = Duration.ofHours(2);
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final KeyPair keyPair = Keys.keyPairFor(SignatureAlgorithm.ES256);
+
+  private GaenV2BundleKey key() {
+    return new GaenV2BundleKey(
+        UTCInstant.today().minusDays(3),
+        List.of("ES"),
+        null,
+        UTCInstant.now().roundToBucketStart(BUCKET_LENGTH));
+  }
+
+  private BundleStore<GaenV2BundleKey> store() {
+    return new BundleStore<>(
+        "test",
+        true,
+        folder.getRoot().toPath(),
+        Duration.ofDays(1),
+        new ContentSignature(keyPair, 14, List.of("X-Key-Bundle-Tag", "X-HELLO")),
+        (key, bundle) -> {
+          var headers = new HttpHeaders();
+          headers.set("x-key-bundle-tag", Long.toString(key.getPublishedUntil().getTimestamp()));
+          return headers;
+        });
+  }
+
+  @Test
+  public void testBundleIsStoredOnce() throws Exception {
+    var store = store();
+    var key = key();
+    byte[] zip = {1, 2, 3};
+    var builds = new AtomicInteger();
+    ExportBatchesBuilder<GaenV2BundleKey> builder =
+        () -> {
+          builds.incrementAndGet();
+          return Map.of(key, Optional.of(new ProtoSignatureWrapper(new byte[] {4, 5}, zip)));
+        };
+
+    var stored = store.get(key, builder).get();
+    store.get(key, builder);
+    assertEquals(1, builds.get());
+    assertArrayEquals(zip, Files.readAllBytes(stored.getZip()));
+    assertEquals(zip.length, stored.getSize());
+    assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(zip), stored.getContentHash());
+    assertEquals(1, stored.getBatchNum());
+    assertEquals(1, stored.getBatchSize());
+  }
+
+  @Test
+  public void testConcurrentMissesShareOneBuild() throws Exception {
+    var store = store();
+    var key = key();
+    var builds = new AtomicInteger();
+    var release = new CountDownLatch(1);
+    ExportBatchesBuilder<GaenV2BundleKey> builder =
+        () -> {
+          builds.incrementAndGet();
+          try {
+            release.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          }
+          return Map.of(
+              key, Optional.of(new ProtoSignatureWrapper(new byte[] {4}, new byte[] {1})));
+        };
+
+    var executor = Executors.newFixedThreadPool(4);
+    try {
+      var results = new ArrayList<Future<Optional<StoredBundle>>>();
+      for (int i = 0; i < 4; i++) {
+        results.add(executor.submit(() -> store.get(key, builder)));
+      }
+      Thread.sleep(200);
+      release.countDown();
+      for (var result : results) {
+        assertTrue(result.get(10, TimeUnit.SECONDS).isPresent());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, builds.get());
+  }
+
+  @Test
+  public void testBundlesSurviveRestart() throws Exception {
+    var key = key();
+    var empty = key().withBatchNum(2);
+    store()
+        .putAll(
+            Map.of(
+                key,
+                Optional.of(new ProtoSignatureWrapper(new byte[] {4}, new byte[] {1})),
+                empty,
+                Optional.empty()));
+
+    ExportBatchesBuilder<GaenV2BundleKey> failing =
+        () -> {
+          throw new IllegalStateException("must not build");
+        };
+    var restarted = store();
+    assertTrue(restarted.get(key, failing).isPresent());
+    assertFalse(restarted.get(empty, failing).isPresent());
+  }
+
+  @Test
+  public void testStoredBundlesAreSignedAhead() throws Exception {
+    var key = key();
+    byte[] zip = {1, 2, 3};
+    store().putAll(Map.of(key, Optional.of(new ProtoSignatureWrapper(new byte[] {4}, zip))));
+
+    // read back after a restart
+    var signature = store().get(key, Map::of).get().getSignature();
+    String keyBundleTag = Long.toString(key.getPublishedUntil().getTimestamp());
+    assertEquals(Map.of("x-key-bundle-tag", keyBundleTag), signature.getProtectedHeaders());
+    Claims claims =
+        Jwts.parserBuilder()
+            .setSigningKey(keyPair.getPublic())
+            .build()
+            .parseClaimsJws(signature.getValue())
+            .getBody();
+    assertEquals(
+        Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(zip)),
+        claims.get("content-hash"));
+    assertEquals(keyBundleTag, claims.get("key-bundle-tag"));
+    assertEquals(key.getPublishedUntil().getDate(), claims.getIssuedAt());
+  }
+
+  @Test
+  public void testOldBundlesAreCleanedUp() throws Exception {
+    var store = store();
+    var key = key();
+    store.putAll(
+        Map.of(key, Optional.of(new ProtoSignatureWrapper(new byte[] {4}, new byte[] {1}))));
+    assertTrue(store.contains(key));
+
+    store.cleanUp();
+    assertTrue(store.contains(key));
+
+    long twoDaysAgo = Instant.now().minus(Duration.ofDays(2)).toEpochMilli();
+    for (var file : folder.getRoot().listFiles()) {
+      assertTrue(file.setLastModified(twoDaysAgo));
+    }
+    store.cleanUp();
+    assertFalse(store.contains(key));
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.junit.Test;
+
+public class ExportBundleCacheTest {
+
+  private static final Duration BUCKET_LENGTH = Duration.ofHours(2);
+  private static final int REQUESTS = 8;
+
+  @Test
+  public void testBundleIsBuiltOncePerBucket() throws Exception {
+    var cache = new ExportBundleCache<GaenBundleKey>("test", true, 100, BUCKET_LENGTH);
+    var builds = new AtomicInteger();
+    ExportBundleBuilder builder =
+        () -> {
+          builds.incrementAndGet();
+          return Optional.of(new ProtoSignatureWrapper(new byte[0], new byte[] {1, 2, 3}));
+        };
+
+    var now = UTCInstant.now();
+    var publishedUntil = now.roundToBucketStart(BUCKET_LENGTH);
+    var keyDate = UTCInstant.today().minusDays(1);
+
+    var first = cache.get(new GaenBundleKey(keyDate, null, publishedUntil), builder);
+    var second = cache.get(new GaenBundleKey(keyDate, 0L, publishedUntil), builder);
+    assertEquals(1, builds.get());
+    assertSame(first.get(), second.get());
+
+    cache.get(
+        new GaenBundleKey(keyDate, publishedUntil.minus(BUCKET_LENGTH).getTimestamp(), publishedUntil),
+        builder);
+    assertEquals(2, builds.get());
+  }
+
+  @Test
+  public void testEmptyBundleIsCached() throws Exception {
+    var cache = new ExportBundleCache<GaenBundleKey>("test", true, 100, BUCKET_LENGTH);
+    var builds = new AtomicInteger();
+    ExportBundleBuilder builder =
+        () -> {
+          builds.incrementAndGet();
+          return Optional.empty();
+        };
+    var key =
+        new GaenBundleKey(
+            UTCInstant.today(), null, UTCInstant.now().roundToBucketStart(BUCKET_LENGTH));
+    assertFalse(cache.get(key, builder).isPresent());
+    assertFalse(cache.get(key, builder).isPresent());
+    assertEquals(1, builds.get());
+  }
+
+  @Test
+  public void testBundleExpiresWithBucket() throws Exception {
+    var cache = new ExportBundleCache<GaenBundleKey>("test", true, 100, BUCKET_LENGTH);
+    var builds = new AtomicInteger();
+    ExportBundleBuilder builder =
+        () -> {
+          builds.incrementAndGet();
+          return Optional.empty();
+        };
+    var bucketStart = UTCInstant.today().plus(BUCKET_LENGTH);
+    var key = new GaenBundleKey(UTCInstant.today().minusDays(1), null, bucketStart);
+
+    // a bundle built at the end of its bucket must not be served anymore
+    Clock nextBucket = Clock.fixed(bucketStart.plus(BUCKET_LENGTH).getInstant(), ZoneOffset.UTC);
+    try (var now = UTCInstant.setClock(nextBucket)) {
+      cache.get(key, builder);
+      cache.get(key, builder);
+      assertEquals(2, builds.get());
+    }
+
+    Clock inBucket = Clock.fixed(bucketStart.plusMinutes(10).getInstant(), ZoneOffset.UTC);
+    try (var now = UTCInstant.setClock(inBucket)) {
+      cache.get(key, builder);
+      cache.get(key, builder);
+      assertEquals(3, builds.get());
+      assertEquals(1, cache.size());
+    }
+  }
+
+  @Test
+  public void testConcurrentMissesBuildOnce() throws Exception {
+    var cache = new ExportBundleCache<GaenBundleKey>("test", true, 100, BUCKET_LENGTH);
+    var builds = new AtomicInteger();
+    var started = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+    ExportBundleBuilder builder =
+        () -> {
+          builds.incrementAndGet();
+          started.countDown();
+          await(release);
+          return Optional.of(new ProtoSignatureWrapper(new byte[0], new byte[] {1, 2, 3}));
+        };
+    var key =
+        new GaenBundleKey(
+            UTCInstant.today(), null, UTCInstant.now().roundToBucketStart(BUCKET_LENGTH));
+
+    var executor = Executors.newFixedThreadPool(REQUESTS);
+    try {
+      var results = new ArrayList<Future<Optional<ProtoSignatureWrapper>>>();
+      results.add(executor.submit(() -> cache.get(key, builder)));
+      started.await(10, TimeUnit.SECONDS);
+      for (int i = 1; i < REQUESTS; i++) {
+        results.add(executor.submit(() -> cache.get(key, builder)));
+      }
+      Thread.sleep(100);
+      release.countDown();
+      var bundle = results.get(0).get(10, TimeUnit.SECONDS).get();
+      for (var result : results) {
+        assertSame(bundle, result.get(10, TimeUnit.SECONDS).get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, builds.get());
+  }
+
+  @Test
+  public void testBuildRunsOutsideOfTheCache() throws Exception {
+    var cache = new ExportBundleCache<GaenBundleKey>("test", true, 100, BUCKET_LENGTH);
+    var started = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+    var publishedUntil = UTCInstant.now().roundToBucketStart(BUCKET_LENGTH);
+    var key = new GaenBundleKey(UTCInstant.today(), null, publishedUntil);
+    var other = new GaenBundleKey(UTCInstant.today().minusDays(1), null, publishedUntil);
+
+    var executor = Executors.newFixedThreadPool(2);
+    try {
+      var building =
+          executor.submit(
+              () ->
+                  cache.get(
+                      key,
+                      () -> {
+                        started.countDown();
+                        await(release);
+                        return Optional.empty();
+                      }));
+      started.await(10, TimeUnit.SECONDS);
+      // neither the other keys nor the whole cache are locked by the running build
+      var unlocked =
+          executor.submit(
+              () -> {
+                cache.put(other, Optional.empty());
+                cache.invalidateAll();
+                return cache.getIfPresent(key);
+              });
+      assertNull(unlocked.get(10, TimeUnit.SECONDS));
+      assertFalse(building.isDone());
+      release.countDown();
+      assertFalse(building.get(10, TimeUnit.SECONDS).isPresent());
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFailedBuildIsNotCached() throws Exception {
+    var cache = new ExportBundleCache<GaenBundleKey>("test", true, 100, BUCKET_LENGTH);
+    var key =
+        new GaenBundleKey(
+            UTCInstant.today(), null, UTCInstant.now().roundToBucketStart(BUCKET_LENGTH));
+    try {
+      cache.get(
+          key,
+          () -> {
+            throw new IOException("database unavailable");
+          });
+      fail("the exception of the build must be passed through");
+    } catch (IOException e) {
+      assertEquals("database unavailable", e.getMessage());
+    }
+    assertFalse(cache.contains(key));
+    assertFalse(cache.get(key, Optional::empty).isPresent());
+  }
+
+  @Test
+  public void testBatchesAreCachedWithTheRequestedOne() throws Exception {
+    var cache = new ExportBundleCache<GaenV2BundleKey>("test", true, 100, BUCKET_LENGTH);
+    var publishedUntil = UTCInstant.now().roundToBucketStart(BUCKET_LENGTH);
+    var first = new GaenV2BundleKey(publishedUntil.minusDays(1), null, null, publishedUntil);
+    var second = first.withBatchNum(2);
+    var builds = new AtomicInteger();
+    ExportBatchesBuilder<GaenV2BundleKey> builder =
+        () -> {
+          builds.incrementAndGet();
+          return Map.of(
+              first, Optional.of(new ProtoSignatureWrapper(new byte[0], new byte[] {1})),
+              second, Optional.of(new ProtoSignatureWrapper(new byte[0], new byte[] {2})));
+        };
+
+    assertEquals(2, cache.getBatch(second, builder).get().getZip()[0]);
+    assertEquals(1, builds.get());
+    assertEquals(1, cache.getBatch(first, builder).get().getZip()[0]);
+    assertEquals(1, builds.get());
+  }
+
+  @Test
+  public void testDisabledCacheAlwaysBuilds() throws Exception {
+    var cache = new ExportBundleCache<GaenBundleKey>("test", false, 100, BUCKET_LENGTH);
+    var builds = new AtomicInteger();
+    ExportBundleBuilder builder =
+        () -> {
+          builds.incrementAndGet();
+          return Optional.empty();
+        };
+    var key =
+        new GaenBundleKey(
+            UTCInstant.today(), null, UTCInstant.now().roundToBucketStart(BUCKET_LENGTH));
+    cache.get(key, builder);
+    cache.get(key, builder);
+    assertEquals(2, builds.get());
+  }
+
+  private static void await(CountDownLatch latch) throws IOException {
+    try {
+      latch.await(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+}
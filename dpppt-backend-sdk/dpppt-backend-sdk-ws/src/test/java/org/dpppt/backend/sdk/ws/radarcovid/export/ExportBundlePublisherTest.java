@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.junit.Test;
+
+public class ExportBundlePublisherTest {
+
+  private static final Duration BUCKET_LENGTH = Duration.ofHours(2);
+  private static final Duration RETENTION = Duration.ofDays(14);
+
+  private static class CountingFactory extends GaenExportBundleFactory {
+    final AtomicInteger v1Builds = new AtomicInteger();
+    final AtomicInteger v2Builds = new AtomicInteger();
+
+    CountingFactory() {
+      super(
+          null,
+          null,
+          null,
+          null,
+          0,
+          SharedExportBundles.disabled(),
+          ExportWatermark.disabled());
+    }
+
+    @Override
+    public Optional<ProtoSignatureWrapper> buildV1(GaenBundleKey bundleKey, UTCInstant now) {
+      v1Builds.incrementAndGet();
+      return Optional.empty();
+    }
+
+    @Override
+    public Optional<ProtoSignatureWrapper> buildV2(GaenV2BundleKey bundleKey, UTCInstant now) {
+      v2Builds.incrementAndGet();
+      byte[] hash = new byte[32];
+      hash[0] = 42;
+      return Optional.of(new ProtoSignatureWrapper(hash, new byte[16], 1, 1, 7));
+    }
+  }
+
+  @Test
+  public void testAllBundlesArePublishedOncePerBucket() throws Exception {
+    var factory = new CountingFactory();
+    var v1Cache = new ExportBundleCache<GaenBundleKey>("testV1", true, 10_000, BUCKET_LENGTH);
+    var v2Cache =
+        ExportBundleCache.<GaenV2BundleKey>boundedByBytes(
+            "testV2", true, 1024 * 1024, BUCKET_LENGTH);
+    var publisher =
+        new ExportBundlePublisher(factory, v1Cache, v2Cache, BUCKET_LENGTH, RETENTION, 12, 2);
+    try {
+      publisher.publish();
+      var now = UTCInstant.now();
+      var publishedUntil = now.roundToBucketStart(BUCKET_LENGTH);
+      int v1Bundles = publisher.getV1BundleKeys(now, publishedUntil).size();
+      int v2Bundles = publisher.getV2BundleKeys(now, publishedUntil).size();
+      assertEquals(v1Bundles, factory.v1Builds.get());
+      assertEquals(v2Bundles, factory.v2Builds.get());
+
+      // a second run in the same bucket does not build anything
+      publisher.publish();
+      assertEquals(v1Bundles, factory.v1Builds.get());
+      assertEquals(v2Bundles, factory.v2Builds.get());
+
+      // the controllers find the published bundles in the caches
+      var keyDate = UTCInstant.today().minusDays(3);
+      v1Cache.get(
+          new GaenBundleKey(keyDate, null, publishedUntil),
+          () -> {
+            throw new IllegalStateException("bundle was not published");
+          });
+    } finally {
+      publisher.shutdown();
+    }
+  }
+
+  @Test
+  public void testManifestsArePublishedWithTheBundles() throws Exception {
+    var manifests = new ExportManifests();
+    var factory = new CountingFactory();
+    var v1Cache = new ExportBundleCache<GaenBundleKey>("testV1", true, 10_000, BUCKET_LENGTH);
+    var v2Cache = new ExportBundleCache<GaenV2BundleKey>("testV2", true, 10_000, BUCKET_LENGTH);
+    var publisher =
+        new ExportBundlePublisher(
+            factory, v1Cache, v2Cache, BUCKET_LENGTH, RETENTION, 12, 2, manifests);
+    try {
+      var now = UTCInstant.now();
+      var publishedUntil = now.roundToBucketStart(BUCKET_LENGTH);
+      assertFalse(manifests.getV2(publishedUntil).isPresent());
+      publisher.publish();
+
+      var v1 = manifests.getV1(publishedUntil).orElseThrow();
+      assertEquals(publisher.getV1BundleKeys(now, publishedUntil).size(), v1.getEntries().size());
+      var firstV1 = v1.getEntries().get(0);
+      assertEquals(0, (int) firstV1.getKeyCount());
+      assertNull(firstV1.getHash());
+      assertEquals(
+          "/v1/gaen/exposed/" + UTCInstant.today().minus(RETENTION).getTimestamp(),
+          firstV1.getUrl());
+
+      var v2 = manifests.getV2(publishedUntil).orElseThrow();
+      assertEquals(publisher.getV2BundleKeys(now, publishedUntil).size(), v2.getEntries().size());
+      var firstV2 = v2.getEntries().get(0);
+      assertEquals(7, (int) firstV2.getKeyCount());
+      assertEquals(16, (long) firstV2.getSize());
+      var expectedETag = factory.buildV2(null, now).orElseThrow().getETag();
+      assertEquals(expectedETag, "\"" + firstV2.getHash() + "\"");
+      assertEquals(
+          "/v2/gaen/exposed?lastKeyBundleTag="
+              + publisher.getV2BundleKeys(now, publishedUntil).get(0).getKeysSince().getTimestamp(),
+          firstV2.getUrl());
+
+      // only served for the bucket it was published for
+      assertFalse(manifests.getV2(publishedUntil.plus(BUCKET_LENGTH)).isPresent());
+
+      // a node finding all bundles in the caches records the same manifest without building
+      var otherManifests = new ExportManifests();
+      var otherFactory = new CountingFactory();
+      var other =
+          new ExportBundlePublisher(
+              otherFactory, v1Cache, v2Cache, BUCKET_LENGTH, RETENTION, 12, 1, otherManifests);
+      try {
+        other.publish();
+      } finally {
+        other.shutdown();
+      }
+      assertEquals(0, otherFactory.v1Builds.get() + otherFactory.v2Builds.get());
+      var otherV2 = otherManifests.getV2(publishedUntil).orElseThrow();
+      assertEquals(v2.getEntries().size(), otherV2.getEntries().size());
+      assertEquals(firstV2.getUrl(), otherV2.getEntries().get(0).getUrl());
+      assertEquals(firstV2.getHash(), otherV2.getEntries().get(0).getHash());
+      var otherV1 = otherManifests.getV1(publishedUntil).orElseThrow();
+      assertEquals(v1.getEntries().size(), otherV1.getEntries().size());
+    } finally {
+      publisher.shutdown();
+    }
+  }
+
+  @Test
+  public void testBundleKeysCoverRetentionPeriod() throws Exception {
+    var publisher =
+        new ExportBundlePublisher(
+            new CountingFactory(),
+            new ExportBundleCache<>("testV1", false, 1, BUCKET_LENGTH),
+            new ExportBundleCache<>("testV2", false, 1, BUCKET_LENGTH),
+            BUCKET_LENGTH,
+            RETENTION,
+            12,
+            1);
+    try {
+      var fourOClock = UTCInstant.today().plusHours(4).plusMinutes(5);
+      try (var now = UTCInstant.setClock(Clock.fixed(fourOClock.getInstant(), ZoneOffset.UTC))) {
+        var publishedUntil = now.roundToBucketStart(BUCKET_LENGTH);
+        var v1Keys = new HashSet<>(publisher.getV1BundleKeys(now, publishedUntil));
+        // today: no publishedafter plus 00:00, 02:00 and 04:00
+        assertTrue(v1Keys.contains(new GaenBundleKey(now.atStartOfDay(), null, publishedUntil)));
+        assertTrue(
+            v1Keys.contains(
+                new GaenBundleKey(
+                    now.atStartOfDay(), publishedUntil.getTimestamp(), publishedUntil)));
+        assertTrue(
+            v1Keys.contains(
+                new GaenBundleKey(now.atStartOfDay().minus(RETENTION), null, publishedUntil)));
+
+        var v2Keys = publisher.getV2BundleKeys(now, publishedUntil);
+        assertEquals(14, v2Keys.size());
+        var minimumTag = now.minus(RETENTION).roundToNextBucket(BUCKET_LENGTH);
+        assertEquals(minimumTag.getTimestamp(), v2Keys.get(0).getKeysSince().getTimestamp());
+      }
+    } finally {
+      publisher.shutdown();
+    }
+  }
+}
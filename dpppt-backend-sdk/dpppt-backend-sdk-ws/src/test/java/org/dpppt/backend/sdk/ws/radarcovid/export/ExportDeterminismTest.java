@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.List;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.Test;
+
+public class ExportDeterminismTest {
+
+  private final UTCInstant publishedUntil = UTCInstant.ofEpochMillis(1_600_000_000_000L);
+  private final UTCInstant keysSince = publishedUntil.minusDays(14);
+
+  @Test
+  public void sameBundleSameShuffle() {
+    var determinism = new ExportDeterminism("secret");
+    var otherNode = new ExportDeterminism("secret");
+
+    var bundle = new GaenV2BundleKey(keysSince, List.of("es", "DE"), List.of(), publishedUntil);
+    var sameBundle = new GaenV2BundleKey(keysSince, List.of("DE", "ES"), null, publishedUntil);
+    assertEquals(
+        determinism.shuffleRandom(bundle).nextLong(),
+        otherNode.shuffleRandom(sameBundle).nextLong());
+
+    var keyDate = publishedUntil.atStartOfDay().minusDays(2);
+    assertEquals(
+        determinism.shuffleRandom(new GaenBundleKey(keyDate, null, publishedUntil)).nextLong(),
+        otherNode.shuffleRandom(new GaenBundleKey(keyDate, 0L, publishedUntil)).nextLong());
+    assertArrayEquals(determinism.seed("fake-keys"), otherNode.seed("fake-keys"));
+  }
+
+  @Test
+  public void differentBundleOrSecretDifferentShuffle() {
+    var determinism = new ExportDeterminism("secret");
+    var bundle = new GaenV2BundleKey(keysSince, List.of("ES"), List.of(), publishedUntil);
+
+    assertNotEquals(
+        determinism.shuffleRandom(bundle).nextLong(),
+        determinism
+            .shuffleRandom(new GaenV2BundleKey(keysSince, List.of(), List.of("ES"), publishedUntil))
+            .nextLong());
+    var nextBucket =
+        new GaenV2BundleKey(keysSince, List.of("ES"), List.of(), publishedUntil.plusHours(2));
+    assertNotEquals(
+        determinism.shuffleRandom(bundle).nextLong(),
+        determinism.shuffleRandom(nextBucket).nextLong());
+    assertNotEquals(
+        determinism.shuffleRandom(bundle).nextLong(),
+        new ExportDeterminism("other").shuffleRandom(bundle).nextLong());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void secretIsRequired() {
+    new ExportDeterminism(" ");
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.dpppt.backend.sdk.data.gaen.GaenKeyPublication;
+import org.dpppt.backend.sdk.data.gaen.GaenKeyWatermark;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.insertmanager.MockDataSource;
+import org.junit.Test;
+
+public class ExportWatermarkTest {
+
+  private static final Duration BUCKET_LENGTH = Duration.ofHours(2);
+
+  private final UTCInstant bucketStart = UTCInstant.today().minusDays(1).plusHours(10);
+  private final UTCInstant keyDate = UTCInstant.today().minusDays(3);
+  // released in the current bucket
+  private final UTCInstant released = bucketStart.minusMinutes(1);
+
+  private class LatestDataSource extends MockDataSource {
+    UTCInstant before;
+
+    @Override
+    public GaenKeyWatermark getKeyWatermark(UTCInstant before) {
+      this.before = before;
+      return new GaenKeyWatermark(released, released);
+    }
+  }
+
+  private Clock at(UTCInstant instant) {
+    return Clock.fixed(instant.getInstant(), ZoneOffset.UTC);
+  }
+
+  private GaenV2BundleKey v2(UTCInstant keysSince) {
+    return new GaenV2BundleKey(keysSince, null, null, bucketStart);
+  }
+
+  private GaenBundleKey v1(UTCInstant publishedAfter) {
+    return new GaenBundleKey(
+        keyDate, publishedAfter == null ? null : publishedAfter.getTimestamp(), bucketStart);
+  }
+
+  private ExportWatermark refreshed(LatestDataSource dataSource, UTCInstant readAt)
+      throws Exception {
+    var watermark = new ExportWatermark(dataSource, true, BUCKET_LENGTH);
+    try (var now = UTCInstant.setClock(at(readAt))) {
+      watermark.refresh();
+    }
+    return watermark;
+  }
+
+  @Test
+  public void testCurrentBucketTagIsAlwaysEmpty() {
+    assertTrue(ExportWatermark.disabled().isEmpty(v2(bucketStart)));
+    assertFalse(ExportWatermark.disabled().isEmpty(v2(bucketStart.minus(BUCKET_LENGTH))));
+    assertFalse(ExportWatermark.disabled().isEmpty(v1(null)));
+  }
+
+  @Test
+  public void testOnlyTheKeysReleasedUpToTheBucketAreRead() throws Exception {
+    var dataSource = new LatestDataSource();
+    refreshed(dataSource, bucketStart.plusMinutes(5));
+    assertEquals(bucketStart.getTimestamp(), dataSource.before.getTimestamp());
+  }
+
+  @Test
+  public void testV2UsesTheLatestPublishTime() throws Exception {
+    var watermark = new ExportWatermark(new LatestDataSource(), true, BUCKET_LENGTH);
+    var previousBucket = bucketStart.minus(BUCKET_LENGTH);
+    try (var now = UTCInstant.setClock(at(bucketStart.plusMinutes(5)))) {
+      assertFalse(watermark.isEmpty(v2(previousBucket)));
+      watermark.refresh();
+    }
+    assertFalse(watermark.isEmpty(v2(previousBucket)));
+    assertFalse(watermark.isEmpty(v2(released)));
+    assertTrue(watermark.isEmpty(v2(released.plusSeconds(1))));
+  }
+
+  @Test
+  public void testV1UsesTheLatestReceivedAt() throws Exception {
+    var watermark = refreshed(new LatestDataSource(), bucketStart.plusMinutes(5));
+    assertFalse(watermark.isEmpty(v1(null)));
+    assertFalse(watermark.isEmpty(v1(released)));
+    assertTrue(watermark.isEmpty(v1(released.plusSeconds(1))));
+  }
+
+  @Test
+  public void testTimesReadBeforeTheBucketAreNotUsed() throws Exception {
+    var watermark = refreshed(new LatestDataSource(), bucketStart.plusSeconds(5));
+    assertFalse(watermark.isEmpty(v2(released.plusSeconds(1))));
+    assertFalse(watermark.isEmpty(v1(released.plusSeconds(1))));
+  }
+
+  @Test
+  public void testInsertedKeysAreUsedBeforeTheNextRefresh() throws Exception {
+    var watermark = refreshed(new LatestDataSource(), bucketStart.plusMinutes(5));
+    var since = released.plusSeconds(1);
+    assertTrue(watermark.isEmpty(v1(since)));
+    assertTrue(watermark.isEmpty(v2(since)));
+
+    // received in the current bucket, released in the next one
+    var next = bucketStart.plus(BUCKET_LENGTH).minusMinutes(1);
+    watermark.inserted(List.of(new GaenKeyPublication("PT", keyDate, next, next)));
+    assertTrue(watermark.isEmpty(v1(since)));
+    assertTrue(watermark.isEmpty(v2(since)));
+
+    // keys imported into the bucket released now
+    var received = bucketStart.minusSeconds(30);
+    watermark.inserted(List.of(new GaenKeyPublication("IT", keyDate, received, received)));
+    assertFalse(watermark.isEmpty(v1(since)));
+    assertFalse(watermark.isEmpty(v2(since)));
+  }
+
+  @Test
+  public void testKeysInsertedDuringRefreshAreKept() throws Exception {
+    var received = bucketStart.minusSeconds(30);
+    var watermark = new AtomicReference<ExportWatermark>();
+    var dataSource =
+        new LatestDataSource() {
+          @Override
+          public GaenKeyWatermark getKeyWatermark(UTCInstant before) {
+            // inserted by this node while the times are read, but not yet committed
+            watermark
+                .get()
+                .inserted(List.of(new GaenKeyPublication("IT", keyDate, received, received)));
+            return super.getKeyWatermark(before);
+          }
+        };
+    watermark.set(new ExportWatermark(dataSource, true, BUCKET_LENGTH));
+    try (var now = UTCInstant.setClock(at(bucketStart.plusMinutes(5)))) {
+      watermark.get().refresh();
+    }
+    assertFalse(watermark.get().isEmpty(v2(released.plusSeconds(1))));
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.junit.Test;
+
+public class GaenV2BundleKeyTest {
+
+  private static final Duration BUCKET_LENGTH = Duration.ofHours(2);
+
+  @Test
+  public void testCountriesAreNormalized() {
+    var since = UTCInstant.today().minusDays(3);
+    var publishedUntil = UTCInstant.now().roundToBucketStart(BUCKET_LENGTH);
+
+    var key = new GaenV2BundleKey(since, List.of("pt", "DE", "de", " it"), null, publishedUntil);
+    assertEquals(List.of("DE", "IT", "PT"), key.getVisitedCountries());
+    assertEquals(Collections.emptyList(), key.getOriginCountries());
+
+    var equivalent =
+        new GaenV2BundleKey(
+            since, List.of("IT", "PT", "DE"), Collections.emptyList(), publishedUntil);
+    assertEquals(key, equivalent);
+    assertEquals(key.hashCode(), equivalent.hashCode());
+  }
+
+  @Test
+  public void testVisitedAndOriginAreDistinguished() {
+    var since = UTCInstant.today().minusDays(3);
+    var publishedUntil = UTCInstant.now().roundToBucketStart(BUCKET_LENGTH);
+
+    var visited = new GaenV2BundleKey(since, List.of("ES"), null, publishedUntil);
+    var origin = new GaenV2BundleKey(since, null, List.of("ES"), publishedUntil);
+    assertNotEquals(visited, origin);
+
+    var nextBucket =
+        new GaenV2BundleKey(since, List.of("ES"), null, publishedUntil.plus(BUCKET_LENGTH));
+    assertNotEquals(visited, nextBucket);
+  }
+
+  @Test
+  public void testBatchesAreCachedTogether() throws Exception {
+    var cache = new ExportBundleCache<GaenV2BundleKey>("testV2", true, 100, BUCKET_LENGTH);
+    var since = UTCInstant.today().minusDays(3);
+    var publishedUntil = UTCInstant.now().roundToBucketStart(BUCKET_LENGTH);
+    var first = new GaenV2BundleKey(since, null, null, publishedUntil);
+    var second = first.withBatchNum(2);
+    assertNotEquals(first, second);
+    assertEquals(first, second.withBatchNum(1));
+
+    Map<GaenV2BundleKey, Optional<ProtoSignatureWrapper>> batches =
+        Map.of(
+            first, Optional.of(new ProtoSignatureWrapper(new byte[32], new byte[16], 1, 2)),
+            second, Optional.of(new ProtoSignatureWrapper(new byte[32], new byte[16], 2, 2)));
+    var batch = cache.getBatch(second, () -> batches);
+    assertEquals(2, batch.get().getBatchNum());
+    assertTrue(cache.contains(first));
+  }
+
+  @Test
+  public void testBundlesAreWeighedByBytes() throws Exception {
+    var cache =
+        ExportBundleCache.<GaenV2BundleKey>boundedByBytes("testV2", true, 4096, BUCKET_LENGTH);
+    var publishedUntil = UTCInstant.now().roundToBucketStart(BUCKET_LENGTH);
+    var since = UTCInstant.today().minusDays(3);
+    for (int i = 0; i < 10; i++) {
+      var key = new GaenV2BundleKey(since.plusHours(2 * i), null, null, publishedUntil);
+      cache.get(
+          key,
+          () -> Optional.of(new ProtoSignatureWrapper(new byte[32], new byte[1024])));
+    }
+    // every bundle weighs more than 1kB, so at most 3 of them fit into 4kB
+    assertTrue(cache.size() <= 3);
+  }
+}
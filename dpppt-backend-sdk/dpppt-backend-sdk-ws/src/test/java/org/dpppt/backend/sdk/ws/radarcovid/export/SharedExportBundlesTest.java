@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.javacrumbs.shedlock.core.LockConfiguration;
+import net.javacrumbs.shedlock.core.LockProvider;
+import net.javacrumbs.shedlock.core.SimpleLock;
+import org.dpppt.backend.sdk.data.gaen.GaenBundleDataService;
+import org.dpppt.backend.sdk.data.gaen.StoredGaenBundle;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.junit.Test;
+import org.springframework.dao.DuplicateKeyException;
+
+public class SharedExportBundlesTest {
+
+  private static final Duration BUCKET_LENGTH = Duration.ofHours(2);
+
+  private static class InMemoryBundles implements GaenBundleDataService {
+    final Map<String, List<StoredGaenBundle>> bundles = new ConcurrentHashMap<>();
+
+    @Override
+    public List<StoredGaenBundle> getBundles(String exportId) {
+      return bundles.getOrDefault(exportId, List.of());
+    }
+
+    @Override
+    public void insertBundles(
+        String exportId, UTCInstant publishedUntil, List<StoredGaenBundle> stored) {
+      if (bundles.putIfAbsent(exportId, stored) != null) {
+        throw new DuplicateKeyException(exportId);
+      }
+    }
+
+    @Override
+    public void cleanDB(UTCInstant publishedUntil) {
+      bundles.clear();
+    }
+  }
+
+  private static class InMemoryLocks implements LockProvider {
+    final Set<String> held = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public Optional<SimpleLock> lock(LockConfiguration lockConfiguration) {
+      var name = lockConfiguration.getName();
+      if (!held.add(name)) {
+        return Optional.empty();
+      }
+      return Optional.of(() -> held.remove(name));
+    }
+  }
+
+  private GaenV2BundleKey key() {
+    return new GaenV2BundleKey(
+        UTCInstant.today().minusDays(3),
+        null,
+        null,
+        UTCInstant.now().roundToBucketStart(BUCKET_LENGTH));
+  }
+
+  private ExportBatchesBuilder<GaenV2BundleKey> twoBatches(
+      GaenV2BundleKey key, AtomicInteger builds) {
+    return () -> {
+      builds.incrementAndGet();
+      var batches = new HashMap<GaenV2BundleKey, Optional<ProtoSignatureWrapper>>();
+      batches.put(
+          key, Optional.of(new ProtoSignatureWrapper(new byte[] {1}, new byte[] {10}, 1, 2)));
+      batches.put(
+          key.withBatchNum(2),
+          Optional.of(new ProtoSignatureWrapper(new byte[] {2}, new byte[] {20}, 2, 2)));
+      return batches;
+    };
+  }
+
+  @Test
+  public void testExportIsBuiltByOneNode() throws Exception {
+    var dataService = new InMemoryBundles();
+    var locks = new InMemoryLocks();
+    var node1 = new SharedExportBundles(dataService, locks, true, Duration.ofSeconds(10));
+    var node2 = new SharedExportBundles(dataService, locks, true, Duration.ofSeconds(10));
+    var key = key();
+    var builds = new AtomicInteger();
+
+    var built = node1.v2(key, twoBatches(key, builds)).build();
+    var read = node2.v2(key.withBatchNum(2), twoBatches(key, builds)).build();
+    assertEquals(1, builds.get());
+    assertEquals(2, read.size());
+    var batch2 = read.get(key.withBatchNum(2)).get();
+    assertArrayEquals(new byte[] {20}, batch2.getZip());
+    assertEquals(2, batch2.getBatchNum());
+    assertEquals(2, batch2.getBatchSize());
+    assertEquals(built.get(key).get().getETag(), read.get(key).get().getETag());
+    assertTrue(locks.held.isEmpty());
+  }
+
+  @Test
+  public void testEmptyExportIsShared() throws Exception {
+    var dataService = new InMemoryBundles();
+    var shared =
+        new SharedExportBundles(dataService, new InMemoryLocks(), true, Duration.ofSeconds(10));
+    var key = new GaenBundleKey(UTCInstant.today(), null, key().getPublishedUntil());
+    var builds = new AtomicInteger();
+    ExportBundleBuilder builder =
+        () -> {
+          builds.incrementAndGet();
+          return Optional.empty();
+        };
+    assertFalse(shared.v1(key, builder).build().isPresent());
+    assertFalse(shared.v1(key, builder).build().isPresent());
+    assertEquals(1, builds.get());
+  }
+
+  @Test
+  public void testNodeBuildsLocallyIfLockIsNotReleased() throws Exception {
+    var dataService = new InMemoryBundles();
+    var locks =
+        new InMemoryLocks() {
+          @Override
+          public Optional<SimpleLock> lock(LockConfiguration lockConfiguration) {
+            // another node holds every lock and never stores the export
+            return Optional.empty();
+          }
+        };
+    var shared = new SharedExportBundles(dataService, locks, true, Duration.ofMillis(500));
+    var key = key();
+    var builds = new AtomicInteger();
+
+    var batches = shared.v2(key, twoBatches(key, builds)).build();
+    assertEquals(1, builds.get());
+    assertEquals(2, batches.size());
+    assertTrue(dataService.bundles.isEmpty());
+  }
+
+  @Test
+  public void testDisabledPassesTheBuilderThrough() {
+    var key = key();
+    ExportBatchesBuilder<GaenV2BundleKey> builder = twoBatches(key, new AtomicInteger());
+    assertSame(builder, SharedExportBundles.disabled().v2(key, builder));
+  }
+}
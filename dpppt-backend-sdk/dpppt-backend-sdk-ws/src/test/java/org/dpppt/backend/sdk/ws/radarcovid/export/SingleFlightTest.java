@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.radarcovid.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+  private static final int REQUESTS = 8;
+
+  @Test
+  public void testConcurrentRequestsShareOneBuild() throws Exception {
+    var flights = new SingleFlight<String, Object>();
+    var builds = new AtomicInteger();
+    var release = new CountDownLatch(1);
+    var value = new Object();
+    SingleFlight.Builder<Object> builder =
+        () -> {
+          builds.incrementAndGet();
+          await(release);
+          return value;
+        };
+
+    var executor = Executors.newFixedThreadPool(REQUESTS);
+    try {
+      var results = new ArrayList<Future<Object>>();
+      results.add(executor.submit(() -> flights.get("export", builder)));
+      while (flights.inFlight() == 0) {
+        Thread.sleep(10);
+      }
+      for (int i = 1; i < REQUESTS; i++) {
+        results.add(executor.submit(() -> flights.get("export", builder)));
+      }
+      Thread.sleep(100);
+      release.countDown();
+      for (var result : results) {
+        assertSame(value, result.get(10, TimeUnit.SECONDS));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, builds.get());
+    assertEquals(0, flights.inFlight());
+
+    // the next request after the build starts a new one
+    flights.get("export", builder);
+    assertEquals(2, builds.get());
+  }
+
+  @Test
+  public void testFailureIsReportedToWaitingRequests() throws Exception {
+    var flights = new SingleFlight<String, Object>();
+    var release = new CountDownLatch(1);
+    SingleFlight.Builder<Object> builder =
+        () -> {
+          await(release);
+          throw new IOException("database unavailable");
+        };
+
+    var executor = Executors.newFixedThreadPool(2);
+    try {
+      var first = executor.submit(() -> flights.get("export", builder));
+      while (flights.inFlight() == 0) {
+        Thread.sleep(10);
+      }
+      var second = executor.submit(() -> flights.get("export", builder));
+      Thread.sleep(100);
+      release.countDown();
+      assertFails(first);
+      assertFails(second);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testWaitingRequestDoesNotBuild() throws Exception {
+    var flights = new SingleFlight<String, Object>();
+    var builds = new AtomicInteger();
+    var release = new CountDownLatch(1);
+    var value = new Object();
+
+    var executor = Executors.newFixedThreadPool(2);
+    try {
+      executor.submit(
+          () ->
+              flights.get(
+                  "export",
+                  () -> {
+                    builds.incrementAndGet();
+                    await(release);
+                    return value;
+                  }));
+      while (flights.inFlight() == 0) {
+        Thread.sleep(10);
+      }
+      var waiting =
+          executor.submit(
+              () ->
+                  flights.get(
+                      "export",
+                      () -> {
+                        builds.incrementAndGet();
+                        return new Object();
+                      }));
+      // however long the build takes
+      Thread.sleep(500);
+      assertFalse(waiting.isDone());
+      release.countDown();
+      assertSame(value, waiting.get(10, TimeUnit.SECONDS));
+      assertEquals(1, builds.get());
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  private static void assertFails(Future<Object> result) throws Exception {
+    try {
+      result.get(10, TimeUnit.SECONDS);
+      fail("the build should have failed");
+    } catch (ExecutionException e) {
+      assertEquals("database unavailable", e.getCause().getMessage());
+    }
+  }
+
+  private static void await(CountDownLatch latch) throws IOException {
+    try {
+      latch.await(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.security.signature;
+
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayOutputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.model.gaen.GaenUnit;
+import org.dpppt.backend.sdk.model.gaen.proto.v2.TemporaryExposureKeyFormatV2;
+import org.dpppt.backend.sdk.model.gaen.proto.v2.TemporaryExposureKeyFormatV2.TemporaryExposureKey.ReportType;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the export assembly of {@link ProtoSignature} with the previous implementation, which
+ * serialized the whole export, copied it behind the magic header and walked it twice, once for the
+ * SHA256withECDSA signature and once for the hash. Not run by surefire, start it with {@link
+ * #main(String[])} from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProtoSignatureBenchmark {
+
+  private static final String ALGORITHM = "1.2.840.10045.4.3.2";
+  private static final byte[] EXPORT_MAGIC = "EK Export v1    ".getBytes();
+
+  @Param({"1000", "100000", "1000000"})
+  public int keyCount;
+
+  private KeyPair keyPair;
+  private ProtoSignature protoSignature;
+  private List<GaenKey> keys;
+
+  @Setup
+  public void setup() throws Exception {
+    var generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(new ECGenParameterSpec("secp256r1"));
+    keyPair = generator.generateKeyPair();
+    protoSignature =
+        new ProtoSignature(
+            ALGORITHM, keyPair, "bundleId", "apkPackage", "v1", "214", "ES", Duration.ofHours(2));
+
+    var random = new Random(1);
+    var rollingStart = (int) UTCInstant.today().minusDays(1).get10MinutesSince1970();
+    keys = new ArrayList<>(keyCount);
+    for (int i = 0; i < keyCount; i++) {
+      byte[] keyData = new byte[16];
+      random.nextBytes(keyData);
+      keys.add(
+          new GaenKey(
+              Base64.getEncoder().encodeToString(keyData),
+              rollingStart,
+              144,
+              0,
+              "ES",
+              1,
+              0L,
+              false,
+              List.of("ES")));
+    }
+  }
+
+  @Benchmark
+  public byte[] getPayload() throws Exception {
+    return protoSignature.getPayload(keys).getZip();
+  }
+
+  @Benchmark
+  public byte[] getPayloadV2() throws Exception {
+    return protoSignature.getPayloadV2(keys).getZip();
+  }
+
+  @Benchmark
+  public byte[] legacyPayloadV2() throws Exception {
+    Collections.shuffle(keys);
+    var keyDate = Duration.of(keys.get(0).getRollingStartNumber(), GaenUnit.TenMinutes);
+    var file =
+        TemporaryExposureKeyFormatV2.TemporaryExposureKeyExport.newBuilder()
+            .setRegion("ES")
+            .setBatchNum(1)
+            .setBatchSize(1)
+            .setStartTimestamp(keyDate.toSeconds())
+            .setEndTimestamp(keyDate.toSeconds() + Duration.ofHours(2).toSeconds())
+            .addSignatureInfos(signatureInfo());
+    for (var key : keys) {
+      file.addKeys(
+          TemporaryExposureKeyFormatV2.TemporaryExposureKey.newBuilder()
+              .setKeyData(ByteString.copyFrom(Base64.getDecoder().decode(key.getKeyData())))
+              .setRollingPeriod(key.getRollingPeriod())
+              .setRollingStartIntervalNumber(key.getRollingStartNumber())
+              .setDaysSinceOnsetOfSymptoms(key.getDaysSinceOnsetOfSymptons().intValue())
+              .setReportType(ReportType.forNumber(key.getReportType())));
+    }
+
+    byte[] protoFileBytes = file.build().toByteArray();
+    byte[] exportBin = new byte[EXPORT_MAGIC.length + protoFileBytes.length];
+    System.arraycopy(EXPORT_MAGIC, 0, exportBin, 0, EXPORT_MAGIC.length);
+    System.arraycopy(protoFileBytes, 0, exportBin, EXPORT_MAGIC.length, protoFileBytes.length);
+
+    ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+    ZipOutputStream zip = new ZipOutputStream(byteOut);
+    zip.putNextEntry(new ZipEntry("export.bin"));
+    zip.write(exportBin);
+    zip.closeEntry();
+
+    Signature signature = Signature.getInstance("SHA256withECDSA");
+    signature.initSign(keyPair.getPrivate());
+    signature.update(exportBin);
+    var signatureList =
+        TemporaryExposureKeyFormatV2.TEKSignatureList.newBuilder()
+            .addSignatures(
+                TemporaryExposureKeyFormatV2.TEKSignature.newBuilder()
+                    .setSignatureInfo(signatureInfo())
+                    .setSignature(ByteString.copyFrom(signature.sign()))
+                    .setBatchNum(1)
+                    .setBatchSize(1))
+            .build();
+    zip.putNextEntry(new ZipEntry("export.sig"));
+    zip.write(signatureList.toByteArray());
+    zip.closeEntry();
+    zip.close();
+
+    var digest = MessageDigest.getInstance("SHA256");
+    digest.update(exportBin);
+    digest.update(keyPair.getPublic().getEncoded());
+    digest.digest();
+    return byteOut.toByteArray();
+  }
+
+  private TemporaryExposureKeyFormatV2.SignatureInfo signatureInfo() {
+    return TemporaryExposureKeyFormatV2.SignatureInfo.newBuilder()
+        .setVerificationKeyVersion("v1")
+        .setVerificationKeyId("214")
+        .setSignatureAlgorithm(ALGORITHM)
+        .build();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder().include(ProtoSignatureBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
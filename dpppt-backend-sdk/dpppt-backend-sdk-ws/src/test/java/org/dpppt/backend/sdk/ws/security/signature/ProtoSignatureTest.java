@@ -0,0 +1,457 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+
+package org.dpppt.backend.sdk.ws.security.signature;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipInputStream;
+import org.dpppt.backend.sdk.model.gaen.GaenKey;
+import org.dpppt.backend.sdk.model.gaen.GaenKeyBatch;
+import org.dpppt.backend.sdk.model.gaen.GaenUnit;
+import org.dpppt.backend.sdk.model.gaen.proto.TemporaryExposureKeyFormat;
+import org.dpppt.backend.sdk.model.gaen.proto.v2.TemporaryExposureKeyFormatV2;
+import org.dpppt.backend.sdk.model.gaen.proto.v2.TemporaryExposureKeyFormatV2.TemporaryExposureKey.ReportType;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.dpppt.backend.sdk.ws.security.signature.ProtoSignature.ProtoSignatureWrapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ProtoSignatureTest {
+
+  private static final int EXPORT_MAGIC_LENGTH = 16;
+  private static final int KEY_COUNT = 1000;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final KeyPair keyPair = generateKeyPair();
+  private final ProtoSignature protoSignature =
+      new ProtoSignature(
+          "1.2.840.10045.4.3.2",
+          keyPair,
+          "bundleId",
+          "apkPackage",
+          "v1",
+          "214",
+          "ES",
+          Duration.ofHours(2));
+
+  @Test
+  public void streamedExportMatchesSerializedMessage() throws Exception {
+    var wrapper = protoSignature.getPayload(generateKeys(KEY_COUNT));
+    var entries = unzip(wrapper);
+    var exportBin = entries.get("export.bin");
+    var keyProto = Arrays.copyOfRange(exportBin, EXPORT_MAGIC_LENGTH, exportBin.length);
+
+    var export = TemporaryExposureKeyFormat.TemporaryExposureKeyExport.parseFrom(keyProto);
+    assertEquals(KEY_COUNT, export.getKeysCount());
+    assertEquals("ES", export.getRegion());
+    assertArrayEquals(export.toByteArray(), keyProto);
+
+    var signatureList =
+        TemporaryExposureKeyFormat.TEKSignatureList.parseFrom(entries.get("export.sig"));
+    assertTrue(verify(exportBin, signatureList.getSignatures(0).getSignature().toByteArray()));
+  }
+
+  @Test
+  public void streamedExportV2MatchesSerializedMessage() throws Exception {
+    var wrapper = protoSignature.getPayloadV2(generateKeys(KEY_COUNT));
+    var entries = unzip(wrapper);
+    var exportBin = entries.get("export.bin");
+    var keyProto = Arrays.copyOfRange(exportBin, EXPORT_MAGIC_LENGTH, exportBin.length);
+
+    var export = TemporaryExposureKeyFormatV2.TemporaryExposureKeyExport.parseFrom(keyProto);
+    assertEquals(KEY_COUNT, export.getKeysCount());
+    assertArrayEquals(export.toByteArray(), keyProto);
+
+    var signatureList =
+        TemporaryExposureKeyFormatV2.TEKSignatureList.parseFrom(entries.get("export.sig"));
+    assertTrue(verify(exportBin, signatureList.getSignatures(0).getSignature().toByteArray()));
+  }
+
+  @Test
+  public void deterministicExportsAreByteIdentical() throws Exception {
+    var keys = generateKeys(KEY_COUNT);
+    var reversed = new ArrayList<>(keys);
+    Collections.reverse(reversed);
+
+    var first = deterministicSigner().getPayloadV2(keys, new Random(42));
+    var second = deterministicSigner().getPayloadV2(reversed, new Random(42));
+    assertArrayEquals(first.getZip(), second.getZip());
+    assertArrayEquals(first.getHash(), second.getHash());
+
+    var entries = unzip(first);
+    var signatureList =
+        TemporaryExposureKeyFormatV2.TEKSignatureList.parseFrom(entries.get("export.sig"));
+    assertTrue(
+        verify(
+            entries.get("export.bin"),
+            signatureList.getSignatures(0).getSignature().toByteArray()));
+
+    var otherShuffle = deterministicSigner().getPayloadV2(keys, new Random(43));
+    assertFalse(Arrays.equals(first.getZip(), otherShuffle.getZip()));
+  }
+
+  @Test
+  public void eTagIdentifiesTheKeysNotTheZip() throws Exception {
+    var keys = generateKeys(KEY_COUNT);
+    var reversed = new ArrayList<>(keys);
+    Collections.reverse(reversed);
+
+    var first = protoSignature.getPayloadV2(keys);
+    var rebuilt = protoSignature.getPayloadV2(reversed);
+    assertFalse(Arrays.equals(first.getZip(), rebuilt.getZip()));
+    assertEquals(first.getETag(), rebuilt.getETag());
+    assertEquals(
+        first.getETag(), deterministicSigner().getPayloadV2(keys, new Random(42)).getETag());
+    assertTrue(first.getETag().matches("\"[0-9a-f]{64}\""));
+
+    assertFalse(first.getETag().equals(protoSignature.getPayload(keys).getETag()));
+    assertFalse(
+        first.getETag().equals(protoSignature.getPayloadV2(keys.subList(1, KEY_COUNT)).getETag()));
+  }
+
+  @Test
+  public void batchExportShufflesLikeCollections() throws Exception {
+    var keys = generateKeys(KEY_COUNT);
+    var expected = new ArrayList<>(keys);
+    expected.sort((a, b) -> Arrays.compare(a.getKeyBytes(), b.getKeyBytes()));
+    Collections.shuffle(expected, new Random(42));
+
+    var wrapper = deterministicSigner().getPayloadV2(keys, new Random(42));
+    var exportBin = unzip(wrapper).get("export.bin");
+    var export =
+        TemporaryExposureKeyFormatV2.TemporaryExposureKeyExport.parseFrom(
+            Arrays.copyOfRange(exportBin, EXPORT_MAGIC_LENGTH, exportBin.length));
+    assertEquals(KEY_COUNT, export.getKeysCount());
+    for (int i = 0; i < KEY_COUNT; i++) {
+      var exported = export.getKeys(i);
+      assertArrayEquals(expected.get(i).getKeyBytes(), exported.getKeyData().toByteArray());
+      assertEquals(
+          (int) expected.get(i).getRollingStartNumber(), exported.getRollingStartIntervalNumber());
+      assertEquals(
+          expected.get(i).getDaysSinceOnsetOfSymptons().intValue(),
+          exported.getDaysSinceOnsetOfSymptoms());
+    }
+  }
+
+  @Test
+  public void encodedKeysMatchTheGeneratedMessages() throws Exception {
+    var keys = generateKeys(KEY_COUNT);
+    for (int i = 0; i < keys.size(); i++) {
+      keys.get(i).setTransmissionRiskLevel(i % 9);
+      keys.get(i).setReportType(i % 6);
+      keys.get(i).setDaysSinceOnsetOfSymptons((long) (i % 29 - 14));
+    }
+    var batch = GaenKeyBatch.of(keys);
+
+    var v1 = TemporaryExposureKeyFormat.TemporaryExposureKeyExport.newBuilder();
+    var v2 = TemporaryExposureKeyFormatV2.TemporaryExposureKeyExport.newBuilder();
+    for (int i = 0; i < batch.size(); i++) {
+      v1.addKeys(
+          TemporaryExposureKeyFormat.TemporaryExposureKey.newBuilder()
+              .setKeyData(ByteString.copyFrom(batch.getKeyData(i)))
+              .setRollingPeriod(batch.getRollingPeriod(i))
+              .setRollingStartIntervalNumber(batch.getRollingStartNumber(i))
+              .setTransmissionRiskLevel(batch.getTransmissionRiskLevel(i)));
+      v2.addKeys(
+          TemporaryExposureKeyFormatV2.TemporaryExposureKey.newBuilder()
+              .setKeyData(ByteString.copyFrom(batch.getKeyData(i)))
+              .setRollingPeriod(batch.getRollingPeriod(i))
+              .setRollingStartIntervalNumber(batch.getRollingStartNumber(i))
+              .setDaysSinceOnsetOfSymptoms(batch.getDaysSinceOnset(i))
+              .setReportType(ReportType.forNumber(batch.getReportType(i))));
+    }
+
+    assertArrayEquals(v1.build().toByteArray(), encode(ExportKeyRecords.of(batch, false)));
+    assertArrayEquals(v2.build().toByteArray(), encode(ExportKeyRecords.of(batch, true)));
+  }
+
+  @Test
+  public void streamedExportEqualsBatchExport() throws Exception {
+    var keys = GaenKeyBatch.of(generateKeys(KEY_COUNT));
+    var streamed = ExportKeyRecords.v2();
+    for (int i = 0; i < keys.size(); i++) {
+      streamed.handle(
+          keys.getKeyData(i),
+          keys.getRollingStartNumber(i),
+          keys.getRollingPeriod(i),
+          keys.getTransmissionRiskLevel(i),
+          keys.getReportType(i),
+          keys.getDaysSinceOnset(i));
+    }
+
+    var expected = deterministicSigner().getPayloadV2(keys, new Random(42));
+    var actual = deterministicSigner().getPayload(streamed, new Random(42));
+    assertArrayEquals(expected.getZip(), actual.getZip());
+  }
+
+  @Test
+  public void spooledExportEqualsExportOnHeap() throws Exception {
+    var keys = GaenKeyBatch.of(generateKeys(KEY_COUNT));
+    Path spoolDirectory = folder.getRoot().toPath().resolve("spool");
+    var spoolingSigner =
+        new ProtoSignature(
+            "1.2.840.10045.4.3.2",
+            keyPair,
+            "bundleId",
+            "apkPackage",
+            "v1",
+            "214",
+            "ES",
+            Duration.ofHours(2),
+            true,
+            spoolDirectory);
+
+    var expected = deterministicSigner().getPayloadV2(keys, new Random(42));
+    var spooled = spoolingSigner.getPayloadV2(keys, new Random(42));
+    assertEquals(1, spoolFiles(spoolDirectory));
+    assertArrayEquals(expected.getZip(), spooled.getZip());
+    assertEquals(expected.getSize(), spooled.getSize());
+    assertArrayEquals(expected.getHash(), spooled.getHash());
+    assertArrayEquals(
+        MessageDigest.getInstance("SHA-256").digest(expected.getZip()), spooled.getContentHash());
+    assertArrayEquals(expected.getContentHash(), spooled.getContentHash());
+    try (var in = spooled.toResource().getInputStream()) {
+      assertArrayEquals(expected.getZip(), in.readAllBytes());
+    }
+  }
+
+  @Test
+  public void releasedSpoolFileIsDeletedAfterTheLastResponse() throws Exception {
+    Path spoolDirectory = folder.getRoot().toPath().resolve("spool");
+    var spooled = spoolingSigner(spoolDirectory).getPayloadV2(generateKeys(KEY_COUNT));
+    var resource = spooled.toResource();
+    spooled.release();
+    assertEquals(1, spoolFiles(spoolDirectory));
+
+    try (var in = resource.getInputStream()) {
+      assertArrayEquals(spooled.getZip(), in.readAllBytes());
+    }
+    assertEquals(0, spoolFiles(spoolDirectory));
+  }
+
+  @Test
+  public void spoolFilesOfEndedProcessesAreSweptAtStart() throws Exception {
+    Path spoolDirectory = folder.getRoot().toPath().resolve("spool");
+    // beyond the maximum process id of Linux
+    Path endedProcess = Files.createDirectories(spoolDirectory.resolve("999999999"));
+    Files.write(endedProcess.resolve("export-1.zip"), new byte[] {1});
+    Path ownProcess =
+        Files.createDirectories(
+            spoolDirectory.resolve(Long.toString(ProcessHandle.current().pid())));
+    Path beforeStart = Files.write(ownProcess.resolve("export-2.zip"), new byte[] {2});
+    Files.setLastModifiedTime(beforeStart, FileTime.fromMillis(0));
+    Path unrelated = Files.write(spoolDirectory.resolve("unrelated.txt"), new byte[] {3});
+
+    spoolingSigner(spoolDirectory);
+    assertFalse(Files.exists(endedProcess));
+    assertFalse(Files.exists(beforeStart));
+    assertTrue(Files.exists(unrelated));
+  }
+
+  @Test
+  public void chunkedEncodingEqualsSequentialEncoding() throws Exception {
+    // more than two chunks, the last one partial
+    var keys = GaenKeyBatch.of(generateKeys(ExportKeyRecords.PARALLEL_CHUNK_KEYS * 2 + 100));
+    var sequential = ExportKeyRecords.v2();
+    var streamed = ExportKeyRecords.chunked(true);
+    for (int i = 0; i < keys.size(); i++) {
+      for (var handler : List.of(sequential, streamed)) {
+        handler.handle(
+            keys.getKeyData(i),
+            keys.getRollingStartNumber(i),
+            keys.getRollingPeriod(i),
+            keys.getTransmissionRiskLevel(i),
+            keys.getReportType(i),
+            keys.getDaysSinceOnset(i));
+      }
+    }
+
+    var chunked = streamed.finish();
+    int last = keys.size() - 1;
+    assertEquals(keys.size(), chunked.size());
+    assertEquals(keys.getRollingStartNumber(last), chunked.getRollingStartNumber(last));
+    assertArrayEquals(encode(sequential), encode(chunked));
+    assertArrayEquals(encode(sequential), encode(ExportKeyRecords.of(keys, true)));
+  }
+
+  @Test
+  public void batchesSplitTheShuffledKeys() throws Exception {
+    var keys = GaenKeyBatch.of(generateKeys(KEY_COUNT));
+    var single = exportedKeys(deterministicSigner().getPayloadV2(keys, new Random(42)));
+
+    var batches =
+        deterministicSigner()
+            .getPayloadBatches(ExportKeyRecords.of(keys, true), new Random(42), 300);
+    assertEquals(4, batches.size());
+    var batchedKeys = new ArrayList<TemporaryExposureKeyFormatV2.TemporaryExposureKey>();
+    var eTags = new HashSet<String>();
+    for (int i = 0; i < batches.size(); i++) {
+      var batch = batches.get(i);
+      assertEquals(i + 1, batch.getBatchNum());
+      assertEquals(4, batch.getBatchSize());
+      eTags.add(batch.getETag());
+
+      var entries = unzip(batch);
+      var signatureList =
+          TemporaryExposureKeyFormatV2.TEKSignatureList.parseFrom(entries.get("export.sig"));
+      assertEquals(i + 1, signatureList.getSignatures(0).getBatchNum());
+      assertEquals(4, signatureList.getSignatures(0).getBatchSize());
+      assertTrue(
+          verify(
+              entries.get("export.bin"),
+              signatureList.getSignatures(0).getSignature().toByteArray()));
+
+      var exportBin = entries.get("export.bin");
+      var export =
+          TemporaryExposureKeyFormatV2.TemporaryExposureKeyExport.parseFrom(
+              Arrays.copyOfRange(exportBin, EXPORT_MAGIC_LENGTH, exportBin.length));
+      assertEquals(i + 1, export.getBatchNum());
+      assertEquals(4, export.getBatchSize());
+      assertEquals(i < 3 ? 300 : 100, export.getKeysCount());
+      batchedKeys.addAll(export.getKeysList());
+    }
+    assertEquals(single, batchedKeys);
+    assertEquals(4, eTags.size());
+  }
+
+  private List<TemporaryExposureKeyFormatV2.TemporaryExposureKey> exportedKeys(
+      ProtoSignatureWrapper wrapper) throws Exception {
+    var exportBin = unzip(wrapper).get("export.bin");
+    return TemporaryExposureKeyFormatV2.TemporaryExposureKeyExport.parseFrom(
+            Arrays.copyOfRange(exportBin, EXPORT_MAGIC_LENGTH, exportBin.length))
+        .getKeysList();
+  }
+
+  private byte[] encode(ExportKeyRecords records) throws Exception {
+    var out = new ByteArrayOutputStream();
+    var coded = CodedOutputStream.newInstance(out);
+    for (int i = 0; i < records.size(); i++) {
+      // keys are field 7 in both export formats
+      records.writeTo(coded, 7, i);
+    }
+    coded.flush();
+    return out.toByteArray();
+  }
+
+  private ProtoSignature spoolingSigner(Path spoolDirectory) {
+    return new ProtoSignature(
+        "1.2.840.10045.4.3.2",
+        keyPair,
+        "bundleId",
+        "apkPackage",
+        "v1",
+        "214",
+        "ES",
+        Duration.ofHours(2),
+        false,
+        spoolDirectory);
+  }
+
+  private long spoolFiles(Path spoolDirectory) throws Exception {
+    try (var files = Files.walk(spoolDirectory)) {
+      return files.filter(Files::isRegularFile).count();
+    }
+  }
+
+  private ProtoSignature deterministicSigner() {
+    return new ProtoSignature(
+        "1.2.840.10045.4.3.2",
+        keyPair,
+        "bundleId",
+        "apkPackage",
+        "v1",
+        "214",
+        "ES",
+        Duration.ofHours(2),
+        true,
+        null);
+  }
+
+  private Map<String, byte[]> unzip(ProtoSignatureWrapper wrapper) throws Exception {
+    Map<String, byte[]> entries = new HashMap<>();
+    try (var zip = new ZipInputStream(new ByteArrayInputStream(wrapper.getZip()))) {
+      for (var entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+        entries.put(entry.getName(), zip.readAllBytes());
+      }
+    }
+    assertNotNull(entries.get("export.bin"));
+    assertNotNull(entries.get("export.sig"));
+    return entries;
+  }
+
+  private boolean verify(byte[] exportBin, byte[] signature) throws Exception {
+    var verifier = Signature.getInstance("SHA256withECDSA");
+    verifier.initVerify(keyPair.getPublic());
+    verifier.update(exportBin);
+    return verifier.verify(signature);
+  }
+
+  private List<GaenKey> generateKeys(int count) {
+    var random = new SecureRandom();
+    var rollingStart = (int) UTCInstant.today().minusDays(1).get10MinutesSince1970();
+    List<GaenKey> keys = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      byte[] keyData = new byte[16];
+      random.nextBytes(keyData);
+      keys.add(
+          new GaenKey(
+              Base64.getEncoder().encodeToString(keyData),
+              rollingStart,
+              (int) Duration.ofDays(1).dividedBy(GaenUnit.TenMinutes.getDuration()),
+              0,
+              "ES",
+              1,
+              0L,
+              false,
+              List.of("ES")));
+    }
+    return keys;
+  }
+
+  private static KeyPair generateKeyPair() {
+    try {
+      var generator = KeyPairGenerator.getInstance("EC");
+      generator.initialize(new ECGenParameterSpec("secp256r1"));
+      return generator.generateKeyPair();
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -10,6 +10,7 @@
 
 package org.dpppt.backend.sdk.ws.security.signature;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
@@ -21,21 +22,27 @@
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.security.Keys;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.security.KeyPair;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import org.apache.commons.codec.binary.Hex;
 import org.dpppt.backend.sdk.utils.UTCInstant;
 import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
 
 /** @author bachmann created on 24.04.20 */
 public class SignatureResponseWrapperTest {
 
+  private final MockHttpServletRequest request = new MockHttpServletRequest();
   private MockHttpServletResponse response;
 
   @Test
@@ -47,7 +54,7 @@ public void testSignaturResponseWrapper() throws IOException, NoSuchAlgorithmExc
     List<String> protectedHeaders = new ArrayList<String>();
     protectedHeaders.add("X-BATCH-RELEASE-TIME");
     SignatureResponseWrapper signatureResponseWrapper =
-        new SignatureResponseWrapper(response, keyPair, 21, protectedHeaders, true);
+        new SignatureResponseWrapper(request, response, keyPair, 21, protectedHeaders, true);
     signatureResponseWrapper.getOutputStream().print("TEST");
     signatureResponseWrapper.flushBuffer();
     String digest = response.getHeader("Digest");
@@ -68,7 +75,7 @@ public void setSignatureOnlyFor200And204ButNotFor304() throws IOException {
 
     List<String> protectedHeaders = new ArrayList<String>();
     SignatureResponseWrapper signatureResponseWrapper =
-        new SignatureResponseWrapper(response, keyPair, 21, protectedHeaders, true);
+        new SignatureResponseWrapper(request, response, keyPair, 21, protectedHeaders, true);
     signatureResponseWrapper.getOutputStream().print("TEST");
     signatureResponseWrapper.flushBuffer();
     String rawJWT = response.getHeader("Signature");
@@ -77,7 +84,7 @@ public void setSignatureOnlyFor200And204ButNotFor304() throws IOException {
     response = new MockHttpServletResponse();
     response.setStatus(204);
     signatureResponseWrapper =
-        new SignatureResponseWrapper(response, keyPair, 21, protectedHeaders, true);
+        new SignatureResponseWrapper(request, response, keyPair, 21, protectedHeaders, true);
     signatureResponseWrapper.getOutputStream().print("TEST");
     signatureResponseWrapper.flushBuffer();
     rawJWT = response.getHeader("Signature");
@@ -86,7 +93,7 @@ public void setSignatureOnlyFor200And204ButNotFor304() throws IOException {
     response = new MockHttpServletResponse();
     response.setStatus(304);
     signatureResponseWrapper =
-        new SignatureResponseWrapper(response, keyPair, 21, protectedHeaders, true);
+        new SignatureResponseWrapper(request, response, keyPair, 21, protectedHeaders, true);
     signatureResponseWrapper.getOutputStream().print("TEST");
     signatureResponseWrapper.flushBuffer();
     rawJWT = response.getHeader("Signature");
@@ -101,7 +108,7 @@ public void testSignatureViaOutput() throws IOException, NoSuchAlgorithmExceptio
     List<String> protectedHeaders = new ArrayList<String>();
     protectedHeaders.add("X-BATCH-RELEASE-TIME");
     SignatureResponseWrapper signatureResponseWrapper =
-        new SignatureResponseWrapper(response, keyPair, 21, protectedHeaders, true);
+        new SignatureResponseWrapper(request, response, keyPair, 21, protectedHeaders, true);
     signatureResponseWrapper.getOutputStream().print("TEST");
     OutputStream stream = OutputStream.nullOutputStream();
     signatureResponseWrapper.outputData(stream);
@@ -114,6 +121,26 @@ public void testSignatureViaOutput() throws IOException, NoSuchAlgorithmExceptio
     assertEquals(expected, digest);
   }
 
+  @Test
+  public void testBulkWriteViaOutput() throws IOException, NoSuchAlgorithmException {
+    response = new MockHttpServletResponse();
+    KeyPair keyPair = Keys.keyPairFor(SignatureAlgorithm.ES256);
+    List<String> protectedHeaders = new ArrayList<String>();
+    SignatureResponseWrapper signatureResponseWrapper =
+        new SignatureResponseWrapper(request, response, keyPair, 21, protectedHeaders, true);
+    byte[] body = new byte[100_000];
+    new Random(1).nextBytes(body);
+    signatureResponseWrapper.getOutputStream().write(body, 0, 40_000);
+    signatureResponseWrapper.getOutputStream().write(body, 40_000, body.length - 40_000);
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    signatureResponseWrapper.outputData(stream);
+
+    assertArrayEquals(body, stream.toByteArray());
+    String expected =
+        "sha-256=" + Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(body));
+    assertEquals(expected, response.getHeader("Digest"));
+  }
+
   @Test
   public void testBatchReleaseTime() throws IOException, NoSuchAlgorithmException {
     response = new MockHttpServletResponse();
@@ -123,7 +150,7 @@ public void testBatchReleaseTime() throws IOException, NoSuchAlgorithmException
     List<String> protectedHeaders = new ArrayList<String>();
     protectedHeaders.add("X-BATCH-RELEASE-TIME");
     SignatureResponseWrapper signatureResponseWrapper =
-        new SignatureResponseWrapper(response, keyPair, 21, protectedHeaders, true);
+        new SignatureResponseWrapper(request, response, keyPair, 21, protectedHeaders, true);
     signatureResponseWrapper.getOutputStream().print("TEST");
     signatureResponseWrapper.flushBuffer();
     String digest = response.getHeader("Digest");
@@ -145,7 +172,7 @@ public void testBatchReleaseTimeWithOutputStream() throws IOException, NoSuchAlg
     List<String> protectedHeaders = new ArrayList<String>();
     protectedHeaders.add("X-BATCH-RELEASE-TIME");
     SignatureResponseWrapper signatureResponseWrapper =
-        new SignatureResponseWrapper(response, keyPair, 21, protectedHeaders, true);
+        new SignatureResponseWrapper(request, response, keyPair, 21, protectedHeaders, true);
     signatureResponseWrapper.getOutputStream().print("TEST");
     OutputStream stream = OutputStream.nullOutputStream();
     signatureResponseWrapper.outputData(stream);
@@ -167,7 +194,7 @@ public void testSignaturResponseWrapperWithDebugHeaders()
     List<String> protectedHeaders = new ArrayList<String>();
     protectedHeaders.add("X-BATCH-RELEASE-TIME");
     SignatureResponseWrapper signatureResponseWrapper =
-        new SignatureResponseWrapper(response, keyPair, 21, protectedHeaders, true);
+        new SignatureResponseWrapper(request, response, keyPair, 21, protectedHeaders, true);
     signatureResponseWrapper.getOutputStream().print("TEST");
     signatureResponseWrapper.flushBuffer();
 
@@ -186,7 +213,7 @@ public void testSignaturResponseWrapperWithoutDebugHeaders()
     List<String> protectedHeaders = new ArrayList<String>();
     protectedHeaders.add("X-BATCH-RELEASE-TIME");
     SignatureResponseWrapper signatureResponseWrapper =
-        new SignatureResponseWrapper(response, keyPair, 21, protectedHeaders, false);
+        new SignatureResponseWrapper(request, response, keyPair, 21, protectedHeaders, false);
     signatureResponseWrapper.getOutputStream().print("TEST");
     signatureResponseWrapper.flushBuffer();
 
@@ -196,4 +223,65 @@ public void testSignaturResponseWrapperWithoutDebugHeaders()
     String publicKey = response.getHeader("X-Public-Key");
     assertNull(publicKey);
   }
+
+  @Test
+  public void testContentHashAttributeIsSignedWithoutBuffering() throws Exception {
+    response = new MockHttpServletResponse();
+    KeyPair keyPair = Keys.keyPairFor(SignatureAlgorithm.ES256);
+    byte[] contentHash = MessageDigest.getInstance("SHA-256").digest("TEST".getBytes());
+    request.setAttribute(SignatureResponseWrapper.CONTENT_HASH_ATTRIBUTE, contentHash);
+    SignatureResponseWrapper signatureResponseWrapper =
+        new SignatureResponseWrapper(request, response, keyPair, 21, List.of(), false);
+    signatureResponseWrapper.getOutputStream().print("TEST");
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    signatureResponseWrapper.outputData(stream);
+
+    // written to the response directly, not to the output of the filter
+    assertEquals(0, stream.size());
+    assertEquals("TEST", response.getContentAsString());
+    Claims claims =
+        Jwts.parserBuilder()
+            .setSigningKey(keyPair.getPublic())
+            .build()
+            .parseClaimsJws(response.getHeader("Signature"))
+            .getBody();
+    assertEquals(Base64.getEncoder().encodeToString(contentHash), claims.get("content-hash"));
+  }
+
+  @Test
+  public void testPrecomputedSignatureIsUsedIfProtectedHeadersMatch() throws Exception {
+    KeyPair keyPair = Keys.keyPairFor(SignatureAlgorithm.ES256);
+    List<String> protectedHeaders = List.of("X-BATCH-RELEASE-TIME");
+    byte[] contentHash = MessageDigest.getInstance("SHA-256").digest("TEST".getBytes());
+    String batchReleaseTime = Long.toString(UTCInstant.today().getTimestamp());
+    var precomputed =
+        new ContentSignature(keyPair, 21, protectedHeaders)
+            .precompute(
+                contentHash,
+                Map.of("X-BATCH-RELEASE-TIME", batchReleaseTime)::get,
+                UTCInstant.today());
+    request.setAttribute(SignatureResponseWrapper.CONTENT_HASH_ATTRIBUTE, contentHash);
+    request.setAttribute(SignatureResponseWrapper.SIGNATURE_ATTRIBUTE, precomputed);
+
+    response = new MockHttpServletResponse();
+    response.setHeader("X-BATCH-RELEASE-TIME", batchReleaseTime);
+    new SignatureResponseWrapper(request, response, keyPair, 21, protectedHeaders, false)
+        .outputData(OutputStream.nullOutputStream());
+    assertEquals(precomputed.getValue(), response.getHeader("Signature"));
+
+    // a different protected header is signed again
+    String otherBatchReleaseTime = Long.toString(UTCInstant.today().minusDays(1).getTimestamp());
+    response = new MockHttpServletResponse();
+    response.setHeader("X-BATCH-RELEASE-TIME", otherBatchReleaseTime);
+    new SignatureResponseWrapper(request, response, keyPair, 21, protectedHeaders, false)
+        .outputData(OutputStream.nullOutputStream());
+    Claims claims =
+        Jwts.parserBuilder()
+            .setSigningKey(keyPair.getPublic())
+            .build()
+            .parseClaimsJws(response.getHeader("Signature"))
+            .getBody();
+    assertEquals(otherBatchReleaseTime, claims.get("batch-release-time"));
+    assertEquals(Base64.getEncoder().encodeToString(contentHash), claims.get("content-hash"));
+  }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2020 Gobierno de España
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * SPDX-License-Identifier: MPL-2.0
+ */
+package org.dpppt.backend.sdk.ws.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.ServletWebRequest;
+
+public class ExportCacheHeadersTest {
+
+  private static final Duration BUCKET_LENGTH = Duration.ofHours(2);
+  private static final Duration JITTER = Duration.ofMinutes(5);
+
+  private final UTCInstant bucketStart = UTCInstant.today().plusHours(6);
+  private final UTCInstant now = bucketStart.plusMinutes(30);
+
+  @Test
+  public void testWithoutJitterTheExportExpiresAtTheBucketEnd() {
+    var headers =
+        new ExportCacheHeaders(BUCKET_LENGTH, Duration.ZERO).headers(bucketStart, now, "1.2.3.4");
+    assertEquals("max-age=5400, public, s-maxage=5400", headers.getCacheControl());
+    assertEquals(bucketStart.plus(BUCKET_LENGTH).getTimestamp(), headers.getExpires());
+    assertEquals(bucketStart.getTimestamp(), headers.getLastModified());
+  }
+
+  @Test
+  public void testJitterIsStablePerClientAndSpread() {
+    var cacheHeaders = new ExportCacheHeaders(BUCKET_LENGTH, JITTER);
+    var bucketEnd = bucketStart.plus(BUCKET_LENGTH);
+    var expirations = new HashSet<Long>();
+    for (int i = 0; i < 20; i++) {
+      var expiration = cacheHeaders.getExpiration(bucketStart, "10.0.0." + i);
+      long offset = expiration.getTimestamp() - bucketEnd.getTimestamp();
+      assertTrue(offset >= 0 && offset < JITTER.toMillis());
+      expirations.add(expiration.getTimestamp());
+    }
+    assertTrue(expirations.size() > 1);
+    // the addresses of a subnet are not placed next to each other
+    long spread = Collections.max(expirations) - Collections.min(expirations);
+    assertTrue(spread > JITTER.toMillis() / 2);
+
+    var headers = cacheHeaders.headers(bucketStart, now, "10.0.0.1");
+    var again = cacheHeaders.headers(bucketStart, now.plusMinutes(1), "10.0.0.1");
+    assertEquals(headers.getExpires(), again.getExpires());
+    assertNotEquals(headers.getCacheControl(), again.getCacheControl());
+  }
+
+  @Test
+  public void testExpiredBucketIsNotCached() {
+    var headers =
+        new ExportCacheHeaders(BUCKET_LENGTH, Duration.ZERO)
+            .headers(bucketStart, bucketStart.plus(BUCKET_LENGTH).plusMinutes(1), null);
+    assertEquals("max-age=0, public, s-maxage=0", headers.getCacheControl());
+  }
+
+  @Test
+  public void testIfNoneMatchIsComparedWeakly() {
+    String eTag = "W/\"abc\"";
+    assertTrue(isNotModified(HttpHeaders.IF_NONE_MATCH, "W/\"abc\""));
+    assertTrue(isNotModified(HttpHeaders.IF_NONE_MATCH, "\"abc\""));
+    assertTrue(isNotModified(HttpHeaders.IF_NONE_MATCH, "\"other\", W/\"abc\""));
+    assertTrue(isNotModified(HttpHeaders.IF_NONE_MATCH, "*"));
+    assertFalse(isNotModified(HttpHeaders.IF_NONE_MATCH, "W/\"other\""));
+    assertFalse(ExportCacheHeaders.isNotModified(request(null, null), eTag, bucketStart));
+  }
+
+  @Test
+  public void testIfModifiedSinceIsOnlyUsedWithoutIfNoneMatch() {
+    var headers = new HttpHeaders();
+    headers.setDate(HttpHeaders.IF_MODIFIED_SINCE, bucketStart.getTimestamp());
+    String atBucketStart = headers.getFirst(HttpHeaders.IF_MODIFIED_SINCE);
+    headers.setDate(HttpHeaders.IF_MODIFIED_SINCE, bucketStart.minusMinutes(1).getTimestamp());
+    String beforeBucketStart = headers.getFirst(HttpHeaders.IF_MODIFIED_SINCE);
+
+    assertTrue(isNotModified(HttpHeaders.IF_MODIFIED_SINCE, atBucketStart));
+    assertFalse(isNotModified(HttpHeaders.IF_MODIFIED_SINCE, beforeBucketStart));
+    assertFalse(isNotModified(HttpHeaders.IF_MODIFIED_SINCE, "not a date"));
+
+    var request = request(HttpHeaders.IF_MODIFIED_SINCE, atBucketStart);
+    ((MockHttpServletRequest) request.getRequest())
+        .addHeader(HttpHeaders.IF_NONE_MATCH, "\"other\"");
+    assertFalse(ExportCacheHeaders.isNotModified(request, "W/\"abc\"", bucketStart));
+  }
+
+  private boolean isNotModified(String header, String value) {
+    return ExportCacheHeaders.isNotModified(request(header, value), "W/\"abc\"", bucketStart);
+  }
+
+  private ServletWebRequest request(String header, String value) {
+    var request = new MockHttpServletRequest("GET", "/v2/gaen/exposed");
+    if (header != null) {
+      request.addHeader(header, value);
+    }
+    return new ServletWebRequest(request);
+  }
+}
@@ -0,0 +1,58 @@
+package org.dpppt.backend.sdk.ws.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.dpppt.backend.sdk.utils.UTCInstant;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.web.context.request.async.DeferredResult;
+
+public class RequestTimeNormalizerTest {
+
+  private final RequestTimeNormalizer normalizer = new RequestTimeNormalizer();
+
+  @After
+  public void tearDown() {
+    normalizer.shutdown();
+  }
+
+  @Test
+  public void testResultIsDelayedUntilRequestTime() throws Exception {
+    var start = UTCInstant.now();
+    var result = normalizer.normalize(start, Duration.ofMillis(300), "OK");
+    assertFalse(result.hasResult());
+
+    var completed = new CountDownLatch(1);
+    result.setResultHandler(value -> completed.countDown());
+    assertTrue(completed.await(2, TimeUnit.SECONDS));
+    assertTrue(UTCInstant.now().getDuration(start).toMillis() >= 300);
+    assertEquals("OK", result.getResult());
+  }
+
+  @Test
+  public void testOverrunIsCompletedImmediately() {
+    var start = UTCInstant.now().minusSeconds(2);
+    var result = normalizer.normalize(start, Duration.ofMillis(300), "OK");
+    assertTrue(result.hasResult());
+    assertEquals("OK", result.getResult());
+  }
+
+  @Test
+  public void testDeferredResultIsDelayed() throws Exception {
+    var start = UTCInstant.now();
+    var controllerResult = new DeferredResult<String>();
+    var result = normalizer.normalize(start, Duration.ofMillis(300), controllerResult);
+    controllerResult.setResult("OK");
+    assertFalse(result.hasResult());
+
+    var completed = new CountDownLatch(1);
+    result.setResultHandler(value -> completed.countDown());
+    assertTrue(completed.await(2, TimeUnit.SECONDS));
+    assertEquals("OK", result.getResult());
+  }
+}
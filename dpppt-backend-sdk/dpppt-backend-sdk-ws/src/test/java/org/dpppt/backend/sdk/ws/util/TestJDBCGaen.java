@@ -65,29 +65,33 @@ public void upsertExposees(List<GaenKey> gaenKeys, UTCInstant receivedAt) {
     if (dbType.equals(PGSQL)) {
       sql =
           "insert into t_gaen_exposed (key, rolling_start_number, rolling_period,"
-              + " transmission_risk_level, received_at, expiry) values (:key, :rolling_start_number,"
-              + " :rolling_period, :transmission_risk_level, :received_at, expiry) on conflict on"
+              + " transmission_risk_level, received_at, expiry, publish_at) values (:key,"
+              + " :rolling_start_number, :rolling_period, :transmission_risk_level, :received_at,"
+              + " :expiry, :publish_at) on conflict on"
               + " constraint gaen_exposed_key do nothing";
     } else {
       sql =
-          "merge into t_gaen_exposed using (values(cast(:key as varchar(24)),"
-              + " :rolling_start_number, :rolling_period, :transmission_risk_level, :received_at, :expiry))"
-              + " as vals(key, rolling_start_number, rolling_period, transmission_risk_level,"
-              + " received_at, expiry) on t_gaen_exposed.key = vals.key when not matched then insert (key,"
-              + " rolling_start_number, rolling_period, transmission_risk_level, received_at, expiry)"
-              + " values (vals.key, vals.rolling_start_number, vals.rolling_period,"
-              + " vals.transmission_risk_level, vals.received_at, vals.expiry)";
+          "merge into t_gaen_exposed using (values(cast(:key as varbinary(16)),"
+              + " :rolling_start_number, :rolling_period, :transmission_risk_level, :received_at, :expiry,"
+              + " :publish_at)) as vals(key, rolling_start_number, rolling_period,"
+              + " transmission_risk_level, received_at, expiry, publish_at) on t_gaen_exposed.key ="
+              + " vals.key when not matched then insert (key, rolling_start_number, rolling_period,"
+              + " transmission_risk_level, received_at, expiry, publish_at) values (vals.key,"
+              + " vals.rolling_start_number, vals.rolling_period, vals.transmission_risk_level,"
+              + " vals.received_at, vals.expiry, vals.publish_at)";
     }
     var parameterList = new ArrayList<MapSqlParameterSource>();
     for (var gaenKey : gaenKeys) {
       var exiry = UTCInstant.of(gaenKey.getRollingStartNumber() + gaenKey.getRollingPeriod(), GaenUnit.TenMinutes).plus(Duration.ofHours(2));
       MapSqlParameterSource params = new MapSqlParameterSource();
-      params.addValue("key", gaenKey.getKeyData());
+      params.addValue("key", gaenKey.getKeyBytes());
       params.addValue("rolling_start_number", gaenKey.getRollingStartNumber());
       params.addValue("rolling_period", gaenKey.getRollingPeriod());
       params.addValue("transmission_risk_level", gaenKey.getTransmissionRiskLevel());
       params.addValue("received_at", receivedAt.getDate());
       params.addValue("expiry", exiry.getDate());
+      params.addValue(
+          "publish_at", exiry.isAfterEpochMillisOf(receivedAt) ? exiry.getDate() : receivedAt.getDate());
       parameterList.add(params);
     }
     jt.batchUpdate(sql, parameterList.toArray(new MapSqlParameterSource[0]));
@@ -104,7 +108,7 @@ public void upsertExposeesDebug(List<GaenKey> gaenKeys, UTCInstant receivedAt) {
               + " 'test') on conflict on constraint debug_gaen_exposed_key do nothing";
     } else {
       sql =
-          "merge into t_debug_gaen_exposed using (values(cast(:key as varchar(24)),"
+          "merge into t_debug_gaen_exposed using (values(cast(:key as varbinary(16)),"
               + " :rolling_start_number, :rolling_period, :transmission_risk_level, :received_at,"
               + " 'test')) as vals(key, rolling_start_number, rolling_period,"
               + " transmission_risk_level, received_at, device_name) on t_debug_gaen_exposed.key ="
@@ -116,7 +120,7 @@ public void upsertExposeesDebug(List<GaenKey> gaenKeys, UTCInstant receivedAt) {
     var parameterList = new ArrayList<MapSqlParameterSource>();
     for (var gaenKey : gaenKeys) {
       MapSqlParameterSource params = new MapSqlParameterSource();
-      params.addValue("key", gaenKey.getKeyData());
+      params.addValue("key", gaenKey.getKeyBytes());
       params.addValue("rolling_start_number", gaenKey.getRollingStartNumber());
       params.addValue("rolling_period", gaenKey.getRollingPeriod());
       params.addValue("transmission_risk_level", gaenKey.getTransmissionRiskLevel());